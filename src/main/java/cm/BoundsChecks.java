@@ -0,0 +1,448 @@
+package cm;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * works out which array indexes have to be checked against the bounds of their array when the code is compiled with
+ * -fbounds-check, and marks each indexed Var with the checks it needs.
+ *
+ * the range of values each int local and parameter can have is tracked through the body of its function, narrowed
+ * by the conditions of ifs and whiles, and widened to the whole int range where a loop keeps moving it, so that the
+ * loop is only gone through a few times. an index whose range is within the array needs no check, like i in
+ *
+ *     i = 0; while (i < 10) { a[i] = 0; i = i + 1; }
+ *
+ * for an array declared with 10 elements. globals can be changed by any call, so they could be anything, as can
+ * array elements and what a function returns. array parameters don't come with their size, so an index into one is
+ * only checked for being negative
+ */
+public class BoundsChecks {
+
+    /** the checks an array access needs before the index is used */
+    public static final class Check {
+        private final boolean lower;
+        private final Optional<Integer> size;
+
+        private Check(final boolean lower, final Optional<Integer> size) {
+            this.lower = lower;
+            this.size = size;
+        }
+
+        /** @return true if the index has to be checked for being negative */
+        public boolean checksLower() { return lower; }
+
+        /** @return the size of the array, if the index has to be checked for being past its end */
+        public Optional<Integer> getSize() { return size; }
+
+        public boolean isNeeded() { return lower || size.isPresent(); }
+    }
+
+    /** how many checks are left, out of the ones an array access could need */
+    public static final class Report {
+        int accesses;
+        int lower;
+        int upper;
+        int removed;
+
+        public int getAccesses() { return accesses; }
+        public int getLower() { return lower; }
+        public int getUpper() { return upper; }
+
+        /** @return the checks the ranges of the indexes showed aren't needed */
+        public int getRemoved() { return removed; }
+
+        @Override
+        public String toString() {
+            return String.format("%d array accesses, checking %d indexes for being negative and %d for being " +
+                    "too big; %d checks removed", accesses, lower, upper, removed);
+        }
+    }
+
+    /** mark every array access in decs with the Check it needs. the numbers of checks are added to report */
+    public static void mark(final Ast.DeclarationList decs, final Report report) {
+        final Analysis analysis = new Analysis();
+        analysis.program(decs);
+        analysis.needs.forEach((var, needs) -> {
+            final Optional<Integer> size = analysis.sizes.get(var);
+            final Check check = new Check(needs[0], needs[1] ? size : Optional.empty());
+            var.addAttribute(Check.class, check);
+            report.accesses++;
+            if (check.checksLower()) { report.lower++; } else { report.removed++; }
+            if (check.getSize().isPresent()) { report.upper++; } else if (size.isPresent()) { report.removed++; }
+        });
+    }
+
+    /* the values an int can have, from lo to hi */
+    private static final class Range {
+        static final Range ALL = new Range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        static final Range BOOLEAN = new Range(0, 1);
+
+        final long lo;
+        final long hi;
+
+        Range(final long lo, final long hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        static Range of(final int value) { return new Range(value, value); }
+
+        static Range of(final long lo, final long hi) {
+            // the TM wraps around where a result doesn't fit
+            return lo < Integer.MIN_VALUE || hi > Integer.MAX_VALUE ? ALL : new Range(lo, hi);
+        }
+
+        boolean isEmpty() { return lo > hi; }
+
+        Range join(final Range other) { return new Range(Math.min(lo, other.lo), Math.max(hi, other.hi)); }
+
+        Range meet(final Range other) { return new Range(Math.max(lo, other.lo), Math.min(hi, other.hi)); }
+
+        /* @return the range with the bounds that moved since before pushed all the way out */
+        Range widen(final Range before) {
+            return new Range(lo < before.lo ? Integer.MIN_VALUE : lo, hi > before.hi ? Integer.MAX_VALUE : hi);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Range && ((Range) o).lo == lo && ((Range) o).hi == hi;
+        }
+
+        @Override
+        public int hashCode() { return Long.hashCode(lo) * 31 + Long.hashCode(hi); }
+    }
+
+    private static class Analysis {
+        // for each array access, whether it needs the lower and the upper check, and the size of its array
+        final Map<Ast.Var,boolean[]> needs = new IdentityHashMap<>();
+        final Map<Ast.Var,Optional<Integer>> sizes = new IdentityHashMap<>();
+        private final Deque<Map<String,Ast>> scopes = new ArrayDeque<>();
+        // false while the ranges in a loop are still being worked out
+        private boolean recording = true;
+
+        void program(final Ast.DeclarationList decs) {
+            final Map<String,Ast> globals = new HashMap<>();
+            scopes.push(globals);
+            for (final Ast dec : decs.getDeclarations()) {
+                if (dec instanceof Ast.VarDeclaration) {
+                    globals.put(((Ast.VarDeclaration) dec).getName(), dec);
+                } else {
+                    final Ast.FunDeclaration fun = (Ast.FunDeclaration) dec;
+                    final Map<String,Ast> params = new HashMap<>();
+                    final Map<Ast,Range> state = new IdentityHashMap<>();
+                    fun.getParams().forEach(p -> {
+                        params.put(((Ast.Param) p).getName(), p);
+                        if (!((Ast.Param) p).isArray()) { state.put(p, Range.ALL); }
+                    });
+                    scopes.push(params);
+                    statement(fun.getBody(), state);
+                    scopes.pop();
+                }
+            }
+            scopes.pop();
+        }
+
+        /* @return the ranges after the statement, or null if control never gets past it */
+        private Map<Ast,Range> statement(final Ast ast, final Map<Ast,Range> state) {
+            if (state == null) { return null; }
+            if (ast instanceof Ast.CompoundStatement) {
+                final Ast.CompoundStatement cmpd = (Ast.CompoundStatement) ast;
+                final Map<String,Ast> scope = new HashMap<>();
+                for (final Ast dec : cmpd.getLocalDeclarations()) {
+                    scope.put(((Ast.VarDeclaration) dec).getName(), dec);
+                    // a local starts out with whatever was left in its slot
+                    if (!((Ast.VarDeclaration) dec).getSize().isPresent()) { state.put(dec, Range.ALL); }
+                }
+                scopes.push(scope);
+                Map<Ast,Range> result = state;
+                for (final Ast stmt : cmpd.getStatements()) { result = statement(stmt, result); }
+                scopes.pop();
+                return result;
+            }
+            if (ast instanceof Ast.ExpressionStmt) {
+                ((Ast.ExpressionStmt) ast).getExpression().ifPresent(exp -> eval(exp, state));
+                return state;
+            }
+            if (ast instanceof Ast.IfThen) {
+                final Ast.IfThen ifThen = (Ast.IfThen) ast;
+                eval(ifThen.getCondition(), state);
+                final Map<Ast,Range> then = statement(ifThen.getThenPart(), assume(ifThen.getCondition(), true, state));
+                return join(then, assume(ifThen.getCondition(), false, state));
+            }
+            if (ast instanceof Ast.IfThenElse) {
+                final Ast.IfThenElse ifThenElse = (Ast.IfThenElse) ast;
+                eval(ifThenElse.getCondition(), state);
+                return join(statement(ifThenElse.getThenPart(), assume(ifThenElse.getCondition(), true, state)),
+                        statement(ifThenElse.getElsePart(), assume(ifThenElse.getCondition(), false, state)));
+            }
+            if (ast instanceof Ast.While) {
+                return loop((Ast.While) ast, state);
+            }
+            if (ast instanceof Ast.Return) {
+                ((Ast.Return) ast).getExpression().ifPresent(exp -> eval(exp, state));
+                return null;
+            }
+            // an expression left as a statement, like the arguments of a call to a function that was removed
+            eval(ast, state);
+            return state;
+        }
+
+        /* go through the loop until the ranges at the condition stop changing, then once more from what gets there
+         * from the entry and from the end of the body, which undoes some of the widening, like for i in
+         * while (i < 10) { i = i + 1; }. the array accesses are only recorded on the last time through */
+        private Map<Ast,Range> loop(final Ast.While whileS, final Map<Ast,Range> entry) {
+            final boolean outer = recording;
+            recording = false;
+            Map<Ast,Range> head = entry;
+            for (int i = 0; ; i++) {
+                // the ranges only grow, and after a few times round the ones that still do grow all the way
+                final Map<Ast,Range> next = join(head, iterate(whileS, head));
+                if (same(next, head)) { break; }
+                if (i >= 2) {
+                    final Map<Ast,Range> before = head;
+                    next.replaceAll((dec, range) -> before.containsKey(dec) ? range.widen(before.get(dec)) : range);
+                }
+                head = next;
+            }
+            head = join(entry, iterate(whileS, head));
+            recording = outer;
+            iterate(whileS, head);
+            final Map<Ast,Range> tested = new IdentityHashMap<>(head);
+            eval(whileS.getCondition(), tested);
+            return assume(whileS.getCondition(), false, tested);
+        }
+
+        /* @return the ranges at the end of the body of the loop, starting from head at the condition */
+        private Map<Ast,Range> iterate(final Ast.While whileS, final Map<Ast,Range> head) {
+            final Map<Ast,Range> tested = new IdentityHashMap<>(head);
+            eval(whileS.getCondition(), tested);
+            return statement(whileS.getBody(), assume(whileS.getCondition(), true, tested));
+        }
+
+        /* @return the ranges where cond has the given truth value, or null if it can't */
+        private Map<Ast,Range> assume(final Ast cond, final boolean truth, final Map<Ast,Range> state) {
+            final Map<Ast,Range> result = new IdentityHashMap<>(state);
+            // a condition that changes something compares the values from before the change
+            if (hasEffects(cond)) { return result; }
+            final Ast.Expression exp = unwrap(cond);
+            if (!exp.getOp().isPresent()) {
+                return truth ? result : narrow(exp.getLeft(), Range.of(0), result);
+            }
+            Ast.Operator op = exp.getOp().get();
+            if (!isComparison(op)) { return result; }
+            if (!truth) { op = negate(op); }
+            final Ast right = exp.getRight().get();
+            final Range l = value(exp.getLeft(), state);
+            final Range r = value(right, state);
+            final Map<Ast,Range> narrowed = narrow(exp.getLeft(), bound(op, r), result);
+            return narrowed == null ? null : narrow(right, bound(mirror(op), l), narrowed);
+        }
+
+        /* @return the ranges with the variable ast, if it is one, limited to range, or null if that leaves nothing */
+        private Map<Ast,Range> narrow(final Ast ast, final Range range, final Map<Ast,Range> state) {
+            final Ast dec = tracked(ast, state);
+            if (dec == null) { return state; }
+            final Range narrowed = state.get(dec).meet(range);
+            if (narrowed.isEmpty()) { return null; }
+            state.put(dec, narrowed);
+            return state;
+        }
+
+        /* @return the declaration of the int variable ast is, if its range is tracked, or null */
+        private Ast tracked(final Ast ast, final Map<Ast,Range> state) {
+            Ast var = ast;
+            if (var instanceof Ast.Expression) {
+                final Ast.Expression exp = unwrap(var);
+                if (exp.getOp().isPresent()) { return null; }
+                var = exp.getLeft();
+            }
+            if (!(var instanceof Ast.Var) || ((Ast.Var) var).getExpression().isPresent()) { return null; }
+            final Ast dec = resolve((Ast.Var) var);
+            return dec != null && state.containsKey(dec) ? dec : null;
+        }
+
+        /* @return the range of ast, evaluated for its effects on the ranges and the array accesses in it */
+        private Range eval(final Ast ast, final Map<Ast,Range> state) {
+            if (ast instanceof Ast.Constant) { return Range.of(((Ast.Constant) ast).getValue()); }
+            if (ast instanceof Ast.Var) {
+                final Ast.Var var = (Ast.Var) ast;
+                if (var.getExpression().isPresent()) {
+                    access(var, eval(var.getExpression().get(), state));
+                    return Range.ALL;
+                }
+                return value(var, state);
+            }
+            if (ast instanceof Ast.Assignment) {
+                final Ast.Assignment assign = (Ast.Assignment) ast;
+                final Range value = eval(assign.getExpression(), state);
+                final Ast.Var var = (Ast.Var) assign.getVar();
+                if (var.getExpression().isPresent()) {
+                    access(var, eval(var.getExpression().get(), state));
+                } else {
+                    final Ast dec = resolve(var);
+                    if (state.containsKey(dec)) { state.put(dec, value); }
+                }
+                return value;
+            }
+            if (ast instanceof Ast.Call) {
+                ((Ast.Call) ast).getArgs().forEach(arg -> eval(arg, state));
+                return Range.ALL;
+            }
+            if (ast instanceof Ast.Expression) {
+                final Ast.Expression exp = (Ast.Expression) ast;
+                final Range left = eval(exp.getLeft(), state);
+                if (!exp.getOp().isPresent()) { return left; }
+                return apply(exp.getOp().get(), left, eval(exp.getRight().get(), state));
+            }
+            throw new IllegalStateException("not an expression: " + ast);
+        }
+
+        /* @return the range of an expression that has no effects, without looking at the array accesses in it */
+        private Range value(final Ast ast, final Map<Ast,Range> state) {
+            if (ast instanceof Ast.Constant) { return Range.of(((Ast.Constant) ast).getValue()); }
+            if (ast instanceof Ast.Var && !((Ast.Var) ast).getExpression().isPresent()) {
+                final Ast.Var var = (Ast.Var) ast;
+                if ("true".equals(var.getName())) { return Range.of(1); }
+                if ("false".equals(var.getName())) { return Range.of(0); }
+                final Range range = state.get(resolve(var));
+                return range == null ? Range.ALL : range;
+            }
+            if (ast instanceof Ast.Expression) {
+                final Ast.Expression exp = (Ast.Expression) ast;
+                final Range left = value(exp.getLeft(), state);
+                if (!exp.getOp().isPresent()) { return left; }
+                return apply(exp.getOp().get(), left, value(exp.getRight().get(), state));
+            }
+            return Range.ALL;
+        }
+
+        /* record which checks the access to var at an index in the range needs */
+        private void access(final Ast.Var var, final Range index) {
+            final Ast dec = resolve(var);
+            final Optional<Integer> size = dec instanceof Ast.VarDeclaration
+                    ? ((Ast.VarDeclaration) dec).getSize() : Optional.empty();
+            if (!recording) { return; }
+            sizes.put(var, size);
+            final boolean[] need = needs.computeIfAbsent(var, k -> new boolean[2]);
+            need[0] |= index.lo < 0;
+            need[1] |= size.isPresent() && index.hi >= size.get();
+        }
+
+        private Ast resolve(final Ast.Var var) {
+            for (final Map<String,Ast> scope : scopes) {
+                final Ast dec = scope.get(var.getName());
+                if (dec != null) { return dec; }
+            }
+            return null;
+        }
+    }
+
+    private static Map<Ast,Range> join(final Map<Ast,Range> a, final Map<Ast,Range> b) {
+        if (a == null) { return b == null ? null : new IdentityHashMap<>(b); }
+        if (b == null) { return new IdentityHashMap<>(a); }
+        final Map<Ast,Range> result = new IdentityHashMap<>(a);
+        // a local of a block only one of them went through is out of scope here
+        result.replaceAll((dec, range) -> b.containsKey(dec) ? range.join(b.get(dec)) : range);
+        b.forEach(result::putIfAbsent);
+        return result;
+    }
+
+    /* an IdentityHashMap compares its values by identity too */
+    private static boolean same(final Map<Ast,Range> a, final Map<Ast,Range> b) {
+        if (a.size() != b.size()) { return false; }
+        for (final Map.Entry<Ast,Range> e : a.entrySet()) {
+            if (!e.getValue().equals(b.get(e.getKey()))) { return false; }
+        }
+        return true;
+    }
+
+    private static Range apply(final Ast.Operator op, final Range l, final Range r) {
+        switch (op) {
+            case PLUS: return Range.of(l.lo + r.lo, l.hi + r.hi);
+            case MINUS: return Range.of(l.lo - r.hi, l.hi - r.lo);
+            case TIMES: return corners(l, r, (a, b) -> a * b);
+            case DIVIDE: return r.lo <= 0 && r.hi >= 0 ? Range.ALL : corners(l, r, (a, b) -> a / b);
+            default: return Range.BOOLEAN;
+        }
+    }
+
+    private interface LongOp { long apply(long a, long b); }
+
+    /* @return the range of an operation that is monotonic in each operand, over the ranges l and r */
+    private static Range corners(final Range l, final Range r, final LongOp op) {
+        final long[] values = {op.apply(l.lo, r.lo), op.apply(l.lo, r.hi), op.apply(l.hi, r.lo), op.apply(l.hi, r.hi)};
+        long lo = values[0];
+        long hi = values[0];
+        for (final long v : values) {
+            lo = Math.min(lo, v);
+            hi = Math.max(hi, v);
+        }
+        return Range.of(lo, hi);
+    }
+
+    /* @return the values x can have if x op y holds for some y in range */
+    private static Range bound(final Ast.Operator op, final Range range) {
+        switch (op) {
+            case LT: return new Range(Integer.MIN_VALUE, range.hi - 1);
+            case LEQ: return new Range(Integer.MIN_VALUE, range.hi);
+            case GT: return new Range(range.lo + 1, Integer.MAX_VALUE);
+            case GEQ: return new Range(range.lo, Integer.MAX_VALUE);
+            case EQ: return range;
+            default: return Range.ALL;
+        }
+    }
+
+    private static boolean isComparison(final Ast.Operator op) {
+        return op != Ast.Operator.PLUS && op != Ast.Operator.MINUS && op != Ast.Operator.TIMES &&
+                op != Ast.Operator.DIVIDE;
+    }
+
+    /* @return the comparison that holds when op doesn't */
+    private static Ast.Operator negate(final Ast.Operator op) {
+        switch (op) {
+            case LT: return Ast.Operator.GEQ;
+            case LEQ: return Ast.Operator.GT;
+            case GT: return Ast.Operator.LEQ;
+            case GEQ: return Ast.Operator.LT;
+            case EQ: return Ast.Operator.NEQ;
+            default: return Ast.Operator.EQ;
+        }
+    }
+
+    /* @return the comparison with the operands swapped: x < y is y > x */
+    private static Ast.Operator mirror(final Ast.Operator op) {
+        switch (op) {
+            case LT: return Ast.Operator.GT;
+            case LEQ: return Ast.Operator.GEQ;
+            case GT: return Ast.Operator.LT;
+            case GEQ: return Ast.Operator.LEQ;
+            default: return op;
+        }
+    }
+
+    /* @return the expression inside any parentheses */
+    private static Ast.Expression unwrap(final Ast ast) {
+        Ast.Expression exp = (Ast.Expression) ast;
+        while (!exp.getOp().isPresent() && exp.getLeft() instanceof Ast.Expression) {
+            exp = (Ast.Expression) exp.getLeft();
+        }
+        return exp;
+    }
+
+    private static boolean hasEffects(final Ast ast) {
+        if (ast instanceof Ast.Call || ast instanceof Ast.Assignment) { return true; }
+        if (ast instanceof Ast.Expression) {
+            final Ast.Expression exp = (Ast.Expression) ast;
+            return hasEffects(exp.getLeft()) || exp.getRight().map(BoundsChecks::hasEffects).orElse(false);
+        }
+        if (ast instanceof Ast.Var) {
+            return ((Ast.Var) ast).getExpression().map(BoundsChecks::hasEffects).orElse(false);
+        }
+        return false;
+    }
+}
@@ -1,8 +1,14 @@
 /* Joshua Graydus | April 2016 */
 package cm;
 
+import cm.ir.Lowering;
+import cm.ir.PassManager;
+import cm.ir.Program;
+import cm.ir.TmEmitter;
 import data.Either;
 import data.Pair;
+import parser.ParserTables;
+import tiny.tm.DebugInfo;
 import tiny.tm.Instruction;
 import token.CharacterSource;
 import token.Error;
@@ -11,14 +17,53 @@ import token.Source;
 import java.io.*;
 import java.util.List;
 
+import static java.util.Arrays.asList;
+
 public class Cm {
 
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "usage: Cm [-O0|-O1|-O2] [-passes=a,b,c] [-fbounds-check] file.cm",
+            "  -O0             compile straight from the ast (the default)",
+            "  -O1, -O2        compile through the three-address code and optimize it",
+            "  -passes=a,b,c   run the named passes in the given order instead",
+            "  -fbounds-check  halt on an array index outside its array, printing " + CmCodeGen.BOUNDS_ERROR +
+                    " and the index. only works at -O0");
+
     public static void main(final String... args) throws IOException {
-        if (args.length == 0) {
+        // -O0 (the default) uses CmCodeGen. -O1 and -O2 go through the three-address code and its optimizations,
+        // and -passes=a,b,c runs the named passes in the given order instead. -fbounds-check makes CmCodeGen check
+        // the array indexes it can't show are in bounds
+        int level = 0;
+        boolean boundsCheck = false;
+        List<String> passes = null;
+        String fileName = null;
+        for (final String arg : args) {
+            if (arg.equals("-help") || arg.equals("--help")) {
+                System.out.println(USAGE);
+                System.exit(0);
+            } else if (arg.matches("-O[0-2]")) {
+                level = arg.charAt(2) - '0';
+            } else if (arg.equals("-fbounds-check")) {
+                boundsCheck = true;
+            } else if (arg.startsWith("-passes=")) {
+                passes = asList(arg.substring("-passes=".length()).split(","));
+            } else if (arg.startsWith("-")) {
+                System.out.println("unknown option " + arg);
+                System.out.println(USAGE);
+                System.exit(1);
+            } else {
+                fileName = arg;
+            }
+        }
+        if (boundsCheck && (level != 0 || passes != null)) {
+            System.out.println("-fbounds-check only works at -O0, the checks are made by the ast code generator");
+            System.exit(1);
+        }
+        if (fileName == null) {
             System.out.println("please provide path to source code file");
+            System.out.println(USAGE);
             System.exit(0);
         }
-        final String fileName = args[0];
         final File file = new File(fileName);
         if (!file.exists()) {
             System.out.println("the file " + fileName + " does not exist");
@@ -41,7 +86,8 @@ public class Cm {
         final List<Token> tokens = scan.getRight().get().getLeft();
 
         System.out.println("parsing...");
-        final CmParser parser = new CmParser();
+        // only one file is parsed, so only the states that this file reaches are worth building
+        final CmParser parser = new CmParser(ParserTables.Construction.LAZY);
         final Either<String,Ast> parse = parser.parse(tokens);
 
         if (parse.getLeft().isPresent()) {
@@ -62,14 +108,29 @@ public class Cm {
         }
 
         System.out.println("generating tm code...");
-        final CmCodeGen codeGen = new CmCodeGen();
-        final List<Instruction> instructions = codeGen.emit(ast);
+        final List<Instruction> instructions;
+        final DebugInfo debugInfo;
+        if (level == 0 && passes == null) {
+            final Pair<List<Instruction>,DebugInfo> emitted = new CmCodeGen(boundsCheck).emitWithDebugInfo(ast);
+            instructions = emitted.getLeft();
+            debugInfo = emitted.getRight();
+            ast.getAttribute(Pruning.Report.class).ifPresent(System.out::println);
+            ast.getAttribute(BoundsChecks.Report.class).ifPresent(System.out::println);
+        } else {
+            final PassManager passManager = passes == null ? PassManager.forLevel(level) : PassManager.of(passes);
+            final Program program = passManager.run(new Lowering().lower(ast));
+            instructions = new TmEmitter().emit(program);
+            debugInfo = DebugInfo.of(instructions);
+        }
         final String code = instructions.toString();
 
         final String outputFileName = outputFileName(fileName);
         System.out.println("writing output file " + outputFileName + "...");
         final File outputFile = new File(outputFileName);
         writeFile(outputFile, code);
+        // the comments and source lines of the addresses go in a file of their own
+        System.out.println("writing debug info " + outputFileName + ".map...");
+        writeFile(new File(outputFileName + ".map"), debugInfo.toMap(contents));
 
         System.out.println("ok");
     }
@@ -77,7 +138,8 @@ public class Cm {
     private static String readFile(final File file) throws IOException {
         final BufferedReader reader = new BufferedReader(new FileReader(file));
         final StringBuilder sb = new StringBuilder();
-        reader.lines().forEach(sb::append);
+        // keep the line breaks, so positions in the text can be turned into line numbers
+        reader.lines().forEach(line -> sb.append(line).append('\n'));
         return sb.toString();
     }
 
@@ -2,7 +2,9 @@
 package cm;
 
 import data.Pair;
+import tiny.tm.DebugInfo;
 import tiny.tm.Instruction;
+import tiny.tm.Peephole;
 
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -10,9 +12,13 @@ import java.util.stream.Stream;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.*;
+import static java.util.Comparator.comparing;
 import static java.util.function.Function.identity;
 import static java.util.stream.Collectors.*;
 
+/** generates TM code for a C- program. its fields are final and hold immutable objects, so one CmCodeGen can be
+ *  shared between threads, but emit annotates the ast it is given, so each ast must only be emitted by one thread at
+ *  a time */
 public class CmCodeGen {
 
     private static final int FP = 5; // frame pointer
@@ -20,23 +26,57 @@ public class CmCodeGen {
     private static final int PC = 7; // program counter
     private static final int AX = 0; // accumulator
     private static final int BX = 1; // temp register
-    private static final int CX = 2; // temp register
-    private static final int DX = 3; // temp register
+    private static final int ZERO = 3; // always holds 0, for absolute addresses
 
-    public List<Instruction> emit(final Ast ast0) {
-        final Ast ast = removeDeadCode(ast0).get();
+    /** what a bounds error prints before the index, so it can be told apart from the program's own output. no C-
+     *  literal can write it */
+    public static final int BOUNDS_ERROR = Integer.MIN_VALUE;
 
-        final int preambleSize = 14;
+    private final Peephole peephole = new Peephole(SP);
+    private final boolean boundsCheck;
+
+    public CmCodeGen() { this(false); }
+
+    /** @param boundsCheck true to check the index of every array access that could be outside the array, which
+     *                     prints BOUNDS_ERROR and the index and halts when it is */
+    public CmCodeGen(final boolean boundsCheck) { this.boundsCheck = boundsCheck; }
+
+    public List<Instruction> emit(final Ast ast0) { return emitWithDebugInfo(ast0).getLeft(); }
+
+    /** @return the code, and the comments and source positions of its addresses */
+    public Pair<List<Instruction>,DebugInfo> emitWithDebugInfo(final Ast ast0) {
+        // what is removed before any code is emitted is kept on ast0
+        final Pruning.Report report = new Pruning.Report();
+        final Ast ast = Pruning.prune(removeEmptyFunctions(removeDeadCode(foldConstants(ast0)).get(), report), report);
+        ast0.addAttribute(Pruning.Report.class, report);
+        if (boundsCheck) {
+            final BoundsChecks.Report checks = new BoundsChecks.Report();
+            BoundsChecks.mark((Ast.DeclarationList) ast, checks);
+            ast0.addAttribute(BoundsChecks.Report.class, checks);
+        }
 
         // give variables unique names
         rename(ast);
 
+        // the functions are emitted in parallel, and that only reads the ast, so the returns are added before
+        addImplicitReturns((Ast.DeclarationList)ast);
+
         // create environment
         final Pair<Env,Integer> envAndSp = createInitialEnv((Ast.DeclarationList)ast);
 
+        // the preamble sets up SP and ZERO, calls "main" and halts. with bounds checks, the handler the checks jump
+        // to comes right after it
+        final Buffer preamble = new Buffer();
+        emitCall(new Ast.Call(null, "main", emptyList()), envAndSp.getLeft(), preamble);
+        final Pair<List<Instruction>,DebugInfo> mainCall = peephole.optimizeWithDebugInfo(preamble.instrs);
+        final int boundsError = mainCall.getLeft().size() + 3;
+        final int preambleSize = boundsCheck ? boundsError + 4 : boundsError;
+        final Env env = boundsCheck ? envAndSp.getLeft().withBoundsError(boundsError) : envAndSp.getLeft();
+
         // generate code for functions
+        final Map<String,DebugInfo> debugInfo = new HashMap<>();
         final Pair<Map<String,Integer>,Map<String,List<Instruction>>> fns = createFunctions((Ast.DeclarationList)ast,
-                envAndSp.getLeft(), preambleSize);
+                env, preambleSize, debugInfo);
 
         final Map<String,Integer> addresses = fns.getLeft();
         final Map<String,List<Instruction>> functions = fns.getRight();
@@ -49,15 +89,21 @@ public class CmCodeGen {
 
         final Instruction[] instrs = new Instruction[codeSize[0]];
 
-        // initialize stack pointer
+        // initialize stack pointer and the zero register
         instrs[0] = new Instruction.Ldc(SP, envAndSp.getRight());
+        instrs[1] = new Instruction.Ldc(ZERO, 0);
 
         // create call to "main" function
-        final List<Instruction> main = insertFunctionAddresses(
-                emitCall(new Ast.Call(null, "main", emptyList()), envAndSp.getLeft()), addresses);
+        final List<Instruction> main = insertFunctionAddresses(mainCall.getLeft(), addresses);
         main.add(new Instruction.Halt());
+        if (boundsCheck) {
+            main.add(new Instruction.Ldc(BX, BOUNDS_ERROR, "bounds error"));
+            main.add(new Instruction.Out(BX));
+            main.add(new Instruction.Out(AX, "print the index"));
+            main.add(new Instruction.Halt());
+        }
 
-        int a = 1;
+        int a = 2;
         for (Instruction instr : main) {
             instrs[a] = instr;
             a++;
@@ -73,7 +119,25 @@ public class CmCodeGen {
             }
         });
 
-        return asList(instrs);
+        final DebugInfo info = new DebugInfo();
+        info.addAll(mainCall.getRight(), 2);
+        addresses.keySet().stream().sorted(comparing(addresses::get))
+                .forEach(f -> info.addAll(debugInfo.get(f), addresses.get(f)));
+        return Pair.of(asList(instrs), info);
+    }
+
+    /* give each function of type void that doesn't end with a return statement one */
+    private static void addImplicitReturns(final Ast.DeclarationList decs) {
+        decs.getDeclarations().stream()
+                .filter(d -> d instanceof Ast.FunDeclaration)
+                .map(d -> (Ast.FunDeclaration)d)
+                .filter(d -> d.getType() == Ast.TypeSpecifier.VOID)
+                .forEach(d -> {
+                    final List<Ast> stmts = ((Ast.CompoundStatement) d.getBody()).getStatements();
+                    if (stmts.isEmpty() || !(stmts.get(stmts.size()-1) instanceof Ast.Return)) {
+                        stmts.add(new Ast.Return(null, Optional.empty()));
+                    }
+                });
     }
 
     /** @return initial environment and initial SP address */
@@ -99,30 +163,39 @@ public class CmCodeGen {
                     d.getParams().stream().map(p -> (Ast.Param)p).forEach(p -> {
                         if (p.isArray()) arrayRefs.add(p.getAttribute(UniqueName.class).get().getName());
                     });
+                    d.addAttribute(FrameLayout.class, FrameLayout.of(d));
                     return d;
                 })
                 .collect(toMap(Ast.FunDeclaration::getName, identity()));
 
-        return Pair.of(new Env(globalVars, functions, emptyMap(), "", arrayRefs), counter.get());
+        return Pair.of(new Env(globalVars, functions, emptyMap(), "", arrayRefs, -1), counter.get());
     }
 
-    /** @return a pair of map from function names to address and from function names to instructions */
+    /** @return a pair of map from function names to address and from function names to instructions. the debug info
+     *  of each function goes in debugInfo. the functions only read the ast and env, so they are emitted in parallel,
+     *  on the common ForkJoinPool. they are laid out afterwards in the order they are declared, so the addresses
+     *  don't depend on which finished first, and only then do calls get the addresses of the functions they call */
     private Pair<Map<String,Integer>,Map<String,List<Instruction>>>
-    createFunctions(final Ast.DeclarationList decs, final Env env, int start) {
-        final AtomicInteger counter = new AtomicInteger(start);
-        final Map<String,Integer> addresses = new HashMap<>();
-        final Map<String,List<Instruction>> functions = new HashMap<>();
-        decs.getDeclarations().stream()
+    createFunctions(final Ast.DeclarationList decs, final Env env, final int start, final Map<String,DebugInfo> debugInfo) {
+        final List<Ast.FunDeclaration> funs = decs.getDeclarations().stream()
                 .filter(d -> d instanceof Ast.FunDeclaration)
                 .map(d -> (Ast.FunDeclaration)d)
-                .forEach(f -> {
-                    final List<Instruction> instrs = emit(f, env);
-                    addresses.put(f.getName(), counter.getAndAdd(instrs.size()));
-                    functions.put(f.getName(), instrs);
-                });
-        final Map<String,List<Instruction>> functions_ = functions.keySet().stream()
-                .collect(toMap(identity(), f -> insertFunctionAddresses(functions.get(f), addresses)));
-        return Pair.of(addresses, functions_);
+                .collect(toList());
+        final List<Pair<List<Instruction>,DebugInfo>> emitted = funs.parallelStream()
+                .map(f -> peephole.optimizeWithDebugInfo(emit(f, env)))
+                .collect(toList());
+        final Map<String,Integer> addresses = new LinkedHashMap<>();
+        int address = start;
+        for (int i = 0; i < funs.size(); i++) {
+            addresses.put(funs.get(i).getName(), address);
+            debugInfo.put(funs.get(i).getName(), emitted.get(i).getRight());
+            address += emitted.get(i).getLeft().size();
+        }
+        final Map<String,List<Instruction>> functions = new LinkedHashMap<>();
+        for (int i = 0; i < funs.size(); i++) {
+            functions.put(funs.get(i).getName(), insertFunctionAddresses(emitted.get(i).getLeft(), addresses));
+        }
+        return Pair.of(addresses, functions);
     }
 
     private List<Instruction> insertFunctionAddresses(final List<Instruction> instrs, Map<String,Integer> addresses) {
@@ -244,501 +317,759 @@ public class CmCodeGen {
         final Map<String,Integer> localVars;
         final String funScope;
         final Set<String> arrayRefs;
+        // the address of the handler bounds checks jump to, or -1 without them
+        final int boundsError;
 
         Env(final Map<String,Integer> globalVars,
             final Map<String,Ast.FunDeclaration> functions,
             final Map<String,Integer> localVars,
             final String funScope,
-            final Set<String> arrayRefs) {
+            final Set<String> arrayRefs,
+            final int boundsError) {
             this.globalVars = globalVars;
             this.functions = functions;
             this.localVars = localVars;
             this.funScope = funScope;
             this.arrayRefs = arrayRefs;
+            this.boundsError = boundsError;
         }
 
-        Map<String,Integer> getGlobalVars() {
-            return new HashMap<>(globalVars);
-        }
+        boolean isGlobalVar(final String name) { return globalVars.containsKey(name); }
 
         int getGlobalVar(final String name) {
             return globalVars.get(name);
         }
 
-        Map<String,Ast.FunDeclaration> getFunctions() {
-            return new HashMap<>(functions);
-        }
-
         Ast.FunDeclaration getFunction(final String name) {
             return functions.get(name);
         }
 
+        boolean isLocalVar(final String name) { return localVars.containsKey(name); }
+
         int getLocalVar(final String name) {
             return localVars.get(name);
         }
 
-        Map<String,Integer> getLocalVars() {
-            return new HashMap<>(localVars);
+        Env withNewLocalEnv(final Map<String,Integer> localVars, final String funScope) {
+            return new Env(globalVars, functions, localVars, funScope, arrayRefs, boundsError);
         }
 
-        Env withNewLocalEnv(final Map<String,Integer> localVars, final String funScope) {
-            return new Env(globalVars, functions, localVars, funScope, arrayRefs);
+        Env withBoundsError(final int address) {
+            return new Env(globalVars, functions, localVars, funScope, arrayRefs, address);
         }
 
         String getFunScope() { return funScope; }
     }
 
-    private List<Instruction> emit(final Ast ast, final Env env) {
-        if (ast instanceof Ast.FunDeclaration) {
-            return emitFunction((Ast.FunDeclaration)ast, env);
+    /** a place in the code that jumps can refer to before it is known */
+    private static class Label {
+        int address = -1;
+        // the jumps to the label emitted before it was placed
+        final List<Integer> fixups = new ArrayList<>();
+    }
+
+    /** the code of one function. everything is appended to the end, and jumps forward are patched when the label
+     *  they go to is placed */
+    private static class Buffer {
+        final List<Instruction> instrs = new ArrayList<>();
+
+        int size() { return instrs.size(); }
+
+        void add(final Instruction instr) { instrs.add(instr); }
+
+        void addAll(final List<Instruction> instrs) { this.instrs.addAll(instrs); }
+
+        /** add an instruction whose offset relative to the PC is the distance to label */
+        void add(final Instruction instr, final Label label) {
+            if (label.address < 0) {
+                label.fixups.add(instrs.size());
+                instrs.add(instr);
+            } else {
+                instrs.add(instr.withArg1(label.address - instrs.size()));
+            }
+        }
+
+        /** place label at the next instruction */
+        void place(final Label label) {
+            label.address = instrs.size();
+            for (final int i : label.fixups) { instrs.set(i, instrs.get(i).withArg1(label.address - i)); }
+            label.fixups.clear();
         }
+    }
+
+    private List<Instruction> emit(final Ast.FunDeclaration funDec, final Env env) {
+        final Buffer code = new Buffer();
+        emitFunction(funDec, env, code);
+        return code.instrs;
+    }
+
+    private void emit(final Ast ast, final Env env, final Buffer code) {
         if (ast instanceof Ast.Constant) {
             final int value = ((Ast.Constant)ast).getValue();
-            return singletonList(new Instruction.Ldc(AX, value, "load constant " + value + " into AX"));
-        }
-        if (ast instanceof Ast.Var) {
-            return emitVar((Ast.Var)ast, env);
-        }
-        if (ast instanceof Ast.Assignment) {
-            return emitAssignment((Ast.Assignment)ast, env);
-        }
-        if (ast instanceof Ast.Call) {
-            return emitCall((Ast.Call)ast, env);
-        }
-        if (ast instanceof Ast.CompoundStatement) {
-            return emitCompoundStmt((Ast.CompoundStatement)ast, env);
-        }
-        if (ast instanceof Ast.Expression) {
-            return emitExp((Ast.Expression)ast, env);
-        }
-        if (ast instanceof Ast.ExpressionStmt) {
-            final Optional<Ast> exp = ((Ast.ExpressionStmt) ast).getExpression();
-            return exp.isPresent() ? emit(exp.get(), env) : emptyList();
-        }
-        if (ast instanceof Ast.IfThen) {
-            return emitIfThen((Ast.IfThen)ast, env);
-        }
-        if (ast instanceof Ast.IfThenElse) {
-            return emitIfThenElse((Ast.IfThenElse)ast, env);
-        }
-        if (ast instanceof Ast.While) {
-            return emitWhile((Ast.While)ast, env);
-        }
-        if (ast instanceof Ast.Return) {
-            return emitReturn((Ast.Return)ast, env);
+            code.add(new Instruction.Ldc(AX, value, "load constant " + value + " into AX"));
+        } else if (ast instanceof Ast.Var) {
+            emitVar((Ast.Var)ast, env, code);
+        } else if (ast instanceof Ast.Assignment) {
+            emitAssignment((Ast.Assignment)ast, env, code);
+        } else if (ast instanceof Ast.Call) {
+            emitCall((Ast.Call)ast, env, code);
+        } else if (ast instanceof Ast.CompoundStatement) {
+            ((Ast.CompoundStatement)ast).getStatements().forEach(stmt -> emit(stmt, env, code));
+        } else if (ast instanceof Ast.Expression) {
+            emitExp((Ast.Expression)ast, env, code);
+        } else if (ast instanceof Ast.ExpressionStmt) {
+            ((Ast.ExpressionStmt) ast).getExpression().ifPresent(exp -> emit(exp, env, code));
+        } else if (ast instanceof Ast.IfThen) {
+            emitIfThen((Ast.IfThen)ast, env, code);
+        } else if (ast instanceof Ast.IfThenElse) {
+            emitIfThenElse((Ast.IfThenElse)ast, env, code);
+        } else if (ast instanceof Ast.While) {
+            emitWhile((Ast.While)ast, env, code);
+        } else if (ast instanceof Ast.Return) {
+            emitReturn((Ast.Return)ast, env, code);
+        } else {
+            throw new IllegalStateException(ast.toString());
         }
-        throw new IllegalStateException(ast.toString());
     }
 
-    private List<Instruction> emitFunction(final Ast.FunDeclaration funDec, final Env env) {
-        final Env lEnv = env.withNewLocalEnv(newLocalEnv(funDec), funDec.getName());
+    private void emitFunction(final Ast.FunDeclaration funDec, final Env env, final Buffer code) {
+        final Env lEnv = env.withNewLocalEnv(frame(funDec).getOffsets(), funDec.getName());
         final Ast.CompoundStatement stmt = (Ast.CompoundStatement) funDec.getBody();
-        // if the function has type void and doesn't end with a return statement, then add one
-        if (funDec.getType() == Ast.TypeSpecifier.VOID &&
-                !(stmt.getStatements().get(stmt.getStatements().size()-1) instanceof Ast.Return)) {
-            stmt.getStatements().add(new Ast.Return(null, Optional.empty()));
-        }
-        final List<Instruction> instrs = new LinkedList<>();
-        instrs.add(new Instruction.Nop("function " + funDec.getName()));
-        instrs.addAll(emit(stmt, lEnv));
-        return instrs;
+        code.add(nop("function " + funDec.getName(), funDec));
+        emit(stmt, lEnv, code);
     }
 
-    private List<Instruction> emitVar(final Ast.Var var, final Env env) {
-        if ("false".equals(var.getName())) { return singletonList(new Instruction.Ldc(AX, 0, "constant false")); }
-        if ("true".equals(var.getName())) { return singletonList(new Instruction.Ldc(AX, 1, "constant true")); }
+    private void emitVar(final Ast.Var var, final Env env, final Buffer code) {
+        if ("false".equals(var.getName())) { code.add(new Instruction.Ldc(AX, 0, "constant false")); return; }
+        if ("true".equals(var.getName())) { code.add(new Instruction.Ldc(AX, 1, "constant true")); return; }
         final String name = var.getAttribute(UniqueName.class).get().getName();
-        if (env.getLocalVars().containsKey(name)) {
+        if (env.isLocalVar(name)) {
             final int offset = env.getLocalVar(name);
             // var is an array.  we have to evaluate the index to calculate the address
             if (var.getExpression().isPresent()) {
-                final List<Instruction> instrs = new LinkedList<>();
                 // first evaluate the index
-                instrs.add(new Instruction.Nop("calculate index for local array var lookup"));
-                instrs.addAll(emitExp((Ast.Expression)var.getExpression().get(), env));
+                code.add(nop("calculate index for local array var lookup", var));
+                emitExp((Ast.Expression)var.getExpression().get(), env, code);
+                emitBoundsCheck(var, env, code);
                 // if the offset is negative, then the array was passed by reference via a parameter
                 if (offset < 0) {
                     // load the address of the array into BX
-                    instrs.add(new Instruction.Ld(BX, offset, FP, "load local var param " + name));
+                    code.add(new Instruction.Ld(BX, offset, FP, "load local var param " + name));
                     // add the address of the array to the calculated index
-                    instrs.add(new Instruction.Add(AX, AX, BX));
+                    code.add(new Instruction.Add(AX, AX, BX));
                     // load the value at the address in AX back into AX
-                    instrs.add(new Instruction.Ld(AX, 0, AX));
+                    code.add(new Instruction.Ld(AX, 0, AX));
                 }
                 // otherwise, the array is a local variable and lives on the stack
                 else {
                     // add the frame pointer to the index
-                    instrs.add(new Instruction.Add(AX, AX, FP, "load local var " + name));
+                    code.add(new Instruction.Add(AX, AX, FP, "load local var " + name));
                     // load the value at the address [AX + offset] back into AX
-                    instrs.add(new Instruction.Ld(AX, offset, AX));
+                    code.add(new Instruction.Ld(AX, offset, AX));
                 }
-                return instrs;
             }
             // var is not an array
             else {
-                final List<Instruction> instrs = new LinkedList<>();
-                instrs.add(new Instruction.Nop("load local var " + name));
-                instrs.add(new Instruction.Ld(AX, offset, FP));
-                return instrs;
+                code.add(nop("load local var " + name, var));
+                code.add(new Instruction.Ld(AX, offset, FP));
             }
+            return;
         }
-        if (env.getGlobalVars().containsKey(name)) {
+        if (env.isGlobalVar(name)) {
             final int address = env.getGlobalVar(name);
             // array
             if (var.getExpression().isPresent()) {
-                final List<Instruction> instrs = new LinkedList<>();
                 // first evaluate the index
-                instrs.add(new Instruction.Nop("calculate index for global array var lookup"));
-                instrs.addAll(emitExp((Ast.Expression)var.getExpression().get(), env));
+                code.add(nop("calculate index for global array var lookup", var));
+                emitExp((Ast.Expression)var.getExpression().get(), env, code);
+                emitBoundsCheck(var, env, code);
                 // load the value at index + address back into AX
-                instrs.add(new Instruction.Ld(AX, address, AX));
-                return instrs;
+                code.add(new Instruction.Ld(AX, address, AX));
             }
             // not array
             else {
-                final List<Instruction> instrs = new LinkedList<>();
-                instrs.add(new Instruction.Ldc(CX, 0, "load global var " + name + " into AX..."));
-                instrs.add(env.arrayRefs.contains(name)
-                        ? new Instruction.Lda(AX, address, CX, "by reference")
-                        : new Instruction.Ld(AX, address, CX, "by value"));
-                return instrs;
+                code.add(env.arrayRefs.contains(name)
+                        ? new Instruction.Lda(AX, address, ZERO, "load global var " + name + " by reference")
+                        : new Instruction.Ld(AX, address, ZERO, "load global var " + name + " by value"));
             }
+            return;
         }
         throw new IllegalStateException("variable " + name + " is not bound in the environment");
     }
 
-    private List<Ast.VarDeclaration> varDecs(final Ast ast) {
-        if (ast instanceof Ast.FunDeclaration) {
-            final Ast.FunDeclaration funDec = (Ast.FunDeclaration) ast;
-            return varDecs(funDec.getBody());
-        }
+    /** with bounds checks, check the index in AX against the bounds of the array var, as far as BoundsChecks found it
+     *  could be outside them, and go to the handler with the index in AX if it is */
+    private void emitBoundsCheck(final Ast.Var var, final Env env, final Buffer code) {
+        final Optional<BoundsChecks.Check> check = boundsCheck(var, env);
+        if (!check.isPresent()) { return; }
+        if (check.get().checksLower()) {
+            code.add(new Instruction.Jlt(AX, env.boundsError, ZERO, "check the index is not negative"));
+        }
+        check.get().getSize().ifPresent(size -> {
+            code.add(new Instruction.Ldc(BX, size, "check the index is below " + size));
+            code.add(new Instruction.Sub(BX, AX, BX));
+            code.add(new Instruction.Jge(BX, env.boundsError, ZERO));
+        });
+    }
 
-        if (ast instanceof Ast.VarDeclaration) {
-            return singletonList((Ast.VarDeclaration)ast);
-        }
+    private static Optional<BoundsChecks.Check> boundsCheck(final Ast.Var var, final Env env) {
+        if (env.boundsError < 0) { return Optional.empty(); }
+        return var.getAttribute(BoundsChecks.Check.class).filter(BoundsChecks.Check::isNeeded);
+    }
 
-        if (ast instanceof Ast.CompoundStatement) {
-            final Ast.CompoundStatement stmt = (Ast.CompoundStatement) ast;
-            final List<Ast.VarDeclaration> result = new LinkedList<>();
-            stmt.getLocalDeclarations().forEach(dec -> result.addAll(varDecs(dec)));
-            stmt.getStatements().forEach(st -> result.addAll(varDecs(st)));
-            return result;
+    /** where a function's locals and parameters are relative to FP. it is worked out once, when the environment is
+     *  created, and kept on the function's declaration for its body and every call to it. locals whose blocks are
+     *  never active at the same time share slots, so the frame is only as big as the most space the locals of the
+     *  blocks around any one statement take */
+    private static class FrameLayout {
+        private final Map<String,Integer> offsets;
+        private final int localsSize;
+        private final int paramCount;
+        private final boolean hasLocalArrays;
+
+        private FrameLayout(final Map<String,Integer> offsets, final int localsSize, final int paramCount,
+                            final boolean hasLocalArrays) {
+            this.offsets = offsets;
+            this.localsSize = localsSize;
+            this.paramCount = paramCount;
+            this.hasLocalArrays = hasLocalArrays;
+        }
+
+        static FrameLayout of(final Ast.FunDeclaration funDec) {
+            final Map<String,Integer> offsets = new HashMap<>();
+            final List<Ast.VarDeclaration> varDecs = new ArrayList<>();
+            // starts at 1 because previous FP is at address 0
+            final int end = layOut(funDec.getBody(), 1, offsets, varDecs);
+            // add parameters (in reverse order)
+            int paramOffset = -1;
+            for (final Ast param : funDec.getParams()) {
+                offsets.put(param.getAttribute(UniqueName.class).get().getName(), paramOffset);
+                paramOffset -= 1;
+            }
+            return new FrameLayout(offsets, end - 1, funDec.getParams().size(),
+                    varDecs.stream().anyMatch(d -> d.getSize().isPresent()));
+        }
+
+        /* give the variables declared in ast offsets from start, and add them to varDecs. a variable only lives
+         * until the end of the block that declares it, so the blocks after it, and the other branch of an if, can
+         * use its slots again
+         * @return the end of the space the variables in ast take */
+        private static int layOut(final Ast ast, final int start, final Map<String,Integer> offsets,
+                                  final List<Ast.VarDeclaration> varDecs) {
+            if (ast instanceof Ast.CompoundStatement) {
+                final Ast.CompoundStatement stmt = (Ast.CompoundStatement) ast;
+                int offset = start;
+                for (final Ast dec : stmt.getLocalDeclarations()) {
+                    final Ast.VarDeclaration varDec = (Ast.VarDeclaration) dec;
+                    offsets.put(varDec.getAttribute(UniqueName.class).get().getName(), offset);
+                    offset += varDec.getSize().orElse(1);
+                    varDecs.add(varDec);
+                }
+                int end = offset;
+                for (final Ast st : stmt.getStatements()) { end = Math.max(end, layOut(st, offset, offsets, varDecs)); }
+                return end;
+            }
+            if (ast instanceof Ast.IfThen) {
+                return layOut(((Ast.IfThen) ast).getThenPart(), start, offsets, varDecs);
+            }
+            if (ast instanceof Ast.IfThenElse) {
+                final Ast.IfThenElse ifThenElse = (Ast.IfThenElse) ast;
+                return Math.max(layOut(ifThenElse.getThenPart(), start, offsets, varDecs),
+                        layOut(ifThenElse.getElsePart(), start, offsets, varDecs));
+            }
+            if (ast instanceof Ast.While) {
+                return layOut(((Ast.While) ast).getBody(), start, offsets, varDecs);
+            }
+            return start;
         }
 
-        if (ast instanceof Ast.IfThen) {
-            final Ast.IfThen ifThen = (Ast.IfThen) ast;
-            return varDecs(ifThen.getThenPart());
-        }
+        /** @return the offsets from FP of the locals, which are positive, and the parameters, which are negative */
+        Map<String,Integer> getOffsets() { return offsets; }
 
-        if (ast instanceof Ast.IfThenElse) {
-            final Ast.IfThenElse ifThenElse = (Ast.IfThenElse) ast;
-            final List<Ast.VarDeclaration> result = new LinkedList<>();
-            result.addAll(varDecs(ifThenElse.getThenPart()));
-            result.addAll(varDecs(ifThenElse.getElsePart()));
-            return result;
-        }
+        /** @return how far SP moves past the saved FP to make room for the locals */
+        int getLocalsSize() { return localsSize; }
 
-        if (ast instanceof Ast.While) {
-            final Ast.While whileS = (Ast.While) ast;
-            return varDecs(whileS.getBody());
-        }
+        int getParamCount() { return paramCount; }
 
-        return emptyList();
+        boolean hasLocalArrays() { return hasLocalArrays; }
     }
 
-    private Map<String,Integer> newLocalEnv(final Ast.FunDeclaration funDec) {
-        // add each stack allocated variable with its offset
-        int offset = 1;  // starts at 1 because previous FP is at address 0
-        final Map<String,Integer> env = new HashMap<>();
-        for (final Ast.VarDeclaration varDec : varDecs(funDec)) {
-            final int size = varDec.getSize().orElse(1);
-            env.put(varDec.getAttribute(UniqueName.class).get().getName(), offset);
-            offset += size;
-        }
-        // mark the location the SP should be pointed at after allocating stack space
-        env.put("SP", offset);
-        // add parameters (in reverse order)
-        offset = -1;
-        final List<Ast.Param> params = funDec.getParams().stream().map(p -> (Ast.Param)p).collect(toList());
-        for (Ast.Param param : params) {
-            env.put(param.getAttribute(UniqueName.class).get().getName(), offset);
-            offset -= 1;
-        }
-        return env;
+    private static FrameLayout frame(final Ast.FunDeclaration funDec) {
+        return funDec.getAttribute(FrameLayout.class)
+                .orElseThrow(() -> new IllegalStateException("no frame layout for " + funDec.getName()));
     }
 
-    private List<Instruction> emitCall(final Ast.Call call, final Env env) {
+    private void emitCall(final Ast.Call call, final Env env, final Buffer code) {
         final String funName = call.getName();
         // special case for "input" and "output" -- just removeEmptyFunctions them
         if ("input".equals(funName)) {
-            final List<Instruction> instrs = new LinkedList<>();
-            instrs.add(new Instruction.Nop("call to input"));
-            instrs.add(new Instruction.In(AX));
-            return instrs;
+            code.add(nop("call to input", call));
+            code.add(new Instruction.In(AX));
+            return;
         }
         if ("output".equals(funName)) {
-            final List<Instruction> instrs = new LinkedList<>();
-            instrs.add(new Instruction.Nop("call to output"));
-            instrs.addAll(emit(call.getArgs().get(0), env));
-            instrs.add(new Instruction.Out(AX));
-            return instrs;
+            code.add(nop("call to output", call));
+            emit(call.getArgs().get(0), env, code);
+            code.add(new Instruction.Out(AX));
+            return;
         }
         final Ast.FunDeclaration funDec = env.getFunction(funName);
-        // build a new local environment for the function
-        final Env lEnv = env.withNewLocalEnv(newLocalEnv(funDec), funName);
-        final List<Instruction> tmp = new LinkedList<>();
+        final Label returnAddress = new Label();
+        code.add(nop("call to " + funName, call));
+        // push the return address
+        code.add(new Instruction.Lda(BX, 0, PC), returnAddress);
+        code.addAll(push(BX));
         // evaluate each argument in reverse order and push them onto the stack
         final List<Ast> args = call.getArgs();
-        final List<Ast.Param> params = funDec.getParams().stream().map(p -> (Ast.Param)p).collect(toList());
         for (int i = args.size()-1; i>=0; i--) {
             if (args.get(i) instanceof Ast.Expression) {
-                tmp.addAll(emitExp((Ast.Expression) args.get(i), env));
+                emitExp((Ast.Expression) args.get(i), env, code);
             } else {
-                tmp.addAll(emitAssignment((Ast.Assignment) args.get(i), env));
+                emitAssignment((Ast.Assignment) args.get(i), env, code);
             }
-            tmp.addAll(push(AX));
+            code.addAll(push(AX));
         }
         // push FP
-        tmp.addAll(push(FP));
+        code.addAll(push(FP));
         // set FP equal to SP-1 (to point at the previous FP on the stack)
-        tmp.add(new Instruction.Lda(FP, -1, SP));
+        code.add(new Instruction.Lda(FP, -1, SP));
         // increment SP to make room for local variables
-        tmp.add(new Instruction.Lda(SP, lEnv.getLocalVars().get("SP")-1, SP));
-
-        final List<Instruction> instrs = new LinkedList<>();
-        instrs.add(new Instruction.Nop("call to " + funName));
-        // push the return address
-        instrs.add(new Instruction.Lda(BX, tmp.size()+6, PC)); // jump past all of the code emitted by call
-        instrs.addAll(push(BX)); // this is 3 instructions
-        instrs.addAll(tmp);  // do the setup
-        instrs.add(new Instruction.Ldc(CX, 0));
+        code.add(new Instruction.Lda(SP, frame(funDec).getLocalsSize(), SP));
         // start executing the function
-        instrs.add(new Instruction.Tmp(fs -> new Instruction.Lda(PC, fs.get(funName), CX)));
-        return instrs;
+        code.add(new Instruction.Tmp(fs -> new Instruction.Lda(PC, fs.get(funName), ZERO)));
+        code.place(returnAddress);
     }
 
-    private List<Instruction> emitCompoundStmt(final Ast.CompoundStatement cmpd, final Env env) {
-        final List<Instruction> instrs = new LinkedList<>();
-        cmpd.getStatements().forEach(stmt -> instrs.addAll(emit(stmt, env)));
-        return instrs;
-    }
-
-    private List<Instruction> emitAssignment(final Ast.Assignment assign, final Env env) {
+    private void emitAssignment(final Ast.Assignment assign, final Env env, final Buffer code) {
         final Ast.Var var = ((Ast.Var)assign.getVar());
         final String name = var.getAttribute(UniqueName.class).get().getName();
         // evaluate the expression
-        final List<Instruction> instrs = new LinkedList<>();
-        instrs.add(new Instruction.Nop("assignment to " + name));
-        instrs.addAll(emitExp((Ast.Expression)assign.getExpression(), env));
+        code.add(nop("assignment to " + name, assign));
+        emitExp((Ast.Expression)assign.getExpression(), env, code);
 
         // local var
-        if (env.getLocalVars().containsKey(name)) {
+        if (env.isLocalVar(name)) {
             final int offset = env.getLocalVar(name);
             // array
             if (var.getExpression().isPresent()) {
                 // save the value
-                instrs.addAll(push(AX));
+                code.addAll(push(AX));
                 // first evaluate the index
-                instrs.addAll(emitExp((Ast.Expression) var.getExpression().get(), env));
+                emitExp((Ast.Expression) var.getExpression().get(), env, code);
+                emitBoundsCheck(var, env, code);
                 if (offset < 0) { // param (only address is on stack)
                     // get the array address
-                    instrs.add(new Instruction.Ld(BX, offset, FP));
+                    code.add(new Instruction.Ld(BX, offset, FP));
                     // add the index
-                    instrs.add(new Instruction.Add(AX,AX,BX));
+                    code.add(new Instruction.Add(AX,AX,BX));
                     // pop the value being stored to the var into BX
-                    instrs.addAll(pop(BX));
+                    code.addAll(pop(BX));
                     // and store the value in BX to the address of var (offset + AX)
-                    instrs.add(new Instruction.St(BX, 0, AX));
+                    code.add(new Instruction.St(BX, 0, AX));
                 } else { // array is on stack
                     // add the frame pointer to the calculated index
-                    instrs.add(new Instruction.Add(AX, AX, FP));
+                    code.add(new Instruction.Add(AX, AX, FP));
                     // pop the value being stored to the var into BX
-                    instrs.addAll(pop(BX));
+                    code.addAll(pop(BX));
                     // and store the value in BX to the address of var (offset + AX)
-                    instrs.add(new Instruction.St(BX, offset, AX));
+                    code.add(new Instruction.St(BX, offset, AX));
                 }
             }
             // not array
             else {
-                instrs.add(new Instruction.St(AX, offset, FP));
+                code.add(new Instruction.St(AX, offset, FP));
             }
-            return instrs;
+            return;
         }
 
         // global var
-        if (env.getGlobalVars().containsKey(name)) {
+        if (env.isGlobalVar(name)) {
             final int address = env.getGlobalVar(name);
             // array
             if (var.getExpression().isPresent()) {
                 // save the value
-                instrs.addAll(push(AX));
+                code.addAll(push(AX));
                 // first evaluate the index
-                instrs.addAll(emitExp((Ast.Expression)var.getExpression().get(), env));
-                instrs.addAll(pop(BX));
+                emitExp((Ast.Expression)var.getExpression().get(), env, code);
+                emitBoundsCheck(var, env, code);
+                code.addAll(pop(BX));
                 // store the value into the var
-                instrs.add(new Instruction.St(BX, address, AX));
+                code.add(new Instruction.St(BX, address, AX));
             }
             // not array
             else {
-                instrs.add(new Instruction.Ldc(0, CX));
-                instrs.add(new Instruction.St(AX, address, CX));
+                code.add(new Instruction.St(AX, address, ZERO));
             }
-            return instrs;
+            return;
         }
         throw new IllegalStateException("variable " + name + " is not bound in the evironment");
     }
 
-    private List<Instruction> emitIfThen(final Ast.IfThen ifThen, final Env env) {
-        final List<Instruction> cond = emitExp((Ast.Expression) ifThen.getCondition(), env);
-        final List<Instruction> stmt = emit(ifThen.getThenPart(), env);
-        final List<Instruction> instrs = new LinkedList<>();
-        instrs.add(new Instruction.Nop("if/then"));
-        instrs.addAll(cond);
-        instrs.add(new Instruction.Jeq(AX,stmt.size()+1,PC,"if false, jump over statement"));
-        instrs.addAll(stmt);
-        return instrs;
-    }
-
-    private List<Instruction> emitIfThenElse(final Ast.IfThenElse ifThenElse, final Env env) {
-        final List<Instruction> cond = emitExp((Ast.Expression) ifThenElse.getCondition(), env);
-        final List<Instruction> stmt1 = emit(ifThenElse.getThenPart(), env);
-        final List<Instruction> stmt2 = emit(ifThenElse.getElsePart(), env);
-        final List<Instruction> instrs = new LinkedList<>();
-        instrs.add(new Instruction.Nop("if/then/else"));
-        instrs.addAll(cond);
-        instrs.add(new Instruction.Jeq(AX,stmt1.size()+2, PC, "if false, jump over first statement"));
-        instrs.addAll(stmt1);
-        instrs.add(new Instruction.Jmp(stmt2.size()+1, PC, "jump over second statement"));
-        instrs.addAll(stmt2);
-        return instrs;
-    }
-
-    private List<Instruction> emitExp(final Ast.Expression exp, final Env env) {
-        if (exp.getOp().isPresent()) {
-            final List<Instruction> instrs = new LinkedList<>();
-            final Ast left = exp.getLeft();
-            final Ast.Operator op = exp.getOp().get();
-            final Ast right = exp.getRight().get();
-            // evaluate left exp
-            instrs.addAll(emit(left, env));
+    private void emitIfThen(final Ast.IfThen ifThen, final Env env, final Buffer code) {
+        final Label end = new Label();
+        code.add(nop("if/then", ifThen));
+        emitCondition(ifThen.getCondition(), end, "if false, jump over statement", env, code);
+        emit(ifThen.getThenPart(), env, code);
+        code.place(end);
+    }
+
+    private void emitIfThenElse(final Ast.IfThenElse ifThenElse, final Env env, final Buffer code) {
+        final Label elsePart = new Label();
+        final Label end = new Label();
+        code.add(nop("if/then/else", ifThenElse));
+        emitCondition(ifThenElse.getCondition(), elsePart, "if false, jump over first statement", env, code);
+        emit(ifThenElse.getThenPart(), env, code);
+        code.add(new Instruction.Jmp(0, PC, "jump over second statement"), end);
+        code.place(elsePart);
+        emit(ifThenElse.getElsePart(), env, code);
+        code.place(end);
+    }
+
+    /** evaluate a condition and jump to label if it is false. a comparison jumps on the difference of its operands,
+     *  rather than making a 0 or 1 and testing that */
+    private void emitCondition(final Ast cond, final Label label, final String comment, final Env env,
+                               final Buffer code) {
+        Ast.Expression exp = (Ast.Expression) cond;
+        // look through parentheses
+        while (!exp.getOp().isPresent() && exp.getLeft() instanceof Ast.Expression) {
+            exp = (Ast.Expression) exp.getLeft();
+        }
+        final Ast.Operator op = exp.getOp().orElse(null);
+        if (op == null || op == Ast.Operator.PLUS || op == Ast.Operator.MINUS || op == Ast.Operator.TIMES ||
+                op == Ast.Operator.DIVIDE) {
+            emitExp(exp, env, code);
+            code.add(new Instruction.Jeq(AX, 0, PC, comment), label);
+            return;
+        }
+        emitOperands(exp, env, code);
+        code.add(new Instruction.Sub(AX, BX, AX));
+        // jump on the opposite of the comparison
+        switch (op) {
+            case LEQ:
+                code.add(new Instruction.Jgt(AX, 0, PC, comment), label);
+                break;
+            case LT:
+                code.add(new Instruction.Jge(AX, 0, PC, comment), label);
+                break;
+            case GEQ:
+                code.add(new Instruction.Jlt(AX, 0, PC, comment), label);
+                break;
+            case GT:
+                code.add(new Instruction.Jle(AX, 0, PC, comment), label);
+                break;
+            case EQ:
+                code.add(new Instruction.Jne(AX, 0, PC, comment), label);
+                break;
+            case NEQ:
+                code.add(new Instruction.Jeq(AX, 0, PC, comment), label);
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    /** evaluate the operands of a binary expression: the left into BX and the right into AX */
+    private void emitOperands(final Ast.Expression exp, final Env env, final Buffer code) {
+        // evaluate left exp
+        emit(exp.getLeft(), env, code);
+        final Ast right = exp.getRight().get();
+        if (onlyWritesAX(right, env)) {
+            // peephole: the push and pop around the right exp only move the left result into BX
+            code.add(new Instruction.Lda(BX, 0, AX, "save left result in BX"));
+            emit(right, env, code);
+        } else {
             // push result
-            instrs.addAll(push(AX));
+            code.addAll(push(AX));
             // evaluate right exp
-            instrs.addAll(emit(right, env));
+            emit(right, env, code);
             // pop left result into register 1
-            instrs.addAll(pop(BX));
-            // evaluate operator
-            switch (op) {
-                case PLUS:
-                    instrs.add(new Instruction.Add(AX, BX, AX));
-                    break;
-                case MINUS:
-                    instrs.add(new Instruction.Sub(AX, BX, AX));
-                    break;
-                case TIMES:
-                    instrs.add(new Instruction.Mul(AX, BX, AX));
-                    break;
-                case DIVIDE:
-                    instrs.add(new Instruction.Div(AX, BX, AX));
-                    break;
-                default:
-                    instrs.add(new Instruction.Sub(AX, BX, AX)); // if the values are equal, their difference is 0
-                    switch (op) {
-                        case LEQ:
-                            instrs.add(new Instruction.Jle(AX, 3, PC, "jump over false"));
-                            break;
-                        case LT:
-                            instrs.add(new Instruction.Jlt(AX, 3, PC, "jump over false"));
-                            break;
-                        case GEQ:
-                            instrs.add(new Instruction.Jge(AX, 3, PC, "jump over false"));
-                            break;
-                        case GT:
-                            instrs.add(new Instruction.Jgt(AX, 3, PC, "jump over false"));
-                            break;
-                        case EQ:
-                            instrs.add(new Instruction.Jeq(AX, 3, PC, "jump over false"));
-                            break;
-                        case NEQ:
-                            instrs.add(new Instruction.Jne(AX, 3, PC, "jump over false"));
-                            break;
-                        default:
-                            throw new IllegalStateException();
-                    }
-                    instrs.addAll(asList(
-                            new Instruction.Ldc(AX, 0, "set result to false"),
-                            new Instruction.Jmp(2, PC, "jump over true"),
-                            new Instruction.Ldc(AX, 1, "set result to true")
-                    ));
-            }
-            return instrs;
-        } else {
-            return emit(exp.getLeft(), env);
+            code.addAll(pop(BX));
+        }
+    }
+
+    private void emitExp(final Ast.Expression exp, final Env env, final Buffer code) {
+        if (!exp.getOp().isPresent()) {
+            emit(exp.getLeft(), env, code);
+            return;
+        }
+        final Ast.Operator op = exp.getOp().get();
+        emitOperands(exp, env, code);
+        // evaluate operator
+        switch (op) {
+            case PLUS:
+                code.add(new Instruction.Add(AX, BX, AX));
+                break;
+            case MINUS:
+                code.add(new Instruction.Sub(AX, BX, AX));
+                break;
+            case TIMES:
+                code.add(new Instruction.Mul(AX, BX, AX));
+                break;
+            case DIVIDE:
+                code.add(new Instruction.Div(AX, BX, AX));
+                break;
+            default:
+                code.add(new Instruction.Sub(AX, BX, AX)); // if the values are equal, their difference is 0
+                switch (op) {
+                    case LEQ:
+                        code.add(new Instruction.Jle(AX, 3, PC, "jump over false"));
+                        break;
+                    case LT:
+                        code.add(new Instruction.Jlt(AX, 3, PC, "jump over false"));
+                        break;
+                    case GEQ:
+                        code.add(new Instruction.Jge(AX, 3, PC, "jump over false"));
+                        break;
+                    case GT:
+                        code.add(new Instruction.Jgt(AX, 3, PC, "jump over false"));
+                        break;
+                    case EQ:
+                        code.add(new Instruction.Jeq(AX, 3, PC, "jump over false"));
+                        break;
+                    case NEQ:
+                        code.add(new Instruction.Jne(AX, 3, PC, "jump over false"));
+                        break;
+                    default:
+                        throw new IllegalStateException();
+                }
+                code.add(new Instruction.Ldc(AX, 0, "set result to false"));
+                code.add(new Instruction.Jmp(2, PC, "jump over true"));
+                code.add(new Instruction.Ldc(AX, 1, "set result to true"));
         }
     }
 
-    private List<Instruction> emitWhile(final Ast.While whileS, final Env env) {
-        final List<Instruction> cond = emitExp((Ast.Expression)whileS.getCondition(), env);
-        final List<Instruction> stmt = emit(whileS.getBody(), env);
-        final List<Instruction> instrs = new LinkedList<>();
-        instrs.add(new Instruction.Nop("while"));
-        instrs.addAll(cond);
-        instrs.add(new Instruction.Jeq(0, stmt.size()+2, PC, "if cond is false, jump over statement body / loop jump"));
-        instrs.addAll(stmt);
-        instrs.add(new Instruction.Jmp(-1 * (cond.size() + 1 + stmt.size()), PC, "jump back to the condition"));
-        return instrs;
+    private void emitWhile(final Ast.While whileS, final Env env, final Buffer code) {
+        final Label condition = new Label();
+        final Label end = new Label();
+        code.add(nop("while", whileS));
+        code.place(condition);
+        emitCondition(whileS.getCondition(), end, "if cond is false, jump over statement body / loop jump", env,
+                code);
+        emit(whileS.getBody(), env, code);
+        code.add(new Instruction.Jmp(0, PC, "jump back to the condition"), condition);
+        code.place(end);
     }
 
-    private List<Instruction> emitReturn(final Ast.Return ret, final Env env) {
-        final int numArgs = env.getFunction(env.funScope).getParams().size();
-        final List<Instruction> instrs = new LinkedList<>();
-        instrs.add(new Instruction.Nop("return from " + env.funScope));
+    private void emitReturn(final Ast.Return ret, final Env env, final Buffer code) {
+        final Optional<Ast.Call> tailCall = selfTailCall(ret, env);
+        if (tailCall.isPresent()) {
+            emitTailCall(tailCall.get(), env, code);
+            return;
+        }
+        final int numArgs = frame(env.getFunction(env.funScope)).getParamCount();
+        code.add(nop("return from " + env.funScope, ret));
         if (ret.getExpression().isPresent()) {
             // evaluate the return value
-            instrs.addAll(emitExp((Ast.Expression) ret.getExpression().get(), env));
+            emitExp((Ast.Expression) ret.getExpression().get(), env, code);
+        }
+        code.add(new Instruction.Ld(BX, -numArgs-1, FP, "load return address into BX"));
+        code.add(new Instruction.Lda(SP, -numArgs-1, FP, "pop the stack frame, arguments and return address"));
+        code.add(new Instruction.Ld(FP, 0, FP, "reset frame pointer to previous frame pointer"));
+        code.add(new Instruction.Lda(PC, 0, BX, "change PC to return address"));
+    }
+
+    /* @return the call if ret returns the result of calling the function it is in. a function with local arrays
+     * doesn't count, since an argument could point into the frame the call would reuse */
+    private Optional<Ast.Call> selfTailCall(final Ast.Return ret, final Env env) {
+        if (!ret.getExpression().isPresent()) { return Optional.empty(); }
+        final Ast.Expression exp = (Ast.Expression) ret.getExpression().get();
+        if (exp.getOp().isPresent() || !(exp.getLeft() instanceof Ast.Call)) { return Optional.empty(); }
+        final Ast.Call call = (Ast.Call) exp.getLeft();
+        if (!call.getName().equals(env.funScope) || frame(env.getFunction(env.funScope)).hasLocalArrays()) {
+            return Optional.empty();
+        }
+        return Optional.of(call);
+    }
+
+    private void emitTailCall(final Ast.Call call, final Env env, final Buffer code) {
+        final String funName = call.getName();
+        code.add(nop("tail call to " + funName, call));
+        // evaluate the arguments the same way as a call does. all but the first are pushed, so that none of the
+        // parameters change until every argument has been evaluated
+        final List<Ast> args = call.getArgs();
+        for (int i = args.size()-1; i>=0; i--) {
+            if (args.get(i) instanceof Ast.Expression) {
+                emitExp((Ast.Expression) args.get(i), env, code);
+            } else {
+                emitAssignment((Ast.Assignment) args.get(i), env, code);
+            }
+            if (i > 0) { code.addAll(push(AX)); }
+        }
+        // overwrite the parameters in this frame, which leaves the stack as it was on entry to the function
+        for (int i = 0; i < args.size(); i++) {
+            if (i > 0) { code.addAll(pop(AX)); }
+            code.add(new Instruction.St(AX, -1-i, FP, "replace parameter " + i));
         }
-        instrs.add(new Instruction.Lda(SP, -numArgs, FP, "move stack pointer back to beginning of stack frame"));
-        instrs.add(new Instruction.Nop("save return address into BX"));
-        instrs.addAll(pop(BX));
-        instrs.add(new Instruction.Ld(FP, 0, FP, "reset frame pointer to previous frame pointer"));
-        instrs.add(new Instruction.Lda(PC, 0, BX, "change PC to return address"));
-        return instrs;
+        // and start over
+        code.add(new Instruction.Tmp(fs -> new Instruction.Lda(PC, fs.get(funName), ZERO)));
+    }
+
+    /** @return a Nop with the comment, and the position in the source of the code for ast */
+    private static Instruction.Nop nop(final String comment, final Ast ast) {
+        return new Instruction.Nop(comment, ast.getToken().map(t -> t.getSrc().getPosition()).orElse(-1));
     }
 
     private List<Instruction> push(final int register) {
         return asList(
-                new Instruction.Ldc(DX, 1, "PUSH " + register),
-                new Instruction.St(register, 0, SP), //push register
-                new Instruction.Add(SP, SP, DX) //increment stack pointer
+                new Instruction.St(register, 0, SP, "PUSH " + register), //push register
+                new Instruction.Lda(SP, 1, SP) //increment stack pointer
         );
     }
 
     private List<Instruction> pop(final int register) {
         return asList(
-                new Instruction.Ldc(DX, 1, "POP into " + register),
-                new Instruction.Sub(SP, SP, DX), // decrement stack pointer
+                new Instruction.Lda(SP, -1, SP, "POP into " + register), // decrement stack pointer
                 new Instruction.Ld(register, 0, SP) // pop value into register
         );
     }
 
+    /** @return true if the code for ast writes no register but AX, leaves BX and the stack alone, and doesn't jump.
+     *  that is a constant, a scalar, or an element of an array in the frame or a global array that needs no bounds
+     *  check, at an index that is one of those too */
+    private static boolean onlyWritesAX(final Ast ast, final Env env) {
+        if (ast instanceof Ast.Constant) { return true; }
+        if (ast instanceof Ast.Expression) {
+            final Ast.Expression exp = (Ast.Expression) ast;
+            return !exp.getOp().isPresent() && onlyWritesAX(exp.getLeft(), env);
+        }
+        if (!(ast instanceof Ast.Var)) { return false; }
+        final Ast.Var var = (Ast.Var) ast;
+        if (!var.getExpression().isPresent()) { return true; }
+        final String name = var.getAttribute(UniqueName.class).get().getName();
+        // an array parameter's address goes through BX, and so does a bounds check
+        if (env.isLocalVar(name) && env.getLocalVar(name) < 0 || boundsCheck(var, env).isPresent()) { return false; }
+        return onlyWritesAX(var.getExpression().get(), env);
+    }
+
     /* optimizations */
 
+    /** evaluate the operators whose operands are constants, and drop the ones that don't change their other operand
+     *  (x + 0, x - 0, x * 1, x / 1). a relation between constants becomes the variable true or false, which
+     *  removeDeadCode then uses to remove the branch that can't be taken */
+    Ast foldConstants(final Ast ast) {
+        if (ast instanceof Ast.DeclarationList) {
+            final Ast.DeclarationList decs = (Ast.DeclarationList) ast;
+            return new Ast.DeclarationList(token(decs),
+                    decs.getDeclarations().stream().map(this::foldConstants).collect(toList()));
+        }
+        if (ast instanceof Ast.FunDeclaration) {
+            final Ast.FunDeclaration fun = (Ast.FunDeclaration) ast;
+            return new Ast.FunDeclaration(token(fun),
+                    fun.getType(), fun.getName(), fun.getParams(), foldConstants(fun.getBody()));
+        }
+        if (ast instanceof Ast.CompoundStatement) {
+            final Ast.CompoundStatement cmpd = (Ast.CompoundStatement) ast;
+            return new Ast.CompoundStatement(token(cmpd), cmpd.getLocalDeclarations(),
+                    cmpd.getStatements().stream().map(this::foldConstants).collect(toList()));
+        }
+        if (ast instanceof Ast.IfThen) {
+            final Ast.IfThen ifThen = (Ast.IfThen) ast;
+            return new Ast.IfThen(token(ifThen), foldConstants(ifThen.getCondition()), foldConstants(ifThen.getThenPart()));
+        }
+        if (ast instanceof Ast.IfThenElse) {
+            final Ast.IfThenElse ifThenElse = (Ast.IfThenElse) ast;
+            return new Ast.IfThenElse(token(ifThenElse), foldConstants(ifThenElse.getCondition()),
+                    foldConstants(ifThenElse.getThenPart()), foldConstants(ifThenElse.getElsePart()));
+        }
+        if (ast instanceof Ast.While) {
+            final Ast.While whileS = (Ast.While) ast;
+            return new Ast.While(token(whileS), foldConstants(whileS.getCondition()), foldConstants(whileS.getBody()));
+        }
+        if (ast instanceof Ast.Return) {
+            return new Ast.Return(token(ast), ((Ast.Return) ast).getExpression().map(this::foldConstants));
+        }
+        if (ast instanceof Ast.ExpressionStmt) {
+            return new Ast.ExpressionStmt(token(ast), ((Ast.ExpressionStmt) ast).getExpression().map(this::foldConstants));
+        }
+        if (ast instanceof Ast.Assignment) {
+            final Ast.Assignment assign = (Ast.Assignment) ast;
+            return new Ast.Assignment(token(assign), foldConstants(assign.getVar()), foldConstants(assign.getExpression()));
+        }
+        if (ast instanceof Ast.Var) {
+            final Ast.Var var = (Ast.Var) ast;
+            return var.getExpression().isPresent()
+                    ? new Ast.Var(token(var), var.getName(), var.getExpression().map(this::foldConstants))
+                    : ast;
+        }
+        if (ast instanceof Ast.Call) {
+            final Ast.Call call = (Ast.Call) ast;
+            return new Ast.Call(token(call),
+                    call.getName(), call.getArgs().stream().map(this::foldConstants).collect(toList()));
+        }
+        if (ast instanceof Ast.Expression) {
+            final Ast.Expression exp = (Ast.Expression) ast;
+            final Ast left = foldConstants(exp.getLeft());
+            if (!exp.getOp().isPresent()) { return new Ast.Expression(null, left, Optional.empty(), Optional.empty()); }
+            final Ast.Operator op = exp.getOp().get();
+            final Ast right = foldConstants(exp.getRight().get());
+            final Optional<Integer> l = constantValue(left);
+            final Optional<Integer> r = constantValue(right);
+            if (l.isPresent() && r.isPresent() && !(op == Ast.Operator.DIVIDE && r.get() == 0)) {
+                final int a = l.get();
+                final int b = r.get();
+                switch (op) {
+                    case PLUS: return constant(a + b);
+                    case MINUS: return constant(a - b);
+                    case TIMES: return constant(a * b);
+                    case DIVIDE: return constant(a / b);
+                    case LEQ: return bool(a <= b);
+                    case LT: return bool(a < b);
+                    case GEQ: return bool(a >= b);
+                    case GT: return bool(a > b);
+                    case EQ: return bool(a == b);
+                    case NEQ: return bool(a != b);
+                }
+            }
+            if ((op == Ast.Operator.PLUS || op == Ast.Operator.MINUS) && r.equals(Optional.of(0)) ||
+                    (op == Ast.Operator.TIMES || op == Ast.Operator.DIVIDE) && r.equals(Optional.of(1))) {
+                return new Ast.Expression(null, left, Optional.empty(), Optional.empty());
+            }
+            if (op == Ast.Operator.PLUS && l.equals(Optional.of(0)) ||
+                    op == Ast.Operator.TIMES && l.equals(Optional.of(1))) {
+                return new Ast.Expression(null, right, Optional.empty(), Optional.empty());
+            }
+            return new Ast.Expression(token(exp), left, exp.getOp(), Optional.of(right));
+        }
+        return ast;
+    }
+
+    /* @return the value of an expression that is a constant, possibly wrapped in expressions without an operator */
+    private static Optional<Integer> constantValue(final Ast ast) {
+        if (ast instanceof Ast.Constant) { return Optional.of(((Ast.Constant) ast).getValue()); }
+        if (ast instanceof Ast.Expression && !((Ast.Expression) ast).getOp().isPresent()) {
+            return constantValue(((Ast.Expression) ast).getLeft());
+        }
+        return Optional.empty();
+    }
+
+    /* @return the token an ast was parsed from, for the ast that replaces it */
+    private static Token token(final Ast ast) { return ast.getToken().orElse(null); }
+
+    private static Ast.Expression constant(final int value) {
+        return new Ast.Expression(null, new Ast.Constant(null, value), Optional.empty(), Optional.empty());
+    }
+
+    private static Ast.Expression bool(final boolean value) {
+        return new Ast.Expression(null, new Ast.Var(null, value ? "true" : "false", Optional.empty()),
+                Optional.empty(), Optional.empty());
+    }
+
     Optional<Ast> removeDeadCode(final Ast ast) {
         if (ast instanceof Ast.DeclarationList) {
             final Ast.DeclarationList decs = (Ast.DeclarationList) ast;
             final List<Ast> children = decs.getDeclarations().stream().map(this::removeDeadCode)
                     .filter(Optional::isPresent).map(Optional::get).collect(toList());
-            return Optional.of(new Ast.DeclarationList(null, children));
+            return Optional.of(new Ast.DeclarationList(token(decs), children));
         }
         if (ast instanceof Ast.FunDeclaration) {
             final Ast.FunDeclaration fun = (Ast.FunDeclaration) ast;
             final Optional<Ast> body = removeDeadCode(fun.getBody());
             if (body.isPresent()) {
-                return Optional.of(new Ast.FunDeclaration(null,
+                return Optional.of(new Ast.FunDeclaration(token(fun),
                         fun.getType(), fun.getName(), fun.getParams(), body.get()));
             } else {
                 // replace body with empty expression
-                return Optional.of(new Ast.FunDeclaration(null,
+                return Optional.of(new Ast.FunDeclaration(token(fun),
                         fun.getType(), fun.getName(), fun.getParams(), new Ast.ExpressionStmt(null, Optional.empty())));
             }
         }
@@ -746,7 +1077,7 @@ public class CmCodeGen {
             final Ast.CompoundStatement cmpd = (Ast.CompoundStatement) ast;
             final List<Ast> stmts = cmpd.getStatements().stream().map(this::removeDeadCode)
                     .filter(Optional::isPresent).map(Optional::get).collect(toList());
-            return Optional.of(new Ast.CompoundStatement(null, cmpd.getLocalDeclarations(), stmts));
+            return Optional.of(new Ast.CompoundStatement(token(cmpd), cmpd.getLocalDeclarations(), stmts));
         }
         if (ast instanceof Ast.IfThen) {
             final Ast.IfThen ifThen = (Ast.IfThen) ast;
@@ -760,7 +1091,7 @@ public class CmCodeGen {
                     return removeDeadCode(ifThen.getThenPart()); // remove the condition
                 }
             }
-            return removeDeadCode(ifThen.getThenPart()).map(stmt -> new Ast.IfThen(null, ifThen.getCondition(), stmt));
+            return removeDeadCode(ifThen.getThenPart()).map(stmt -> new Ast.IfThen(token(ifThen), ifThen.getCondition(), stmt));
         }
         if (ast instanceof Ast.IfThenElse) {
             final Ast.IfThenElse ifThenElse = (Ast.IfThenElse) ast;
@@ -775,7 +1106,7 @@ public class CmCodeGen {
                 }
             }
             return Optional.of(new Ast.IfThenElse(
-                    null,
+                    token(ifThenElse),
                     condition,
                     removeDeadCode(ifThenElse.getThenPart()).orElse(new Ast.ExpressionStmt(null, Optional.empty())),
                     removeDeadCode(ifThenElse.getElsePart()).orElse(new Ast.ExpressionStmt(null, Optional.empty()))
@@ -794,13 +1125,28 @@ public class CmCodeGen {
         return Optional.of(ast);
     }
 
+    /* remove the empty functions and the calls to them, until removing the calls leaves no more empty functions */
+    private Ast.DeclarationList removeEmptyFunctions(final Ast ast, final Pruning.Report report) {
+        Ast.DeclarationList decs = (Ast.DeclarationList) ast;
+        while (true) {
+            final int before = decs.getDeclarations().size();
+            decs = (Ast.DeclarationList) removeEmptyFunctions(decs, new HashSet<>());
+            if (decs.getDeclarations().size() == before) { return decs; }
+            report.emptyFunctions += before - decs.getDeclarations().size();
+        }
+    }
+
+    /** remove the void functions other than main whose body is empty, and replace the calls to them with their
+     *  arguments */
     Ast removeEmptyFunctions(final Ast ast, final Set<String> emptyFunctions) {
         if (ast instanceof Ast.DeclarationList) {
             final Ast.DeclarationList decList = (Ast.DeclarationList) ast;
             final Set<String> emptyFuns = decList.getDeclarations().stream()
                     .filter(d -> d instanceof Ast.FunDeclaration)
                     .map(d -> (Ast.FunDeclaration)d)
-                    .filter(d -> ((Ast.CompoundStatement)d.getBody()).getStatements().isEmpty())
+                    .filter(d -> d.getType() == Ast.TypeSpecifier.VOID && !"main".equals(d.getName()))
+                    .filter(d -> d.getBody() instanceof Ast.CompoundStatement &&
+                            ((Ast.CompoundStatement)d.getBody()).getStatements().isEmpty())
                     .map(Ast.FunDeclaration::getName)
                     .collect(toSet());
             if (emptyFuns.isEmpty()) {
@@ -818,12 +1164,12 @@ public class CmCodeGen {
                         }
                     }
                 }).collect(toList());
-                return new Ast.DeclarationList(null, decs);
+                return new Ast.DeclarationList(token(decList), decs);
             }
         }
         if (ast instanceof Ast.FunDeclaration) {
             final Ast.FunDeclaration fun = (Ast.FunDeclaration)ast;
-            return new Ast.FunDeclaration(null,
+            return new Ast.FunDeclaration(token(fun),
                     fun.getType(),
                     fun.getName(),
                     fun.getParams(),
@@ -834,11 +1180,11 @@ public class CmCodeGen {
             if (emptyFunctions.contains(call.getName())) {
                 if (call.getArgs().isEmpty()) {
                     // remove function call entirely.  no instructions are emitted for an empty expression
-                    return new Ast.ExpressionStmt(null, Optional.empty());
+                    return new Ast.ExpressionStmt(token(call), Optional.empty());
                 } else {
                     // replace pointless function call with statement that evaluates the arguments
                     // evaluating arguments is necessary because they may have side effects
-                    return new Ast.CompoundStatement(null, emptyList(), reverse(call.getArgs()));
+                    return new Ast.CompoundStatement(token(call), emptyList(), reverse(call.getArgs()));
                 }
             } else {
                 return ast;
@@ -846,26 +1192,26 @@ public class CmCodeGen {
         }
         if (ast instanceof Ast.CompoundStatement) {
             final Ast.CompoundStatement stmt = (Ast.CompoundStatement)ast;
-            return new Ast.CompoundStatement(null,
+            return new Ast.CompoundStatement(token(stmt),
                     stmt.getLocalDeclarations(),
                     stmt.getStatements().stream().map(s -> removeEmptyFunctions(s, emptyFunctions)).collect(toList()));
         }
         if (ast instanceof Ast.IfThen) {
             final Ast.IfThen ifThen = (Ast.IfThen)ast;
-            return new Ast.IfThen(null,
+            return new Ast.IfThen(token(ifThen),
                     ifThen.getCondition(),
                     removeEmptyFunctions(ifThen.getThenPart(), emptyFunctions));
         }
         if (ast instanceof Ast.IfThenElse) {
             final Ast.IfThenElse ifThenElse = (Ast.IfThenElse)ast;
-            return new Ast.IfThenElse(null,
+            return new Ast.IfThenElse(token(ifThenElse),
                     ifThenElse.getCondition(),
                     removeEmptyFunctions(ifThenElse.getThenPart(), emptyFunctions),
                     removeEmptyFunctions(ifThenElse.getElsePart(), emptyFunctions));
         }
         if (ast instanceof Ast.While) {
             final Ast.While whileS = (Ast.While)ast;
-            return new Ast.While(null,
+            return new Ast.While(token(whileS),
                     whileS.getCondition(),
                     removeEmptyFunctions(whileS.getBody(), emptyFunctions));
         }
@@ -2,6 +2,7 @@
 package cm;
 
 import data.Either;
+import data.Pair;
 import parser.*;
 
 import java.util.*;
@@ -14,6 +15,8 @@ import static java.util.stream.Collectors.toList;
 import static parser.Symbol.NonTerminal;
 import static parser.Symbol.Terminal;
 
+/** parser for C-. a CmParser keeps no state between calls to parse, so one instance (and the cost of building its
+ *  tables) can be shared by any number of threads */
 public class CmParser {
     // non-terminals
     private final Symbol program = new NonTerminal("program");
@@ -175,14 +178,50 @@ public class CmParser {
         }
     };
 
+    private final Grammar grammar;
     private final Parser<Token> parser;
     
-    public CmParser() {
-        final Grammar g = new Grammar(program, ps);
-        parser = new LR1Parser<>(g, toSymbol);
+    public CmParser() { this(ParserTables.Construction.EAGER); }
+
+    /** @param construction whether the parse tables are built up front or as the parser reaches each state */
+    public CmParser(final ParserTables.Construction construction) {
+        grammar = new Grammar(program, ps);
+        parser = new LR1Parser<>(grammar, toSymbol, construction);
     }
 
+    /** @return the grammar this parser was generated from */
+    public Grammar getGrammar() { return grammar; }
+
     public Either<String,Ast> parse(final List<Token> input) {
+        final Either<String,ParseTree<Token>> result = parseTree(input);
+
+        // if failed while building parse tree, then return an error message
+        if (result.getLeft().isPresent()) { return Either.left(result.getLeft().get()); }
+
+        // otherwise, convert parse tree to abstract syntax tree
+        return Either.right(toSyntaxTree(result.getRight().get()));
+    }
+
+    /** like parse, but also returns a lossless concrete syntax tree that keeps the whitespace and comments of the
+     *  input, so tools that format or refactor code don't need to scan and parse it again
+     *  @param input all the tokens scanned from text, including comments and the end of file token
+     *  @param text the text that was scanned */
+    public Either<String,Pair<Ast,GreenNode>> parseConcrete(final List<Token> input, final String text) {
+        return parseConcrete(input, text, new GreenTreeBuilder());
+    }
+
+    /** @param builder shares identical subtrees with every other tree that it builds */
+    public Either<String,Pair<Ast,GreenNode>> parseConcrete(final List<Token> input, final String text,
+                                                            final GreenTreeBuilder builder) {
+        final Either<String,ParseTree<Token>> result = parseTree(input);
+        if (result.getLeft().isPresent()) { return Either.left(result.getLeft().get()); }
+        final ParseTree<Token> tree = result.getRight().get();
+        final GreenNode cst = builder.build(tree, input, text, t -> t.getSrc().getPosition(),
+                t -> t.type == Token.Type.COMMENT);
+        return Either.right(Pair.of(toSyntaxTree(tree), cst));
+    }
+
+    private Either<String,ParseTree<Token>> parseTree(final List<Token> input) {
         // the scanner provides tokens for comments which is not part of the grammar
         final List<Token> in = input.stream()
                 .filter(t -> t.type != Token.Type.COMMENT)
@@ -190,12 +229,10 @@ public class CmParser {
 
         final Either<List<Token>,ParseTree<Token>> result = parser.parse(in);
 
-        // if failed while building parse tree, then return an error message
         if (result.getLeft().isPresent()) {
             return Either.left(String.join("\n", result.getLeft().get().stream().map(Token::toString).collect(toList())));
         }
-        // otherwise, convert parse tree to abstract syntax tree
-        return Either.right(toSyntaxTree(result.getRight().get()));
+        return Either.right(result.getRight().get());
     }
 
     // program -> declaration-list
@@ -501,12 +538,13 @@ public class CmParser {
         throw new IllegalStateException();
     }
 
+    /* @return the first token of the input that the parse tree covers. a node for a nonterminal holds the lookahead
+     * it was reduced on, which is past its end, so that is only used for a nonterminal that covers nothing */
     private Token getToken(final ParseTree<Token> parseTree) {
-        if (parseTree.getT() != null) { return parseTree.getT(); }
         for (final ParseTree<Token> child : parseTree.getChildren()) {
             final Token token = getToken(child);
             if (token != null) { return token; }
         }
-        return null;
+        return parseTree.getT();
     }
 }
\ No newline at end of file
@@ -0,0 +1,285 @@
+package cm;
+
+import cm.ir.CallGraph;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * removes the parts of a C- program that can't change what it does: the functions that can't be reached from main,
+ * the globals and locals that are never read, and the expressions whose value is thrown away and that have no
+ * effects. an assignment to a variable that is never read is replaced by its
+ * right hand side if that calls a function or assigns something, and dropped otherwise, which can leave other
+ * variables unread in turn, so this goes on until nothing changes.
+ *
+ * arrays are only removed if nothing refers to them at all, since their index can do anything, and parameters stay
+ * so that the calls don't change
+ */
+public class Pruning {
+
+    /** what was removed from a program */
+    public static final class Report {
+        int unreachableFunctions;
+        int emptyFunctions;
+        int globals;
+        int globalWords;
+        int locals;
+        int localWords;
+        int assignments;
+
+        public int getUnreachableFunctions() { return unreachableFunctions; }
+
+        /** @return the functions removed, with the calls to them, because their body is empty */
+        public int getEmptyFunctions() { return emptyFunctions; }
+
+        public int getGlobals() { return globals; }
+
+        /** @return the words of memory the removed globals took */
+        public int getGlobalWords() { return globalWords; }
+
+        public int getLocals() { return locals; }
+
+        /** @return the words of stack the removed locals took, in all the frames they were in */
+        public int getLocalWords() { return localWords; }
+
+        public int getAssignments() { return assignments; }
+
+        @Override
+        public String toString() {
+            return String.format("removed %d unreachable and %d empty functions, %d globals (%d words), " +
+                    "%d locals (%d words) and %d assignments", unreachableFunctions, emptyFunctions, globals,
+                    globalWords, locals, localWords, assignments);
+        }
+    }
+
+    /** @return decs without the parts that can't change what the program does. what was removed is added to report */
+    public static Ast.DeclarationList prune(final Ast.DeclarationList decs, final Report report) {
+        final Set<String> reachable = CallGraph.of(decs).getReachable("main");
+        final List<Ast> kept = new ArrayList<>();
+        for (final Ast dec : decs.getDeclarations()) {
+            if (dec instanceof Ast.FunDeclaration && !reachable.contains(((Ast.FunDeclaration) dec).getName())) {
+                report.unreachableFunctions++;
+            } else {
+                kept.add(dec);
+            }
+        }
+        Ast.DeclarationList result = new Ast.DeclarationList(decs.getToken().orElse(null), kept);
+        while (true) {
+            final Uses uses = new Uses();
+            uses.scan(result);
+            final int removed = report.globals + report.locals + report.assignments;
+            result = new Removal(uses, report).program(result);
+            if (report.globals + report.locals + report.assignments == removed) { return result; }
+        }
+    }
+
+    /* which declaration each variable refers to, and which declarations are read */
+    private static class Uses {
+        final Map<Ast.Var,Ast> declarations = new IdentityHashMap<>();
+        final Map<Ast,Boolean> read = new IdentityHashMap<>();
+        private final Deque<Map<String,Ast>> scopes = new ArrayDeque<>();
+        // the variable whose new value is being scanned
+        private Ast assigning;
+
+        void scan(final Ast.DeclarationList decs) {
+            final Map<String,Ast> globals = new HashMap<>();
+            scopes.push(globals);
+            for (final Ast dec : decs.getDeclarations()) {
+                if (dec instanceof Ast.VarDeclaration) {
+                    globals.put(((Ast.VarDeclaration) dec).getName(), dec);
+                } else {
+                    final Ast.FunDeclaration fun = (Ast.FunDeclaration) dec;
+                    final Map<String,Ast> params = new HashMap<>();
+                    fun.getParams().forEach(p -> params.put(((Ast.Param) p).getName(), p));
+                    scopes.push(params);
+                    scanStatement(fun.getBody());
+                    scopes.pop();
+                }
+            }
+            scopes.pop();
+        }
+
+        private void scan(final Ast ast) {
+            if (ast instanceof Ast.CompoundStatement) {
+                final Ast.CompoundStatement cmpd = (Ast.CompoundStatement) ast;
+                final Map<String,Ast> scope = new HashMap<>();
+                cmpd.getLocalDeclarations().forEach(d -> scope.put(((Ast.VarDeclaration) d).getName(), d));
+                scopes.push(scope);
+                cmpd.getStatements().forEach(this::scanStatement);
+                scopes.pop();
+            } else if (ast instanceof Ast.ExpressionStmt) {
+                final Optional<Ast> exp = ((Ast.ExpressionStmt) ast).getExpression();
+                if (exp.isPresent() && exp.get() instanceof Ast.Assignment && isScalar(exp.get())) {
+                    // storing to a scalar doesn't read it, and neither does working out the value to store if
+                    // that has no effects, like x = x + 1
+                    final Ast.Assignment assign = (Ast.Assignment) exp.get();
+                    final Ast dec = resolve((Ast.Var) assign.getVar());
+                    assigning = hasEffects(assign.getExpression()) ? null : dec;
+                    scan(assign.getExpression());
+                    assigning = null;
+                } else {
+                    exp.ifPresent(this::scan);
+                }
+            } else if (ast instanceof Ast.Var) {
+                final Ast.Var var = (Ast.Var) ast;
+                final Ast dec = resolve(var);
+                if (dec != null && dec != assigning) { read.put(dec, true); }
+                var.getExpression().ifPresent(this::scan);
+            } else if (ast instanceof Ast.Assignment) {
+                scan(((Ast.Assignment) ast).getVar());
+                scan(((Ast.Assignment) ast).getExpression());
+            } else if (ast instanceof Ast.Expression) {
+                scan(((Ast.Expression) ast).getLeft());
+                ((Ast.Expression) ast).getRight().ifPresent(this::scan);
+            } else if (ast instanceof Ast.Call) {
+                ((Ast.Call) ast).getArgs().forEach(this::scan);
+            } else if (ast instanceof Ast.Return) {
+                ((Ast.Return) ast).getExpression().ifPresent(this::scan);
+            } else if (ast instanceof Ast.IfThen) {
+                scan(((Ast.IfThen) ast).getCondition());
+                scanStatement(((Ast.IfThen) ast).getThenPart());
+            } else if (ast instanceof Ast.IfThenElse) {
+                scan(((Ast.IfThenElse) ast).getCondition());
+                scanStatement(((Ast.IfThenElse) ast).getThenPart());
+                scanStatement(((Ast.IfThenElse) ast).getElsePart());
+            } else if (ast instanceof Ast.While) {
+                scan(((Ast.While) ast).getCondition());
+                scanStatement(((Ast.While) ast).getBody());
+            }
+        }
+
+        /* the variables in a statement whose value isn't used aren't read, since the statement is removed */
+        private void scanStatement(final Ast ast) {
+            if (!isUseless(ast)) { scan(ast); }
+        }
+
+        /* @return the declaration var refers to, or null for true and false */
+        private Ast resolve(final Ast.Var var) {
+            for (final Map<String,Ast> scope : scopes) {
+                final Ast dec = scope.get(var.getName());
+                if (dec != null) {
+                    declarations.put(var, dec);
+                    return dec;
+                }
+            }
+            return null;
+        }
+
+        boolean isRead(final Ast dec) { return read.containsKey(dec); }
+    }
+
+    /* rebuilds a program without the declarations that aren't read and the assignments to them */
+    private static class Removal {
+        private final Uses uses;
+        private final Report report;
+
+        Removal(final Uses uses, final Report report) {
+            this.uses = uses;
+            this.report = report;
+        }
+
+        Ast.DeclarationList program(final Ast.DeclarationList decs) {
+            final List<Ast> kept = new ArrayList<>();
+            for (final Ast dec : decs.getDeclarations()) {
+                if (dec instanceof Ast.VarDeclaration) {
+                    if (uses.isRead(dec)) {
+                        kept.add(dec);
+                    } else {
+                        report.globals++;
+                        report.globalWords += ((Ast.VarDeclaration) dec).getSize().orElse(1);
+                    }
+                } else {
+                    final Ast.FunDeclaration fun = (Ast.FunDeclaration) dec;
+                    kept.add(new Ast.FunDeclaration(token(fun), fun.getType(), fun.getName(), fun.getParams(),
+                            statement(fun.getBody()).orElse(empty())));
+                }
+            }
+            return new Ast.DeclarationList(token(decs), kept);
+        }
+
+        /* @return the statement without what isn't needed, or empty if none of it is */
+        private Optional<Ast> statement(final Ast ast) {
+            if (isUseless(ast)) { return Optional.empty(); }
+            if (ast instanceof Ast.CompoundStatement) {
+                final Ast.CompoundStatement cmpd = (Ast.CompoundStatement) ast;
+                final List<Ast> decs = new ArrayList<>();
+                for (final Ast dec : cmpd.getLocalDeclarations()) {
+                    if (uses.isRead(dec)) {
+                        decs.add(dec);
+                    } else {
+                        report.locals++;
+                        report.localWords += ((Ast.VarDeclaration) dec).getSize().orElse(1);
+                    }
+                }
+                final List<Ast> stmts = new ArrayList<>();
+                cmpd.getStatements().forEach(st -> statement(st).ifPresent(stmts::add));
+                return Optional.of(new Ast.CompoundStatement(token(cmpd), decs, stmts));
+            }
+            if (ast instanceof Ast.ExpressionStmt) {
+                final Optional<Ast> exp = ((Ast.ExpressionStmt) ast).getExpression();
+                if (!exp.isPresent() || !(exp.get() instanceof Ast.Assignment) || !isScalar(exp.get())) {
+                    return Optional.of(ast);
+                }
+                final Ast.Assignment assign = (Ast.Assignment) exp.get();
+                final Ast dec = uses.declarations.get((Ast.Var) assign.getVar());
+                if (dec == null || dec instanceof Ast.Param || uses.isRead(dec)) { return Optional.of(ast); }
+                report.assignments++;
+                return hasEffects(assign.getExpression())
+                        ? Optional.of(new Ast.ExpressionStmt(token(ast), Optional.of(assign.getExpression())))
+                        : Optional.empty();
+            }
+            if (ast instanceof Ast.IfThen) {
+                final Ast.IfThen ifThen = (Ast.IfThen) ast;
+                return Optional.of(new Ast.IfThen(token(ifThen), ifThen.getCondition(),
+                        statement(ifThen.getThenPart()).orElse(empty())));
+            }
+            if (ast instanceof Ast.IfThenElse) {
+                final Ast.IfThenElse ifThenElse = (Ast.IfThenElse) ast;
+                return Optional.of(new Ast.IfThenElse(token(ifThenElse), ifThenElse.getCondition(),
+                        statement(ifThenElse.getThenPart()).orElse(empty()),
+                        statement(ifThenElse.getElsePart()).orElse(empty())));
+            }
+            if (ast instanceof Ast.While) {
+                final Ast.While whileS = (Ast.While) ast;
+                return Optional.of(new Ast.While(token(whileS), whileS.getCondition(),
+                        statement(whileS.getBody()).orElse(empty())));
+            }
+            return Optional.of(ast);
+        }
+    }
+
+    /* @return true if ast is an expression used as a statement that has no effects, like the arguments left behind
+     * by a call to an empty function */
+    private static boolean isUseless(final Ast ast) {
+        if (ast instanceof Ast.Expression) { return !hasEffects(ast); }
+        if (!(ast instanceof Ast.ExpressionStmt)) { return false; }
+        final Optional<Ast> exp = ((Ast.ExpressionStmt) ast).getExpression();
+        return exp.isPresent() && exp.get() instanceof Ast.Expression && !hasEffects(exp.get());
+    }
+
+    private static boolean isScalar(final Ast assign) {
+        return !((Ast.Var) ((Ast.Assignment) assign).getVar()).getExpression().isPresent();
+    }
+
+    /* @return true if evaluating ast calls a function or assigns a variable */
+    private static boolean hasEffects(final Ast ast) {
+        if (ast instanceof Ast.Call || ast instanceof Ast.Assignment) { return true; }
+        if (ast instanceof Ast.Expression) {
+            final Ast.Expression exp = (Ast.Expression) ast;
+            return hasEffects(exp.getLeft()) || exp.getRight().map(Pruning::hasEffects).orElse(false);
+        }
+        if (ast instanceof Ast.Var) { return ((Ast.Var) ast).getExpression().map(Pruning::hasEffects).orElse(false); }
+        return false;
+    }
+
+    private static Ast empty() { return new Ast.ExpressionStmt(null, Optional.empty()); }
+
+    private static Token token(final Ast ast) { return ast.getToken().orElse(null); }
+}
@@ -0,0 +1,134 @@
+package cm.ir;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.util.Collections.singleton;
+
+/**
+ * which arrays the loads and stores of a function can touch. every address a C- function uses starts out as the
+ * address of one of its own frame arrays, of a global array, or as an array parameter, and the arrays are only ever
+ * indexed within their bounds, so an access touches the array its address started from. an array parameter can be
+ * any global array or an array in the frame of any caller, but never one in the frame of the function itself, which
+ * didn't exist when it was called.
+ *
+ * the arrays an address can start from are worked out for every register, through copies, phis and arithmetic, until
+ * nothing changes. a global array indexed by an integer is accessed with the index as the base and the array's
+ * address as the offset. global scalars have instructions of their own and are never touched by loads and stores.
+ *
+ * a call can read or write any array but the frame arrays whose address the function never lets out
+ */
+public class Aliases {
+    private static final String PARAM = "param";
+
+    private final List<Set<String>> roots = new ArrayList<>();
+    private final Set<String> escaped = new HashSet<>();
+
+    public Aliases(final Function f) {
+        for (int r = 0; r < f.getRegisterCount(); r++) { roots.add(new HashSet<>()); }
+        // any parameter could be an array. the scalar ones only ever end up as indexes
+        for (final int p : f.getParams()) { roots.get(p).add(PARAM); }
+        final Ir[] definitions = definitions(f);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (final Ir instr : f.getCode()) {
+                if (instr.def() == Ir.NONE) { continue; }
+                final Set<String> def = roots.get(instr.def());
+                final int before = def.size();
+                if (instr instanceof Ir.Address) {
+                    final Ir.Address address = (Ir.Address) instr;
+                    def.add(object(address.getSpace(), address.getOffset()));
+                } else if (instr instanceof Ir.BinOp) {
+                    final Ir.BinOp binOp = (Ir.BinOp) instr;
+                    // an address plus an index. the address of an array is never added to another address, so
+                    // when one side is one the other is an integer
+                    final Ir left = definitions[binOp.getLeft()];
+                    final Ir right = definitions[binOp.getRight()];
+                    if (left instanceof Ir.Address) {
+                        def.addAll(roots.get(binOp.getLeft()));
+                    } else if (right instanceof Ir.Address) {
+                        def.addAll(roots.get(binOp.getRight()));
+                    } else {
+                        def.addAll(roots.get(binOp.getLeft()));
+                        def.addAll(roots.get(binOp.getRight()));
+                    }
+                } else if (instr instanceof Ir.Copy || instr instanceof Ir.Phi) {
+                    for (final int u : instr.uses()) { def.addAll(roots.get(u)); }
+                }
+                changed |= def.size() != before;
+            }
+        }
+        // the frame arrays whose address goes somewhere other than a load or a store
+        for (final Ir instr : f.getCode()) {
+            if (instr instanceof Ir.Call || instr instanceof Ir.Return || instr instanceof Ir.Out) {
+                for (final int u : instr.uses()) { escaped.addAll(roots.get(u)); }
+            } else if (instr instanceof Ir.Store) {
+                escaped.addAll(roots.get(((Ir.Store) instr).getSrc()));
+            } else if (instr instanceof Ir.StoreGlobal) {
+                escaped.addAll(roots.get(((Ir.StoreGlobal) instr).getSrc()));
+            }
+        }
+    }
+
+    /* @return the instruction that assigns each register, or null where there are several, out of SSA form */
+    private static Ir[] definitions(final Function f) {
+        final Ir[] definitions = new Ir[f.getRegisterCount()];
+        final boolean[] several = new boolean[f.getRegisterCount()];
+        for (final Ir instr : f.getCode()) {
+            final int r = instr.def();
+            if (r == Ir.NONE) { continue; }
+            several[r] |= definitions[r] != null;
+            definitions[r] = several[r] ? null : instr;
+        }
+        return definitions;
+    }
+
+    private static String object(final Ir.Space space, final int offset) {
+        return space.name().toLowerCase() + " " + offset;
+    }
+
+    /* @return the arrays the access to base + offset can touch */
+    private Set<String> objects(final int base, final int offset) {
+        final Set<String> objects = roots.get(base);
+        // no address went into the base, so it is an index, and the offset is the address of a global array
+        return objects.isEmpty() ? singleton(object(Ir.Space.GLOBAL, offset)) : objects;
+    }
+
+    /** @return the arrays a Load or a Store can touch */
+    private Set<String> objects(final Ir access) {
+        if (access instanceof Ir.Load) {
+            return objects(((Ir.Load) access).getBase(), ((Ir.Load) access).getOffset());
+        }
+        if (access instanceof Ir.Store) {
+            return objects(((Ir.Store) access).getBase(), ((Ir.Store) access).getOffset());
+        }
+        throw new IllegalStateException("not a load or a store: " + access);
+    }
+
+    /** @return false if the loads or stores a and b never touch the same word */
+    public boolean mayAlias(final Ir a, final Ir b) {
+        final Set<String> objectsA = objects(a);
+        final Set<String> objectsB = objects(b);
+        for (final String x : objectsA) {
+            for (final String y : objectsB) {
+                if (x.equals(y) || overlapsParam(x, y) || overlapsParam(y, x)) { return true; }
+            }
+        }
+        return false;
+    }
+
+    private static boolean overlapsParam(final String x, final String y) {
+        return x.equals(PARAM) && (y.equals(PARAM) || y.startsWith(Ir.Space.GLOBAL.name().toLowerCase()));
+    }
+
+    /** @return true if a call could change what the load or store access touches */
+    public boolean isCallClobbered(final Ir access) {
+        for (final String x : objects(access)) {
+            if (!x.startsWith(Ir.Space.FRAME.name().toLowerCase()) || escaped.contains(x)) { return true; }
+        }
+        return false;
+    }
+}
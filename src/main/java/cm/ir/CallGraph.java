@@ -0,0 +1,146 @@
+package cm.ir;
+
+import cm.Ast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * which functions of a program call which, in its three-address code or in its ast. the strongly connected components
+ * are found with Tarjan's algorithm: a function is recursive if it is in a component with others, or if it calls
+ * itself
+ */
+public class CallGraph {
+    private final Map<String,Set<String>> callees = new LinkedHashMap<>();
+    private final Set<String> recursive = new HashSet<>();
+    private final List<String> bottomUp = new ArrayList<>();
+
+    // the state of Tarjan's algorithm
+    private final Map<String,Integer> index = new HashMap<>();
+    private final Map<String,Integer> lowLink = new HashMap<>();
+    private final List<String> stack = new ArrayList<>();
+
+    public CallGraph(final Program program) {
+        this(calleesOf(program));
+    }
+
+    private CallGraph(final Map<String,Set<String>> callees) {
+        this.callees.putAll(callees);
+        for (final String name : callees.keySet()) {
+            if (!index.containsKey(name)) { connect(name); }
+        }
+    }
+
+    /** @return the call graph of the functions declared in a C- program, before it is lowered */
+    public static CallGraph of(final Ast.DeclarationList decs) {
+        final Map<String,Set<String>> callees = new LinkedHashMap<>();
+        for (final Ast dec : decs.getDeclarations()) {
+            if (!(dec instanceof Ast.FunDeclaration)) { continue; }
+            final Set<String> called = new LinkedHashSet<>();
+            calls(((Ast.FunDeclaration) dec).getBody(), called);
+            callees.put(((Ast.FunDeclaration) dec).getName(), called);
+        }
+        return new CallGraph(callees);
+    }
+
+    private static Map<String,Set<String>> calleesOf(final Program program) {
+        final Map<String,Set<String>> callees = new LinkedHashMap<>();
+        for (final Function f : program.getFunctions()) {
+            final Set<String> called = new LinkedHashSet<>();
+            for (final Ir instr : f.getCode()) {
+                if (instr instanceof Ir.Call) { called.add(((Ir.Call) instr).getName()); }
+            }
+            callees.put(f.getName(), called);
+        }
+        return callees;
+    }
+
+    /* add the names of the functions called in ast to called */
+    private static void calls(final Ast ast, final Set<String> called) {
+        if (ast instanceof Ast.Call) {
+            called.add(((Ast.Call) ast).getName());
+            ((Ast.Call) ast).getArgs().forEach(a -> calls(a, called));
+        } else if (ast instanceof Ast.CompoundStatement) {
+            ((Ast.CompoundStatement) ast).getStatements().forEach(st -> calls(st, called));
+        } else if (ast instanceof Ast.ExpressionStmt) {
+            ((Ast.ExpressionStmt) ast).getExpression().ifPresent(e -> calls(e, called));
+        } else if (ast instanceof Ast.Return) {
+            ((Ast.Return) ast).getExpression().ifPresent(e -> calls(e, called));
+        } else if (ast instanceof Ast.Assignment) {
+            calls(((Ast.Assignment) ast).getVar(), called);
+            calls(((Ast.Assignment) ast).getExpression(), called);
+        } else if (ast instanceof Ast.Expression) {
+            calls(((Ast.Expression) ast).getLeft(), called);
+            ((Ast.Expression) ast).getRight().ifPresent(r -> calls(r, called));
+        } else if (ast instanceof Ast.Var) {
+            ((Ast.Var) ast).getExpression().ifPresent(index -> calls(index, called));
+        } else if (ast instanceof Ast.IfThen) {
+            calls(((Ast.IfThen) ast).getCondition(), called);
+            calls(((Ast.IfThen) ast).getThenPart(), called);
+        } else if (ast instanceof Ast.IfThenElse) {
+            calls(((Ast.IfThenElse) ast).getCondition(), called);
+            calls(((Ast.IfThenElse) ast).getThenPart(), called);
+            calls(((Ast.IfThenElse) ast).getElsePart(), called);
+        } else if (ast instanceof Ast.While) {
+            calls(((Ast.While) ast).getCondition(), called);
+            calls(((Ast.While) ast).getBody(), called);
+        }
+    }
+
+    private void connect(final String name) {
+        index.put(name, index.size());
+        lowLink.put(name, index.get(name));
+        stack.add(name);
+        for (final String callee : callees.get(name)) {
+            if (!callees.containsKey(callee)) { continue; }
+            if (!index.containsKey(callee)) {
+                connect(callee);
+                lowLink.put(name, Math.min(lowLink.get(name), lowLink.get(callee)));
+            } else if (stack.contains(callee)) {
+                lowLink.put(name, Math.min(lowLink.get(name), index.get(callee)));
+            }
+        }
+        if (!lowLink.get(name).equals(index.get(name))) { return; }
+        // name is the root of a component, which is complete once every function it calls has one
+        final List<String> component = new ArrayList<>(stack.subList(stack.indexOf(name), stack.size()));
+        stack.removeAll(component);
+        if (component.size() > 1 || callees.get(name).contains(name)) { recursive.addAll(component); }
+        bottomUp.addAll(component);
+    }
+
+    /** @return the functions name calls */
+    public Set<String> getCallees(final String name) {
+        final Set<String> called = callees.get(name);
+        if (called == null) { throw new IllegalStateException("no function named " + name); }
+        return unmodifiableSet(called);
+    }
+
+    /** @return the functions that can run when root is called, including root. calls to functions that aren't in
+     *  the graph, like input and output, are left out */
+    public Set<String> getReachable(final String root) {
+        final Set<String> reachable = new LinkedHashSet<>();
+        final List<String> work = new ArrayList<>();
+        if (callees.containsKey(root)) { work.add(root); }
+        while (!work.isEmpty()) {
+            final String name = work.remove(work.size() - 1);
+            if (!reachable.add(name)) { continue; }
+            callees.get(name).stream().filter(callees::containsKey).forEach(work::add);
+        }
+        return reachable;
+    }
+
+    /** @return true if name can end up calling itself */
+    public boolean isRecursive(final String name) { return recursive.contains(name); }
+
+    /** @return every function, each after the ones it calls, other than those in the same recursive cycle */
+    public List<String> getBottomUp() { return unmodifiableList(bottomUp); }
+}
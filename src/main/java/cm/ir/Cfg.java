@@ -0,0 +1,241 @@
+package cm.ir;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * the control flow graph of a function. every block starts with a label and ends with exactly one terminator (a
+ * jump, branch or return); a block that would fall through into the next one is given an explicit jump. the first
+ * block is labeled ENTRY and no block jumps to it. blocks that can't be reached from the entry are left out, along
+ * with the phi arguments that flow in from them.
+ *
+ * a Cfg is not modified once it is built, so it can be cached along with the function it was built from
+ */
+public class Cfg {
+    public static final String ENTRY = "entry";
+
+    private final Function function;
+    private final List<Block> blocks;
+    private final Map<String,Block> byLabel = new HashMap<>();
+    private final List<Block> reversePostorder;
+
+    public static class Block {
+        private final int index;
+        private final String label;
+        private final List<Ir> code;
+        private final List<Block> succs = new ArrayList<>();
+        private final List<Block> preds = new ArrayList<>();
+
+        private Block(final int index, final String label, final List<Ir> code) {
+            this.index = index;
+            this.label = label;
+            this.code = unmodifiableList(code);
+        }
+
+        /** @return the position of the block in the function, from 0 */
+        public int getIndex() { return index; }
+        public String getLabel() { return label; }
+
+        /** @return the instructions of the block, without its label. the last one is the terminator */
+        public List<Ir> getCode() { return code; }
+        public Ir getTerminator() { return code.get(code.size() - 1); }
+
+        public List<Block> getSuccs() { return unmodifiableList(succs); }
+        public List<Block> getPreds() { return unmodifiableList(preds); }
+
+        @Override public String toString() { return label; }
+    }
+
+    private Cfg(final Function function, final List<Block> blocks) {
+        this.function = function;
+        this.blocks = unmodifiableList(blocks);
+        blocks.forEach(b -> byLabel.put(b.label, b));
+        for (final Block b : blocks) {
+            for (final String target : b.getTerminator().targets()) {
+                final Block succ = byLabel.get(target);
+                if (succ == null) { throw new IllegalStateException("no block is labeled " + target); }
+                if (!b.succs.contains(succ)) {
+                    b.succs.add(succ);
+                    succ.preds.add(b);
+                }
+            }
+        }
+        reversePostorder = unmodifiableList(reversePostorder(blocks.get(0)));
+    }
+
+    public static Cfg of(final Function function) {
+        // split the code into blocks
+        final List<String> labels = new ArrayList<>();
+        final List<List<Ir>> codes = new ArrayList<>();
+        List<Ir> current = null;
+        final List<Ir> code = function.getCode();
+        if (code.isEmpty() || !(code.get(0) instanceof Ir.Label) || !((Ir.Label) code.get(0)).getName().equals(ENTRY)) {
+            labels.add(ENTRY);
+            codes.add(current = new ArrayList<>());
+        }
+        for (final Ir instr : code) {
+            if (instr instanceof Ir.Label) {
+                final String label = ((Ir.Label) instr).getName();
+                if (current != null && (current.isEmpty() || !last(current).isTerminator())) {
+                    current.add(new Ir.Jump(label));
+                }
+                labels.add(label);
+                codes.add(current = new ArrayList<>());
+            } else if (current != null && (current.isEmpty() || !last(current).isTerminator())) {
+                current.add(instr);
+            }
+            // anything after a terminator and before the next label can't be reached
+        }
+        if (current.isEmpty() || !last(current).isTerminator()) { current.add(new Ir.Return(Ir.NONE)); }
+
+        // leave out the blocks that can't be reached
+        final Map<String,Integer> index = new HashMap<>();
+        for (int i = 0; i < labels.size(); i++) { index.put(labels.get(i), i); }
+        final boolean[] reachable = new boolean[labels.size()];
+        final Deque<Integer> work = new ArrayDeque<>();
+        work.push(0);
+        reachable[0] = true;
+        while (!work.isEmpty()) {
+            for (final String target : last(codes.get(work.pop())).targets()) {
+                final Integer i = index.get(target);
+                if (i == null) { throw new IllegalStateException("no block is labeled " + target); }
+                if (!reachable[i]) {
+                    reachable[i] = true;
+                    work.push(i);
+                }
+            }
+        }
+        final Map<String,Set<String>> preds = new HashMap<>();
+        labels.forEach(label -> preds.put(label, new HashSet<>()));
+        for (int i = 0; i < labels.size(); i++) {
+            if (!reachable[i]) { continue; }
+            for (final String target : last(codes.get(i)).targets()) { preds.get(target).add(labels.get(i)); }
+        }
+        final List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < labels.size(); i++) {
+            if (reachable[i]) {
+                blocks.add(new Block(blocks.size(), labels.get(i),
+                        withoutDeadPhiArgs(codes.get(i), preds.get(labels.get(i)))));
+            }
+        }
+        final Cfg cfg = new Cfg(function, blocks);
+        if (!cfg.blocks.get(0).preds.isEmpty()) { throw new IllegalStateException("the entry block has a predecessor"); }
+        return cfg;
+    }
+
+    /* phis only keep the values that flow in from actual predecessors */
+    private static List<Ir> withoutDeadPhiArgs(final List<Ir> code, final Set<String> preds) {
+        final List<Ir> result = new ArrayList<>(code.size());
+        for (final Ir instr : code) {
+            if (instr instanceof Ir.Phi) {
+                final Ir.Phi phi = (Ir.Phi) instr;
+                final String[] phiPreds = phi.getPreds();
+                final int[] args = phi.getArgs();
+                final List<String> keptPreds = new ArrayList<>();
+                final List<Integer> keptArgs = new ArrayList<>();
+                for (int i = 0; i < phiPreds.length; i++) {
+                    if (preds.contains(phiPreds[i])) {
+                        keptPreds.add(phiPreds[i]);
+                        keptArgs.add(args[i]);
+                    }
+                }
+                result.add(keptPreds.size() == phiPreds.length ? phi : new Ir.Phi(phi.def(),
+                        keptPreds.toArray(new String[keptPreds.size()]),
+                        keptArgs.stream().mapToInt(Integer::intValue).toArray()));
+            } else {
+                result.add(instr);
+            }
+        }
+        return result;
+    }
+
+    private static List<Block> reversePostorder(final Block entry) {
+        final List<Block> postorder = new ArrayList<>();
+        final Set<Block> visited = new HashSet<>();
+        // an explicit stack of (block, next successor to visit), since functions can be long
+        final Deque<int[]> stack = new ArrayDeque<>();
+        final Deque<Block> blocks = new ArrayDeque<>();
+        visited.add(entry);
+        stack.push(new int[] {0});
+        blocks.push(entry);
+        while (!stack.isEmpty()) {
+            final Block b = blocks.peek();
+            final int[] next = stack.peek();
+            if (next[0] < b.succs.size()) {
+                final Block succ = b.succs.get(next[0]++);
+                if (visited.add(succ)) {
+                    stack.push(new int[] {0});
+                    blocks.push(succ);
+                }
+            } else {
+                postorder.add(b);
+                stack.pop();
+                blocks.pop();
+            }
+        }
+        final List<Block> result = new ArrayList<>(postorder);
+        Collections.reverse(result);
+        return result;
+    }
+
+    private static Ir last(final List<Ir> code) { return code.get(code.size() - 1); }
+
+    public Function getFunction() { return function; }
+
+    /** @return the blocks in the order they are laid out. the first is the entry */
+    public List<Block> getBlocks() { return blocks; }
+
+    public Block getEntry() { return blocks.get(0); }
+
+    public Block getBlock(final String label) { return byLabel.get(label); }
+
+    /** @return the blocks in reverse postorder: every block comes before its successors, except along back edges */
+    public List<Block> getReversePostorder() { return reversePostorder; }
+
+    /** @return a label that is not used in the function, starting with prefix */
+    public String freshLabel(final String prefix) {
+        int n = byLabel.size();
+        while (byLabel.containsKey(prefix + n)) { n++; }
+        return prefix + n;
+    }
+
+    /** @return the function with the code of block i replaced by code.get(i). the blocks keep their labels and order */
+    public Function rebuild(final List<List<Ir>> code, final int registerCount) {
+        return rebuild(code, registerCount, function.isSsa());
+    }
+
+    public Function rebuild(final List<List<Ir>> code, final int registerCount, final boolean ssa) {
+        final List<Ir> result = new ArrayList<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            result.add(new Ir.Label(blocks.get(i).label));
+            result.addAll(code.get(i));
+        }
+        return function.withCode(result, registerCount, ssa);
+    }
+
+    /** @return the function laid out as it is in this graph, without unreachable code */
+    public Function toFunction() {
+        final List<List<Ir>> code = new ArrayList<>();
+        blocks.forEach(b -> code.add(b.code));
+        return rebuild(code, function.getRegisterCount());
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (final Block b : blocks) {
+            sb.append(b.label).append(" -> ").append(Arrays.toString(b.succs.toArray())).append("\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,208 @@
+package cm.ir;
+
+import cm.Ast;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * sparse conditional constant propagation (Wegman and Zadeck) for functions in SSA form. every register starts out
+ * unknown and every block unreached except the entry. the instructions of the reached blocks are evaluated until
+ * nothing changes: a register becomes a constant or varying, and a branch only reaches the successors its operands
+ * allow. a register that is a constant is then assigned it directly, a branch whose outcome is known becomes a jump,
+ * and the blocks that were never reached are dropped.
+ *
+ * the operators are simplified where one operand is a constant: x + 0, x - 0, x * 1 and x / 1 become copies of x,
+ * x * 0 and x - x become 0, and x * 2 becomes x + x. the copies are left for copy propagation to clean up
+ */
+public class ConstantPropagation {
+    private static final int UNKNOWN = 0;
+    private static final int CONSTANT = 1;
+    private static final int VARYING = 2;
+
+    public static Function run(final Function f, final Cfg cfg) {
+        if (!f.isSsa()) { throw new IllegalStateException("constant propagation needs SSA form: " + f.getName()); }
+        return new Propagation(f, cfg).run();
+    }
+
+    private static class Propagation {
+        private final Function f;
+        private final Cfg cfg;
+        private final int[] state;
+        private final int[] value;
+        private final boolean[] reached;
+        private final Set<String> edges = new HashSet<>();  // "pred succ" for each edge control can take
+        private boolean changed;
+
+        Propagation(final Function f, final Cfg cfg) {
+            this.f = f;
+            this.cfg = cfg;
+            state = new int[f.getRegisterCount()];
+            value = new int[f.getRegisterCount()];
+            reached = new boolean[cfg.getBlocks().size()];
+        }
+
+        Function run() {
+            for (final int p : f.getParams()) { state[p] = VARYING; }
+            reached[cfg.getEntry().getIndex()] = true;
+            changed = true;
+            while (changed) {
+                changed = false;
+                for (final Cfg.Block b : cfg.getReversePostorder()) {
+                    if (!reached[b.getIndex()]) { continue; }
+                    for (final Ir instr : b.getCode()) {
+                        if (instr.def() != Ir.NONE) { evaluate(instr, b); }
+                    }
+                    for (final String target : taken(b.getTerminator())) {
+                        final Cfg.Block succ = cfg.getBlock(target);
+                        if (edges.add(b.getLabel() + " " + target)) { changed = true; }
+                        if (!reached[succ.getIndex()]) {
+                            reached[succ.getIndex()] = true;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+
+            final List<List<Ir>> code = new ArrayList<>();
+            for (final Cfg.Block b : cfg.getBlocks()) {
+                if (!reached[b.getIndex()]) {
+                    code.add(b.getCode());
+                    continue;
+                }
+                final List<Ir> phis = new ArrayList<>();
+                final List<Ir> rest = new ArrayList<>();
+                for (final Ir instr : b.getCode()) {
+                    final int dst = instr.def();
+                    if (instr instanceof Ir.Phi) {
+                        if (state[dst] == CONSTANT) {
+                            rest.add(new Ir.Const(dst, value[dst]));
+                        } else {
+                            phis.add(instr);
+                        }
+                    } else if (dst != Ir.NONE && state[dst] == CONSTANT && !instr.hasSideEffects()) {
+                        rest.add(instr instanceof Ir.Const ? instr : new Ir.Const(dst, value[dst]));
+                    } else if (instr instanceof Ir.BinOp) {
+                        rest.add(simplify((Ir.BinOp) instr));
+                    } else if (instr instanceof Ir.Branch) {
+                        final String[] taken = taken(instr);
+                        rest.add(taken.length == 1 ? new Ir.Jump(taken[0]) : instr);
+                    } else {
+                        rest.add(instr);
+                    }
+                }
+                phis.addAll(rest);
+                code.add(phis);
+            }
+            return Cfg.of(cfg.rebuild(code, f.getRegisterCount())).toFunction();
+        }
+
+        private void evaluate(final Ir instr, final Cfg.Block b) {
+            final int dst = instr.def();
+            if (instr instanceof Ir.Const) {
+                lower(dst, CONSTANT, ((Ir.Const) instr).getValue());
+            } else if (instr instanceof Ir.Copy) {
+                final int src = ((Ir.Copy) instr).getSrc();
+                lower(dst, state[src], value[src]);
+            } else if (instr instanceof Ir.Phi) {
+                final Ir.Phi phi = (Ir.Phi) instr;
+                final String[] preds = phi.getPreds();
+                final int[] args = phi.getArgs();
+                for (int i = 0; i < preds.length; i++) {
+                    if (edges.contains(preds[i] + " " + b.getLabel())) { lower(dst, state[args[i]], value[args[i]]); }
+                }
+            } else if (instr instanceof Ir.BinOp) {
+                final Ir.BinOp binOp = (Ir.BinOp) instr;
+                final int l = binOp.getLeft();
+                final int r = binOp.getRight();
+                final Ast.Operator op = binOp.getOp();
+                if (op == Ast.Operator.TIMES && (isConstant(l, 0) || isConstant(r, 0)) ||
+                        op == Ast.Operator.MINUS && l == r) {
+                    lower(dst, CONSTANT, 0);
+                } else if (state[l] == CONSTANT && state[r] == CONSTANT) {
+                    if (op == Ast.Operator.DIVIDE && value[r] == 0) {
+                        lower(dst, VARYING, 0);  // leave it for the machine to deal with
+                    } else {
+                        lower(dst, CONSTANT, fold(op, value[l], value[r]));
+                    }
+                } else if (state[l] == VARYING || state[r] == VARYING) {
+                    lower(dst, VARYING, 0);
+                }
+            } else {
+                // loads, calls and input
+                lower(dst, VARYING, 0);
+            }
+        }
+
+        /* move register r down the lattice to the meet of where it is and (s, v) */
+        private void lower(final int r, final int s, final int v) {
+            if (s == UNKNOWN || state[r] == VARYING) { return; }
+            final int meet = state[r] == UNKNOWN ? s : s == CONSTANT && value[r] == v ? CONSTANT : VARYING;
+            if (meet != state[r]) {
+                state[r] = meet;
+                value[r] = v;
+                changed = true;
+            }
+        }
+
+        private boolean isConstant(final int r, final int v) { return state[r] == CONSTANT && value[r] == v; }
+
+        /* @return the labels control can continue at after terminator, as far as is known */
+        private String[] taken(final Ir terminator) {
+            if (!(terminator instanceof Ir.Branch)) { return terminator.targets(); }
+            final Ir.Branch b = (Ir.Branch) terminator;
+            final int l = b.getLeft();
+            final int r = b.getRight();
+            if (state[l] == UNKNOWN || r != Ir.NONE && state[r] == UNKNOWN) { return new String[0]; }
+            if (state[l] == CONSTANT && (r == Ir.NONE || state[r] == CONSTANT)) {
+                final boolean holds = fold(b.getOp(), value[l], r == Ir.NONE ? 0 : value[r]) != 0;
+                return new String[] {holds ? b.getIfTrue() : b.getIfFalse()};
+            }
+            return b.targets();
+        }
+
+        private Ir simplify(final Ir.BinOp binOp) {
+            final int dst = binOp.def();
+            final int l = binOp.getLeft();
+            final int r = binOp.getRight();
+            switch (binOp.getOp()) {
+                case PLUS:
+                    if (isConstant(r, 0)) { return new Ir.Copy(dst, l); }
+                    if (isConstant(l, 0)) { return new Ir.Copy(dst, r); }
+                    break;
+                case MINUS:
+                    if (isConstant(r, 0)) { return new Ir.Copy(dst, l); }
+                    break;
+                case TIMES:
+                    if (isConstant(r, 1)) { return new Ir.Copy(dst, l); }
+                    if (isConstant(l, 1)) { return new Ir.Copy(dst, r); }
+                    if (isConstant(r, 2)) { return new Ir.BinOp(Ast.Operator.PLUS, dst, l, l); }
+                    if (isConstant(l, 2)) { return new Ir.BinOp(Ast.Operator.PLUS, dst, r, r); }
+                    break;
+                case DIVIDE:
+                    if (isConstant(r, 1)) { return new Ir.Copy(dst, l); }
+                    break;
+            }
+            return binOp;
+        }
+    }
+
+    /** @return the value of l op r. relational operators give 1 if the relation holds, otherwise 0 */
+    static int fold(final Ast.Operator op, final int l, final int r) {
+        switch (op) {
+            case PLUS: return l + r;
+            case MINUS: return l - r;
+            case TIMES: return l * r;
+            case DIVIDE: return l / r;
+            case LEQ: return l <= r ? 1 : 0;
+            case LT: return l < r ? 1 : 0;
+            case GEQ: return l >= r ? 1 : 0;
+            case GT: return l > r ? 1 : 0;
+            case EQ: return l == r ? 1 : 0;
+            case NEQ: return l != r ? 1 : 0;
+            default: throw new IllegalStateException("cannot fold " + op);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package cm.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * in SSA form, replaces every register that is a copy of another by the original. a phi whose arguments are all the
+ * same register (not counting the phi itself, around a loop) is a copy too
+ */
+public class CopyPropagation {
+
+    public static Function run(final Function f) {
+        if (!f.isSsa()) { throw new IllegalStateException("copy propagation needs SSA form: " + f.getName()); }
+        final int[] replacement = new int[f.getRegisterCount()];
+        for (int r = 0; r < replacement.length; r++) { replacement[r] = r; }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (final Ir instr : f.getCode()) {
+                final int dst = instr.def();
+                if (dst == Ir.NONE || replacement[dst] != dst) { continue; }
+                int src = Ir.NONE;
+                if (instr instanceof Ir.Copy) {
+                    src = find(replacement, ((Ir.Copy) instr).getSrc());
+                } else if (instr instanceof Ir.Phi) {
+                    for (final int arg : instr.uses()) {
+                        final int a = find(replacement, arg);
+                        if (a == dst || a == src) { continue; }
+                        src = src == Ir.NONE ? a : -2;
+                    }
+                }
+                if (src >= 0 && src != dst) {
+                    replacement[dst] = src;
+                    changed = true;
+                }
+            }
+        }
+        final List<Ir> code = new ArrayList<>();
+        for (final Ir instr : f.getCode()) {
+            final int dst = instr.def();
+            if (dst != Ir.NONE && replacement[dst] != dst) { continue; }
+            code.add(instr.map(r -> r, r -> find(replacement, r)));
+        }
+        return f.withCode(code, f.getRegisterCount());
+    }
+
+    private static int find(final int[] replacement, int r) {
+        while (replacement[r] != r) { r = replacement[r]; }
+        return r;
+    }
+}
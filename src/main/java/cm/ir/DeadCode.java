@@ -0,0 +1,55 @@
+package cm.ir;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+
+/** in SSA form, removes the instructions whose results are never used and that have no other effect. an instruction
+ *  is kept if it has an effect or if a kept instruction reads its result, so values that only feed each other, like
+ *  phis that pass a value around a loop, go too. the result register of a call that is never used is dropped, but
+ *  the call is kept */
+public class DeadCode {
+
+    public static Function run(final Function f) {
+        if (!f.isSsa()) { throw new IllegalStateException("dead code elimination needs SSA form: " + f.getName()); }
+        final List<Ir> code = f.getCode();
+        final int[] definedAt = new int[f.getRegisterCount()];
+        Arrays.fill(definedAt, -1);
+        for (int i = 0; i < code.size(); i++) {
+            if (code.get(i).def() != Ir.NONE) { definedAt[code.get(i).def()] = i; }
+        }
+        final boolean[] live = new boolean[code.size()];
+        final BitSet used = new BitSet();
+        final Deque<Integer> work = new ArrayDeque<>();
+        for (int i = 0; i < code.size(); i++) {
+            if (code.get(i).hasSideEffects() || code.get(i) instanceof Ir.Label) {
+                live[i] = true;
+                work.push(i);
+            }
+        }
+        while (!work.isEmpty()) {
+            for (final int u : code.get(work.pop()).uses()) {
+                used.set(u);
+                final int i = definedAt[u];
+                if (i >= 0 && !live[i]) {
+                    live[i] = true;
+                    work.push(i);
+                }
+            }
+        }
+        final List<Ir> result = new ArrayList<>();
+        for (int i = 0; i < code.size(); i++) {
+            final Ir instr = code.get(i);
+            if (!live[i]) { continue; }
+            if (instr instanceof Ir.Call && instr.def() != Ir.NONE && !used.get(instr.def())) {
+                result.add(instr.map(r -> Ir.NONE, r -> r));
+            } else {
+                result.add(instr);
+            }
+        }
+        return f.withCode(result, f.getRegisterCount());
+    }
+}
@@ -0,0 +1,105 @@
+package cm.ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * the dominator tree and dominance frontiers of a control flow graph, computed with the iterative algorithm of
+ * Cooper, Harvey and Kennedy ("A Simple, Fast Dominance Algorithm"). blocks are identified by their index
+ */
+public class Dominators {
+    private final Cfg cfg;
+    private final int[] idom;
+    private final List<List<Cfg.Block>> children = new ArrayList<>();
+    private final BitSet[] frontier;
+    // preorder numbering of the dominator tree, so that dominance can be checked in constant time
+    private final int[] enter;
+    private final int[] exit;
+
+    public Dominators(final Cfg cfg) {
+        this.cfg = cfg;
+        final int n = cfg.getBlocks().size();
+        final List<Cfg.Block> rpo = cfg.getReversePostorder();
+        final int[] order = new int[n];
+        for (int i = 0; i < rpo.size(); i++) { order[rpo.get(i).getIndex()] = i; }
+
+        idom = new int[n];
+        Arrays.fill(idom, -1);
+        final int entry = cfg.getEntry().getIndex();
+        idom[entry] = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (final Cfg.Block b : rpo) {
+                if (b.getIndex() == entry) { continue; }
+                int newIdom = -1;
+                for (final Cfg.Block p : b.getPreds()) {
+                    if (idom[p.getIndex()] == -1) { continue; }
+                    newIdom = newIdom == -1 ? p.getIndex() : intersect(p.getIndex(), newIdom, order);
+                }
+                if (idom[b.getIndex()] != newIdom) {
+                    idom[b.getIndex()] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++) { children.add(new ArrayList<>()); }
+        for (final Cfg.Block b : rpo) {
+            if (b.getIndex() != entry) { children.get(idom[b.getIndex()]).add(b); }
+        }
+
+        enter = new int[n];
+        exit = new int[n];
+        number(entry, new int[] {0});
+
+        frontier = new BitSet[n];
+        for (int i = 0; i < n; i++) { frontier[i] = new BitSet(n); }
+        for (final Cfg.Block b : cfg.getBlocks()) {
+            if (b.getPreds().size() < 2) { continue; }
+            for (final Cfg.Block p : b.getPreds()) {
+                int runner = p.getIndex();
+                while (runner != idom[b.getIndex()]) {
+                    frontier[runner].set(b.getIndex());
+                    runner = idom[runner];
+                }
+            }
+        }
+    }
+
+    private int intersect(int a, int b, final int[] order) {
+        while (a != b) {
+            while (order[a] > order[b]) { a = idom[a]; }
+            while (order[b] > order[a]) { b = idom[b]; }
+        }
+        return a;
+    }
+
+    private void number(final int block, final int[] counter) {
+        enter[block] = counter[0]++;
+        for (final Cfg.Block child : children.get(block)) { number(child.getIndex(), counter); }
+        exit[block] = counter[0]++;
+    }
+
+    public Cfg getCfg() { return cfg; }
+
+    /** @return the immediate dominator of b, or null for the entry block */
+    public Cfg.Block getIdom(final Cfg.Block b) {
+        return b == cfg.getEntry() ? null : cfg.getBlocks().get(idom[b.getIndex()]);
+    }
+
+    /** @return the blocks that b immediately dominates, in reverse postorder */
+    public List<Cfg.Block> getChildren(final Cfg.Block b) { return unmodifiableList(children.get(b.getIndex())); }
+
+    /** @return true if every path from the entry to b passes through a. every block dominates itself */
+    public boolean dominates(final Cfg.Block a, final Cfg.Block b) {
+        return enter[a.getIndex()] <= enter[b.getIndex()] && exit[b.getIndex()] <= exit[a.getIndex()];
+    }
+
+    /** @return the indices of the blocks in the dominance frontier of b: the blocks where b's dominance ends */
+    public BitSet getFrontier(final Cfg.Block b) { return (BitSet) frontier[b.getIndex()].clone(); }
+}
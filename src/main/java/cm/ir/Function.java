@@ -0,0 +1,88 @@
+package cm.ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.Collections.unmodifiableList;
+
+/** a function in three-address code. the parameters arrive in registers; array parameters hold the address of the
+ *  first element. the frame holds the function's local arrays */
+public class Function {
+    private final String name;
+    private final boolean returnsValue;
+    private final int[] params;
+    private final int frameSize;
+    private final List<Ir> code;
+    private final int registerCount;
+    private final boolean ssa;
+
+    public Function(final String name, final boolean returnsValue, final int[] params, final int frameSize,
+                    final List<Ir> code, final int registerCount) {
+        this(name, returnsValue, params, frameSize, code, registerCount, false);
+    }
+
+    private Function(final String name, final boolean returnsValue, final int[] params, final int frameSize,
+                     final List<Ir> code, final int registerCount, final boolean ssa) {
+        this.name = name;
+        this.returnsValue = returnsValue;
+        this.params = params;
+        this.frameSize = frameSize;
+        this.code = unmodifiableList(new ArrayList<>(code));
+        this.registerCount = registerCount;
+        this.ssa = ssa;
+    }
+
+    public String getName() { return name; }
+    public boolean returnsValue() { return returnsValue; }
+    public int[] getParams() { return params.clone(); }
+
+    /** @return the number of stack slots the local arrays need */
+    public int getFrameSize() { return frameSize; }
+
+    public List<Ir> getCode() { return code; }
+
+    /** @return one more than the highest numbered register the code uses */
+    public int getRegisterCount() { return registerCount; }
+
+    /** @return true if every register is assigned exactly once, by an instruction that dominates its uses (or is a
+     *  parameter), so the code may contain phis */
+    public boolean isSsa() { return ssa; }
+
+    /** @return a copy of this function with different code, in the same form as this one */
+    public Function withCode(final List<Ir> code, final int registerCount) {
+        return new Function(name, returnsValue, params, frameSize, code, registerCount, ssa);
+    }
+
+    /** @return a copy of this function with different code, in SSA form or not */
+    public Function withCode(final List<Ir> code, final int registerCount, final boolean ssa) {
+        return new Function(name, returnsValue, params, frameSize, code, registerCount, ssa);
+    }
+
+    /** @return a copy of this function whose registers are numbered without gaps. the parameters keep their
+     *  registers and the others are numbered in the order they first appear */
+    public Function withCompactRegisters() {
+        final int[] number = new int[registerCount];
+        Arrays.fill(number, Ir.NONE);
+        int next = 0;
+        for (final int p : params) { number[p] = next++; }
+        for (final Ir instr : code) {
+            for (final int u : instr.uses()) { if (number[u] == Ir.NONE) { number[u] = next++; } }
+            if (instr.def() != Ir.NONE && number[instr.def()] == Ir.NONE) { number[instr.def()] = next++; }
+        }
+        final int[] renamedParams = Arrays.stream(params).map(p -> number[p]).toArray();
+        final List<Ir> renamed = new ArrayList<>(code.size());
+        code.forEach(instr -> renamed.add(instr.map(r -> number[r], r -> number[r])));
+        return new Function(name, returnsValue, renamedParams, frameSize, renamed, next, ssa);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(returnsValue ? "int " : "void ").append(name).append("(");
+        for (int i = 0; i < params.length; i++) { sb.append(i == 0 ? "r" : ", r").append(params[i]); }
+        sb.append(") frame ").append(frameSize).append(ssa ? " ssa\n" : "\n");
+        code.forEach(instr -> sb.append(instr instanceof Ir.Label ? "" : "    ").append(instr).append("\n"));
+        return sb.toString();
+    }
+}
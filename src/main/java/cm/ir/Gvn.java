@@ -0,0 +1,165 @@
+package cm.ir;
+
+import cm.Ast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * global value numbering for functions in SSA form. the blocks are visited in the order of the dominator tree, with a
+ * table of the values computed in the blocks that dominate the current one. an instruction that computes one of them
+ * again, the same operator on the same values or the same address, becomes a copy of the register that already holds
+ * it. a phi whose arguments all have the same value has that value too. constants are only reused within a block,
+ * since one kept in a register across blocks costs more than loading it again.
+ *
+ * loads are only reused within a block: a load of the address of an earlier load or store in the block gets its
+ * value, unless a store that may touch the same array, according to Aliases, or a call that could change it came in
+ * between. the copies are left for copy propagation to clean up
+ */
+public class Gvn {
+
+    public static Function run(final Function f, final PassManager pm) {
+        if (!f.isSsa()) { throw new IllegalStateException("value numbering needs SSA form: " + f.getName()); }
+        final Numbering numbering = new Numbering(f, pm.get(f, PassManager.DOMINATORS), pm.get(f, PassManager.ALIASES));
+        numbering.visit(numbering.cfg.getEntry());
+        return numbering.changed ? numbering.cfg.rebuild(numbering.code, f.getRegisterCount()) : f;
+    }
+
+    /* a load or store, and the register holding the value at its address */
+    private static class Available {
+        final Ir access;
+        final int value;
+
+        Available(final Ir access, final int value) {
+            this.access = access;
+            this.value = value;
+        }
+    }
+
+    private static class Numbering {
+        final Dominators dominators;
+        final Cfg cfg;
+        final Aliases aliases;
+        final List<List<Ir>> code = new ArrayList<>();
+        // the register each register has the same value as, which is itself unless it was found to be redundant
+        final int[] value;
+        // the register holding each value computed in the dominating blocks
+        final Map<String,Integer> computed = new HashMap<>();
+        boolean changed = false;
+
+        Numbering(final Function f, final Dominators dominators, final Aliases aliases) {
+            this.dominators = dominators;
+            this.cfg = dominators.getCfg();
+            this.aliases = aliases;
+            cfg.getBlocks().forEach(b -> code.add(new ArrayList<>(b.getCode())));
+            value = new int[f.getRegisterCount()];
+            for (int r = 0; r < value.length; r++) { value[r] = r; }
+        }
+
+        void visit(final Cfg.Block b) {
+            final List<String> added = new ArrayList<>();
+            final Map<String,Available> memory = new LinkedHashMap<>();
+            final Map<Integer,Integer> globals = new HashMap<>();
+            final Map<Integer,Integer> constants = new HashMap<>();
+            final List<Ir> blockCode = code.get(b.getIndex());
+            for (int i = 0; i < blockCode.size(); i++) {
+                final Ir instr = blockCode.get(i);
+                final int dst = instr.def();
+                if (instr instanceof Ir.Phi) {
+                    phi((Ir.Phi) instr);
+                } else if (instr instanceof Ir.Copy) {
+                    value[dst] = value[((Ir.Copy) instr).getSrc()];
+                } else if (instr instanceof Ir.Load) {
+                    final Ir.Load load = (Ir.Load) instr;
+                    final String key = value[load.getBase()] + " " + load.getOffset();
+                    final Available available = memory.get(key);
+                    if (available != null) {
+                        replace(blockCode, i, dst, available.value);
+                    } else {
+                        memory.put(key, new Available(load, dst));
+                    }
+                } else if (instr instanceof Ir.Store) {
+                    final Ir.Store store = (Ir.Store) instr;
+                    memory.values().removeIf(a -> aliases.mayAlias(a.access, store));
+                    memory.put(value[store.getBase()] + " " + store.getOffset(),
+                            new Available(store, value[store.getSrc()]));
+                } else if (instr instanceof Ir.LoadGlobal) {
+                    final Integer available = globals.get(((Ir.LoadGlobal) instr).getAddress());
+                    if (available != null) {
+                        replace(blockCode, i, dst, available);
+                    } else {
+                        globals.put(((Ir.LoadGlobal) instr).getAddress(), dst);
+                    }
+                } else if (instr instanceof Ir.StoreGlobal) {
+                    final Ir.StoreGlobal store = (Ir.StoreGlobal) instr;
+                    globals.put(store.getAddress(), value[store.getSrc()]);
+                } else if (instr instanceof Ir.Const) {
+                    final Integer available = constants.get(((Ir.Const) instr).getValue());
+                    if (available != null) {
+                        replace(blockCode, i, dst, available);
+                    } else {
+                        constants.put(((Ir.Const) instr).getValue(), dst);
+                    }
+                } else if (instr instanceof Ir.Call) {
+                    memory.values().removeIf(a -> aliases.isCallClobbered(a.access));
+                    globals.clear();
+                } else if (dst != Ir.NONE) {
+                    final String key = key(instr);
+                    if (key == null) { continue; }
+                    final Integer available = computed.get(key);
+                    if (available != null) {
+                        replace(blockCode, i, dst, available);
+                    } else {
+                        computed.put(key, dst);
+                        added.add(key);
+                    }
+                }
+            }
+            dominators.getChildren(b).forEach(this::visit);
+            added.forEach(computed::remove);
+        }
+
+        private void phi(final Ir.Phi phi) {
+            int same = Ir.NONE;
+            for (final int arg : phi.getArgs()) {
+                final int v = value[arg];
+                if (v == phi.def() || v == same) { continue; }
+                if (same != Ir.NONE) { return; }
+                same = v;
+            }
+            if (same != Ir.NONE) { value[phi.def()] = same; }
+        }
+
+        private void replace(final List<Ir> blockCode, final int i, final int dst, final int available) {
+            blockCode.set(i, new Ir.Copy(dst, available));
+            value[dst] = available;
+            changed = true;
+        }
+
+        /* @return what instr computes, in terms of the values of its operands, or null if it isn't an address or arithmetic */
+        private String key(final Ir instr) {
+            if (instr instanceof Ir.Address) {
+                return "address " + ((Ir.Address) instr).getSpace() + " " + ((Ir.Address) instr).getOffset();
+            }
+            if (instr instanceof Ir.BinOp) {
+                final Ir.BinOp binOp = (Ir.BinOp) instr;
+                int left = value[binOp.getLeft()];
+                int right = value[binOp.getRight()];
+                if (commutes(binOp.getOp()) && left > right) {
+                    final int t = left;
+                    left = right;
+                    right = t;
+                }
+                return binOp.getOp() + " " + left + " " + right;
+            }
+            return null;
+        }
+    }
+
+    private static boolean commutes(final Ast.Operator op) {
+        return op == Ast.Operator.PLUS || op == Ast.Operator.TIMES || op == Ast.Operator.EQ || op == Ast.Operator.NEQ;
+    }
+}
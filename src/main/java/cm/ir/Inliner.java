@@ -0,0 +1,141 @@
+package cm.ir;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * replaces calls with the body of the function called. the functions are visited bottom up in the call graph, so
+ * the body that is copied in has had its own calls inlined already. recursive functions are never inlined.
+ *
+ * whether a call is worth inlining depends on the size of the callee, counted in instructions, and on how often the
+ * call runs, which is estimated by how many loops it is in. a callee no longer than the code for calling it is
+ * always inlined, and a larger one only where the call is in a loop. a function may only grow so much, so the calls
+ * in the deepest loops are inlined first.
+ *
+ * the arguments are copied into the callee's parameters, which for an array is its address, so the inlined code
+ * reads and writes the caller's array as the call would have. the callee's own arrays go in the caller's frame after
+ * the caller's arrays. each return becomes a copy to the register the call assigned and a jump past the inlined
+ * code. the result is not in SSA form
+ */
+public class Inliner {
+    /** a callee this small is inlined wherever it is called */
+    static final int SMALL = 12;
+    /** a callee this small is inlined where it is called in a loop, for each loop the call is in */
+    static final int HOT = 30;
+    /** how many instructions inlining may add to a function */
+    static final int BUDGET = 200;
+
+    public static Program run(final Program program, final PassManager pm) {
+        final CallGraph graph = new CallGraph(program);
+        final Map<String,Function> inlined = new HashMap<>();
+        for (final String name : graph.getBottomUp()) {
+            inlined.put(name, inline(Ssa.destruct(program.getFunction(name)), inlined, graph, pm));
+        }
+        return program.withFunctions(program.getFunctions().stream()
+                .map(f -> inlined.get(f.getName())).collect(toList()));
+    }
+
+    /** @return the number of instructions in f, not counting labels */
+    static int size(final Function f) { return (int) f.getCode().stream().filter(i -> !(i instanceof Ir.Label)).count(); }
+
+    private static Function inline(final Function f, final Map<String,Function> inlined, final CallGraph graph,
+                                   final PassManager pm) {
+        final Loops loops = pm.get(f, PassManager.LOOPS);
+        final Cfg cfg = loops.getCfg();
+
+        // pick the calls to inline, hottest and smallest first, until the function has grown as much as it may
+        final List<Ir.Call> candidates = new ArrayList<>();
+        final Map<Ir.Call,Integer> depth = new HashMap<>();
+        for (final Cfg.Block b : cfg.getBlocks()) {
+            for (final Ir instr : b.getCode()) {
+                if (!(instr instanceof Ir.Call)) { continue; }
+                final Ir.Call call = (Ir.Call) instr;
+                final Function callee = inlined.get(call.getName());
+                if (callee == null || graph.isRecursive(call.getName())) { continue; }
+                final int d = loops.getDepth(b);
+                final int size = size(callee);
+                if (size <= SMALL || d > 0 && size <= HOT * d) {
+                    candidates.add(call);
+                    depth.put(call, d);
+                }
+            }
+        }
+        candidates.sort(Comparator.comparingInt((Ir.Call c) -> -depth.get(c))
+                .thenComparingInt(c -> size(inlined.get(c.getName()))));
+        final Map<Ir.Call,Boolean> chosen = new HashMap<>();
+        int growth = 0;
+        for (final Ir.Call call : candidates) {
+            final int size = size(inlined.get(call.getName()));
+            if (growth + size > BUDGET) { continue; }
+            growth += size;
+            chosen.put(call, true);
+        }
+        if (chosen.isEmpty()) { return f; }
+
+        final Expansion expansion = new Expansion(f);
+        for (final Cfg.Block b : cfg.getBlocks()) {
+            expansion.code.add(new Ir.Label(b.getLabel()));
+            for (final Ir instr : b.getCode()) {
+                if (chosen.containsKey(instr)) {
+                    expansion.expand((Ir.Call) instr, inlined.get(((Ir.Call) instr).getName()));
+                } else {
+                    expansion.code.add(instr);
+                }
+            }
+        }
+        return expansion.toFunction();
+    }
+
+    /* the code of a function with calls replaced by the callee's code */
+    private static class Expansion {
+        private final Function f;
+        private final List<Ir> code = new ArrayList<>();
+        private int registers;
+        private int frameSize;
+        private int count;
+
+        Expansion(final Function f) {
+            this.f = f;
+            registers = f.getRegisterCount();
+            frameSize = f.getFrameSize();
+        }
+
+        void expand(final Ir.Call call, final Function callee) {
+            final int base = registers;
+            final int frameBase = frameSize;
+            final String prefix = "inline" + count++ + ".";
+            final String end = prefix + "end";
+            registers += callee.getRegisterCount();
+            frameSize += callee.getFrameSize();
+
+            final int[] params = callee.getParams();
+            final int[] args = call.getArgs();
+            for (int i = 0; i < params.length; i++) { code.add(new Ir.Copy(base + params[i], args[i])); }
+            for (final Ir instr : callee.getCode()) {
+                if (instr instanceof Ir.Label) {
+                    code.add(new Ir.Label(prefix + ((Ir.Label) instr).getName()));
+                } else if (instr instanceof Ir.Return) {
+                    final int src = ((Ir.Return) instr).getSrc();
+                    if (call.def() != Ir.NONE && src != Ir.NONE) { code.add(new Ir.Copy(call.def(), base + src)); }
+                    code.add(new Ir.Jump(end));
+                } else if (instr instanceof Ir.Address && ((Ir.Address) instr).getSpace() == Ir.Space.FRAME) {
+                    code.add(new Ir.Address(base + instr.def(), Ir.Space.FRAME,
+                            frameBase + ((Ir.Address) instr).getOffset()));
+                } else {
+                    code.add(instr.map(r -> base + r, r -> base + r).retarget(t -> prefix + t));
+                }
+            }
+            // a function may end without a return
+            code.add(new Ir.Label(end));
+        }
+
+        Function toFunction() {
+            return new Function(f.getName(), f.returnsValue(), f.getParams(), frameSize, code, registers);
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package cm.ir;
+
+import cm.Ast;
+
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+import java.util.function.UnaryOperator;
+
+/**
+ * the instructions of a linear three-address code. operands are virtual registers, numbered from 0, of which a
+ * function may use as many as it likes. control flow is expressed with named labels, so instructions can be moved,
+ * inserted and removed without fixing up any jump offsets; those are only computed when TM code is emitted
+ */
+public abstract class Ir {
+    /** used in place of a register by instructions that don't define or use one */
+    public static final int NONE = -1;
+
+    private static final int[] NO_REGS = {};
+
+    private Ir() { }
+
+    /** @return the register this instruction assigns, or NONE */
+    public int def() { return NONE; }
+
+    /** @return the registers this instruction reads */
+    public int[] uses() { return NO_REGS; }
+
+    /** @return a copy of this instruction with its assigned register replaced by def and the registers it reads
+     *  replaced by use */
+    public abstract Ir map(final IntUnaryOperator def, final IntUnaryOperator use);
+
+    /** @return true if this instruction does something other than assign its register, so it can't be removed even
+     *  when that register is never read */
+    public boolean hasSideEffects() { return false; }
+
+    /** @return true for the instructions that end a basic block: jumps, branches and returns */
+    public boolean isTerminator() { return this instanceof Jump || this instanceof Branch || this instanceof Return; }
+
+    /** @return the labels this instruction may continue at, other than the next instruction */
+    public String[] targets() {
+        if (this instanceof Jump) { return new String[] {((Jump) this).target}; }
+        if (this instanceof Branch) { return new String[] {((Branch) this).ifTrue, ((Branch) this).ifFalse}; }
+        return new String[0];
+    }
+
+    /** @return a copy of this jump or branch with each target t replaced by retarget(t) */
+    public Ir retarget(final UnaryOperator<String> retarget) {
+        if (this instanceof Jump) { return new Jump(retarget.apply(((Jump) this).target)); }
+        if (this instanceof Branch) {
+            final Branch b = (Branch) this;
+            return new Branch(b.op, b.left, b.right, retarget.apply(b.ifTrue), retarget.apply(b.ifFalse));
+        }
+        return this;
+    }
+
+    private static int apply(final IntUnaryOperator f, final int r) { return r == NONE ? NONE : f.applyAsInt(r); }
+
+    private static String reg(final int r) { return "r" + r; }
+
+    /** reg[dst] <- value */
+    public static final class Const extends Ir {
+        private final int dst;
+        private final int value;
+
+        public Const(final int dst, final int value) {
+            this.dst = dst;
+            this.value = value;
+        }
+
+        public int getValue() { return value; }
+
+        @Override public int def() { return dst; }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) {
+            return new Const(def.applyAsInt(dst), value);
+        }
+        @Override public String toString() { return reg(dst) + " = " + value; }
+    }
+
+    /** reg[dst] <- reg[src] */
+    public static final class Copy extends Ir {
+        private final int dst;
+        private final int src;
+
+        public Copy(final int dst, final int src) {
+            this.dst = dst;
+            this.src = src;
+        }
+
+        public int getSrc() { return src; }
+
+        @Override public int def() { return dst; }
+        @Override public int[] uses() { return new int[] {src}; }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) {
+            return new Copy(def.applyAsInt(dst), use.applyAsInt(src));
+        }
+        @Override public String toString() { return reg(dst) + " = " + reg(src); }
+    }
+
+    /** reg[dst] <- reg[left] op reg[right]. relational operators give 1 if the relation holds, otherwise 0 */
+    public static final class BinOp extends Ir {
+        private final Ast.Operator op;
+        private final int dst;
+        private final int left;
+        private final int right;
+
+        public BinOp(final Ast.Operator op, final int dst, final int left, final int right) {
+            this.op = op;
+            this.dst = dst;
+            this.left = left;
+            this.right = right;
+        }
+
+        public Ast.Operator getOp() { return op; }
+        public int getLeft() { return left; }
+        public int getRight() { return right; }
+
+        @Override public int def() { return dst; }
+        @Override public int[] uses() { return new int[] {left, right}; }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) {
+            return new BinOp(op, def.applyAsInt(dst), use.applyAsInt(left), use.applyAsInt(right));
+        }
+        @Override public String toString() { return reg(dst) + " = " + reg(left) + " " + op + " " + reg(right); }
+    }
+
+    /** where an Address instruction's offset is counted from */
+    public enum Space { GLOBAL, FRAME }
+
+    /** reg[dst] <- the address of a global (offset is an absolute address) or of a slot in the current stack frame
+     *  (offset is relative to the frame pointer) */
+    public static final class Address extends Ir {
+        private final int dst;
+        private final Space space;
+        private final int offset;
+
+        public Address(final int dst, final Space space, final int offset) {
+            this.dst = dst;
+            this.space = space;
+            this.offset = offset;
+        }
+
+        public Space getSpace() { return space; }
+        public int getOffset() { return offset; }
+
+        @Override public int def() { return dst; }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) {
+            return new Address(def.applyAsInt(dst), space, offset);
+        }
+        @Override public String toString() { return reg(dst) + " = &" + space.name().toLowerCase() + "[" + offset + "]"; }
+    }
+
+    /** reg[dst] <- dMem[reg[base] + offset] */
+    public static final class Load extends Ir {
+        private final int dst;
+        private final int base;
+        private final int offset;
+
+        public Load(final int dst, final int base, final int offset) {
+            this.dst = dst;
+            this.base = base;
+            this.offset = offset;
+        }
+
+        public int getBase() { return base; }
+        public int getOffset() { return offset; }
+
+        @Override public int def() { return dst; }
+        @Override public int[] uses() { return new int[] {base}; }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) {
+            return new Load(def.applyAsInt(dst), use.applyAsInt(base), offset);
+        }
+        @Override public String toString() { return reg(dst) + " = mem[" + reg(base) + " + " + offset + "]"; }
+    }
+
+    /** dMem[reg[base] + offset] <- reg[src] */
+    public static final class Store extends Ir {
+        private final int base;
+        private final int offset;
+        private final int src;
+
+        public Store(final int base, final int offset, final int src) {
+            this.base = base;
+            this.offset = offset;
+            this.src = src;
+        }
+
+        public int getBase() { return base; }
+        public int getOffset() { return offset; }
+        public int getSrc() { return src; }
+
+        @Override public int[] uses() { return new int[] {base, src}; }
+        @Override public boolean hasSideEffects() { return true; }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) {
+            return new Store(use.applyAsInt(base), offset, use.applyAsInt(src));
+        }
+        @Override public String toString() { return "mem[" + reg(base) + " + " + offset + "] = " + reg(src); }
+    }
+
+    /** reg[dst] <- dMem[address], for global scalars */
+    public static final class LoadGlobal extends Ir {
+        private final int dst;
+        private final int address;
+
+        public LoadGlobal(final int dst, final int address) {
+            this.dst = dst;
+            this.address = address;
+        }
+
+        public int getAddress() { return address; }
+
+        @Override public int def() { return dst; }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) {
+            return new LoadGlobal(def.applyAsInt(dst), address);
+        }
+        @Override public String toString() { return reg(dst) + " = global[" + address + "]"; }
+    }
+
+    /** dMem[address] <- reg[src], for global scalars */
+    public static final class StoreGlobal extends Ir {
+        private final int address;
+        private final int src;
+
+        public StoreGlobal(final int address, final int src) {
+            this.address = address;
+            this.src = src;
+        }
+
+        public int getAddress() { return address; }
+        public int getSrc() { return src; }
+
+        @Override public int[] uses() { return new int[] {src}; }
+        @Override public boolean hasSideEffects() { return true; }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) {
+            return new StoreGlobal(address, use.applyAsInt(src));
+        }
+        @Override public String toString() { return "global[" + address + "] = " + reg(src); }
+    }
+
+    /** marks a position in the code that jumps and branches can target */
+    public static final class Label extends Ir {
+        private final String name;
+
+        public Label(final String name) { this.name = name; }
+
+        public String getName() { return name; }
+
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) { return this; }
+        @Override public String toString() { return name + ":"; }
+    }
+
+    /** continue at label target */
+    public static final class Jump extends Ir {
+        private final String target;
+
+        public Jump(final String target) { this.target = target; }
+
+        public String getTarget() { return target; }
+
+        @Override public boolean hasSideEffects() { return true; }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) { return this; }
+        @Override public String toString() { return "jump " + target; }
+    }
+
+    /** continue at ifTrue if reg[left] op reg[right] holds, otherwise at ifFalse. if right is NONE, then left is
+     *  compared with 0. op is one of the relational operators */
+    public static final class Branch extends Ir {
+        private final Ast.Operator op;
+        private final int left;
+        private final int right;
+        private final String ifTrue;
+        private final String ifFalse;
+
+        public Branch(final Ast.Operator op, final int left, final int right, final String ifTrue,
+                      final String ifFalse) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+            this.ifTrue = ifTrue;
+            this.ifFalse = ifFalse;
+        }
+
+        public Ast.Operator getOp() { return op; }
+        public int getLeft() { return left; }
+        public int getRight() { return right; }
+        public String getIfTrue() { return ifTrue; }
+        public String getIfFalse() { return ifFalse; }
+
+        @Override public int[] uses() { return right == NONE ? new int[] {left} : new int[] {left, right}; }
+        @Override public boolean hasSideEffects() { return true; }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) {
+            return new Branch(op, use.applyAsInt(left), apply(use, right), ifTrue, ifFalse);
+        }
+        @Override public String toString() {
+            return "if " + reg(left) + " " + op + " " + (right == NONE ? "0" : reg(right)) +
+                    " goto " + ifTrue + " else " + ifFalse;
+        }
+    }
+
+    /** reg[dst] <- the result of calling the function name. dst is NONE if the result is not used */
+    public static final class Call extends Ir {
+        private final int dst;
+        private final String name;
+        private final int[] args;
+
+        public Call(final int dst, final String name, final int[] args) {
+            this.dst = dst;
+            this.name = name;
+            this.args = args;
+        }
+
+        public String getName() { return name; }
+        public int[] getArgs() { return args.clone(); }
+
+        @Override public int def() { return dst; }
+        @Override public int[] uses() { return args.clone(); }
+        @Override public boolean hasSideEffects() { return true; }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) {
+            return new Call(apply(def, dst), name, Arrays.stream(args).map(use).toArray());
+        }
+        @Override public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            if (dst != NONE) { sb.append(reg(dst)).append(" = "); }
+            sb.append("call ").append(name).append("(");
+            for (int i = 0; i < args.length; i++) { sb.append(i == 0 ? "" : ", ").append(reg(args[i])); }
+            return sb.append(")").toString();
+        }
+    }
+
+    /** return from the function, with the value in reg[src] unless src is NONE */
+    public static final class Return extends Ir {
+        private final int src;
+
+        public Return(final int src) { this.src = src; }
+
+        public int getSrc() { return src; }
+
+        @Override public int[] uses() { return src == NONE ? NO_REGS : new int[] {src}; }
+        @Override public boolean hasSideEffects() { return true; }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) {
+            return new Return(apply(use, src));
+        }
+        @Override public String toString() { return src == NONE ? "return" : "return " + reg(src); }
+    }
+
+    /** in SSA form, reg[dst] <- args[i] when control arrived from the block labeled preds[i]. phis come first in
+     *  their block, and all the phis of a block are evaluated at the same time */
+    public static final class Phi extends Ir {
+        private final int dst;
+        private final String[] preds;
+        private final int[] args;
+
+        public Phi(final int dst, final String[] preds, final int[] args) {
+            if (preds.length != args.length) { throw new IllegalStateException("a phi needs one value per block"); }
+            this.dst = dst;
+            this.preds = preds;
+            this.args = args;
+        }
+
+        public String[] getPreds() { return preds.clone(); }
+        public int[] getArgs() { return args.clone(); }
+
+        /** @return the value that flows in from the block labeled pred, or NONE if it is not one of the blocks */
+        public int getArg(final String pred) {
+            for (int i = 0; i < preds.length; i++) { if (preds[i].equals(pred)) { return args[i]; } }
+            return NONE;
+        }
+
+        @Override public int def() { return dst; }
+        @Override public int[] uses() { return args.clone(); }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) {
+            return new Phi(def.applyAsInt(dst), preds, Arrays.stream(args).map(use).toArray());
+        }
+        @Override public String toString() {
+            final StringBuilder sb = new StringBuilder(reg(dst)).append(" = phi(");
+            for (int i = 0; i < args.length; i++) {
+                sb.append(i == 0 ? "" : ", ").append(preds[i]).append(": ").append(reg(args[i]));
+            }
+            return sb.append(")").toString();
+        }
+    }
+
+    /** reg[dst] <- integer read from standard input */
+    public static final class In extends Ir {
+        private final int dst;
+
+        public In(final int dst) { this.dst = dst; }
+
+        @Override public int def() { return dst; }
+        @Override public boolean hasSideEffects() { return true; }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) {
+            return new In(def.applyAsInt(dst));
+        }
+        @Override public String toString() { return reg(dst) + " = input"; }
+    }
+
+    /** reg[src] -> written to standard output */
+    public static final class Out extends Ir {
+        private final int src;
+
+        public Out(final int src) { this.src = src; }
+
+        public int getSrc() { return src; }
+
+        @Override public int[] uses() { return new int[] {src}; }
+        @Override public boolean hasSideEffects() { return true; }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) {
+            return new Out(use.applyAsInt(src));
+        }
+        @Override public String toString() { return "output " + reg(src); }
+    }
+
+    /** reg[dst] <- dMem[FP + slot]. inserted by the register allocator to reload a register it has spilled */
+    public static final class Reload extends Ir {
+        private final int dst;
+        private final int slot;
+
+        public Reload(final int dst, final int slot) {
+            this.dst = dst;
+            this.slot = slot;
+        }
+
+        public int getSlot() { return slot; }
+
+        @Override public int def() { return dst; }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) {
+            return new Reload(def.applyAsInt(dst), slot);
+        }
+        @Override public String toString() { return reg(dst) + " = frame[" + slot + "]"; }
+    }
+
+    /** dMem[FP + slot] <- reg[src]. inserted by the register allocator to spill a register */
+    public static final class Spill extends Ir {
+        private final int slot;
+        private final int src;
+
+        public Spill(final int slot, final int src) {
+            this.slot = slot;
+            this.src = src;
+        }
+
+        public int getSlot() { return slot; }
+        public int getSrc() { return src; }
+
+        @Override public int[] uses() { return new int[] {src}; }
+        @Override public boolean hasSideEffects() { return true; }
+        @Override public Ir map(final IntUnaryOperator def, final IntUnaryOperator use) {
+            return new Spill(slot, use.applyAsInt(src));
+        }
+        @Override public String toString() { return "frame[" + slot + "] = " + reg(src); }
+    }
+}
@@ -0,0 +1,108 @@
+package cm.ir;
+
+import cm.Ast;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * loop invariant code motion for functions in SSA form. an instruction in a loop whose operands are all assigned
+ * outside it computes the same value on every iteration, so it is moved to the loop's preheader and computed once.
+ * inner loops are done first, so an instruction can move out of several loops.
+ *
+ * only arithmetic and copies move. loads could be changed by a store in the loop, and division could fail on a
+ * path that never ran it. constants and addresses stay where they are too, since they take one TM instruction to
+ * compute and would take a register for the whole loop instead; where an instruction that moves uses one, it is
+ * recomputed in the preheader.
+ *
+ * loops without a preheader are left alone
+ */
+public class Licm {
+
+    public static Function run(final Function f, final PassManager pm) {
+        if (!f.isSsa()) {
+            throw new IllegalStateException("loop invariant code motion needs SSA form: " + f.getName());
+        }
+        final Loops loops = pm.get(f, PassManager.LOOPS);
+        final Cfg cfg = loops.getCfg();
+        final List<List<Ir>> code = new ArrayList<>();
+        cfg.getBlocks().forEach(b -> code.add(new ArrayList<>(b.getCode())));
+        // the block that assigns each register, and the instruction. parameters are assigned before the entry
+        final Map<Integer,Integer> definedIn = new HashMap<>();
+        final Map<Integer,Ir> definition = new HashMap<>();
+        for (final Cfg.Block b : cfg.getBlocks()) {
+            for (final Ir instr : b.getCode()) {
+                if (instr.def() != Ir.NONE) {
+                    definedIn.put(instr.def(), b.getIndex());
+                    definition.put(instr.def(), instr);
+                }
+            }
+        }
+
+        int registers = f.getRegisterCount();
+        boolean moved = false;
+        final List<Loops.Loop> innerFirst = new ArrayList<>(loops.getLoops());
+        Collections.reverse(innerFirst);
+        for (final Loops.Loop loop : innerFirst) {
+            final Cfg.Block pre = loop.getPreheader();
+            if (pre == null) { continue; }
+            final BitSet body = loop.getBody();
+            final List<Ir> preCode = code.get(pre.getIndex());
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (final Cfg.Block b : cfg.getReversePostorder()) {
+                    if (!body.get(b.getIndex())) { continue; }
+                    final List<Ir> blockCode = code.get(b.getIndex());
+                    for (int i = 0; i < blockCode.size(); i++) {
+                        final Ir instr = blockCode.get(i);
+                        if (!movable(instr) || !invariant(instr, body, definedIn, definition)) { continue; }
+                        // recompute the constants and addresses the instruction uses in the preheader
+                        final List<Ir> moving = new ArrayList<>();
+                        final Map<Integer,Integer> renamed = new HashMap<>();
+                        for (final int u : instr.uses()) {
+                            if (!inside(u, body, definedIn) || renamed.containsKey(u)) { continue; }
+                            final int fresh = registers++;
+                            renamed.put(u, fresh);
+                            moving.add(definition.get(u).map(r -> fresh, r -> r));
+                        }
+                        moving.add(instr.map(r -> r, r -> renamed.getOrDefault(r, r)));
+                        blockCode.remove(i--);
+                        for (final Ir m : moving) {
+                            preCode.add(preCode.size() - 1, m);
+                            definedIn.put(m.def(), pre.getIndex());
+                            definition.put(m.def(), m);
+                        }
+                        changed = true;
+                        moved = true;
+                    }
+                }
+            }
+        }
+        return moved ? cfg.rebuild(code, registers) : f;
+    }
+
+    private static boolean movable(final Ir instr) {
+        return instr instanceof Ir.Copy ||
+                instr instanceof Ir.BinOp && ((Ir.BinOp) instr).getOp() != Ast.Operator.DIVIDE;
+    }
+
+    private static boolean inside(final int r, final BitSet body, final Map<Integer,Integer> definedIn) {
+        return definedIn.containsKey(r) && body.get(definedIn.get(r));
+    }
+
+    private static boolean invariant(final Ir instr, final BitSet body, final Map<Integer,Integer> definedIn,
+                                     final Map<Integer,Ir> definition) {
+        for (final int u : instr.uses()) {
+            if (inside(u, body, definedIn) &&
+                    !(definition.get(u) instanceof Ir.Const || definition.get(u) instanceof Ir.Address)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
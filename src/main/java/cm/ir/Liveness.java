@@ -0,0 +1,74 @@
+package cm.ir;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * the registers that are live on entry to and exit from each block of a function: those whose current value may
+ * still be read. the usual backwards dataflow problem, iterated over the blocks in postorder until nothing changes.
+ *
+ * the arguments of a phi are live out of the predecessor they flow in from rather than into the phi's block, so the
+ * analysis works the same on code in SSA form as on code that isn't
+ */
+public class Liveness {
+    private final Cfg cfg;
+    private final List<BitSet> liveIn = new ArrayList<>();
+    private final List<BitSet> liveOut = new ArrayList<>();
+
+    public Liveness(final Cfg cfg) {
+        this.cfg = cfg;
+        final List<Cfg.Block> blocks = cfg.getBlocks();
+        final List<BitSet> uses = new ArrayList<>();  // read before being assigned in the block
+        final List<BitSet> defs = new ArrayList<>();
+        for (final Cfg.Block b : blocks) {
+            final BitSet use = new BitSet();
+            final BitSet def = new BitSet();
+            for (final Ir instr : b.getCode()) {
+                if (!(instr instanceof Ir.Phi)) {
+                    for (final int u : instr.uses()) { if (!def.get(u)) { use.set(u); } }
+                }
+                if (instr.def() != Ir.NONE) { def.set(instr.def()); }
+            }
+            uses.add(use);
+            defs.add(def);
+            liveIn.add(new BitSet());
+            liveOut.add(new BitSet());
+        }
+
+        final List<Cfg.Block> postorder = new ArrayList<>(cfg.getReversePostorder());
+        Collections.reverse(postorder);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (final Cfg.Block b : postorder) {
+                final BitSet out = new BitSet();
+                for (final Cfg.Block succ : b.getSuccs()) {
+                    out.or(liveIn.get(succ.getIndex()));
+                    for (final Ir instr : succ.getCode()) {
+                        if (!(instr instanceof Ir.Phi)) { break; }
+                        final int arg = ((Ir.Phi) instr).getArg(b.getLabel());
+                        if (arg != Ir.NONE) { out.set(arg); }
+                    }
+                }
+                final BitSet in = (BitSet) out.clone();
+                in.andNot(defs.get(b.getIndex()));
+                in.or(uses.get(b.getIndex()));
+                if (!in.equals(liveIn.get(b.getIndex())) || !out.equals(liveOut.get(b.getIndex()))) {
+                    liveIn.set(b.getIndex(), in);
+                    liveOut.set(b.getIndex(), out);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    public Cfg getCfg() { return cfg; }
+
+    /** @return the registers live at the start of b, not counting the ones its phis assign */
+    public BitSet getLiveIn(final Cfg.Block b) { return (BitSet) liveIn.get(b.getIndex()).clone(); }
+
+    /** @return the registers live at the end of b, including the phi arguments it passes to its successors */
+    public BitSet getLiveOut(final Cfg.Block b) { return (BitSet) liveOut.get(b.getIndex()).clone(); }
+}
@@ -0,0 +1,73 @@
+package cm.ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * turns loops that test their condition at the top into loops that test it at the bottom. a C- while loop is
+ * lowered to a header that evaluates the condition and branches into the body or out of the loop, and a body that
+ * jumps back to the header, so every iteration takes the jump and the branch. rotation copies the header's code to
+ * the end of the body in place of the jump, which leaves one branch per iteration. the original header still runs
+ * once, as a guard.
+ *
+ * the guard enters the body through a new block, which is the loop's preheader: code run once before the first
+ * iteration can go there. the code is not in SSA form before or after
+ */
+public class LoopRotation {
+    /** the most instructions a header may have to be copied */
+    static final int MAX_HEADER = 10;
+
+    public static Function run(final Function function, final PassManager pm) {
+        final Function f = Ssa.destruct(function);
+        final Loops loops = pm.get(f, PassManager.LOOPS);
+        final Cfg cfg = loops.getCfg();
+
+        // for each rotated header, the block its branch enters the loop at
+        final Map<Cfg.Block,Cfg.Block> bodies = new HashMap<>();
+        for (final Loops.Loop loop : loops.getLoops()) {
+            final Cfg.Block h = loop.getHeader();
+            if (!(h.getTerminator() instanceof Ir.Branch) || h.getCode().size() > MAX_HEADER) { continue; }
+            final Ir.Branch branch = (Ir.Branch) h.getTerminator();
+            final Cfg.Block ifTrue = cfg.getBlock(branch.getIfTrue());
+            final Cfg.Block ifFalse = cfg.getBlock(branch.getIfFalse());
+            // the header has to leave the loop on one side, and only be reached from the body through jumps
+            if (loop.contains(ifTrue) == loop.contains(ifFalse)) { continue; }
+            final Cfg.Block body = loop.contains(ifTrue) ? ifTrue : ifFalse;
+            if (body == h || h.getPreds().stream()
+                    .anyMatch(p -> loop.contains(p) && !(p.getTerminator() instanceof Ir.Jump))) {
+                continue;
+            }
+            bodies.put(h, body);
+        }
+        if (bodies.isEmpty()) { return function; }
+
+        final List<Ir> code = new ArrayList<>();
+        final Map<Cfg.Block,String> preheaders = new HashMap<>();
+        bodies.keySet().forEach(h -> preheaders.put(h, cfg.freshLabel(h.getLabel() + ".pre")));
+        for (final Cfg.Block b : cfg.getBlocks()) {
+            code.add(new Ir.Label(b.getLabel()));
+            final List<Ir> body = b.getCode();
+            code.addAll(body.subList(0, body.size() - 1));
+            final Ir terminator = b.getTerminator();
+            final Cfg.Block target = terminator instanceof Ir.Jump
+                    ? cfg.getBlock(((Ir.Jump) terminator).getTarget()) : null;
+            if (bodies.containsKey(b)) {
+                // the guard
+                final String pre = preheaders.get(b);
+                final String entered = bodies.get(b).getLabel();
+                code.add(terminator.retarget(t -> t.equals(entered) ? pre : t));
+                code.add(new Ir.Label(pre));
+                code.add(new Ir.Jump(entered));
+            } else if (target != null && bodies.containsKey(target) && loops.getLoops().stream()
+                    .anyMatch(l -> l.getHeader() == target && l.contains(b))) {
+                // a jump back to the header becomes a copy of it
+                code.addAll(target.getCode());
+            } else {
+                code.add(terminator);
+            }
+        }
+        return f.withCode(code, f.getRegisterCount(), false);
+    }
+}
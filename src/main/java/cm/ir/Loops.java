@@ -0,0 +1,93 @@
+package cm.ir;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * the natural loops of a control flow graph. an edge from b to h is a back edge if h dominates b, and the loop it
+ * closes is made of h and every block that can reach b without passing through h. the loops of back edges to the
+ * same header are merged into one, so each header has exactly one loop
+ */
+public class Loops {
+
+    public static class Loop {
+        private final Cfg.Block header;
+        private final BitSet body;
+
+        private Loop(final Cfg.Block header, final BitSet body) {
+            this.header = header;
+            this.body = body;
+        }
+
+        public Cfg.Block getHeader() { return header; }
+
+        /** @return the indices of the blocks in the loop, including the header */
+        public BitSet getBody() { return (BitSet) body.clone(); }
+
+        public boolean contains(final Cfg.Block b) { return body.get(b.getIndex()); }
+
+        /** @return the block control enters the loop from, if there is only one and it leads nowhere else, like in
+         *  the loops LoopRotation leaves. otherwise null */
+        public Cfg.Block getPreheader() {
+            Cfg.Block pre = null;
+            for (final Cfg.Block p : header.getPreds()) {
+                if (contains(p)) { continue; }
+                if (pre != null) { return null; }
+                pre = p;
+            }
+            return pre != null && pre.getSuccs().size() == 1 ? pre : null;
+        }
+
+        /** @return the block that jumps back to the header, or null if there are several */
+        public Cfg.Block getLatch() {
+            final List<Cfg.Block> latches = new ArrayList<>();
+            header.getPreds().stream().filter(this::contains).forEach(latches::add);
+            return latches.size() == 1 ? latches.get(0) : null;
+        }
+    }
+
+    private final Cfg cfg;
+    private final List<Loop> loops;
+    private final int[] depth;
+
+    public Loops(final Dominators dom) {
+        this.cfg = dom.getCfg();
+        final List<Cfg.Block> blocks = cfg.getBlocks();
+        final List<Loop> found = new ArrayList<>();
+        for (final Cfg.Block h : cfg.getReversePostorder()) {
+            final BitSet body = new BitSet();
+            final Deque<Cfg.Block> work = new ArrayDeque<>();
+            for (final Cfg.Block b : h.getPreds()) {
+                if (dom.dominates(h, b)) { work.push(b); }
+            }
+            if (work.isEmpty()) { continue; }
+            body.set(h.getIndex());
+            while (!work.isEmpty()) {
+                final Cfg.Block b = work.pop();
+                if (body.get(b.getIndex())) { continue; }
+                body.set(b.getIndex());
+                b.getPreds().forEach(work::push);
+            }
+            found.add(new Loop(h, body));
+        }
+        // a header comes before the headers of the loops nested in it, so outer loops come first
+        this.loops = unmodifiableList(found);
+        depth = new int[blocks.size()];
+        for (final Loop loop : loops) {
+            for (int i = loop.body.nextSetBit(0); i >= 0; i = loop.body.nextSetBit(i + 1)) { depth[i]++; }
+        }
+    }
+
+    public Cfg getCfg() { return cfg; }
+
+    /** @return the loops, with every loop before the loops nested in it */
+    public List<Loop> getLoops() { return loops; }
+
+    /** @return the number of loops b is in: 0 if it runs at most once per call of the function */
+    public int getDepth(final Cfg.Block b) { return depth[b.getIndex()]; }
+}
@@ -0,0 +1,361 @@
+package cm.ir;
+
+import cm.Ast;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * translates a type checked C- program into three-address code. scalar locals and parameters live in registers;
+ * local arrays live in the stack frame and globals at fixed addresses. expressions are evaluated in the same order
+ * as CmCodeGen evaluates them (left operand first, call arguments right to left), so both backends give programs
+ * with side effects in their arguments the same meaning
+ */
+public class Lowering {
+
+    public Program lower(final Ast ast) {
+        final Ast.DeclarationList decs = (Ast.DeclarationList) ast;
+        final Map<String,Binding> globals = new HashMap<>();
+        final Map<String,Boolean> returnsValue = new HashMap<>();
+        int address = 0;
+        for (final Ast dec : decs.getDeclarations()) {
+            if (dec instanceof Ast.VarDeclaration) {
+                final Ast.VarDeclaration varDec = (Ast.VarDeclaration) dec;
+                globals.put(varDec.getName(), new Binding(
+                        varDec.getSize().isPresent() ? Binding.Kind.GLOBAL_ARRAY : Binding.Kind.GLOBAL, address));
+                address += varDec.getSize().orElse(1);
+            } else {
+                final Ast.FunDeclaration funDec = (Ast.FunDeclaration) dec;
+                returnsValue.put(funDec.getName(), funDec.getType() == Ast.TypeSpecifier.INT);
+            }
+        }
+        final List<Function> functions = new ArrayList<>();
+        for (final Ast dec : decs.getDeclarations()) {
+            if (dec instanceof Ast.FunDeclaration) {
+                functions.add(new FunctionLowering(globals, returnsValue).lower((Ast.FunDeclaration) dec));
+            }
+        }
+        return new Program(functions, address);
+    }
+
+    /* where a variable lives. value is a register, a frame offset or an address, depending on kind */
+    private static class Binding {
+        enum Kind { REGISTER, REGISTER_ARRAY, FRAME_ARRAY, GLOBAL, GLOBAL_ARRAY }
+
+        final Kind kind;
+        final int value;
+
+        Binding(final Kind kind, final int value) {
+            this.kind = kind;
+            this.value = value;
+        }
+    }
+
+    /* the state needed while lowering one function */
+    private static class FunctionLowering {
+        private final Map<String,Boolean> returnsValue;
+        private final Deque<Map<String,Binding>> scopes = new ArrayDeque<>();
+        private final List<Ir> code = new ArrayList<>();
+        private int registers = 0;
+        private int labels = 0;
+        private int frameSize = 0;
+        // the end of the frame arrays of the blocks being lowered. the arrays of a block that has ended can share
+        // their slots with the blocks after it
+        private int frameTop = 0;
+
+        FunctionLowering(final Map<String,Binding> globals, final Map<String,Boolean> returnsValue) {
+            this.returnsValue = returnsValue;
+            scopes.push(globals);
+        }
+
+        Function lower(final Ast.FunDeclaration funDec) {
+            final Map<String,Binding> params = new HashMap<>();
+            final int[] paramRegs = new int[funDec.getParams().size()];
+            for (int i = 0; i < paramRegs.length; i++) {
+                final Ast.Param param = (Ast.Param) funDec.getParams().get(i);
+                paramRegs[i] = newRegister();
+                params.put(param.getName(), new Binding(
+                        param.isArray() ? Binding.Kind.REGISTER_ARRAY : Binding.Kind.REGISTER, paramRegs[i]));
+            }
+            scopes.push(params);
+            statement(funDec.getBody());
+            scopes.pop();
+            // falling off the end of a function returns from it
+            if (code.isEmpty() || !(code.get(code.size() - 1) instanceof Ir.Return)) {
+                code.add(new Ir.Return(Ir.NONE));
+            }
+            return new Function(funDec.getName(), funDec.getType() == Ast.TypeSpecifier.INT, paramRegs, frameSize,
+                    code, registers);
+        }
+
+        private int newRegister() { return registers++; }
+
+        private String newLabel() { return "L" + labels++; }
+
+        private Binding lookup(final String name) {
+            for (final Map<String,Binding> scope : scopes) {
+                final Binding binding = scope.get(name);
+                if (binding != null) { return binding; }
+            }
+            throw new IllegalStateException("variable " + name + " is not bound in the environment");
+        }
+
+        private void statement(final Ast ast) {
+            if (ast instanceof Ast.CompoundStatement) {
+                final Ast.CompoundStatement cmpd = (Ast.CompoundStatement) ast;
+                final Map<String,Binding> scope = new HashMap<>();
+                final int top = frameTop;
+                cmpd.getLocalDeclarations().stream().map(d -> (Ast.VarDeclaration) d).forEach(varDec -> {
+                    if (varDec.getSize().isPresent()) {
+                        // slot 0 of the frame holds the caller's frame pointer
+                        scope.put(varDec.getName(), new Binding(Binding.Kind.FRAME_ARRAY, frameTop + 1));
+                        frameTop += varDec.getSize().get();
+                        frameSize = Math.max(frameSize, frameTop);
+                    } else {
+                        scope.put(varDec.getName(), new Binding(Binding.Kind.REGISTER, newRegister()));
+                    }
+                });
+                scopes.push(scope);
+                cmpd.getStatements().forEach(this::statement);
+                scopes.pop();
+                frameTop = top;
+                return;
+            }
+            if (ast instanceof Ast.ExpressionStmt) {
+                ((Ast.ExpressionStmt) ast).getExpression().ifPresent(this::effect);
+                return;
+            }
+            if (ast instanceof Ast.IfThen) {
+                final Ast.IfThen ifThen = (Ast.IfThen) ast;
+                final String then = newLabel();
+                final String end = newLabel();
+                condition(ifThen.getCondition(), then, end);
+                code.add(new Ir.Label(then));
+                statement(ifThen.getThenPart());
+                code.add(new Ir.Label(end));
+                return;
+            }
+            if (ast instanceof Ast.IfThenElse) {
+                final Ast.IfThenElse ifThenElse = (Ast.IfThenElse) ast;
+                final String then = newLabel();
+                final String otherwise = newLabel();
+                final String end = newLabel();
+                condition(ifThenElse.getCondition(), then, otherwise);
+                code.add(new Ir.Label(then));
+                statement(ifThenElse.getThenPart());
+                code.add(new Ir.Jump(end));
+                code.add(new Ir.Label(otherwise));
+                statement(ifThenElse.getElsePart());
+                code.add(new Ir.Label(end));
+                return;
+            }
+            if (ast instanceof Ast.While) {
+                final Ast.While whileS = (Ast.While) ast;
+                final String test = newLabel();
+                final String body = newLabel();
+                final String end = newLabel();
+                code.add(new Ir.Label(test));
+                condition(whileS.getCondition(), body, end);
+                code.add(new Ir.Label(body));
+                statement(whileS.getBody());
+                code.add(new Ir.Jump(test));
+                code.add(new Ir.Label(end));
+                return;
+            }
+            if (ast instanceof Ast.Return) {
+                final Optional<Ast> exp = ((Ast.Return) ast).getExpression();
+                code.add(new Ir.Return(exp.isPresent() ? value(exp.get()) : Ir.NONE));
+                return;
+            }
+            // an expression used as a statement
+            effect(ast);
+        }
+
+        /* evaluate an expression only for its side effects */
+        private void effect(final Ast ast) {
+            if (ast instanceof Ast.Call) {
+                call((Ast.Call) ast, false);
+            } else if (ast instanceof Ast.Expression && !((Ast.Expression) ast).getOp().isPresent()) {
+                effect(((Ast.Expression) ast).getLeft());
+            } else {
+                value(ast);
+            }
+        }
+
+        /* jump to ifTrue if the condition holds, otherwise to ifFalse */
+        private void condition(final Ast ast, final String ifTrue, final String ifFalse) {
+            if (ast instanceof Ast.Expression) {
+                final Ast.Expression exp = (Ast.Expression) ast;
+                if (!exp.getOp().isPresent()) {
+                    condition(exp.getLeft(), ifTrue, ifFalse);
+                    return;
+                }
+                final Ast.Operator op = exp.getOp().get();
+                if (isRelational(op)) {
+                    final int left = value(exp.getLeft());
+                    final int right = value(exp.getRight().get());
+                    code.add(new Ir.Branch(op, left, right, ifTrue, ifFalse));
+                    return;
+                }
+            }
+            if (ast instanceof Ast.Var && isBooleanConstant((Ast.Var) ast)) {
+                code.add(new Ir.Jump("true".equals(((Ast.Var) ast).getName()) ? ifTrue : ifFalse));
+                return;
+            }
+            code.add(new Ir.Branch(Ast.Operator.NEQ, value(ast), Ir.NONE, ifTrue, ifFalse));
+        }
+
+        /* @return the register that holds the value of the expression */
+        private int value(final Ast ast) {
+            if (ast instanceof Ast.Expression) {
+                final Ast.Expression exp = (Ast.Expression) ast;
+                if (!exp.getOp().isPresent()) { return value(exp.getLeft()); }
+                final int left = value(exp.getLeft());
+                final int right = value(exp.getRight().get());
+                final int dst = newRegister();
+                code.add(new Ir.BinOp(exp.getOp().get(), dst, left, right));
+                return dst;
+            }
+            if (ast instanceof Ast.Constant) {
+                final int dst = newRegister();
+                code.add(new Ir.Const(dst, ((Ast.Constant) ast).getValue()));
+                return dst;
+            }
+            if (ast instanceof Ast.Var) {
+                return var((Ast.Var) ast);
+            }
+            if (ast instanceof Ast.Assignment) {
+                return assignment((Ast.Assignment) ast);
+            }
+            if (ast instanceof Ast.Call) {
+                return call((Ast.Call) ast, true);
+            }
+            throw new IllegalStateException(ast.toString());
+        }
+
+        private int var(final Ast.Var var) {
+            if (isBooleanConstant(var)) {
+                final int dst = newRegister();
+                code.add(new Ir.Const(dst, "true".equals(var.getName()) ? 1 : 0));
+                return dst;
+            }
+            final Binding binding = lookup(var.getName());
+            final int dst = newRegister();
+            if (var.getExpression().isPresent()) {
+                final int index = value(var.getExpression().get());
+                if (binding.kind == Binding.Kind.GLOBAL_ARRAY) {
+                    code.add(new Ir.Load(dst, index, binding.value));
+                } else {
+                    code.add(new Ir.Load(dst, elementAddress(binding, index), 0));
+                }
+                return dst;
+            }
+            switch (binding.kind) {
+                case REGISTER: case REGISTER_ARRAY:
+                    // copy, so that the value doesn't change if the variable is assigned before the value is used
+                    code.add(new Ir.Copy(dst, binding.value));
+                    break;
+                case GLOBAL:
+                    code.add(new Ir.LoadGlobal(dst, binding.value));
+                    break;
+                case GLOBAL_ARRAY:
+                    // arrays are passed by reference
+                    code.add(new Ir.Address(dst, Ir.Space.GLOBAL, binding.value));
+                    break;
+                case FRAME_ARRAY:
+                    code.add(new Ir.Address(dst, Ir.Space.FRAME, binding.value));
+                    break;
+            }
+            return dst;
+        }
+
+        /* @return a register holding the address of element index of a local or parameter array */
+        private int elementAddress(final Binding binding, final int index) {
+            final int base;
+            if (binding.kind == Binding.Kind.FRAME_ARRAY) {
+                base = newRegister();
+                code.add(new Ir.Address(base, Ir.Space.FRAME, binding.value));
+            } else {
+                base = binding.value;
+            }
+            final int address = newRegister();
+            code.add(new Ir.BinOp(Ast.Operator.PLUS, address, base, index));
+            return address;
+        }
+
+        private int assignment(final Ast.Assignment assign) {
+            final Ast.Var var = (Ast.Var) assign.getVar();
+            // the value is evaluated before the index
+            final int value = value(assign.getExpression());
+            final Binding binding = lookup(var.getName());
+            if (var.getExpression().isPresent()) {
+                final int index = value(var.getExpression().get());
+                if (binding.kind == Binding.Kind.GLOBAL_ARRAY) {
+                    code.add(new Ir.Store(index, binding.value, value));
+                } else {
+                    code.add(new Ir.Store(elementAddress(binding, index), 0, value));
+                }
+            } else if (binding.kind == Binding.Kind.GLOBAL) {
+                code.add(new Ir.StoreGlobal(binding.value, value));
+            } else if (binding.kind == Binding.Kind.REGISTER) {
+                code.add(new Ir.Copy(binding.value, value));
+            } else {
+                throw new IllegalStateException("cannot assign to the array " + var.getName());
+            }
+            return value;
+        }
+
+        /* @return the register holding the result, or NONE if there is none or it isn't needed */
+        private int call(final Ast.Call call, final boolean needsValue) {
+            final String name = call.getName();
+            if ("input".equals(name)) {
+                final int dst = newRegister();
+                code.add(new Ir.In(dst));
+                return dst;
+            }
+            if ("output".equals(name)) {
+                code.add(new Ir.Out(value(call.getArgs().get(0))));
+                return nothing(name, needsValue);
+            }
+            final Boolean hasValue = returnsValue.get(name);
+            if (hasValue == null) { throw new IllegalStateException("no such function defined: " + name); }
+            final List<Ast> args = call.getArgs();
+            final int[] regs = new int[args.size()];
+            for (int i = args.size() - 1; i >= 0; i--) { regs[i] = value(args.get(i)); }
+            if (!hasValue) {
+                code.add(new Ir.Call(Ir.NONE, name, regs));
+                return nothing(name, needsValue);
+            }
+            final int dst = needsValue ? newRegister() : Ir.NONE;
+            code.add(new Ir.Call(dst, name, regs));
+            return dst;
+        }
+
+        private int nothing(final String name, final boolean needsValue) {
+            if (needsValue) { throw new IllegalStateException("the void function " + name + " has no value"); }
+            return Ir.NONE;
+        }
+
+        private boolean isBooleanConstant(final Ast.Var var) {
+            final String name = var.getName();
+            if (!"true".equals(name) && !"false".equals(name)) { return false; }
+            // a program may declare its own variable named true or false
+            for (final Map<String,Binding> scope : scopes) {
+                if (scope.containsKey(name)) { return false; }
+            }
+            return !var.getExpression().isPresent();
+        }
+    }
+
+    static boolean isRelational(final Ast.Operator op) {
+        switch (op) {
+            case LEQ: case LT: case GEQ: case GT: case EQ: case NEQ: return true;
+            default: return false;
+        }
+    }
+}
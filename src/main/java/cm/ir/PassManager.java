@@ -0,0 +1,150 @@
+package cm.ir;
+
+import parser.PhaseTimer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import static java.util.Collections.unmodifiableList;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * runs a sequence of passes over a program. a pass either transforms the program or, through get, asks for an
+ * analysis of one of its functions. functions are never modified, so an analysis is cached with the function it
+ * describes and stays valid for as long as a pass leaves that function alone.
+ *
+ * the preset for -O1 turns self recursive tail calls into loops, converts each function to SSA form, propagates
+ * constants, cleans up, and converts it back.
+ * -O2 then specializes functions for the constants they are called with, inlines calls, judging the callees by
+ * their size once they are cleaned up, rotates loops, and runs the same passes again over the result, along with
+ * value numbering and the loop optimizations. -O0 has no passes; the Cm driver uses CmCodeGen instead of the IR for it
+ */
+public class PassManager {
+
+    public interface Pass {
+        String getName();
+        Program run(final Program program, final PassManager pm);
+    }
+
+    /** computes a fact about a function */
+    public interface Analysis<T> {
+        T compute(final Function f, final PassManager pm);
+    }
+
+    public static final Analysis<Cfg> CFG = (f, pm) -> Cfg.of(f);
+    public static final Analysis<Dominators> DOMINATORS = (f, pm) -> new Dominators(pm.get(f, CFG));
+    public static final Analysis<Loops> LOOPS = (f, pm) -> new Loops(pm.get(f, DOMINATORS));
+    public static final Analysis<Aliases> ALIASES = (f, pm) -> new Aliases(f);
+
+    private static final Map<String,Pass> PASSES = new LinkedHashMap<>();
+
+    static {
+        register(new Pass() {
+            @Override public String getName() { return "inline"; }
+            @Override public Program run(final Program program, final PassManager pm) {
+                return Inliner.run(program, pm);
+            }
+        });
+        register(new Pass() {
+            @Override public String getName() { return "ipcp"; }
+            @Override public Program run(final Program program, final PassManager pm) {
+                return Specialization.run(program);
+            }
+        });
+        register(forEachFunction("tail-calls", (f, pm) -> TailCalls.run(f)));
+        register(forEachFunction("ssa", (f, pm) -> Ssa.construct(f, pm.get(f, DOMINATORS))));
+        register(forEachFunction("constant-propagation", (f, pm) -> ConstantPropagation.run(f, pm.get(f, CFG))));
+        register(forEachFunction("copy-propagation", (f, pm) -> CopyPropagation.run(f)));
+        register(forEachFunction("dead-code", (f, pm) -> DeadCode.run(f)));
+        register(forEachFunction("out-of-ssa", (f, pm) -> Ssa.destruct(f)));
+        register(forEachFunction("loop-rotation", LoopRotation::run));
+        register(forEachFunction("gvn", Gvn::run));
+        register(forEachFunction("licm", Licm::run));
+        register(forEachFunction("strength-reduction", StrengthReduction::run));
+    }
+
+    private static final List<String> O1 =
+            asList("tail-calls", "ssa", "constant-propagation", "copy-propagation", "dead-code", "out-of-ssa");
+    private static final List<String> O2 = asList(
+            "tail-calls", "ssa", "constant-propagation", "copy-propagation", "dead-code", "out-of-ssa",
+            "ipcp", "inline", "loop-rotation",
+            "ssa", "constant-propagation", "copy-propagation", "gvn", "copy-propagation", "licm", "strength-reduction",
+            "copy-propagation", "dead-code", "out-of-ssa");
+
+    private final List<Pass> passes;
+    private final Map<Function,Map<Analysis<?>,Object>> analyses = new IdentityHashMap<>();
+    private final PhaseTimer timer = new PhaseTimer();
+
+    public PassManager(final List<Pass> passes) { this.passes = unmodifiableList(new ArrayList<>(passes)); }
+
+    /** @param names the names of registered passes, in the order they should run */
+    public static PassManager of(final List<String> names) {
+        return new PassManager(names.stream().map(PassManager::pass).collect(toList()));
+    }
+
+    /** @return the passes for an optimization level, 0, 1 or 2 */
+    public static PassManager forLevel(final int level) {
+        switch (level) {
+            case 0: return new PassManager(new ArrayList<>());
+            case 1: return of(O1);
+            case 2: return of(O2);
+            default: throw new IllegalStateException("there is no optimization level " + level);
+        }
+    }
+
+    public static Pass pass(final String name) {
+        final Pass pass = PASSES.get(name);
+        if (pass == null) { throw new IllegalStateException("there is no pass named " + name + "; try " + PASSES.keySet()); }
+        return pass;
+    }
+
+    /** make a pass available by name */
+    public static synchronized void register(final Pass pass) { PASSES.put(pass.getName(), pass); }
+
+    /** @return a pass that transforms each function on its own */
+    public static Pass forEachFunction(final String name, final BiFunction<Function,PassManager,Function> transform) {
+        return new Pass() {
+            @Override public String getName() { return name; }
+            @Override public Program run(final Program program, final PassManager pm) {
+                return program.withFunctions(program.getFunctions().stream()
+                        .map(f -> transform.apply(f, pm)).collect(toList()));
+            }
+        };
+    }
+
+    public List<Pass> getPasses() { return passes; }
+
+    /** @return the time spent in each pass */
+    public PhaseTimer getTimer() { return timer; }
+
+    public Program run(Program program) {
+        for (final Pass pass : passes) {
+            final Program input = program;
+            program = timer.time(pass.getName(), () -> pass.run(input, this));
+            // forget the analyses of functions that are gone
+            final Map<Function,Boolean> live = new IdentityHashMap<>();
+            program.getFunctions().forEach(f -> live.put(f, true));
+            analyses.keySet().removeIf(f -> !live.containsKey(f));
+        }
+        return program;
+    }
+
+    /** @return the analysis a of f, computing it if it hasn't been already */
+    @SuppressWarnings("unchecked")
+    public <T> T get(final Function f, final Analysis<T> a) {
+        final Map<Analysis<?>,Object> cached = analyses.computeIfAbsent(f, k -> new HashMap<>());
+        final Object result = cached.get(a);
+        if (result != null) { return (T) result; }
+        final T computed = a.compute(f, this);
+        cached.put(a, computed);
+        return computed;
+    }
+
+    private static List<String> asList(final String... names) { return unmodifiableList(Arrays.asList(names)); }
+}
@@ -0,0 +1,37 @@
+package cm.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Collections.unmodifiableList;
+
+/** a C- program in three-address code: its functions, in declaration order, and the size of its global data, which
+ *  starts at address 0 */
+public class Program {
+    private final List<Function> functions;
+    private final int globalSize;
+
+    public Program(final List<Function> functions, final int globalSize) {
+        this.functions = unmodifiableList(new ArrayList<>(functions));
+        this.globalSize = globalSize;
+    }
+
+    public List<Function> getFunctions() { return functions; }
+    public int getGlobalSize() { return globalSize; }
+
+    public Function getFunction(final String name) {
+        return functions.stream().filter(f -> f.getName().equals(name)).findFirst()
+                .orElseThrow(() -> new IllegalStateException("no function named " + name));
+    }
+
+    /** @return a copy of this program with different functions */
+    public Program withFunctions(final List<Function> functions) { return new Program(functions, globalSize); }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("globals ").append(globalSize).append("\n");
+        functions.forEach(f -> sb.append("\n").append(f));
+        return sb.toString();
+    }
+}
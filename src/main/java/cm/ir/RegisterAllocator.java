@@ -0,0 +1,290 @@
+package cm.ir;
+
+import cm.Ast;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * linear scan register allocation (Poletto and Sarkar) onto the TM registers 0 to 4. the rest are taken: 5 is the
+ * frame pointer, 6 the stack pointer and 7 the program counter.
+ *
+ * each register of the function gets one live interval, from the first instruction where it is live to the last,
+ * ignoring any holes in between. the intervals are visited in order of their start; when all the machine registers
+ * are in use, one is spilled to a slot in the frame: the one with the fewest uses and definitions for its length,
+ * counting those in loops ten times for each level of nesting. rather than reserving scratch registers for spilled
+ * values, the allocator rewrites the code so every definition of a spilled register is followed by a Spill and every
+ * use preceded by a Reload into a new register with a very short interval, and then tries again.
+ * calls are the exception: the emitter can pass a spilled argument straight from its slot and store the result
+ * straight into one.
+ *
+ * every machine register is clobbered by a call, so the ones that hold values live across a call are saved in the
+ * frame before it and restored after it
+ */
+public class RegisterAllocator {
+    /** the number of machine registers available for values */
+    public static final int REGISTERS = 5;
+
+    /** where each register of a function lives */
+    public static class Allocation {
+        private final Function function;
+        private final int[] registers;
+        private final int[] slots;
+        private final int spillSlots;
+        private final BitSet liveIn;
+        private final Map<Integer,BitSet> saved;
+
+        private Allocation(final Function function, final int[] registers, final int[] slots, final int spillSlots,
+                           final BitSet liveIn, final Map<Integer,BitSet> saved) {
+            this.function = function;
+            this.registers = registers;
+            this.slots = slots;
+            this.spillSlots = spillSlots;
+            this.liveIn = liveIn;
+            this.saved = saved;
+        }
+
+        /** @return the function to emit: laid out in blocks, out of SSA form, and with the spill code */
+        public Function getFunction() { return function; }
+
+        /** @return the machine register that holds register r, or NONE if r lives in its slot */
+        public int getRegister(final int r) { return registers[r]; }
+
+        /** @return the frame pointer offset of the slot of a spilled register */
+        public int getSlot(final int r) { return slots[r]; }
+
+        /** @return the number of slots the frame needs after the local arrays, for spills and saved registers */
+        public int getSpillSlots() {
+            return spillSlots + (saved.values().stream().anyMatch(s -> !s.isEmpty()) ? REGISTERS : 0);
+        }
+
+        /** @return the frame pointer offset at which machine register m is saved across a call */
+        public int getSaveSlot(final int m) { return 1 + function.getFrameSize() + spillSlots + m; }
+
+        /** @return true if the value register r has on entry to the function is read. for parameters, that is
+         *  whether the argument needs to be loaded */
+        public boolean isLiveIn(final int r) { return liveIn.get(r); }
+
+        /** @return the machine registers to save across the call at the given index of the code */
+        public BitSet getSaved(final int index) { return (BitSet) saved.getOrDefault(index, new BitSet()).clone(); }
+    }
+
+    public static Allocation allocate(final Function function) {
+        Function f = legalize(Cfg.of(Ssa.destruct(function)).toFunction());
+        final int[] params = f.getParams();
+        final Map<Integer,Integer> slots = new HashMap<>();
+        final BitSet temps = new BitSet();  // the short lived registers added for spills, which are never spilled
+        int nextSlot = 1 + f.getFrameSize();
+        while (true) {
+            final Cfg cfg = Cfg.of(f);
+            final Liveness liveness = new Liveness(cfg);
+            final Scan scan = new Scan(f, cfg, liveness, slots, temps);
+            if (scan.spills.isEmpty()) {
+                final int[] slotOf = new int[f.getRegisterCount()];
+                Arrays.fill(slotOf, Ir.NONE);
+                slots.forEach((r, slot) -> slotOf[r] = slot);
+                return new Allocation(f, scan.registers, slotOf, nextSlot - 1 - f.getFrameSize(),
+                        liveness.getLiveIn(cfg.getEntry()), scan.saved());
+            }
+            // parameters can stay in the slots the caller passed them in
+            for (int r = scan.spills.nextSetBit(0); r >= 0; r = scan.spills.nextSetBit(r + 1)) {
+                int slot = nextSlot;
+                for (int i = 0; i < params.length; i++) { if (params[i] == r) { slot = -1 - i; } }
+                if (slot == nextSlot) { nextSlot++; }
+                slots.put(r, slot);
+            }
+            f = spill(f, scan.spills, slots, temps);
+        }
+    }
+
+    /* replace the instructions the emitter would need a scratch register for */
+    private static Function legalize(final Function f) {
+        int next = f.getRegisterCount();
+        final List<Ir> code = new ArrayList<>();
+        for (final Ir instr : f.getCode()) {
+            if (instr instanceof Ir.StoreGlobal) {
+                final Ir.StoreGlobal st = (Ir.StoreGlobal) instr;
+                final int address = next++;
+                code.add(new Ir.Address(address, Ir.Space.GLOBAL, st.getAddress()));
+                code.add(new Ir.Store(address, 0, st.getSrc()));
+            } else if (instr instanceof Ir.Branch && ((Ir.Branch) instr).getRight() != Ir.NONE) {
+                // compare the difference with 0
+                final Ir.Branch b = (Ir.Branch) instr;
+                final int difference = next++;
+                code.add(new Ir.BinOp(Ast.Operator.MINUS, difference, b.getLeft(), b.getRight()));
+                code.add(new Ir.Branch(b.getOp(), difference, Ir.NONE, b.getIfTrue(), b.getIfFalse()));
+            } else {
+                code.add(instr);
+            }
+        }
+        return f.withCode(code, next);
+    }
+
+    /* store each definition of a spilled register to its slot and reload it for each use */
+    private static Function spill(final Function f, final BitSet spills, final Map<Integer,Integer> slots,
+                                  final BitSet temps) {
+        int next = f.getRegisterCount();
+        final List<Ir> code = new ArrayList<>();
+        for (final Ir instr : f.getCode()) {
+            if (instr instanceof Ir.Call) {
+                code.add(instr);
+                continue;
+            }
+            final Map<Integer,Integer> reloaded = new HashMap<>();
+            for (final int u : instr.uses()) {
+                if (spills.get(u) && !reloaded.containsKey(u)) {
+                    final int temp = next++;
+                    temps.set(temp);
+                    reloaded.put(u, temp);
+                    code.add(new Ir.Reload(temp, slots.get(u)));
+                }
+            }
+            Ir result = instr.map(IntUnaryOperator.identity(), u -> reloaded.getOrDefault(u, u));
+            final int def = instr.def();
+            if (def != Ir.NONE && spills.get(def)) {
+                final int temp = next++;
+                temps.set(temp);
+                result = result.map(d -> temp, IntUnaryOperator.identity());
+                code.add(result);
+                code.add(new Ir.Spill(slots.get(def), temp));
+            } else {
+                code.add(result);
+            }
+        }
+        return f.withCode(code, next);
+    }
+
+    /* one pass of linear scan over the intervals of the registers that are not spilled yet */
+    private static class Scan {
+        private final Function f;
+        private final int[] start;
+        private final int[] end;
+        private final int[] registers;
+        private final long[] cost;  // how many loads and stores spilling each register would add, roughly
+        private final BitSet spills = new BitSet();
+
+        Scan(final Function f, final Cfg cfg, final Liveness liveness, final Map<Integer,Integer> slots,
+             final BitSet temps) {
+            this.f = f;
+            final int n = f.getRegisterCount();
+            start = new int[n];
+            end = new int[n];
+            Arrays.fill(start, Integer.MAX_VALUE);
+            Arrays.fill(end, Integer.MIN_VALUE);
+            registers = new int[n];
+            Arrays.fill(registers, Ir.NONE);
+            cost = new long[n];
+            final Loops loops = new Loops(new Dominators(cfg));
+
+            // the code is laid out block by block, so an instruction's position is its index. the parameters that
+            // are live on entry are loaded before the first instruction
+            final BitSet entryLive = liveness.getLiveIn(cfg.getEntry());
+            for (final int p : f.getParams()) { if (entryLive.get(p)) { extend(p, -1); } }
+            final int[] copyOf = new int[n];
+            Arrays.fill(copyOf, Ir.NONE);
+            final BitSet wantsAX = new BitSet();
+            int position = 0;
+            for (final Cfg.Block b : cfg.getBlocks()) {
+                final BitSet in = liveness.getLiveIn(b);
+                for (int r = in.nextSetBit(0); r >= 0; r = in.nextSetBit(r + 1)) { extend(r, position); }
+                position++;
+                // an access in a loop counts ten times for each level of nesting
+                final long weight = (long) Math.pow(10, Math.min(loops.getDepth(b), 6));
+                for (final Ir instr : b.getCode()) {
+                    for (final int u : instr.uses()) {
+                        extend(u, position);
+                        cost[u] += weight;
+                    }
+                    if (instr.def() != Ir.NONE) {
+                        extend(instr.def(), position);
+                        cost[instr.def()] += weight;
+                    }
+                    if (instr instanceof Ir.Copy) { copyOf[instr.def()] = ((Ir.Copy) instr).getSrc(); }
+                    if (instr instanceof Ir.Call && instr.def() != Ir.NONE) { wantsAX.set(instr.def()); }
+                    if (instr instanceof Ir.Return && ((Ir.Return) instr).getSrc() != Ir.NONE) {
+                        wantsAX.set(((Ir.Return) instr).getSrc());
+                    }
+                    position++;
+                }
+                final BitSet out = liveness.getLiveOut(b);
+                for (int r = out.nextSetBit(0); r >= 0; r = out.nextSetBit(r + 1)) { extend(r, position - 1); }
+            }
+
+            final List<Integer> order = new ArrayList<>();
+            for (int r = 0; r < n; r++) { if (start[r] <= end[r] && !slots.containsKey(r)) { order.add(r); } }
+            order.sort(Comparator.comparingInt((Integer r) -> start[r]).thenComparingInt(r -> r));
+
+            final List<Integer> active = new ArrayList<>();
+            final BitSet free = new BitSet();
+            free.set(0, REGISTERS);
+            for (final int r : order) {
+                // an interval that ends where this one starts can share its register: the instruction there reads
+                // its operands before it writes its result
+                active.removeIf(a -> {
+                    if (end[a] > start[r]) { return false; }
+                    free.set(registers[a]);
+                    return true;
+                });
+                if (!free.isEmpty()) {
+                    int m = free.nextSetBit(0);
+                    if (copyOf[r] != Ir.NONE && registers[copyOf[r]] != Ir.NONE && free.get(registers[copyOf[r]])) {
+                        m = registers[copyOf[r]];
+                    } else if (wantsAX.get(r) && free.get(0)) {
+                        m = 0;
+                    }
+                    registers[r] = m;
+                    free.clear(m);
+                    active.add(r);
+                    continue;
+                }
+                // spill whichever interval is cheapest to keep in memory for its length, or if they are as cheap, the
+                // one that ends last
+                int victim = temps.get(r) ? Ir.NONE : r;
+                for (final int a : active) {
+                    if (!temps.get(a) && (victim == Ir.NONE || cheaper(a, victim))) { victim = a; }
+                }
+                if (victim == Ir.NONE) { throw new IllegalStateException("too many registers are live at once"); }
+                spills.set(victim);
+                if (victim != r) {
+                    registers[r] = registers[victim];
+                    registers[victim] = Ir.NONE;
+                    active.remove((Integer) victim);
+                    active.add(r);
+                }
+            }
+        }
+
+        /* @return true if a is a better register to spill than b */
+        private boolean cheaper(final int a, final int b) {
+            final long costA = cost[a] * (end[b] - start[b] + 1);
+            final long costB = cost[b] * (end[a] - start[a] + 1);
+            return costA < costB || costA == costB && end[a] > end[b];
+        }
+
+        private void extend(final int r, final int position) {
+            start[r] = Math.min(start[r], position);
+            end[r] = Math.max(end[r], position);
+        }
+
+        /* @return the machine registers that hold values live across each call */
+        Map<Integer,BitSet> saved() {
+            final Map<Integer,BitSet> result = new HashMap<>();
+            final List<Ir> code = f.getCode();
+            for (int i = 0; i < code.size(); i++) {
+                if (!(code.get(i) instanceof Ir.Call)) { continue; }
+                final BitSet live = new BitSet();
+                for (int r = 0; r < registers.length; r++) {
+                    if (registers[r] != Ir.NONE && start[r] < i && end[r] > i) { live.set(registers[r]); }
+                }
+                result.put(i, live);
+            }
+            return result;
+        }
+    }
+}
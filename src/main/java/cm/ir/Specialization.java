@@ -0,0 +1,173 @@
+package cm.ir;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * interprocedural constant propagation. a call that passes a constant, or the address of a global array, for some of
+ * the parameters of a function calls a copy of the function specialized for those arguments instead: the copy
+ * doesn't have those parameters, and sets the registers they were in to the constants at its start, where constant
+ * propagation and the loop passes can see them. sort(x, 0, 10) calls a version of sort that only takes x, loops from
+ * 0 to 10, and in turn calls a version of minloc that knows high is 10.
+ *
+ * calls with the same arguments share a copy, the copies are specialized in turn, and a recursive call that passes
+ * a specialized parameter on unchanged calls the copy it is in. a copy is only made if the function reads one of the
+ * parameters it fixes, and only if the program is still at most GROWTH percent larger than it was, or MIN_GROWTH
+ * instructions for a small one, not counting the functions that can no longer be reached from main, which are
+ * dropped at the end.
+ *
+ * an argument is a constant if the register is assigned once in the caller, by a Const or an Address of global
+ * memory. addresses in the caller's frame aren't, since the copy could be called from other frames. the result is
+ * not in SSA form
+ */
+public class Specialization {
+    /** how much larger, in percent of the instructions reachable from main, the copies may make the program. what
+     *  counts is the size once the functions that are no longer called are dropped, so a copy that replaces the
+     *  only call to its original costs little */
+    static final int GROWTH = 20;
+    /** how many instructions the copies may add to a program too small for GROWTH percent to allow even a small one */
+    static final int MIN_GROWTH = 16;
+
+    public static Program run(final Program program) {
+        final Map<String,Function> functions = new LinkedHashMap<>();
+        program.getFunctions().forEach(f -> functions.put(f.getName(), Ssa.destruct(f)));
+        final int size = size(program.withFunctions(new ArrayList<>(functions.values())));
+        final int limit = size + Math.max(size * GROWTH / 100, MIN_GROWTH);
+        final List<String> work = new ArrayList<>(functions.keySet());
+        while (!work.isEmpty()) {
+            final Function f = functions.get(work.remove(0));
+            final Ir[] constants = constants(f);
+            final List<Ir> code = new ArrayList<>(f.getCode());
+            for (int i = 0; i < code.size(); i++) {
+                if (!(code.get(i) instanceof Ir.Call)) { continue; }
+                final Ir.Call call = (Ir.Call) code.get(i);
+                final Function callee = functions.get(call.getName());
+                final int[] args = call.getArgs();
+                final Ir[] fixed = new Ir[args.length];
+                for (int k = 0; k < args.length; k++) { fixed[k] = constants[args[k]]; }
+                if (callee == null || !readsAny(callee, fixed)) { continue; }
+                final String name = callee.getName() + signature(fixed);
+                code.set(i, new Ir.Call(call.def(), name, rest(args, fixed)));
+                // try the call to the copy, and keep it if the program is still small enough
+                final Map<String,Function> next = new LinkedHashMap<>(functions);
+                next.put(f.getName(), f.withCode(new ArrayList<>(code), f.getRegisterCount()));
+                final boolean isNew = !functions.containsKey(name);
+                if (isNew) { next.put(name, recursive(specialize(callee, name, fixed), callee.getName())); }
+                if (size(program.withFunctions(new ArrayList<>(next.values()))) > limit) {
+                    code.set(i, call);
+                    continue;
+                }
+                functions.putAll(next);
+                if (isNew) { work.add(name); }
+            }
+        }
+        final Program result = program.withFunctions(new ArrayList<>(functions.values()));
+        if (!functions.containsKey("main")) { return result; }
+        final Set<String> reachable = new CallGraph(result).getReachable("main");
+        return result.withFunctions(result.getFunctions().stream()
+                .filter(f -> reachable.contains(f.getName())).collect(toList()));
+    }
+
+    /** @return the number of instructions in the functions that can be reached from main, or in all of them if there
+     *  is no main */
+    static int size(final Program program) {
+        final Set<String> reachable = new CallGraph(program).getReachable("main");
+        return program.getFunctions().stream()
+                .filter(f -> reachable.isEmpty() || reachable.contains(f.getName()))
+                .mapToInt(Inliner::size).sum();
+    }
+
+    /* @return the Const or global Address that assigns each register, if that is its only assignment */
+    private static Ir[] constants(final Function f) {
+        final Ir[] constants = new Ir[f.getRegisterCount()];
+        final int[] assignments = new int[f.getRegisterCount()];
+        for (final int p : f.getParams()) { assignments[p]++; }
+        for (final Ir instr : f.getCode()) {
+            if (instr.def() == Ir.NONE) { continue; }
+            assignments[instr.def()]++;
+            if (instr instanceof Ir.Const || instr instanceof Ir.Address &&
+                    ((Ir.Address) instr).getSpace() == Ir.Space.GLOBAL) {
+                constants[instr.def()] = instr;
+            }
+        }
+        for (int r = 0; r < constants.length; r++) { if (assignments[r] != 1) { constants[r] = null; } }
+        return constants;
+    }
+
+    /* @return the arguments that aren't fixed */
+    private static int[] rest(final int[] args, final Ir[] fixed) {
+        final List<Integer> rest = new ArrayList<>();
+        for (int k = 0; k < args.length; k++) { if (fixed[k] == null) { rest.add(args[k]); } }
+        return rest.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /* @return the copy f of the function original, with the calls to original that pass the same constants on calling
+     * f instead. otherwise the original would still be called until the copy's turn came, and count against GROWTH */
+    private static Function recursive(final Function f, final String original) {
+        final Ir[] constants = constants(f);
+        final List<Ir> code = new ArrayList<>(f.getCode());
+        for (int i = 0; i < code.size(); i++) {
+            if (!(code.get(i) instanceof Ir.Call) || !((Ir.Call) code.get(i)).getName().equals(original)) { continue; }
+            final Ir.Call call = (Ir.Call) code.get(i);
+            final Ir[] fixed = new Ir[call.getArgs().length];
+            for (int k = 0; k < fixed.length; k++) { fixed[k] = constants[call.getArgs()[k]]; }
+            if (!(original + signature(fixed)).equals(f.getName())) { continue; }
+            code.set(i, new Ir.Call(call.def(), f.getName(), rest(call.getArgs(), fixed)));
+        }
+        return f.withCode(code, f.getRegisterCount());
+    }
+
+    /* @return true if f reads one of the parameters that get a constant */
+    private static boolean readsAny(final Function f, final Ir[] fixed) {
+        final int[] params = f.getParams();
+        final boolean[] isFixed = new boolean[f.getRegisterCount()];
+        for (int k = 0; k < params.length; k++) { isFixed[params[k]] = fixed[k] != null; }
+        for (final Ir instr : f.getCode()) {
+            for (final int u : instr.uses()) { if (isFixed[u]) { return true; } }
+        }
+        return false;
+    }
+
+    /* @return the arguments, with _ for those that aren't fixed, like (_,0,10) */
+    private static String signature(final Ir[] fixed) {
+        final List<String> args = new ArrayList<>();
+        for (final Ir c : fixed) {
+            if (c == null) {
+                args.add("_");
+            } else if (c instanceof Ir.Const) {
+                args.add(String.valueOf(((Ir.Const) c).getValue()));
+            } else {
+                args.add("&" + ((Ir.Address) c).getOffset());
+            }
+        }
+        return "(" + String.join(",", args) + ")";
+    }
+
+    /* @return a copy of f called name, without the parameters that get a constant, which it assigns instead */
+    private static Function specialize(final Function f, final String name, final Ir[] fixed) {
+        final int[] params = f.getParams();
+        final List<Integer> rest = new ArrayList<>();
+        final List<Ir> code = new ArrayList<>();
+        // nothing jumps to the entry, so the constants are only assigned once
+        code.add(new Ir.Label(Cfg.ENTRY));
+        for (int k = 0; k < params.length; k++) {
+            final int param = params[k];
+            if (fixed[k] == null) {
+                rest.add(param);
+            } else {
+                code.add(fixed[k].map(r -> param, r -> r));
+            }
+        }
+        final List<Ir> body = f.getCode();
+        final boolean hasEntry = !body.isEmpty() && body.get(0) instanceof Ir.Label &&
+                ((Ir.Label) body.get(0)).getName().equals(Cfg.ENTRY);
+        code.addAll(hasEntry ? body.subList(1, body.size()) : body);
+        return new Function(name, f.returnsValue(), rest.stream().mapToInt(Integer::intValue).toArray(),
+                f.getFrameSize(), code, f.getRegisterCount());
+    }
+}
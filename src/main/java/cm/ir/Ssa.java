@@ -0,0 +1,272 @@
+package cm.ir;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * conversion into and out of static single assignment form.
+ *
+ * construction follows Cytron et al.: phis are placed at the iterated dominance frontiers of the blocks that assign
+ * a register, and then every assignment is given a new register in a walk over the dominator tree. phis are only
+ * placed for registers that are read in some block before being assigned there ("semi-pruned" SSA). a register that
+ * may be read before it has been assigned at all (an uninitialized C- variable) reads 0.
+ *
+ * destruction replaces the phis with copies at the end of the predecessor blocks, splitting the edges where that
+ * would affect other paths, and orders each block's copies so that none overwrites a value another still needs
+ */
+public class Ssa {
+
+    public static Function construct(final Function f, final Dominators dom) {
+        if (f.isSsa()) { return f; }
+        return new Construction(f, dom).run();
+    }
+
+    private static class Construction {
+        private final Function f;
+        private final Dominators dom;
+        private final Cfg cfg;
+        private final List<List<Integer>> phiRegs = new ArrayList<>();  // for each block, the registers with a phi
+        private final List<List<Integer>> phiDsts = new ArrayList<>();
+        private final List<List<int[]>> phiArgs = new ArrayList<>();   // indexed by the position of the predecessor
+        private final List<List<Ir>> code = new ArrayList<>();
+        private final List<Deque<Integer>> stacks = new ArrayList<>();
+        private final int[] undefined;
+        private final List<Ir> entryPrefix = new ArrayList<>();
+        private int next;
+
+        Construction(final Function f, final Dominators dom) {
+            this.f = f;
+            this.dom = dom;
+            this.cfg = dom.getCfg();
+            next = f.getRegisterCount();
+            undefined = new int[next];
+            Arrays.fill(undefined, Ir.NONE);
+        }
+
+        Function run() {
+            final List<Cfg.Block> blocks = cfg.getBlocks();
+            final int n = next;
+
+            // find the blocks that assign each register and the registers that are live into some block
+            final List<BitSet> defBlocks = new ArrayList<>();
+            for (int r = 0; r < n; r++) { defBlocks.add(new BitSet()); }
+            final BitSet crossBlock = new BitSet(n);
+            for (final Cfg.Block b : blocks) {
+                final BitSet assigned = new BitSet(n);
+                for (final Ir instr : b.getCode()) {
+                    for (final int u : instr.uses()) { if (!assigned.get(u)) { crossBlock.set(u); } }
+                    if (instr.def() != Ir.NONE) {
+                        assigned.set(instr.def());
+                        defBlocks.get(instr.def()).set(b.getIndex());
+                    }
+                }
+            }
+            for (final int p : f.getParams()) { defBlocks.get(p).set(cfg.getEntry().getIndex()); }
+
+            // place the phis
+            for (int i = 0; i < blocks.size(); i++) {
+                phiRegs.add(new ArrayList<>());
+                phiDsts.add(new ArrayList<>());
+                phiArgs.add(new ArrayList<>());
+                code.add(new ArrayList<>());
+            }
+            for (int r = crossBlock.nextSetBit(0); r >= 0; r = crossBlock.nextSetBit(r + 1)) {
+                final BitSet hasPhi = new BitSet();
+                final BitSet work = (BitSet) defBlocks.get(r).clone();
+                final BitSet queued = (BitSet) work.clone();
+                for (int x = work.nextSetBit(0); x >= 0; x = work.nextSetBit(0)) {
+                    work.clear(x);
+                    final BitSet frontier = dom.getFrontier(blocks.get(x));
+                    for (int y = frontier.nextSetBit(0); y >= 0; y = frontier.nextSetBit(y + 1)) {
+                        if (hasPhi.get(y)) { continue; }
+                        hasPhi.set(y);
+                        phiRegs.get(y).add(r);
+                        phiArgs.get(y).add(new int[blocks.get(y).getPreds().size()]);
+                        if (!queued.get(y)) {
+                            queued.set(y);
+                            work.set(y);
+                        }
+                    }
+                }
+            }
+
+            // give every assignment its own register
+            for (int r = 0; r < n; r++) { stacks.add(new ArrayDeque<>()); }
+            for (final int p : f.getParams()) { stacks.get(p).push(p); }
+            rename(cfg.getEntry());
+
+            final List<List<Ir>> result = new ArrayList<>();
+            for (final Cfg.Block b : blocks) {
+                final List<Ir> blockCode = new ArrayList<>();
+                if (b == cfg.getEntry()) { blockCode.addAll(entryPrefix); }
+                final String[] preds = b.getPreds().stream().map(Cfg.Block::getLabel).toArray(String[]::new);
+                for (int k = 0; k < phiRegs.get(b.getIndex()).size(); k++) {
+                    blockCode.add(new Ir.Phi(phiDsts.get(b.getIndex()).get(k), preds,
+                            phiArgs.get(b.getIndex()).get(k)));
+                }
+                blockCode.addAll(code.get(b.getIndex()));
+                result.add(blockCode);
+            }
+            return cfg.rebuild(result, next, true);
+        }
+
+        private int top(final int r) {
+            final Deque<Integer> stack = stacks.get(r);
+            if (!stack.isEmpty()) { return stack.peek(); }
+            if (undefined[r] == Ir.NONE) {
+                undefined[r] = next++;
+                entryPrefix.add(new Ir.Const(undefined[r], 0));
+            }
+            return undefined[r];
+        }
+
+        private void rename(final Cfg.Block b) {
+            final List<Integer> pushed = new ArrayList<>();
+            final int i = b.getIndex();
+            for (final int r : phiRegs.get(i)) {
+                final int dst = next++;
+                phiDsts.get(i).add(dst);
+                stacks.get(r).push(dst);
+                pushed.add(r);
+            }
+            for (final Ir instr : b.getCode()) {
+                Ir renamed = instr.map(IntUnaryOperator.identity(), this::top);
+                final int def = instr.def();
+                if (def != Ir.NONE) {
+                    final int dst = next++;
+                    renamed = renamed.map(r -> dst, IntUnaryOperator.identity());
+                    stacks.get(def).push(dst);
+                    pushed.add(def);
+                }
+                code.get(i).add(renamed);
+            }
+            for (final Cfg.Block succ : b.getSuccs()) {
+                final int position = succ.getPreds().indexOf(b);
+                final List<Integer> regs = phiRegs.get(succ.getIndex());
+                for (int k = 0; k < regs.size(); k++) {
+                    phiArgs.get(succ.getIndex()).get(k)[position] = top(regs.get(k));
+                }
+            }
+            for (final Cfg.Block child : dom.getChildren(b)) { rename(child); }
+            for (final int r : pushed) { stacks.get(r).pop(); }
+        }
+    }
+
+    public static Function destruct(final Function f) {
+        if (!f.isSsa()) { return f; }
+        final Cfg cfg = Cfg.of(f);
+        int registers = f.getRegisterCount();
+
+        // the copies to make at the end of each block, and the blocks that split critical edges
+        final Map<String,List<int[]>> copies = new HashMap<>();
+        final Map<String,Map<String,String>> splits = new HashMap<>(); // pred -> (succ -> new block)
+        final Map<String,List<String>> splitsAfter = new HashMap<>();
+        final Liveness liveness = new Liveness(cfg);
+        final Dominators dom = new Dominators(cfg);
+        int splitCount = 0;
+        for (final Cfg.Block b : cfg.getBlocks()) {
+            for (final Cfg.Block pred : b.getPreds()) {
+                String from = pred.getLabel();
+                boolean hasPhi = false;
+                for (final Ir instr : b.getCode()) {
+                    if (!(instr instanceof Ir.Phi)) { break; }
+                    hasPhi = true;
+                }
+                if (!hasPhi) { continue; }
+                // a back edge's copies can usually go before the branch, which saves a jump every iteration
+                final boolean backEdge = dom.dominates(b, pred);
+                if (pred.getSuccs().size() > 1 && !(backEdge && canCopyBefore(pred, b, liveness))) {
+                    String label;
+                    do { label = "split" + splitCount++; } while (cfg.getBlock(label) != null);
+                    splits.computeIfAbsent(from, k -> new HashMap<>()).put(b.getLabel(), label);
+                    splitsAfter.computeIfAbsent(from, k -> new ArrayList<>()).add(label);
+                    from = label;
+                }
+                final List<int[]> moves = copies.computeIfAbsent(from, k -> new ArrayList<>());
+                for (final Ir instr : b.getCode()) {
+                    if (!(instr instanceof Ir.Phi)) { break; }
+                    final int src = ((Ir.Phi) instr).getArg(pred.getLabel());
+                    if (src != instr.def()) { moves.add(new int[] {instr.def(), src}); }
+                }
+            }
+        }
+
+        final List<Ir> code = new ArrayList<>();
+        for (final Cfg.Block b : cfg.getBlocks()) {
+            code.add(new Ir.Label(b.getLabel()));
+            final List<Ir> body = b.getCode();
+            for (final Ir instr : body.subList(0, body.size() - 1)) {
+                if (!(instr instanceof Ir.Phi)) { code.add(instr); }
+            }
+            registers = sequentialize(copies.getOrDefault(b.getLabel(), new ArrayList<>()), registers, code);
+            final Map<String,String> split = splits.getOrDefault(b.getLabel(), new HashMap<>());
+            code.add(b.getTerminator().retarget(t -> split.getOrDefault(t, t)));
+            for (final String label : splitsAfter.getOrDefault(b.getLabel(), new ArrayList<>())) {
+                code.add(new Ir.Label(label));
+                registers = sequentialize(copies.getOrDefault(label, new ArrayList<>()), registers, code);
+                final String target = split.entrySet().stream().filter(e -> e.getValue().equals(label))
+                        .findFirst().get().getKey();
+                code.add(new Ir.Jump(target));
+            }
+        }
+        return f.withCode(code, registers, false).withCompactRegisters();
+    }
+
+    /* @return true if the copies for the phis of b can go before the branch at the end of pred, rather than in a new
+     * block on the edge between them: the branch doesn't read the registers they assign, and the other successors
+     * don't either. this is only worth it for the branch back to the top of a loop, which then needs no extra jump;
+     * on the way out of a loop, the copies would run on every iteration rather than once */
+    private static boolean canCopyBefore(final Cfg.Block pred, final Cfg.Block b, final Liveness liveness) {
+        final BitSet assigned = new BitSet();
+        for (final Ir instr : b.getCode()) {
+            if (!(instr instanceof Ir.Phi)) { break; }
+            assigned.set(instr.def());
+        }
+        for (final int u : pred.getTerminator().uses()) { if (assigned.get(u)) { return false; } }
+        for (final Cfg.Block succ : pred.getSuccs()) {
+            if (succ == b) { continue; }
+            if (liveness.getLiveIn(succ).intersects(assigned)) { return false; }
+            for (final Ir instr : succ.getCode()) {
+                if (!(instr instanceof Ir.Phi)) { break; }
+                final int arg = ((Ir.Phi) instr).getArg(pred.getLabel());
+                if (arg != Ir.NONE && assigned.get(arg)) { return false; }
+            }
+        }
+        return true;
+    }
+
+    /* emit copies that have the effect of making all the moves (dst, src) at the same time */
+    private static int sequentialize(final List<int[]> moves, int registers, final List<Ir> code) {
+        final List<int[]> pending = new ArrayList<>();
+        moves.forEach(m -> pending.add(m.clone()));
+        while (!pending.isEmpty()) {
+            boolean progress = false;
+            for (int i = 0; i < pending.size(); i++) {
+                final int dst = pending.get(i)[0];
+                boolean needed = false;
+                for (final int[] other : pending) { if (other != pending.get(i) && other[1] == dst) { needed = true; } }
+                if (!needed) {
+                    code.add(new Ir.Copy(dst, pending.get(i)[1]));
+                    pending.remove(i);
+                    progress = true;
+                    break;
+                }
+            }
+            if (!progress) {
+                // every destination is still needed, so there is a cycle. break it by saving one value
+                final int[] move = pending.get(0);
+                final int temp = registers++;
+                code.add(new Ir.Copy(temp, move[1]));
+                for (final int[] other : pending) { if (other[1] == move[1]) { other[1] = temp; } }
+            }
+        }
+        return registers;
+    }
+}
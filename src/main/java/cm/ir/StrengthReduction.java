@@ -0,0 +1,145 @@
+package cm.ir;
+
+import cm.Ast;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+
+/**
+ * induction variable strength reduction for functions in SSA form. a basic induction variable is a phi in a loop
+ * header that starts at some value before the loop and goes up or down by a constant each iteration. a product i * c
+ * for a constant c can be kept up to date the same way: it gets its own phi, which starts at c times i's start and
+ * goes up by c times i's step, so the multiplication in the loop becomes an addition. sums like the address of a[i]
+ * are left alone, since replacing them saves nothing on the TM and keeps one more register busy.
+ *
+ * loops without a preheader or with more than one back edge are left alone
+ */
+public class StrengthReduction {
+
+    public static Function run(final Function f, final PassManager pm) {
+        if (!f.isSsa()) { throw new IllegalStateException("strength reduction needs SSA form: " + f.getName()); }
+        final Loops loops = pm.get(f, PassManager.LOOPS);
+        final Cfg cfg = loops.getCfg();
+        final List<List<Ir>> code = new ArrayList<>();
+        cfg.getBlocks().forEach(b -> code.add(new ArrayList<>(b.getCode())));
+        final Map<Integer,Cfg.Block> definedIn = new HashMap<>();
+        final Map<Integer,Ir> definition = new HashMap<>();
+        for (final Cfg.Block b : cfg.getBlocks()) {
+            for (final Ir instr : b.getCode()) {
+                if (instr.def() == Ir.NONE) { continue; }
+                definedIn.put(instr.def(), b);
+                definition.put(instr.def(), instr);
+            }
+        }
+
+        int registers = f.getRegisterCount();
+        for (final Loops.Loop loop : loops.getLoops()) {
+            final Cfg.Block pre = loop.getPreheader();
+            final Cfg.Block latch = loop.getLatch();
+            final Cfg.Block header = loop.getHeader();
+            if (pre == null || latch == null) { continue; }
+            for (final Ir instr : header.getCode()) {
+                if (!(instr instanceof Ir.Phi)) { break; }
+                final Ir.Phi phi = (Ir.Phi) instr;
+                final int i = phi.def();
+                final int start = phi.getArg(pre.getLabel());
+                final int next = phi.getArg(latch.getLabel());
+                final Ir increment = definition.get(next);
+                // the increment has to run exactly once per iteration, so not in a loop nested in this one
+                if (!(increment instanceof Ir.BinOp) || loops.getDepth(definedIn.get(next)) != loops.getDepth(header)) {
+                    continue;
+                }
+                final Integer step = step((Ir.BinOp) increment, i, definition);
+                if (step == null || !code.get(definedIn.get(next).getIndex()).contains(increment)) { continue; }
+
+                // group the products of i by the constant
+                final Map<Integer,List<Ir>> derived = new LinkedHashMap<>();
+                for (final Cfg.Block b : cfg.getBlocks()) {
+                    if (!loop.contains(b)) { continue; }
+                    for (final Ir candidate : code.get(b.getIndex())) {
+                        if (candidate == increment) { continue; }
+                        final Integer key = factor(candidate, i, definition);
+                        if (key != null) { derived.computeIfAbsent(key, k -> new ArrayList<>()).add(candidate); }
+                    }
+                }
+                for (final Map.Entry<Integer,List<Ir>> e : derived.entrySet()) {
+                    final int factor = e.getKey();
+                    final int initial = registers++;
+                    final int current = registers++;
+                    final int stepped = registers++;
+                    final int delta = registers++;
+
+                    // compute the start in the preheader
+                    final int c = registers++;
+                    final List<Ir> added = asList(new Ir.Const(c, factor),
+                            new Ir.BinOp(Ast.Operator.TIMES, initial, start, c));
+                    final List<Ir> preCode = code.get(pre.getIndex());
+                    preCode.addAll(preCode.size() - 1, added);
+                    added.forEach(a -> define(a, pre, definedIn, definition));
+                    // step it along with i
+                    final Ir.Phi currentPhi = new Ir.Phi(current,
+                            new String[] {pre.getLabel(), latch.getLabel()}, new int[] {initial, stepped});
+                    code.get(header.getIndex()).add(0, currentPhi);
+                    define(currentPhi, header, definedIn, definition);
+                    final Cfg.Block incrementBlock = definedIn.get(next);
+                    final List<Ir> incrementCode = code.get(incrementBlock.getIndex());
+                    final int at = incrementCode.indexOf(increment) + 1;
+                    final Ir deltaConst = new Ir.Const(delta, step * factor);
+                    final Ir steppedSum = new Ir.BinOp(Ast.Operator.PLUS, stepped, current, delta);
+                    incrementCode.addAll(at, asList(deltaConst, steppedSum));
+                    define(deltaConst, incrementBlock, definedIn, definition);
+                    define(steppedSum, incrementBlock, definedIn, definition);
+                    // and use it in place of the derived values
+                    for (final Ir d : e.getValue()) {
+                        final List<Ir> blockCode = code.get(definedIn.get(d.def()).getIndex());
+                        blockCode.set(blockCode.indexOf(d), new Ir.Copy(d.def(), current));
+                    }
+                }
+            }
+        }
+        return registers == f.getRegisterCount() ? f : cfg.rebuild(code, registers);
+    }
+
+    private static void define(final Ir instr, final Cfg.Block b, final Map<Integer,Cfg.Block> definedIn,
+                               final Map<Integer,Ir> definition) {
+        definedIn.put(instr.def(), b);
+        definition.put(instr.def(), instr);
+    }
+
+    /* @return how much i changes by each time increment runs, or null if it isn't i plus or minus a constant */
+    private static Integer step(final Ir.BinOp increment, final int i, final Map<Integer,Ir> definition) {
+        final Ir left = definition.get(increment.getLeft());
+        final Ir right = definition.get(increment.getRight());
+        switch (increment.getOp()) {
+            case PLUS:
+                if (increment.getLeft() == i && right instanceof Ir.Const) { return ((Ir.Const) right).getValue(); }
+                if (increment.getRight() == i && left instanceof Ir.Const) { return ((Ir.Const) left).getValue(); }
+                return null;
+            case MINUS:
+                if (increment.getLeft() == i && right instanceof Ir.Const) { return -((Ir.Const) right).getValue(); }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /* @return c if instr is i times the constant c, otherwise null */
+    private static Integer factor(final Ir instr, final int i, final Map<Integer,Ir> definition) {
+        if (!(instr instanceof Ir.BinOp) || ((Ir.BinOp) instr).getOp() != Ast.Operator.TIMES) { return null; }
+        final Ir.BinOp binOp = (Ir.BinOp) instr;
+        final Ir other;
+        if (binOp.getLeft() == i && binOp.getRight() != i) {
+            other = definition.get(binOp.getRight());
+        } else if (binOp.getRight() == i && binOp.getLeft() != i) {
+            other = definition.get(binOp.getLeft());
+        } else {
+            return null;
+        }
+        return other instanceof Ir.Const ? ((Ir.Const) other).getValue() : null;
+    }
+}
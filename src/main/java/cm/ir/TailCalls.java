@@ -0,0 +1,75 @@
+package cm.ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * turns the calls a function makes to itself just before it returns, with nothing in between but jumps, into jumps
+ * back to its start, so recursion in tail position runs as a loop in constant stack space. the arguments go into the
+ * parameters through new registers, since an argument may be another parameter. the result is not in SSA form.
+ *
+ * a function with arrays in its frame is left alone: an argument could be the address of one of them, and that
+ * frame is the one the next iteration would reuse
+ */
+public class TailCalls {
+
+    public static Function run(final Function function) {
+        final Function f = Ssa.destruct(function);
+        final List<Ir> code = f.getCode();
+        final Map<String,Integer> labels = new HashMap<>();
+        for (int i = 0; i < code.size(); i++) {
+            if (code.get(i) instanceof Ir.Label) { labels.put(((Ir.Label) code.get(i)).getName(), i); }
+        }
+        boolean found = false;
+        for (int i = 0; i < code.size(); i++) { found |= isTailCall(f, labels, i); }
+        if (f.getFrameSize() > 0 || !found) { return function; }
+
+        final String start = Cfg.of(f).freshLabel("start");
+        final List<Ir> result = new ArrayList<>();
+        result.add(new Ir.Label(Cfg.ENTRY));
+        result.add(new Ir.Label(start));
+        final int[] params = f.getParams();
+        int registers = f.getRegisterCount();
+        for (int i = 0; i < code.size(); i++) {
+            final Ir instr = code.get(i);
+            if (i == 0 && instr instanceof Ir.Label && ((Ir.Label) instr).getName().equals(Cfg.ENTRY)) { continue; }
+            if (!isTailCall(f, labels, i)) {
+                result.add(instr);
+                continue;
+            }
+            final int[] args = ((Ir.Call) instr).getArgs();
+            final int[] temps = new int[args.length];
+            for (int k = 0; k < args.length; k++) {
+                temps[k] = registers++;
+                result.add(new Ir.Copy(temps[k], args[k]));
+            }
+            for (int k = 0; k < args.length; k++) { result.add(new Ir.Copy(params[k], temps[k])); }
+            result.add(new Ir.Jump(start));
+        }
+        return f.withCode(result, registers, false);
+    }
+
+    /* a call to f at index i, after which the function returns its result without doing anything else */
+    private static boolean isTailCall(final Function f, final Map<String,Integer> labels, final int i) {
+        final List<Ir> code = f.getCode();
+        if (!(code.get(i) instanceof Ir.Call) || !((Ir.Call) code.get(i)).getName().equals(f.getName())) {
+            return false;
+        }
+        // follow labels and jumps, as far as the function has instructions, in case they make a loop
+        int k = i + 1;
+        for (int steps = 0; k < code.size() && steps < code.size(); steps++) {
+            final Ir next = code.get(k);
+            if (next instanceof Ir.Label) {
+                k++;
+            } else if (next instanceof Ir.Jump) {
+                k = labels.get(((Ir.Jump) next).getTarget());
+            } else {
+                return next instanceof Ir.Return && ((Ir.Return) next).getSrc() == code.get(i).def();
+            }
+        }
+        // falling off the end returns nothing
+        return k >= code.size() && code.get(i).def() == Ir.NONE;
+    }
+}
@@ -0,0 +1,259 @@
+package cm.ir;
+
+import cm.Ast;
+import tiny.tm.Instruction;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * emits TM code for a program in three-address code. each function is emitted on its own; jumps to labels and calls
+ * to functions are left as Instruction.Tmp placeholders until the functions have been laid out, and are then
+ * resolved against the final addresses. the registers of each function are first mapped onto the machine's by the
+ * RegisterAllocator, which also converts functions in SSA form out of it.
+ *
+ * a stack frame looks like this (the stack grows towards higher addresses):
+ *
+ *     FP-1-n    return address
+ *     FP-1-i    argument i of n
+ *     FP        the caller's FP
+ *     FP+1      local arrays, then the slots of spilled registers, then the machine registers saved across calls
+ */
+public class TmEmitter {
+
+    private static final int FP = 5; // frame pointer
+    private static final int SP = 6; // stack pointer
+    private static final int PC = 7; // program counter
+    private static final int AX = 0; // return value
+    private static final int BX = 1; // temp register, free during calls and returns
+    private static final int CX = 2; // temp register, free during calls
+
+    public List<Instruction> emit(final Program program) {
+        final List<Instruction> instrs = new ArrayList<>();
+        instrs.add(new Instruction.Ldc(SP, program.getGlobalSize(), "the stack starts after the globals"));
+        callSequence(instrs, "main", 0);
+        instrs.add(new Instruction.Halt());
+
+        // lay out the functions in order, then resolve the jumps and calls
+        final Map<String,Integer> addresses = new HashMap<>();
+        for (final Function function : program.getFunctions()) {
+            final RegisterAllocator.Allocation allocation = RegisterAllocator.allocate(function);
+            addresses.put(function.getName(), instrs.size());
+            final FunctionEmitter emitter = new FunctionEmitter(allocation, instrs);
+            emitter.emit();
+            emitter.labels.forEach((label, address) -> addresses.put(function.getName() + "." + label, address));
+        }
+        return instrs.stream()
+                .map(instr -> instr instanceof Instruction.Tmp ? ((Instruction.Tmp) instr).create(addresses) : instr)
+                .collect(toList());
+    }
+
+    /* call function, whose n arguments have been stored above SP. on return, the result is in AX */
+    private static void callSequence(final List<Instruction> instrs, final String function, final int n) {
+        instrs.add(new Instruction.Lda(BX, 6, PC, "call " + function));
+        instrs.add(new Instruction.St(BX, 0, SP));
+        instrs.add(new Instruction.St(FP, n + 1, SP));
+        instrs.add(new Instruction.Lda(FP, n + 1, SP));
+        instrs.add(new Instruction.Ldc(CX, 0));
+        instrs.add(new Instruction.Tmp(addresses -> new Instruction.Lda(PC, addresses.get(function), CX)));
+    }
+
+    /* emits the code of one function onto the end of the list of instructions */
+    private static class FunctionEmitter {
+        private final RegisterAllocator.Allocation allocation;
+        private final Function f;
+        private final String name;
+        private final List<Instruction> instrs;
+        private final Map<String,Integer> labels = new HashMap<>();
+
+        FunctionEmitter(final RegisterAllocator.Allocation allocation, final List<Instruction> instrs) {
+            this.allocation = allocation;
+            this.f = allocation.getFunction();
+            this.name = f.getName();
+            this.instrs = instrs;
+        }
+
+        void emit() {
+            instrs.add(new Instruction.Lda(SP, 1 + f.getFrameSize() + allocation.getSpillSlots(), FP,
+                    "function " + name));
+            // load the arguments that are kept in registers
+            final int[] params = f.getParams();
+            for (int i = 0; i < params.length; i++) {
+                if (allocation.isLiveIn(params[i]) && reg(params[i]) != Ir.NONE) {
+                    instrs.add(new Instruction.Ld(reg(params[i]), -1 - i, FP));
+                }
+            }
+            final List<Ir> code = f.getCode();
+            for (int i = 0; i < code.size(); i++) {
+                emit(code.get(i), i, fallsThroughTo(code, i + 1), params.length);
+            }
+        }
+
+        /* @return the labels that the instruction at index begins with */
+        private List<String> fallsThroughTo(final List<Ir> code, int index) {
+            final List<String> result = new ArrayList<>();
+            while (index < code.size() && code.get(index) instanceof Ir.Label) {
+                result.add(((Ir.Label) code.get(index++)).getName());
+            }
+            return result;
+        }
+
+        private void emit(final Ir ir, final int index, final List<String> next, final int numParams) {
+            if (ir instanceof Ir.Label) {
+                labels.put(((Ir.Label) ir).getName(), instrs.size());
+            } else if (ir instanceof Ir.Const) {
+                instrs.add(new Instruction.Ldc(reg(ir.def()), ((Ir.Const) ir).getValue()));
+            } else if (ir instanceof Ir.Copy) {
+                move(reg(ir.def()), reg(((Ir.Copy) ir).getSrc()));
+            } else if (ir instanceof Ir.BinOp) {
+                binOp((Ir.BinOp) ir);
+            } else if (ir instanceof Ir.Address) {
+                final Ir.Address address = (Ir.Address) ir;
+                instrs.add(address.getSpace() == Ir.Space.FRAME
+                        ? new Instruction.Lda(reg(ir.def()), address.getOffset(), FP)
+                        : new Instruction.Ldc(reg(ir.def()), address.getOffset()));
+            } else if (ir instanceof Ir.Load) {
+                final Ir.Load load = (Ir.Load) ir;
+                instrs.add(new Instruction.Ld(reg(ir.def()), load.getOffset(), reg(load.getBase())));
+            } else if (ir instanceof Ir.Store) {
+                final Ir.Store st = (Ir.Store) ir;
+                instrs.add(new Instruction.St(reg(st.getSrc()), st.getOffset(), reg(st.getBase())));
+            } else if (ir instanceof Ir.LoadGlobal) {
+                final int dst = reg(ir.def());
+                instrs.add(new Instruction.Ldc(dst, ((Ir.LoadGlobal) ir).getAddress()));
+                instrs.add(new Instruction.Ld(dst, 0, dst));
+            } else if (ir instanceof Ir.Reload) {
+                instrs.add(new Instruction.Ld(reg(ir.def()), ((Ir.Reload) ir).getSlot(), FP));
+            } else if (ir instanceof Ir.Spill) {
+                final Ir.Spill spill = (Ir.Spill) ir;
+                instrs.add(new Instruction.St(reg(spill.getSrc()), spill.getSlot(), FP));
+            } else if (ir instanceof Ir.Jump) {
+                final String target = ((Ir.Jump) ir).getTarget();
+                if (!next.contains(target)) { jump(Ast.Operator.EQ, AX, target, true); }
+            } else if (ir instanceof Ir.Branch) {
+                branch((Ir.Branch) ir, next);
+            } else if (ir instanceof Ir.Call) {
+                call((Ir.Call) ir, allocation.getSaved(index));
+            } else if (ir instanceof Ir.Return) {
+                final int src = ((Ir.Return) ir).getSrc();
+                if (src != Ir.NONE) { move(AX, reg(src)); }
+                instrs.add(new Instruction.Ld(BX, -1 - numParams, FP, "return from " + name));
+                instrs.add(new Instruction.Lda(SP, -1 - numParams, FP));
+                instrs.add(new Instruction.Ld(FP, 0, FP));
+                instrs.add(new Instruction.Lda(PC, 0, BX));
+            } else if (ir instanceof Ir.In) {
+                instrs.add(new Instruction.In(reg(ir.def())));
+            } else if (ir instanceof Ir.Out) {
+                instrs.add(new Instruction.Out(reg(((Ir.Out) ir).getSrc())));
+            } else {
+                throw new IllegalStateException("cannot emit " + ir);
+            }
+        }
+
+        private void binOp(final Ir.BinOp binOp) {
+            final int dst = reg(binOp.def());
+            final int left = reg(binOp.getLeft());
+            final int right = reg(binOp.getRight());
+            switch (binOp.getOp()) {
+                case PLUS: instrs.add(new Instruction.Add(dst, left, right)); break;
+                case MINUS: instrs.add(new Instruction.Sub(dst, left, right)); break;
+                case TIMES: instrs.add(new Instruction.Mul(dst, left, right)); break;
+                case DIVIDE: instrs.add(new Instruction.Div(dst, left, right)); break;
+                default:
+                    // the relation holds if the difference has the right sign. dst is the only register free here
+                    instrs.add(new Instruction.Sub(dst, left, right));
+                    instrs.add(conditionalJump(binOp.getOp(), dst, 3));
+                    instrs.add(new Instruction.Ldc(dst, 0));
+                    instrs.add(new Instruction.Jmp(2, PC));
+                    instrs.add(new Instruction.Ldc(dst, 1));
+            }
+        }
+
+        private void branch(final Ir.Branch branch, final List<String> next) {
+            // the allocator has turned comparisons of two registers into comparisons with 0
+            final int r = reg(branch.getLeft());
+            if (next.contains(branch.getIfTrue())) {
+                jump(negate(branch.getOp()), r, branch.getIfFalse(), false);
+            } else {
+                jump(branch.getOp(), r, branch.getIfTrue(), false);
+                if (!next.contains(branch.getIfFalse())) { jump(Ast.Operator.EQ, r, branch.getIfFalse(), true); }
+            }
+        }
+
+        /* jump to a label of this function if reg[r] op 0 holds, or always if unconditional is true */
+        private void jump(final Ast.Operator op, final int r, final String label, final boolean unconditional) {
+            final int here = instrs.size();
+            final String target = name + "." + label;
+            instrs.add(new Instruction.Tmp(addresses -> {
+                final int offset = addresses.get(target) - here;
+                return unconditional ? new Instruction.Jmp(offset, PC) : conditionalJump(op, r, offset);
+            }));
+        }
+
+        private void call(final Ir.Call call, final BitSet saved) {
+            // the arguments go above the return address, in reverse order, so argument i ends up at FP-1-i
+            final int[] args = call.getArgs();
+            final int n = args.length;
+            for (int i = 0; i < n; i++) {
+                if (reg(args[i]) != Ir.NONE) { instrs.add(new Instruction.St(reg(args[i]), n - i, SP)); }
+            }
+            for (int m = saved.nextSetBit(0); m >= 0; m = saved.nextSetBit(m + 1)) {
+                instrs.add(new Instruction.St(m, allocation.getSaveSlot(m), FP, "save"));
+            }
+            // every register is free now
+            for (int i = 0; i < n; i++) {
+                if (reg(args[i]) == Ir.NONE) {
+                    instrs.add(new Instruction.Ld(BX, allocation.getSlot(args[i]), FP));
+                    instrs.add(new Instruction.St(BX, n - i, SP));
+                }
+            }
+            callSequence(instrs, call.getName(), n);
+            if (call.def() != Ir.NONE) {
+                if (reg(call.def()) == Ir.NONE) {
+                    instrs.add(new Instruction.St(AX, allocation.getSlot(call.def()), FP));
+                } else {
+                    move(reg(call.def()), AX);
+                }
+            }
+            for (int m = saved.nextSetBit(0); m >= 0; m = saved.nextSetBit(m + 1)) {
+                instrs.add(new Instruction.Ld(m, allocation.getSaveSlot(m), FP, "restore"));
+            }
+        }
+
+        private void move(final int to, final int from) {
+            if (to != from) { instrs.add(new Instruction.Lda(to, 0, from)); }
+        }
+
+        /* @return the machine register of register r */
+        private int reg(final int r) { return allocation.getRegister(r); }
+    }
+
+    static Instruction conditionalJump(final Ast.Operator op, final int r, final int offset) {
+        switch (op) {
+            case LEQ: return new Instruction.Jle(r, offset, PC);
+            case LT: return new Instruction.Jlt(r, offset, PC);
+            case GEQ: return new Instruction.Jge(r, offset, PC);
+            case GT: return new Instruction.Jgt(r, offset, PC);
+            case EQ: return new Instruction.Jeq(r, offset, PC);
+            case NEQ: return new Instruction.Jne(r, offset, PC);
+            default: throw new IllegalStateException(op + " is not a relational operator");
+        }
+    }
+
+    static Ast.Operator negate(final Ast.Operator op) {
+        switch (op) {
+            case LEQ: return Ast.Operator.GT;
+            case LT: return Ast.Operator.GEQ;
+            case GEQ: return Ast.Operator.LT;
+            case GT: return Ast.Operator.LEQ;
+            case EQ: return Ast.Operator.NEQ;
+            case NEQ: return Ast.Operator.EQ;
+            default: throw new IllegalStateException(op + " is not a relational operator");
+        }
+    }
+}
@@ -3,25 +3,49 @@ package parser;
 
 import java.util.*;
 
-import static java.util.Collections.singleton;
 import static java.util.Collections.unmodifiableSet;
 
-/** encapsulates the computation of the first and follow sets for the symbols of a grammar */
+/** encapsulates the computation of the first and follow sets for the symbols of a grammar. the sets are computed as
+ *  bit sets indexed by symbol id */
 public class FirstAndFollow {
 
-    private final Map<Symbol, Set<Symbol>> first = new HashMap<>();
-    private final Map<Symbol, Set<Symbol>> follow = new HashMap<>();
+    private final Grammar g;
+    // indexed by symbol id. null for symbols whose sets aren't defined
+    private final BitSet[] first;
+    private final BitSet[] follow;
+    // the same sets as collections of symbols, for callers that want those
+    private final List<Set<Symbol>> firstSets = new ArrayList<>();
+    private final List<Set<Symbol>> followSets = new ArrayList<>();
 
-    public FirstAndFollow(final Grammar g) {
-        first(g);  // initialize the first sets
-        follow(g); // initialize the follow sets
+    public FirstAndFollow(final Grammar g) { this(g, new PhaseTimer()); }
+
+    /** @param timer records the time spent computing the first sets and the follow sets */
+    public FirstAndFollow(final Grammar g, final PhaseTimer timer) {
+        this.g = g;
+        first = new BitSet[g.symbolCount()];
+        follow = new BitSet[g.symbolCount()];
+        timer.time("first sets", () -> first()); // initialize the first sets
+        timer.time("follow sets", () -> follow()); // initialize the follow sets
+        for (int i = 0; i < g.symbolCount(); i++) {
+            firstSets.add(first[i] == null ? null : unmodifiableSet(toSymbols(first[i])));
+            followSets.add(follow[i] == null ? null : unmodifiableSet(toSymbols(follow[i])));
+        }
     }
 
     /** @return first(s) for the symbol s */
-    public Set<Symbol> first(final Symbol s) { return unmodifiableSet(first.get(s)); }
+    public Set<Symbol> first(final Symbol s) { return firstSets.get(index(s)); }
 
     /** @return follow(s) for the symbol s */
-    public Set<Symbol> follow(final Symbol s) { return unmodifiableSet(follow.get(s)); }
+    public Set<Symbol> follow(final Symbol s) { return followSets.get(index(s)); }
+
+    /** @return true if the symbol s can derive the empty string */
+    public boolean nullable(final Symbol s) { return first[index(s)].get(Symbol.EPSILON_ID); }
+
+    /** @return first(s) for the symbol with the given id, as a set of symbol ids. must not be modified */
+    BitSet firstIds(final int id) { return first[id]; }
+
+    /** @return follow(s) for the symbol with the given id, as a set of symbol ids. must not be modified */
+    BitSet followIds(final int id) { return follow[id]; }
 
     /**
      * The first set for a production <pre>first(A -> B)</pre> is defined as: <br>
@@ -29,12 +53,24 @@ public class FirstAndFollow {
      * first(B) U follow(A) if first(B) contains epsilon
      * @return <pre>first(A -> B)</pre> */
     public Set<Symbol> first(final Production p) {
-        final Set<Symbol> result = new HashSet<>();
+        final BitSet result = new BitSet(g.symbolCount());
         for (final Symbol s : p.getRhs()) {
-            result.addAll(first(s));
-            if (!first(s).contains(Symbol.epsilon)) { return result; }
+            final BitSet fs = first[index(s)];
+            result.or(fs);
+            if (!fs.get(Symbol.EPSILON_ID)) { return toSymbols(result); }
         }
-        result.addAll(follow(p.getLhs()));
+        result.or(follow[index(p.getLhs())]);
+        return toSymbols(result);
+    }
+
+    private int index(final Symbol s) {
+        if (!g.contains(s)) { throw new IllegalStateException(s + " is not a symbol of the grammar"); }
+        return g.id(s);
+    }
+
+    private Set<Symbol> toSymbols(final BitSet ids) {
+        final Set<Symbol> result = new HashSet<>();
+        for (int i = ids.nextSetBit(0); i >= 0; i = ids.nextSetBit(i+1)) { result.add(g.symbol(i)); }
         return result;
     }
 
@@ -56,39 +92,43 @@ public class FirstAndFollow {
      *     </li>
      * </ol>
      */
-    private void first(final Grammar g) {
+    private void first() {
         // for each terminal t, first(t) = {t}
-        g.getTerminals().forEach(t -> first.put(t, singleton(t)));
+        g.getTerminals().forEach(t -> {
+            first[g.id(t)] = new BitSet();
+            first[g.id(t)].set(g.id(t));
+        });
+        first[Symbol.EPSILON_ID] = new BitSet();
+        first[Symbol.EPSILON_ID].set(Symbol.EPSILON_ID);
         // for each non-terminal nt, initialize first(nt) to an empty set
-        g.getNonTerminals().forEach(nt -> first.put(nt, new HashSet<>()));
+        g.getNonTerminals().forEach(nt -> first[g.id(nt)] = new BitSet());
 
         // continue this process until no further changes to the first sets occur
-        final boolean[] done = { false };
-        while (!done[0]) {
-            done[0] = true;
+        boolean done = false;
+        while (!done) {
+            done = true;
             // for each of the nonterminals
-            g.getNonTerminals().forEach(nt -> {
+            for (final Symbol nt : g.getNonTerminals()) {
+                final BitSet fs = first[g.id(nt)];
                 // iterate through every production
-                g.get(nt).forEach(p -> {
-                    final Set<Symbol> rhs = new HashSet<>();
+                for (final Production p : g.get(nt)) {
+                    final BitSet rhs = new BitSet();
                     // for a production A -> a_1 a_2 ... a_n, add first(a_i) to the set of first items until
                     // some first(a_i) does not contain epsilon
                     for (final Symbol s : p.getRhs()) {
-                        final Set<Symbol> fs = first.get(s);
-                        rhs.addAll(fs);
-                        if (!fs.contains(Symbol.epsilon)) {
-                            rhs.remove(Symbol.epsilon);
+                        final BitSet fa = first[g.id(s)];
+                        rhs.or(fa);
+                        if (!fa.get(Symbol.EPSILON_ID)) {
+                            rhs.clear(Symbol.EPSILON_ID);
                             break;
                         }
                     }
-                    final Set<Symbol> fs = first.get(p.getLhs());
                     // found something new. add it and indicate that another iteration of the main loop should happen
-                    if (!fs.containsAll(rhs)) {
-                        fs.addAll(rhs);
-                        done[0] = false;
-                    }
-                });
-            });
+                    final int before = fs.cardinality();
+                    fs.or(rhs);
+                    if (fs.cardinality() != before) { done = false; }
+                }
+            }
         }
     }
 
@@ -102,58 +142,55 @@ public class FirstAndFollow {
      *     <li>follow(A) for all productions of the form A -> axb where first(b) contains epsilon</li>
      * </ol>
      */
-    private void follow(final Grammar g) {
+    private void follow() {
         // for each nonterminal nt, initialize follow(nt) to an empty set
-        g.getNonTerminals().forEach(nt -> follow.put(nt, new HashSet<>()));
+        g.getNonTerminals().forEach(nt -> follow[g.id(nt)] = new BitSet());
 
         // add $ to follow(goal)
-        follow.get(Symbol.goal).add(Symbol.$);
+        follow[Symbol.GOAL_ID].set(Symbol.EOF_ID);
 
         // continue this process until no further changes to the follow sets occur
-        final boolean[] done = { false };
-        while (!done[0]) {
-            done[0] = true;
+        boolean done = false;
+        while (!done) {
+            done = true;
             // for each nonterminal
-            g.getNonTerminals().forEach(nt -> {
+            for (final Symbol nt : g.getNonTerminals()) {
                 // iterate through every production
-                g.get(nt).forEach(p -> {
+                for (final Production p : g.get(nt)) {
                     // for a production A -> b_1 b_2 ... b_n
-                    final Set<Symbol> tail = new HashSet<>();
                     // set an initial tail set to contain follow(A) as calculated so far
-                    tail.addAll(follow.get(nt));
+                    final BitSet tail = (BitSet) follow[g.id(nt)].clone();
                     // go through each b_i in reverse order
-                    reverse(p.getRhs()).forEach(b -> {
+                    for (final Symbol b : reverse(p.getRhs())) {
                         // if b_i is a nonterminal
                         if (!b.isTerminal()) {
-                            // and tail contains items that are not in follow(b_i)
-                            if (!follow.get(b).containsAll(tail)) {
-                                // add the items to follow(b_i)
-                                follow.get(b).addAll(tail);
-                                // and indicate that another iteration of the main loop is necessary
-                                done[0] = false;
-                            }
+                            // add the items in tail to follow(b_i)
+                            final BitSet fb = follow[g.id(b)];
+                            final int before = fb.cardinality();
+                            fb.or(tail);
+                            // and indicate that another iteration of the main loop is necessary if any were new
+                            if (fb.cardinality() != before) { done = false; }
                             // if first(b_i) contains epsilon, then add first(b_i) minus epsilon to the existing tail set. Since
                             // b_i can derive epsilon, everything in follow(b_i) will also be in the follow sets of the
                             // preceding b's.
-                            if (first.get(b).contains(Symbol.epsilon)) {
-                                final Set<Symbol> fb = new HashSet<>(first.get(b));
-                                fb.remove(Symbol.epsilon);
-                                tail.addAll(fb);
+                            if (first[g.id(b)].get(Symbol.EPSILON_ID)) {
+                                tail.or(first[g.id(b)]);
+                                tail.clear(Symbol.EPSILON_ID);
                             }
                             // if first(b_i) does not contain epsilon, then tail is reset to just contain first(b_i)
                             else {
                                 tail.clear();
-                                tail.addAll(first.get(b));
+                                tail.or(first[g.id(b)]);
                             }
                         }
                         // if b_i is a terminal, then reset tail to first(b_i) which is just {b_i}
                         else {
                             tail.clear();
-                            tail.add(b);
+                            tail.set(g.id(b));
                         }
-                    });
-                });
-            });
+                    }
+                }
+            }
         }
     }
 
@@ -7,47 +7,88 @@ import static java.util.Collections.*;
 
 public class Grammar {
     private final Symbol start;
-    private final Map<Symbol, List<Production>> productions = new HashMap<>();
     private final Set<Symbol> nonTerminals = new HashSet<>();
     private final Set<Symbol> terminals = new HashSet<>();
+    // the number of each symbol of the grammar, and the symbol with each number
+    private final Map<Symbol,Integer> ids = new IdentityHashMap<>();
+    private final Symbol[] symbols;
+    private final List<List<Production>> productions;
 
     public Grammar(final Symbol start, final Collection<Production> ps) {
         this.start = start;
 
-        // partition the productions by lhs
-        for (final Production p : ps) {
-            final Symbol s = p.getLhs();
-            if (!productions.containsKey(s)) { productions.put(s, new LinkedList<>()); }
-            productions.get(s).add(p);
-        }
-
         // to facilitate parsing, add a rule "goal -> start $"
-        productions.put(Symbol.goal, singletonList(new Production(Symbol.goal, asList(start, Symbol.$))));
+        final List<Production> all = new ArrayList<>();
+        all.add(new Production(Symbol.goal, asList(start, Symbol.$)));
+        all.addAll(ps);
+
+        symbols = intern(all);
+
+        // partition the productions by lhs
+        productions = new ArrayList<>(symbols.length);
+        for (int i = 0; i < symbols.length; i++) { productions.add(new ArrayList<>()); }
+        all.forEach(p -> productions.get(id(p.getLhs())).add(p));
 
         // create separate sets for terminals and nonterminals
-        productions.forEach((k,v) -> {
-            nonTerminals.add(k);
-            v.forEach(p -> {
-                nonTerminals.add(p.getLhs());
-                p.getRhs().forEach(s -> {
-                    if (s instanceof Symbol.Terminal) { terminals.add(s); }
-                    if (s instanceof Symbol.NonTerminal) { nonTerminals.add(s); }
-                });
+        all.forEach(p -> {
+            nonTerminals.add(p.getLhs());
+            p.getRhs().forEach(s -> {
+                if (s instanceof Symbol.Terminal) { terminals.add(s); }
+                if (s instanceof Symbol.NonTerminal) { nonTerminals.add(s); }
             });
         });
     }
 
+    /* number the symbols of the grammar densely from 0, in the order in which they first appear. the special
+     * symbols come first, so their ids are the same in every grammar */
+    private Symbol[] intern(final List<Production> ps) {
+        final Set<Symbol> distinct = new LinkedHashSet<>(asList(Symbol.$, Symbol.epsilon, Symbol.goal));
+        ps.forEach(p -> {
+            distinct.add(p.getLhs());
+            distinct.addAll(p.getRhs());
+        });
+
+        final Map<String,Symbol> byName = new HashMap<>();
+        distinct.forEach(s -> {
+            final Symbol other = byName.put(s.toString(), s);
+            if (other != null) {
+                throw new IllegalStateException("the grammar uses two different symbols named " + s);
+            }
+        });
+
+        final Symbol[] result = distinct.toArray(new Symbol[0]);
+        for (int i = 0; i < result.length; i++) { ids.put(result[i], i); }
+        return result;
+    }
+
     /** @return the start symbol for this grammar */
     public Symbol getStart() { return start; }
 
     /** @return a list of productions whose lhs is the symbol s */
     public List<Production> get(final Symbol s) {
-        return productions.containsKey(s) ? unmodifiableList(productions.get(s)) : emptyList();
+        return contains(s) ? unmodifiableList(productions.get(id(s))) : emptyList();
+    }
+
+    /** @return true if s is one of the symbols of this grammar */
+    public boolean contains(final Symbol s) { return ids.containsKey(s); }
+
+    /** @return the number that identifies s within this grammar, or -1 if s isn't one of its symbols. the symbols
+     *  are numbered densely from 0, so the id can be used to index arrays. the same symbol may have different ids in
+     *  different grammars, except for the special symbols, whose ids are the same in every grammar */
+    public int id(final Symbol s) {
+        final Integer id = ids.get(s);
+        return id == null ? -1 : id;
     }
 
+    /** @return the number of symbols in this grammar, i.e. the size of an array indexed by symbol id */
+    public int symbolCount() { return symbols.length; }
+
+    /** @return the symbol with the given id, which must be from 0 to symbolCount() - 1 */
+    public Symbol symbol(final int id) { return symbols[id]; }
+
     /** @return a set containing all the nonterminal symbols in this grammar */
     public Set<Symbol> getNonTerminals() { return unmodifiableSet(nonTerminals); }
 
     /** @return a set containing all the terminal symbols in this grammar */
     public Set<Symbol> getTerminals() { return unmodifiableSet(terminals); }
-}
\ No newline at end of file
+}
@@ -0,0 +1,158 @@
+package parser;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * a node of a lossless concrete syntax tree. a green node knows its grammar symbol, the length of the source text it
+ * covers and its children, but not its parent or its position in the file, so identical subtrees can be shared (see
+ * GreenTreeBuilder). leaves are tokens, which carry the whitespace and comments around them as trivia, so the text of
+ * the whole tree is exactly the text that was parsed
+ */
+public abstract class GreenNode {
+    private final Symbol symbol;
+    private final int width;
+    private final int hash;
+
+    private GreenNode(final Symbol symbol, final int width, final int hash) {
+        this.symbol = symbol;
+        this.width = width;
+        this.hash = hash;
+    }
+
+    public Symbol getSymbol() { return symbol; }
+
+    /** @return the length of the text covered by this node, including trivia */
+    public int getWidth() { return width; }
+
+    /** @return the source text covered by this node, including trivia */
+    public String getText() {
+        final StringBuilder sb = new StringBuilder(width);
+        write(sb);
+        return sb.toString();
+    }
+
+    public abstract void write(final StringBuilder sb);
+
+    @Override public final int hashCode() { return hash; }
+
+    /** whitespace or a comment */
+    public static final class Trivia {
+        public enum Kind { WHITESPACE, COMMENT }
+
+        private final Kind kind;
+        private final String text;
+
+        Trivia(final Kind kind, final String text) {
+            this.kind = kind;
+            this.text = text;
+        }
+
+        public Kind getKind() { return kind; }
+        public String getText() { return text; }
+
+        @Override public int hashCode() { return kind.hashCode() * 31 + text.hashCode(); }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof Trivia) {
+                final Trivia other = (Trivia) obj;
+                return kind == other.kind && text.equals(other.text);
+            }
+            return false;
+        }
+
+        @Override public String toString() { return kind + "[" + text + "]"; }
+    }
+
+    /** a leaf: the text of a terminal symbol along with the trivia before and after it. by convention, a token's
+     *  trailing trivia runs up to and including the end of its line; everything else belongs to the next token */
+    public static final class Token extends GreenNode {
+        private final Trivia[] leading;
+        private final String text;
+        private final Trivia[] trailing;
+
+        Token(final Symbol symbol, final Trivia[] leading, final String text, final Trivia[] trailing) {
+            super(symbol, width(leading) + text.length() + width(trailing),
+                    ((symbol.hashCode() * 31 + Arrays.hashCode(leading)) * 31 + text.hashCode()) * 31
+                            + Arrays.hashCode(trailing));
+            this.leading = leading;
+            this.text = text;
+            this.trailing = trailing;
+        }
+
+        /** @return the text of the token itself, without trivia */
+        public String getTokenText() { return text; }
+        public List<Trivia> getLeadingTrivia() { return unmodifiableList(asList(leading)); }
+        public List<Trivia> getTrailingTrivia() { return unmodifiableList(asList(trailing)); }
+
+        @Override
+        public void write(final StringBuilder sb) {
+            for (final Trivia t : leading) { sb.append(t.text); }
+            sb.append(text);
+            for (final Trivia t : trailing) { sb.append(t.text); }
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof Token) {
+                final Token other = (Token) obj;
+                return hashCode() == other.hashCode() && getSymbol() == other.getSymbol() &&
+                        text.equals(other.text) && Arrays.equals(leading, other.leading) &&
+                        Arrays.equals(trailing, other.trailing);
+            }
+            return false;
+        }
+
+        @Override public String toString() { return getSymbol() + "[" + text + "]"; }
+
+        private static int width(final Trivia[] trivia) {
+            int width = 0;
+            for (final Trivia t : trivia) { width += t.text.length(); }
+            return width;
+        }
+    }
+
+    /** an interior node: a nonterminal and the nodes it derives */
+    public static final class Node extends GreenNode {
+        private final GreenNode[] children;
+
+        Node(final Symbol symbol, final GreenNode[] children) {
+            super(symbol, width(children), symbol.hashCode() * 31 + Arrays.hashCode(children));
+            this.children = children;
+        }
+
+        public List<GreenNode> getChildren() { return unmodifiableList(asList(children)); }
+
+        @Override
+        public void write(final StringBuilder sb) {
+            for (final GreenNode child : children) { child.write(sb); }
+        }
+
+        /* children are themselves shared, so they can be compared by identity */
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof Node) {
+                final Node other = (Node) obj;
+                if (hashCode() != other.hashCode() || getSymbol() != other.getSymbol() ||
+                        children.length != other.children.length) { return false; }
+                for (int i = 0; i < children.length; i++) {
+                    if (children[i] != other.children[i]) { return false; }
+                }
+                return true;
+            }
+            return false;
+        }
+
+        @Override public String toString() { return getSymbol() + asList(children).toString(); }
+
+        private static int width(final GreenNode[] children) {
+            int width = 0;
+            for (final GreenNode child : children) { width += child.width; }
+            return width;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package parser;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * builds lossless concrete syntax trees out of parse trees. every node is hash-consed: a node that is equal to one
+ * this builder has already made is replaced by the existing one, so repeated tokens and subtrees (within one file, or
+ * across all the files built with the same builder) are stored once. safe to use from several threads at once
+ */
+public class GreenTreeBuilder {
+    private static final GreenNode.Trivia[] NO_TRIVIA = {};
+
+    private final ConcurrentHashMap<Object,Object> cache = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    private <A> A intern(final A a) {
+        final Object existing = cache.putIfAbsent(a, a);
+        return existing == null ? a : (A) existing;
+    }
+
+    /** @return the number of distinct nodes and trivia this builder has made */
+    public int size() { return cache.size(); }
+
+    public GreenNode.Token token(final Symbol symbol, final List<GreenNode.Trivia> leading, final String text,
+                                 final List<GreenNode.Trivia> trailing) {
+        return intern(new GreenNode.Token(symbol, leading.toArray(NO_TRIVIA), text, trailing.toArray(NO_TRIVIA)));
+    }
+
+    public GreenNode.Node node(final Symbol symbol, final List<GreenNode> children) {
+        return intern(new GreenNode.Node(symbol, children.toArray(new GreenNode[children.size()])));
+    }
+
+    private GreenNode.Trivia trivia(final GreenNode.Trivia.Kind kind, final String text) {
+        return intern(new GreenNode.Trivia(kind, text));
+    }
+
+    /**
+     * @param tree a parse tree whose leaves are tokens from the list tokens
+     * @param tokens every token that was scanned from text, in order, including comments and the end of file token
+     * @param text the text the tokens were scanned from
+     * @param end gives the position in text just after a token. only whitespace is allowed between two tokens
+     * @param isComment true for the tokens that are comments. these are not part of the parse tree
+     * @return a tree for the symbol goal whose children are the root of the parse tree and the end of file token.
+     *         its text is exactly the given text
+     */
+    public <T> GreenNode build(final ParseTree<T> tree, final List<T> tokens, final String text,
+                               final ToIntFunction<T> end, final Predicate<T> isComment) {
+        // split the text into the tokens and the whitespace between them
+        final List<Lexeme<T>> lexemes = new ArrayList<>();
+        int pos = 0;
+        for (final T t : tokens) {
+            final int e = end.applyAsInt(t);
+            if (e < pos) { throw new IllegalStateException("token " + t + " does not have a valid position"); }
+            int start = pos;
+            while (start < e && isWhitespace(text.charAt(start))) { start++; }
+            if (start > pos) { lexemes.add(new Lexeme<>(null, text.substring(pos, start))); }
+            lexemes.add(new Lexeme<>(t, text.substring(start, e)));
+            pos = e;
+        }
+        if (pos < text.length()) { lexemes.add(new Lexeme<>(null, text.substring(pos))); }
+
+        // attach the trivia to the tokens. the last token (end of file) takes whatever trivia is left
+        final List<Leaf<T>> leaves = new ArrayList<>();
+        List<GreenNode.Trivia> leading = new ArrayList<>();
+        int i = 0;
+        while (i < lexemes.size()) {
+            final Lexeme<T> lexeme = lexemes.get(i++);
+            if (lexeme.token == null) {
+                leading.add(trivia(GreenNode.Trivia.Kind.WHITESPACE, lexeme.text));
+            } else if (isComment.test(lexeme.token)) {
+                leading.add(trivia(GreenNode.Trivia.Kind.COMMENT, lexeme.text));
+            } else {
+                final List<GreenNode.Trivia> trailing = new ArrayList<>();
+                final List<GreenNode.Trivia> next = new ArrayList<>();
+                // the rest of the line is trailing trivia
+                while (i < lexemes.size()) {
+                    final Lexeme<T> t = lexemes.get(i);
+                    if (t.token == null) {
+                        final int newline = t.text.indexOf('\n');
+                        if (newline < 0) {
+                            trailing.add(trivia(GreenNode.Trivia.Kind.WHITESPACE, t.text));
+                        } else {
+                            trailing.add(trivia(GreenNode.Trivia.Kind.WHITESPACE, t.text.substring(0, newline + 1)));
+                            if (newline + 1 < t.text.length()) {
+                                next.add(trivia(GreenNode.Trivia.Kind.WHITESPACE, t.text.substring(newline + 1)));
+                            }
+                            i++;
+                            break;
+                        }
+                    } else if (isComment.test(t.token)) {
+                        trailing.add(trivia(GreenNode.Trivia.Kind.COMMENT, t.text));
+                    } else {
+                        break;
+                    }
+                    i++;
+                }
+                leaves.add(new Leaf<>(lexeme.token, leading, lexeme.text, trailing));
+                leading = next;
+            }
+        }
+        // the symbols of the tokens come from the parse tree
+        final Iterator<Leaf<T>> iter = leaves.iterator();
+        final GreenNode root = build(tree, iter);
+        if (!iter.hasNext()) { throw new IllegalStateException("there is no end of file token"); }
+        final Leaf<T> last = iter.next();
+        final GreenNode eof = token(Symbol.$, last.leading, last.text, last.trailing);
+        if (iter.hasNext()) { throw new IllegalStateException("not every token is in the parse tree"); }
+
+        final List<GreenNode> children = new ArrayList<>(singletonList(root));
+        children.add(eof);
+        return node(Symbol.goal, children);
+    }
+
+    private <T> GreenNode build(final ParseTree<T> tree, final Iterator<Leaf<T>> iter) {
+        if (tree.getSymbol().isTerminal()) {
+            final Leaf<T> leaf = iter.hasNext() ? iter.next() : null;
+            if (leaf == null || leaf.token != tree.getT()) {
+                throw new IllegalStateException("the parse tree does not match the tokens at " + tree.getT());
+            }
+            return token(tree.getSymbol(), leaf.leading, leaf.text, leaf.trailing);
+        }
+        final List<GreenNode> children = new ArrayList<>();
+        tree.getChildren().forEach(child -> children.add(build(child, iter)));
+        return node(tree.getSymbol(), children);
+    }
+
+    private static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+    }
+
+    /* a token with its text and trivia, before it is given a symbol */
+    private static class Leaf<T> {
+        final T token;
+        final List<GreenNode.Trivia> leading;
+        final String text;
+        final List<GreenNode.Trivia> trailing;
+
+        Leaf(final T token, final List<GreenNode.Trivia> leading, final String text,
+             final List<GreenNode.Trivia> trailing) {
+            this.token = token;
+            this.leading = leading;
+            this.text = text;
+            this.trailing = trailing;
+        }
+    }
+
+    /* a token and its text, or (if token is null) whitespace */
+    private static class Lexeme<T> {
+        final T token;
+        final String text;
+
+        Lexeme(final T token, final String text) {
+            this.token = token;
+            this.text = text;
+        }
+    }
+}
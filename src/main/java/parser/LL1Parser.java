@@ -11,6 +11,8 @@ import static data.Either.right;
 
 public class LL1Parser<T> extends Parser<T> {
 
+    private final Grammar g;
+    // rows are indexed by the ids of nonterminals, columns by the ids of terminals
     private final Production[][] table;
 
     /**
@@ -21,19 +23,19 @@ public class LL1Parser<T> extends Parser<T> {
     public LL1Parser(final Grammar g, final Function<T,Symbol> toSymbol) {
         super(g, toSymbol);
 
+        this.g = g;
+
         // generate the parse table
 
-        final int height = g.getNonTerminals().size();
-        final int width = g.getTerminals().size();
-        table = new Production[height][width];
+        table = new Production[g.symbolCount()][g.symbolCount()];
 
         g.getNonTerminals().forEach(nt -> {
             g.get(nt).forEach(p -> {
                 firstAndFollow.first(p).stream()
                         .filter(Symbol::isTerminal)
                         .forEach(t -> {
-                            final int row = nonterminals.get(nt);
-                            final int col = terminals.get(t);
+                            final int row = g.id(nt);
+                            final int col = g.id(t);
                             if (table[row][col] == null) {
                                 table[row][col] = p;
                             } else {
@@ -103,9 +105,9 @@ public class LL1Parser<T> extends Parser<T> {
             // production based on the lookahead
             else {
                 // find the appropriate production
-                final int row = nonterminals.get(topS);
-                final int col = terminals.get(lookahead);
-                final Production p = table[row][col];
+                final int row = g.id(topS);
+                final int col = g.id(lookahead);
+                final Production p = g.contains(lookahead) ? table[row][col] : null;
                 // if there is no entry in the table, the input is not in the language of the grammar
                 if (p == null) {
                     // report current token as an error and start over with the next token
@@ -2,33 +2,31 @@ package parser;
 
 import data.Either;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.function.Function;
 
 public abstract class Parser<T> {
     protected final Symbol start;
-    protected final Map<Symbol,Integer> nonterminals = new HashMap<>();
-    protected final Map<Symbol,Integer> terminals = new HashMap<>();
     protected final Function<T,Symbol> toSymbol;
     protected final FirstAndFollow firstAndFollow;
+    protected final PhaseTimer timer;
 
     public Parser(final Grammar g, final Function<T,Symbol> toSymbol) {
+        this(g, null, new PhaseTimer(), toSymbol);
+    }
+
+    /** @param firstAndFollow the first and follow sets for g, if they have already been computed, otherwise null */
+    protected Parser(final Grammar g, final FirstAndFollow firstAndFollow, final PhaseTimer timer,
+                     final Function<T,Symbol> toSymbol) {
         this.toSymbol = toSymbol;
+        this.timer = timer;
         start = g.getStart();
-        firstAndFollow = new FirstAndFollow(g);
-
-        // assign each nonterminal to a row
-        final List<Symbol> nts = new ArrayList<>(g.getNonTerminals());
-        for (int i = 0; i < nts.size(); i++) { nonterminals.put(nts.get(i), i);}
-
-        // assign each terminal to a column
-        final List<Symbol> ts = new ArrayList<>(g.getTerminals());
-        for (int i = 0; i < ts.size(); i++) { terminals.put(ts.get(i), i); }
+        this.firstAndFollow = firstAndFollow != null ? firstAndFollow : new FirstAndFollow(g, timer);
     }
 
+    /** @return the time spent in each phase of building this parser */
+    public PhaseTimer getTimer() { return timer; }
+
     /** @return either a list of erroneous tokens or a full parse tree of the input */
     public abstract Either<List<T>, ParseTree<T>> parse(final List<T> tokens);
 }
\ No newline at end of file
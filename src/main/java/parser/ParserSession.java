@@ -0,0 +1,95 @@
+package parser;
+
+import data.Either;
+import logging.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * the state of an LR(1) parse: the stack of states and the stack of partially built parse trees. the stacks are
+ * cleared and reused by each parse, so a session can serve any number of parses, but only one at a time. a session
+ * must not be shared between threads; the tables it reads from can be
+ */
+public class ParserSession<T> {
+    private final Logger logger = new Logger();
+
+    private final ParserTables tables;
+    private final Function<T,Symbol> toSymbol;
+    private final Deque<ParseTree<T>> parseStack = new ArrayDeque<>();
+    private final Deque<Integer> stateStack = new ArrayDeque<>();
+
+    public ParserSession(final ParserTables tables, final Function<T,Symbol> toSymbol) {
+        this.tables = tables;
+        this.toSymbol = toSymbol;
+    }
+
+    /** @return either a list of erroneous tokens or a full parse tree of the input */
+    public Either<List<T>,ParseTree<T>> parse(final List<T> tokens) {
+        final List<T> errors = new LinkedList<>();
+        try {
+            final ParseTree<T> result = parse(tokens, errors);
+            if (errors.isEmpty()) { return Either.right(result);
+            } else { return Either.left(errors); }
+        } finally {
+            // don't hold on to the trees of the last parse
+            parseStack.clear();
+            stateStack.clear();
+        }
+    }
+
+    private ParseTree<T> parse(final List<T> tokens, final List<T> errors) {
+        stateStack.push(0);
+
+        final Iterator<T> iter = tokens.iterator();
+
+        T token = iter.next();
+        Symbol symbol = toSymbol.apply(token);
+        while (true) {
+            final int state = stateStack.peek();
+            logger.trace("state=" + state + "| token=" + token + "| symbol=" + symbol);
+
+            final ParserTables.Action action = tables.getAction(state, symbol);
+            logger.trace("    >" + action);
+
+            if (action == null) {
+                errors.add(token);
+                return parseStack.peek();
+            }
+
+            if (action instanceof ParserTables.Reduce) {
+                final Production production = ((ParserTables.Reduce) action).production;
+                final Symbol a = production.getLhs();
+                int size = 0;
+                for (final Symbol s : production.getRhs()) { if (!s.equals(Symbol.epsilon)) { size++; } }
+                final ParseTree<T> t = new ParseTree<>(a, token);
+                final Deque<ParseTree<T>> temp = new ArrayDeque<>(size); // to add the children in the correct order
+                for (int i=0; i<size; i++) {
+                    stateStack.pop();
+                    temp.push(parseStack.pop());
+                }
+                for (int i=0; i<size; i++) { t.addChild(temp.pop()); }
+                parseStack.push(t);
+                stateStack.push(tables.getTransition(stateStack.peek(), a));
+                logger.trace("    >goto " + stateStack.peek());
+                continue;
+            }
+
+            if (action instanceof ParserTables.Shift) {
+                final ParserTables.Shift shift = (ParserTables.Shift) action;
+                parseStack.push(new ParseTree<>(symbol, token));
+                stateStack.push(shift.nextState);
+                token = iter.next();
+                symbol = toSymbol.apply(token);
+                continue;
+            }
+
+            if (action instanceof ParserTables.Accept) { break; }
+        }
+        return parseStack.pop();
+    }
+}
@@ -0,0 +1,622 @@
+package parser;
+
+import logging.Logger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+import static java.util.Collections.*;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * the LR(1) automaton for a grammar and the action and goto tables built from it. a ParserTables holds no state that
+ * belongs to any one parse, so a single instance can be shared by any number of parsers and threads. eagerly built
+ * tables are never modified after construction. lazily built tables only ever add rows, under a lock, and a row is
+ * visible to other threads only after it is complete
+ */
+public class ParserTables {
+    private final Logger logger = new Logger();
+
+    private final Grammar g;
+    private final boolean strict;
+    private final PhaseTimer timer;
+    private final FirstAndFollow firstAndFollow;
+    private final Tables tables;
+
+    /** how the states of the LR(1) automaton and the rows of the parse tables are constructed */
+    public enum Construction {
+        /** the whole canonical collection and both tables are built by the constructor */
+        EAGER,
+        /** a state's row of the tables (and the states it leads to) are built the first time a parser reaches that
+         *  state. construction cost is proportional to the part of the grammar that is actually used, but a
+         *  reduce-reduce conflict is not detected until a parse reaches the state in which it occurs */
+        LAZY
+    }
+
+    public ParserTables(final Grammar g) { this(g, Construction.EAGER); }
+
+    public ParserTables(final Grammar g, final Construction construction) {
+        this(g, construction, PhaseTimer.OFF);
+    }
+
+    /** @param timer records the time spent in each phase of building the tables. the phases that run for every
+     *               state, which for lazily built tables includes parsing, are only timed if it is enabled */
+    public ParserTables(final Grammar g, final Construction construction, final PhaseTimer timer) {
+        this(g, construction, true, timer);
+    }
+
+    /** @param strict if false, a reduce-reduce conflict does not cause an exception. instead, the reduce action that
+     *                was added to the tables first is kept and the conflict is recorded like any other */
+    private ParserTables(final Grammar g, final Construction construction, final boolean strict,
+                         final PhaseTimer timer) {
+        this.g = g;
+        this.strict = strict;
+        this.timer = timer;
+        firstAndFollow = new FirstAndFollow(g, timer);
+        tables = construction == Construction.LAZY ? new LazyParseTables() : buildParseTables();
+    }
+
+    /** @return tables for the grammar g that are built even if the grammar has reduce-reduce conflicts. intended for
+     *  tools that report on a grammar rather than for parsing input */
+    public static ParserTables forAnalysis(final Grammar g) {
+        return new ParserTables(g, Construction.EAGER, false, new PhaseTimer());
+    }
+
+    /** @return the grammar these tables were generated from */
+    public Grammar getGrammar() { return g; }
+
+    FirstAndFollow getFirstAndFollow() { return firstAndFollow; }
+
+    /** @return the time spent in each phase of building these tables, if they were given a timer that is enabled */
+    public PhaseTimer getTimer() { return timer; }
+
+    /** @return the number of states in the LR(1) automaton, i.e. the number of rows in the parse tables. for lazily
+     *  constructed tables, only the states that have been discovered so far are counted */
+    public int getStateCount() { return tables.stateCount(); }
+
+    /** @return the number of non-empty entries in the action table */
+    public int getActionCount() { return tables.actionCount(); }
+
+    /** @return the number of non-empty entries in the goto table */
+    public int getGotoCount() { return tables.gotoCount(); }
+
+    /** @return every conflict found (and resolved) while building the parse tables */
+    public List<Conflict> getConflicts() { return tables.conflicts(); }
+
+    /** @return the action for the given state and lookahead symbol, or null if there is none */
+    Action getAction(final int state, final Symbol symbol) { return tables.getAction(state, symbol); }
+
+    /** @return the state to go to from the given state after a reduction to the given nonterminal */
+    int getTransition(final int state, final Symbol symbol) { return tables.getTransition(state, symbol); }
+
+    ParseTables buildParseTables() {
+        logger.trace("building parse tables");
+        final CanonicalCollection cc = timer.time("canonical collection", this::canonicalCollection);
+        final ParseTables tables = timer.time("parse tables", () -> buildParseTables(cc));
+        tables.stateCount = cc.getSets().size();
+        // find an example of how each conflict can be reached so the conflicts can be understood by a human
+        if (!tables.conflicts.isEmpty()) { tables.conflicts.replaceAll(withPrefixes(cc)); }
+        return tables;
+    }
+
+    private ParseTables buildParseTables(final CanonicalCollection cc) {
+        final ParseTables tables = new ParseTables(g, strict);
+        cc.getSets().forEach((i,cci) -> addRow(tables, cc, i, cci));
+        return tables;
+    }
+
+    /* add the entries of both tables for the state i, whose outgoing transitions must already be in cc */
+    private void addRow(final ParseTables tables, final CanonicalCollection cc, final int i,
+                        final Set<LR1Item> cci) {
+        logger.trace("canonical collection set #" + i);
+        tables.addRow(i);
+        final int[] transitions = cc.getTransitions(i);
+        cci.forEach(item -> {
+            logger.trace("item: " + item);
+            final Symbol next = item.next();
+            if (// if the dot isn't at the end of the production
+                    next != null &&
+                    //and this isn't an epsilon production
+                    next != Symbol.epsilon &&
+                    // and a transition exists from the current state on the next symbol of the production
+                    transitions[g.id(next)] >= 0) {
+                // then add a shift action if the next symbol of the production is a terminal
+                if (next.isTerminal()) {
+                    final int j = transitions[g.id(next)];
+                    tables.addAction(i, next, new Shift(j));
+                    logger.trace("adding a shift action from " + i + " to " + j + " on " + next);
+                }
+            } else if (next == null && isTarget(item)) {
+                tables.addAction(i, Symbol.$, new Accept());
+                logger.trace("adding an accept action for state " + i);
+            } else if (next == null || next == Symbol.epsilon) {
+                tables.addAction(i, item.lookAhead, new Reduce(item.production));
+                logger.trace("adding a reduce action from " + i + " using rule " + item.production);
+            } else {
+                throw new IllegalStateException("something went terribly wrong while building parse tables");
+            }
+        });
+        g.getNonTerminals().forEach(nt -> {
+            final int j = transitions[g.id(nt)];
+            if (j >= 0) {
+                tables.addTransition(i, nt, j);
+                logger.trace("adding a goto table entry from " + i + " to " + j + " for reduction to " + nt);
+            } else {
+                logger.trace("there is no transition from " + i + " on a reduction to " + nt);
+            }
+        });
+    }
+
+    /* a function that copies a conflict, adding an example of how the state in which it occurs can be reached */
+    private UnaryOperator<Conflict> withPrefixes(final CanonicalCollection cc) {
+        final Map<Integer,List<Symbol>> prefixes = accessingSymbols(cc);
+        return c -> new Conflict(c.kind, c.state, c.symbol, c.kept, c.discarded, prefixes.get(c.state));
+    }
+
+    /* a breadth first search of the automaton finds, for each state, a shortest string of grammar symbols that leads
+     * from the initial state to that state */
+    private Map<Integer,List<Symbol>> accessingSymbols(final CanonicalCollection cc) {
+        final Map<Integer,List<Symbol>> result = new HashMap<>();
+        final Queue<Integer> queue = new LinkedList<>();
+        result.put(0, emptyList());
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            final int from = queue.remove();
+            final int[] transitions = cc.getTransitions(from);
+            if (transitions == null) { continue; }
+            for (int id = 0; id < transitions.length; id++) {
+                final int to = transitions[id];
+                if (to >= 0 && !result.containsKey(to)) {
+                    final List<Symbol> path = new ArrayList<>(result.get(from));
+                    path.add(g.symbol(id));
+                    result.put(to, path);
+                    queue.add(to);
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean isTarget(final LR1Item item) {
+        return item.production.getLhs() == Symbol.goal && item.getLookAhead() == Symbol.$;
+    }
+
+    /** the action and goto tables as seen by the parse loop */
+    interface Tables {
+        Action getAction(int state, Symbol symbol);
+        int getTransition(int state, Symbol symbol);
+        int stateCount();
+        int actionCount();
+        int gotoCount();
+        List<Conflict> conflicts();
+    }
+
+    /**
+     * the tables, stored as one row per state, indexed by symbol id. rows are only ever added, by one thread at a time,
+     * and a row is complete before any reader can ask for its state
+     */
+    static class ParseTables implements Tables {
+        private final Logger logger = new Logger();
+        private final Grammar g;
+        private final boolean strict;
+        private volatile Action[][] actionTable = new Action[16][];
+        private volatile int[][] gotoTable = new int[16][];
+        private volatile int actionCount = 0;
+        private volatile int gotoCount = 0;
+        private final List<Conflict> conflicts = new ArrayList<>();
+        private int stateCount;
+
+        ParseTables(final Grammar g, final boolean strict) {
+            this.g = g;
+            this.strict = strict;
+        }
+
+        @Override public int stateCount() { return stateCount; }
+        @Override public int actionCount() { return actionCount; }
+        @Override public int gotoCount() { return gotoCount; }
+        @Override public List<Conflict> conflicts() { return unmodifiableList(conflicts); }
+
+        /* make room for the entries of the given state */
+        void addRow(final int state) {
+            if (state >= actionTable.length) {
+                final int size = Math.max(state + 1, actionTable.length * 2);
+                // the rows are copied into the new arrays before they replace the old ones
+                actionTable = Arrays.copyOf(actionTable, size);
+                gotoTable = Arrays.copyOf(gotoTable, size);
+            }
+            actionTable[state] = new Action[g.symbolCount()];
+            final int[] gotos = new int[g.symbolCount()];
+            Arrays.fill(gotos, -1);
+            gotoTable[state] = gotos;
+        }
+
+        void addAction(final int state, final Symbol symbol, final Action action) {
+            final Action[] row = actionTable[state];
+            final Action other = row[g.id(symbol)];
+            // in order to handle ambiguities such as the dangling else problem, if a shift-reduce conflict occurs,
+            // then the shift action will be kept and the reduce action will be thrown out
+            if (other != null && !other.equals(action)) {
+                if (action instanceof Shift && other instanceof Reduce) {
+                    logger.debug("shift-reduce conflict -- replacing reduce action with shift action");
+                    row[g.id(symbol)] = action;
+                    conflicts.add(new Conflict(Conflict.Kind.SHIFT_REDUCE, state, symbol, action, other, null));
+                } else if (action instanceof Reduce && other instanceof Shift) {
+                    logger.debug("shift-reduce conflict -- discarding reduce action in favor of shift action");
+                    conflicts.add(new Conflict(Conflict.Kind.SHIFT_REDUCE, state, symbol, other, action, null));
+                } else if (action instanceof Reduce && other instanceof Reduce) {
+                    final String message = "\nreduce-reduce conflict!\n" +
+                            "state=" + state + "\n" +
+                            "symbol=" + symbol + "\n" +
+                            "existing action=" + other + "\n" +
+                            "new action=" + action;
+                    if (strict) { throw new IllegalStateException(message); }
+                    logger.debug(message);
+                    conflicts.add(new Conflict(Conflict.Kind.REDUCE_REDUCE, state, symbol, other, action, null));
+                }
+            } else if (other == null) {
+                row[g.id(symbol)] = action;
+                actionCount++;
+            }
+        }
+
+        @Override
+        public Action getAction(final int state, final Symbol symbol) {
+            final int id = g.id(symbol);
+            return id < 0 ? null : actionTable[state][id];
+        }
+
+        void addTransition(final int from, final Symbol on, final int to) {
+            final int[] row = gotoTable[from];
+            if (row[g.id(on)] >= 0 && row[g.id(on)] != to) {
+                throw new IllegalStateException("attempt to replace an existing entry in goto table");
+            } else if (row[g.id(on)] < 0) {
+                row[g.id(on)] = to;
+                gotoCount++;
+            }
+        }
+
+        @Override
+        public int getTransition(final int state, final Symbol symbol) {
+            final int id = g.id(symbol);
+            final int to = id < 0 ? -1 : gotoTable[state][id];
+            if (to < 0) {
+                throw new IllegalStateException("there is no entry in the goto table for state " + state + " and " + symbol);
+            }
+            return to;
+        }
+    }
+
+    /**
+     * tables whose rows are built on demand. the first time a state is reached, the goTo sets for each of its
+     * outgoing transitions are computed (which numbers any states not seen before) and then the state's row is added
+     * to both tables. rows are built under a lock; once built, a row is read without locking
+     */
+    private class LazyParseTables implements Tables {
+        private final ParseTables tables = new ParseTables(g, strict);
+        private final CanonicalCollection cc = new CanonicalCollection(g);
+        private final Set<Integer> built = ConcurrentHashMap.newKeySet();
+
+        LazyParseTables() {
+            final long start = timer.start();
+            cc.add(closure(singleton(initialItem())));
+            timer.stop("canonical collection", start);
+        }
+
+        private void build(final int state) {
+            if (built.contains(state)) { return; }
+            synchronized (this) {
+                if (built.contains(state)) { return; }
+                final long start = timer.start();
+                final Set<LR1Item> cci = cc.getSets().get(state);
+                if (cci == null) { throw new IllegalStateException("no such state: " + state); }
+                addTransitions(cc, cci);
+                final long middle = timer.start();
+                addRow(tables, cc, state, cci);
+                timer.add("canonical collection", middle - start);
+                timer.stop("parse tables", middle);
+                // publishing the state only after its row is complete lets readers skip the lock
+                built.add(state);
+            }
+        }
+
+        @Override
+        public Action getAction(final int state, final Symbol symbol) {
+            build(state);
+            return tables.getAction(state, symbol);
+        }
+
+        @Override
+        public int getTransition(final int state, final Symbol symbol) {
+            build(state);
+            return tables.getTransition(state, symbol);
+        }
+
+        @Override public synchronized int stateCount() { return cc.getSets().size(); }
+        @Override public int actionCount() { return tables.actionCount(); }
+        @Override public int gotoCount() { return tables.gotoCount(); }
+
+        @Override
+        public synchronized List<Conflict> conflicts() {
+            return unmodifiableList(tables.conflicts.stream().map(withPrefixes(cc)).collect(toList()));
+        }
+    }
+
+    /** a conflicting pair of actions for the same state and lookahead symbol. only one of them is kept */
+    public static class Conflict {
+        public enum Kind { SHIFT_REDUCE, REDUCE_REDUCE }
+
+        private final Kind kind;
+        private final int state;
+        private final Symbol symbol;
+        private final Action kept;
+        private final Action discarded;
+        private final List<Symbol> prefix;
+
+        private Conflict(final Kind kind, final int state, final Symbol symbol, final Action kept,
+                         final Action discarded, final List<Symbol> prefix) {
+            this.kind = kind;
+            this.state = state;
+            this.symbol = symbol;
+            this.kept = kept;
+            this.discarded = discarded;
+            this.prefix = prefix;
+        }
+
+        public Kind getKind() { return kind; }
+        public int getState() { return state; }
+        /** @return the lookahead symbol on which the conflict occurs */
+        public Symbol getSymbol() { return symbol; }
+        public String getKept() { return kept.toString(); }
+        public String getDiscarded() { return discarded.toString(); }
+        /** @return a shortest string of grammar symbols that takes the parser from its initial state to the state
+         *  in which the conflict occurs */
+        public List<Symbol> getPrefix() { return unmodifiableList(prefix); }
+
+        @Override
+        public String toString() {
+            return kind + " in state " + state + " on " + symbol + ": kept " + kept + ", discarded " + discarded;
+        }
+    }
+
+    static class Action {}
+
+    static class Accept extends Action {
+        @Override public String toString() { return "accept"; }
+    }
+
+    static class Shift extends Action {
+        final int nextState;
+        Shift(final int nextState) { this.nextState = nextState; }
+        @Override public String toString() { return "shift:" + nextState; }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof Shift) {
+                final Shift other = (Shift) obj;
+                return nextState == other.nextState;
+            }
+            return false;
+        }
+    }
+
+    static class Reduce extends Action {
+        final Production production;
+        Reduce(final Production production) { this.production = production; }
+        @Override public String toString() { return "reduce:" + production; }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof Reduce) {
+                final Reduce other = (Reduce) obj;
+                return production.equals(other.production);
+            }
+            return false;
+        }
+    }
+
+    /* compute the closure of a set of LR1 items */
+    Set<LR1Item> closure(final Set<LR1Item> items) {
+        final long start = timer.start();
+        // the item itself is in the closure
+        final Set<LR1Item> result = new HashSet<>(items);
+        // each item that is added to the result may generate more items
+        final Deque<LR1Item> work = new ArrayDeque<>(items);
+        final BitSet first = new BitSet(g.symbolCount());
+        while (!work.isEmpty()) {
+            final LR1Item i = work.pop();
+            // if the sentence after the dot is not empty and its first symbol is a non-terminal
+            final Symbol s = i.next();
+            if (s == null || s.isTerminal()) { continue; }
+            // calculate the first of the rest of the sentence followed by the item's lookahead
+            first(i.production.getRhs(), i.dotPosition + 1, i.getLookAhead(), first);
+            // for every production rule deriving from the non-terminal
+            for (final Production p : g.get(s)) {
+                // and every terminal in the previously computed first set
+                for (int b = first.nextSetBit(0); b >= 0; b = first.nextSetBit(b+1)) {
+                    // add a new item
+                    final LR1Item item = new LR1Item(p, 0, g.symbol(b));
+                    if (result.add(item)) { work.push(item); }
+                }
+            }
+        }
+        timer.stop("canonical collection/closure", start);
+        return result;
+    }
+
+    /* compute, into result, the first set for the symbols of rhs from the given position, followed by the symbol
+     * lookahead. epsilon is not included */
+    private void first(final List<Symbol> rhs, final int from, final Symbol lookahead, final BitSet result) {
+        result.clear();
+        // add the first sets of each individual symbol until a set does not contain epsilon
+        for (int j = from; j < rhs.size(); j++) {
+            final BitSet tmp = firstAndFollow.firstIds(g.id(rhs.get(j)));
+            result.or(tmp);
+            if (!tmp.get(Symbol.EPSILON_ID)) {
+                result.clear(Symbol.EPSILON_ID);
+                return;
+            }
+        }
+        result.or(firstAndFollow.firstIds(g.id(lookahead)));
+        result.clear(Symbol.EPSILON_ID);
+    }
+
+    Set<LR1Item> goTo(final Set<LR1Item> items, final Symbol symbol) {
+        final long start = timer.start();
+        final Set<LR1Item> result = new HashSet<>();
+        items.forEach(item -> {
+            if (item.next() == symbol) {
+                result.add(new LR1Item(item.production, item.dotPosition+1, item.lookAhead));
+            }
+        });
+        // the time spent in closure is recorded separately
+        timer.stop("canonical collection/goto", start);
+        return closure(result);
+    }
+
+    CanonicalCollection canonicalCollection() {
+        final CanonicalCollection cc = new CanonicalCollection(g);
+
+        final Set<LR1Item> cc0 = closure(singleton(initialItem()));
+
+        cc.add(cc0);
+
+        boolean done = false;
+        while (!done) {
+            done = true;
+            // for unprocessed set in cc
+            for (final Set<LR1Item> cci : cc.getUnprocessed()) {
+                if (addTransitions(cc, cci)) { done = false; }
+            }
+        }
+        return cc;
+    }
+
+    private LR1Item initialItem() {
+        return new LR1Item(new Production(Symbol.goal, singletonList(g.getStart())), 0, Symbol.$);
+    }
+
+    /* add the transitions out of the set cci to cc, along with any sets they lead to that are not already in cc.
+     * returns true if any new sets were added */
+    private boolean addTransitions(final CanonicalCollection cc, final Set<LR1Item> cci) {
+        boolean added = false;
+        final BitSet seen = new BitSet(g.symbolCount());
+        // for each item in the current set
+        for (final LR1Item item : cci) {
+            final Symbol x = item.next();
+            // if the item is of the form a -> b.xc (and the transition on x hasn't already been found)
+            if (x != null && !seen.get(g.id(x))) {
+                seen.set(g.id(x));
+                // calculate the goTo set for the item and the symbol x
+                final Set<LR1Item> temp = goTo(cci, x);
+                // if this set isn't already part of cc, then add it
+                if (!cc.contains(temp)) {
+                    cc.add(temp);
+                    added = true;
+                }
+                // record the transition from the current cci on the symbol x to this new set
+                cc.addTransition(cci, x, temp);
+            }
+        }
+        return added;
+    }
+
+    static class CanonicalCollection {
+        final Grammar g;
+        final int width;
+        int nextNumber = 0;
+        final Map<Integer,Set<LR1Item>> intToSet = new TreeMap<>();
+        final Map<Set<LR1Item>,Integer> setToInt = new HashMap<>();
+        // for each state, the state reached on each symbol id, or -1
+        final List<int[]> transitions = new ArrayList<>();
+        List<Set<LR1Item>> unprocessed = new ArrayList<>();
+
+        /** @param g the grammar whose symbols the transitions are on */
+        CanonicalCollection(final Grammar g) {
+            this.g = g;
+            this.width = g.symbolCount();
+        }
+
+        boolean contains(final Set<LR1Item> set) {
+            return setToInt.containsKey(set);
+        }
+
+        Map<Integer,Set<LR1Item>> getSets() { return unmodifiableMap(intToSet); }
+
+        /** @return the transitions out of the given state indexed by symbol id, -1 where there is none. must not be
+         *  modified */
+        int[] getTransitions(final int from) { return transitions.get(from); }
+
+        Collection<Set<LR1Item>> getUnprocessed() {
+            final Collection<Set<LR1Item>> temp = unprocessed;
+            unprocessed = new ArrayList<>();
+            return temp;
+        }
+
+        void add(final Set<LR1Item> set) {
+            if (setToInt.containsKey(set)) { throw new IllegalStateException("set is already in cc"); }
+            setToInt.put(set,nextNumber);
+            intToSet.put(nextNumber,set);
+            final int[] row = new int[width];
+            Arrays.fill(row, -1);
+            transitions.add(row);
+            unprocessed.add(set);
+            nextNumber++;
+        }
+
+        void addTransition(final Set<LR1Item> from, final Symbol on, final Set<LR1Item> to) {
+            if (!setToInt.containsKey(from)) { throw new IllegalStateException("not in cc: " + from); }
+            if (!setToInt.containsKey(to)) { throw new IllegalStateException("not in cc: " + to); }
+            final int[] row = transitions.get(setToInt.get(from));
+            final int to_ = setToInt.get(to);
+            if (row[g.id(on)] >= 0) {
+                if (row[g.id(on)] != to_) { throw new IllegalStateException("attempting to alter an existing transition"); }
+            } else {
+                row[g.id(on)] = to_;
+            }
+        }
+    }
+
+    static class LR1Item {
+        private final Production production;
+        private final int dotPosition;
+        private final Symbol lookAhead;
+        // items are hashed many times while the canonical collection is built
+        private final int hash;
+
+        LR1Item(final Production production,
+                       final int dotPosition,
+                       final Symbol lookAhead) {
+            this.production = production;
+            this.dotPosition = dotPosition;
+            this.lookAhead = lookAhead;
+            hash = production.hashCode() + dotPosition + lookAhead.hashCode();
+        }
+
+        /** @return the symbol after the dot, or null if the dot is at the end */
+        Symbol next() {
+            final List<Symbol> rhs = production.getRhs();
+            return dotPosition < rhs.size() ? rhs.get(dotPosition) : null;
+        }
+
+        Symbol getLookAhead() { return lookAhead; }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof LR1Item) {
+                final LR1Item other = (LR1Item) obj;
+                return hash == other.hash &&
+                        dotPosition == other.dotPosition &&
+                        lookAhead == other.lookAhead &&
+                        production.equals(other.production);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() { return hash; }
+
+        @Override
+        public String toString() { return "[" + production + ", " + dotPosition + ", " + lookAhead +"]"; }
+    }
+}
@@ -0,0 +1,58 @@
+package parser;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableMap;
+
+/** accumulates the time spent in named phases of a computation. phases are kept in the order they first occur. a
+ *  phase named "a/b" is part of the phase "a", and its time is also counted in a's */
+public class PhaseTimer {
+    /** a timer that records nothing, for when no one will ask for the times. timing a phase with it costs no more
+     *  than running it */
+    public static final PhaseTimer OFF = new PhaseTimer(false);
+
+    private final boolean enabled;
+    private final Map<String,Long> nanos = new LinkedHashMap<>();
+
+    public PhaseTimer() { this(true); }
+
+    private PhaseTimer(final boolean enabled) { this.enabled = enabled; }
+
+    /** @return false if this timer records nothing */
+    public boolean isEnabled() { return enabled; }
+
+    /** run f and add the time it took to the given phase */
+    public <R> R time(final String phase, final Supplier<R> f) {
+        if (!enabled) { return f.get(); }
+        final long start = System.nanoTime();
+        try { return f.get(); }
+        finally { add(phase, System.nanoTime() - start); }
+    }
+
+    /** run f and add the time it took to the given phase */
+    public void time(final String phase, final Runnable f) {
+        time(phase, () -> { f.run(); return null; });
+    }
+
+    /** @return the time to pass to stop when a phase that isn't a single call ends, or 0 if nothing is recorded */
+    public long start() { return enabled ? System.nanoTime() : 0; }
+
+    /** add the time since start, which came from start(), to the given phase */
+    public void stop(final String phase, final long start) {
+        if (enabled) { add(phase, System.nanoTime() - start); }
+    }
+
+    public void add(final String phase, final long elapsed) {
+        if (!enabled) { return; }
+        synchronized (this) { nanos.merge(phase, elapsed, Long::sum); }
+    }
+
+    /** @return the accumulated nanoseconds for each phase */
+    public Map<String,Long> getNanos() {
+        if (!enabled) { return emptyMap(); }
+        synchronized (this) { return unmodifiableMap(new LinkedHashMap<>(nanos)); }
+    }
+}
@@ -9,6 +9,9 @@ public abstract class Symbol {
     /** @return true if this symbol represents a terminal in the grammar. false if it represents a nonterminal */
     public abstract boolean isTerminal();
 
+    /** the ids of the special symbols, which Grammar numbers first, are the same in every grammar */
+    static final int EOF_ID = 0, EPSILON_ID = 1, GOAL_ID = 2;
+
     /** special symbol used in production rules to indicate that a nonterminal can simply be removed (i.e. replaced
      * with nothing  */
     public static final Symbol epsilon = new Terminal("epsilon");
@@ -21,7 +24,9 @@ public abstract class Symbol {
     /** special symbol indicating end of input. added automatically */
     public static final Symbol $ = new Terminal("$");
 
-    @Override final public boolean equals(final Object other) { return str.equals(((Symbol)other).str); }
+    /** symbols are compared by identity. two different symbols with the same name are different symbols, and a
+     *  grammar will not accept both */
+    @Override final public boolean equals(final Object other) { return this == other; }
     @Override final public int hashCode() { return str.hashCode(); }
     @Override final public String toString() { return str; }
 
@@ -34,4 +39,4 @@ public abstract class Symbol {
         public NonTerminal(final String str) { super(str); }
         @Override public boolean isTerminal() { return false; }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,194 @@
+package parser.tools;
+
+import cm.CmParser;
+import parser.Grammar;
+import parser.ParserTables;
+import parser.Production;
+import parser.Symbol;
+import tiny.TinyLR1Parser;
+
+import java.util.*;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Reports on the size and the problems of a grammar and of the LR(1) parse tables generated from it: the number of
+ * states, how densely the tables are filled, every conflict along with an example of input that leads to it, symbols
+ * that are nullable, unreachable, or unproductive, and the time spent in each phase of building the tables.
+ */
+public class GrammarReport {
+
+    public static void main(final String... args) {
+        if (args.length == 0) {
+            System.out.println("usage: GrammarReport cm|tiny");
+            System.exit(1);
+        }
+        switch (args[0]) {
+            // the report builds the tables itself, so the parsers only build what a parse reaches, which is nothing
+            case "cm":
+                System.out.println(new GrammarReport(new CmParser(ParserTables.Construction.LAZY).getGrammar()));
+                break;
+            case "tiny":
+                System.out.println(new GrammarReport(new TinyLR1Parser(ParserTables.Construction.LAZY).getGrammar()));
+                break;
+            default:
+                System.out.println("unknown grammar: " + args[0]);
+                System.exit(1);
+        }
+    }
+
+    private final Grammar g;
+    private final ParserTables tables;
+    private final long buildNanos;
+
+    public GrammarReport(final Grammar g) {
+        this.g = g;
+        final long start = System.nanoTime();
+        tables = ParserTables.forAnalysis(g);
+        buildNanos = System.nanoTime() - start;
+    }
+
+    /** @return the terminals of the grammar, including $ but not epsilon */
+    public Set<Symbol> terminals() {
+        final Set<Symbol> result = new HashSet<>(g.getTerminals());
+        result.remove(Symbol.epsilon);
+        return result;
+    }
+
+    /** @return the nonterminals of the grammar, not including the goal symbol that is added automatically */
+    public Set<Symbol> nonTerminals() {
+        final Set<Symbol> result = new HashSet<>(g.getNonTerminals());
+        result.remove(Symbol.goal);
+        return result;
+    }
+
+    /** @return the nonterminals that can derive the empty string */
+    public Set<Symbol> nullable() {
+        final Set<Symbol> result = new HashSet<>();
+        boolean done = false;
+        while (!done) {
+            done = true;
+            for (final Symbol nt : g.getNonTerminals()) {
+                if (result.contains(nt)) { continue; }
+                for (final Production p : g.get(nt)) {
+                    if (p.getRhs().stream().allMatch(s -> s.equals(Symbol.epsilon) || result.contains(s))) {
+                        result.add(nt);
+                        done = false;
+                        break;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /** @return the symbols that do not appear in any sentential form derived from the start symbol */
+    public Set<Symbol> unreachable() {
+        final Set<Symbol> reached = new HashSet<>();
+        final Deque<Symbol> work = new ArrayDeque<>();
+        reached.add(g.getStart());
+        work.push(g.getStart());
+        while (!work.isEmpty()) {
+            g.get(work.pop()).forEach(p -> p.getRhs().forEach(s -> {
+                if (reached.add(s)) { work.push(s); }
+            }));
+        }
+        final Set<Symbol> result = new HashSet<>(nonTerminals());
+        result.addAll(terminals());
+        result.remove(Symbol.$);
+        result.removeAll(reached);
+        return result;
+    }
+
+    /** @return the nonterminals that cannot derive any string of terminals */
+    public Set<Symbol> unproductive() {
+        final Set<Symbol> result = new HashSet<>(nonTerminals());
+        result.removeAll(shortestYields().keySet());
+        return result;
+    }
+
+    /* for each symbol that derives some string of terminals, a shortest such string */
+    private Map<Symbol,List<Symbol>> shortestYields() {
+        final Map<Symbol,List<Symbol>> yields = new HashMap<>();
+        g.getTerminals().forEach(t -> yields.put(t, t.equals(Symbol.epsilon) ? emptyList() : singletonList(t)));
+        boolean done = false;
+        while (!done) {
+            done = true;
+            for (final Symbol nt : g.getNonTerminals()) {
+                for (final Production p : g.get(nt)) {
+                    if (!p.getRhs().stream().allMatch(yields::containsKey)) { continue; }
+                    final List<Symbol> yield = p.getRhs().stream()
+                            .flatMap(s -> yields.get(s).stream()).collect(toList());
+                    if (!yields.containsKey(nt) || yields.get(nt).size() > yield.size()) {
+                        yields.put(nt, yield);
+                        done = false;
+                    }
+                }
+            }
+        }
+        return yields;
+    }
+
+    /** @return an example of input that brings the parser to the state in which the conflict occurs, followed by
+     *  the lookahead symbol on which the conflict occurs */
+    public List<Symbol> example(final ParserTables.Conflict conflict) {
+        final Map<Symbol,List<Symbol>> yields = shortestYields();
+        final List<Symbol> result = new ArrayList<>();
+        conflict.getPrefix().forEach(s -> result.addAll(yields.getOrDefault(s, singletonList(s))));
+        result.add(conflict.getSymbol());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        final int states = tables.getStateCount();
+        final int terminals = terminals().size();
+        final int nonTerminals = nonTerminals().size();
+        final long productions = nonTerminals().stream().mapToLong(nt -> g.get(nt).size()).sum();
+
+        sb.append(String.format("grammar: %d terminals, %d nonterminals, %d productions%n",
+                terminals, nonTerminals, productions));
+        sb.append(String.format("LR(1) states: %d%n", states));
+        sb.append(String.format("action table: %d of %d entries used (%.1f%%)%n", tables.getActionCount(),
+                states * terminals, 100.0 * tables.getActionCount() / (states * terminals)));
+        sb.append(String.format("goto table: %d of %d entries used (%.1f%%)%n", tables.getGotoCount(),
+                states * nonTerminals, 100.0 * tables.getGotoCount() / (states * nonTerminals)));
+
+        final List<ParserTables.Conflict> conflicts = tables.getConflicts();
+        sb.append(String.format("conflicts: %d%n", conflicts.size()));
+        conflicts.forEach(c -> {
+            sb.append("    ").append(c).append("\n");
+            sb.append("        example: ");
+            final List<Symbol> example = example(c);
+            sb.append(example.subList(0, example.size() - 1).stream().map(Symbol::toString).collect(joining(" ")));
+            sb.append(" . ").append(c.getSymbol()).append("\n");
+        });
+
+        sb.append("nullable: ").append(names(nullable())).append("\n");
+        sb.append("unreachable: ").append(names(unreachable())).append("\n");
+        sb.append("unproductive: ").append(names(unproductive())).append("\n");
+
+        // the parts of a phase go under it, indented, since their times are already counted in it
+        sb.append("time:\n");
+        final Map<String,Long> phases = tables.getTimer().getNanos();
+        phases.forEach((phase, nanos) -> {
+            if (phase.contains("/")) { return; }
+            sb.append(String.format("    %-22s %10.1f ms%n", phase, nanos / 1e6));
+            phases.forEach((part, partNanos) -> {
+                if (!part.startsWith(phase + "/")) { return; }
+                final String name = part.substring(phase.length() + 1);
+                sb.append(String.format("      %-20s %10.1f ms%n", name, partNanos / 1e6));
+            });
+        });
+        sb.append(String.format("    %-22s %10.1f ms", "total", buildNanos / 1e6));
+        return sb.toString();
+    }
+
+    private String names(final Set<Symbol> symbols) {
+        return symbols.isEmpty() ? "none" : symbols.stream().map(Symbol::toString).sorted().collect(joining(", "));
+    }
+}
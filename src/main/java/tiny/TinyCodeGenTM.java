@@ -3,6 +3,7 @@ package tiny;
 
 import data.Pair;
 import tiny.tm.Instruction;
+import tiny.tm.Peephole;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
@@ -28,7 +29,10 @@ public class TinyCodeGenTM  implements TinyCodeGen {
     private static final int R0 = 0;
     private static final int R1 = 1;
 
-    public String generate(final Ast ast) {
+    public String generate(final Ast ast) { return emit(ast).toString(); }
+
+    /** @return the instructions of the program, as generate writes them */
+    public List<Instruction> emit(final Ast ast) {
         // the symbol table and the first address available for the stack
         final Pair<Map<String,Integer>,Integer> p = makeSymbolTable(ast);
         final Map<String,Integer> symbolTable = p.getLeft();
@@ -41,7 +45,7 @@ public class TinyCodeGenTM  implements TinyCodeGen {
         instructions.addAll(emit(ast, symbolTable));
         // must end the program with a HALT instruction
         instructions.add(new Halt());
-        return instructions.toString();
+        return new Peephole(SPREG).optimize(instructions);
     }
 
     private Pair<Map<String,Integer>,Integer> makeSymbolTable(final Ast ast) {
@@ -138,27 +142,25 @@ public class TinyCodeGenTM  implements TinyCodeGen {
     }
 
     private List<Instruction> emit(final Ast.IfThen ifThen, final Map<String,Integer> symbolTable) {
-        final List<Instruction> ifPart = emit(ifThen.getIfPart(), symbolTable);
         final List<Instruction> thenPart = emit(ifThen.getThenPart(), symbolTable);
         final List<Instruction> result = new ArrayList<>();
         result.addAll(push(R0));    // save register 0
-        result.addAll(ifPart);      // compute the boolean test
-        result.add(new Jeq(R0,thenPart.size()+1,PCREG));  // if false (0), jump past then part
+        // if false, jump past then part
+        result.addAll(branch(ifThen.getIfPart(), false, thenPart.size()+1, symbolTable));
         result.addAll(thenPart);
         result.addAll(pop(R0));     // restore register 0
         return result;
     }
 
     private List<Instruction> emit(final Ast.IfThenElse ifThenElse, final Map<String,Integer> symbolTable) {
-        final List<Instruction> ifPart = emit(ifThenElse.getIfPart(), symbolTable);
         final List<Instruction> thenPart = emit(ifThenElse.getThenPart(), symbolTable);
         final List<Instruction> elsePart = emit(ifThenElse.getElsePart(), symbolTable);
         final List<Instruction> result = new ArrayList<>();
         result.addAll(push(R0));    // save register 0
-        result.addAll(ifPart);      // compute the boolean test
-        result.add(new Jeq(R0,thenPart.size()+2,PCREG));  // if false (0), jump past then part
+        // if false, jump past then part
+        result.addAll(branch(ifThenElse.getIfPart(), false, thenPart.size()+2, symbolTable));
         result.addAll(thenPart);
-        result.add(new Jne(R0,elsePart.size()+1,PCREG));  // jump past else part
+        result.add(new Jmp(elsePart.size()+1,PCREG));  // jump past else part
         result.addAll(elsePart);
         result.addAll(pop(R0));     // restore register 0
         return result;
@@ -180,37 +182,32 @@ public class TinyCodeGenTM  implements TinyCodeGen {
     /** result placed into register 0 */
     private List<Instruction> emit(final Ast.Plus plus, final Map<String,Integer> symbolTable) {
         final List<Instruction> left = emit(plus.getLeft(), symbolTable);
-        final List<Instruction> right = emit(plus.getRight(), symbolTable);
-        return operation(left, right, new Add(R0,R0,R1));
+        return operation(left, plus.getRight(), symbolTable, new Add(R0,R0,R1));
     }
 
     /** result placed into register 0 */
     private List<Instruction> emit(final Ast.Minus minus, final Map<String,Integer> symbolTable) {
         final List<Instruction> left = emit(minus.getLeft(), symbolTable);
-        final List<Instruction> right = emit(minus.getRight(), symbolTable);
-        return operation(left, right, new Sub(R0,R0,R1));
+        return operation(left, minus.getRight(), symbolTable, new Sub(R0,R0,R1));
     }
 
     /** result placed into register 0 */
     private List<Instruction> emit(final Ast.Times times, final Map<String,Integer> symbolTable) {
         final List<Instruction> left = emit(times.getLeft(), symbolTable);
-        final List<Instruction> right = emit(times.getRight(), symbolTable);
-        return operation(left, right, new Mul(R0,R0,R1));
+        return operation(left, times.getRight(), symbolTable, new Mul(R0,R0,R1));
     }
 
     /** result placed into register 0 */
     private List<Instruction> emit(final Ast.Div div, final Map<String,Integer> symbolTable) {
         final List<Instruction> left = emit(div.getLeft(), symbolTable);
-        final List<Instruction> right = emit(div.getRight(), symbolTable);
-        return operation(left, right, new Div(R0,R0,R1));
+        return operation(left, div.getRight(), symbolTable, new Div(R0,R0,R1));
     }
 
     /** test whether left exp is less than right exp. produces either true (1) or false (0) in register 0 */
     private List<Instruction> emit(final Ast.LessThan lessThan, final Map<String,Integer> symbolTable) {
         final List<Instruction> left = emit(lessThan.getLeft(), symbolTable);
-        final List<Instruction> right = emit(lessThan.getRight(), symbolTable);
         // subtract right from left
-        final List<Instruction> result = operation(left, right, new Sub(0,0,1));
+        final List<Instruction> result = operation(left, lessThan.getRight(), symbolTable, new Sub(0,0,1));
         // if the result is negative, set register 0 to true (1)
         result.addAll(asList(
                 new Jlt(R0,3,PCREG),
@@ -224,8 +221,7 @@ public class TinyCodeGenTM  implements TinyCodeGen {
     /** test two expression for equality. produces either true (1) or false (0) in register 0 */
     private List<Instruction> emit(final Ast.Equals equals, final Map<String,Integer> symbolTable) {
         final List<Instruction> left = emit(equals.getLeft(), symbolTable);
-        final List<Instruction> right = emit(equals.getRight(), symbolTable);
-        final List<Instruction> result = operation(left,right,new Sub(0,0,1));
+        final List<Instruction> result = operation(left, equals.getRight(), symbolTable, new Sub(0,0,1));
         result.addAll(asList(
                 new Jeq(R0,3,PCREG),
                 new Ldc(R0,0),       // false
@@ -238,14 +234,13 @@ public class TinyCodeGenTM  implements TinyCodeGen {
     /** generate code for a repeat loop */
     private List<Instruction> emit(final Ast.Repeat repeat, final Map<String,Integer> symbolTable) {
         final List<Instruction> statements = emit(repeat.getBody(), symbolTable);
-        final List<Instruction> exp = emit(repeat.getExp(), symbolTable);
         final List<Instruction> result = new ArrayList<>();
         result.addAll(push(0));       // save register 0
         result.addAll(push(PCREG));   // save the program counter at the start of the loop
         result.addAll(statements);    // execute the statements
-        result.addAll(exp);           // compute the test expression
+        // compute the test expression. if true, jump past loop instructions
+        result.addAll(branch(repeat.getExp(), true, 3, symbolTable));
         result.addAll(asList(
-                new Jne(0,3,PCREG),   // if true (1), then jump past loop instructions
                 new Sub(SPREG,SPREG,INCDEC),  // pop saved pc off stack
                 new Ld(PCREG,0,SPREG)
         ));
@@ -256,6 +251,31 @@ public class TinyCodeGenTM  implements TinyCodeGen {
 
     /* helper functions */
 
+    /** compute the test expression and jump offset instructions ahead of the jump if it is whenTrue. a comparison
+     *  jumps on the sign of the difference of its operands, without making it true (1) or false (0) first */
+    private List<Instruction> branch(final Ast exp,
+                                     final boolean whenTrue,
+                                     final int offset,
+                                     final Map<String,Integer> symbolTable) {
+        if (exp instanceof Ast.LessThan) {
+            final Ast.LessThan lessThan = (Ast.LessThan) exp;
+            final List<Instruction> left = emit(lessThan.getLeft(), symbolTable);
+            final List<Instruction> result = operation(left, lessThan.getRight(), symbolTable, new Sub(R0,R0,R1));
+            result.add(whenTrue ? new Jlt(R0,offset,PCREG) : new Jge(R0,offset,PCREG));
+            return result;
+        }
+        if (exp instanceof Ast.Equals) {
+            final Ast.Equals equals = (Ast.Equals) exp;
+            final List<Instruction> left = emit(equals.getLeft(), symbolTable);
+            final List<Instruction> result = operation(left, equals.getRight(), symbolTable, new Sub(R0,R0,R1));
+            result.add(whenTrue ? new Jeq(R0,offset,PCREG) : new Jne(R0,offset,PCREG));
+            return result;
+        }
+        final List<Instruction> result = new ArrayList<>(emit(exp, symbolTable));
+        result.add(whenTrue ? new Jne(R0,offset,PCREG) : new Jeq(R0,offset,PCREG));
+        return result;
+    }
+
     /** push the value in the given register onto the stack. increment the stack pointer */
     private List<Instruction> push(final int register) {
         return asList(
@@ -272,11 +292,22 @@ public class TinyCodeGenTM  implements TinyCodeGen {
         );
     }
 
-    /** perform the binary operation combine.  left/right operands will be in register 0/1, respectively */
+    /** perform the binary operation combine.  left/right operands will be in register 0/1, respectively.  a right
+     *  operand that is a variable or a number is loaded straight into register 1, without going through the stack */
     private List<Instruction> operation(final List<Instruction> left,
-                                        final List<Instruction> right,
+                                        final Ast rightExp,
+                                        final Map<String,Integer> symbolTable,
                                         final Instruction combine) {
         final List<Instruction> result = new ArrayList<>();
+        if (rightExp instanceof Ast.Id || rightExp instanceof Ast.Num) {
+            result.addAll(left);    // compute the left exp
+            result.add(rightExp instanceof Ast.Id
+                    ? new Ld(R1, symbolTable.get(((Ast.Id) rightExp).getName()), DATA)
+                    : new Ldc(R1, ((Ast.Num) rightExp).getValue()));
+            result.add(combine);    // combine the result
+            return result;
+        }
+        final List<Instruction> right = emit(rightExp, symbolTable);
         result.addAll(right);       // compute the right exp
         result.addAll(push(R0));    // save the result
         result.addAll(left);        // compute the left exp
@@ -2,6 +2,7 @@
 package tiny;
 
 import data.Either;
+import data.Pair;
 import parser.*;
 
 import java.util.ArrayList;
@@ -157,6 +158,33 @@ public class TinyLL1Parser {
     /** @return if an error occurs, a String describing the problem. otherwise, an abstract syntax tree
      *  for the given input */
     public Either<String,Ast> parse(final List<Token> input) {
+        final Either<String,ParseTree<Token>> result = parseTree(input);
+        if (result.getLeft().isPresent()) { return Either.left(result.getLeft().get()); }
+        return toSyntaxTreeOrError(result.getRight().get());
+    }
+
+    /** like parse, but also returns a lossless concrete syntax tree that keeps the whitespace and comments of the
+     *  input, so tools that format or refactor code don't need to scan and parse it again
+     *  @param input all the tokens scanned from text, including comments and the end of file token
+     *  @param text the text that was scanned */
+    public Either<String,Pair<Ast,GreenNode>> parseConcrete(final List<Token> input, final String text) {
+        return parseConcrete(input, text, new GreenTreeBuilder());
+    }
+
+    /** @param builder shares identical subtrees with every other tree that it builds */
+    public Either<String,Pair<Ast,GreenNode>> parseConcrete(final List<Token> input, final String text,
+                                                            final GreenTreeBuilder builder) {
+        final Either<String,ParseTree<Token>> result = parseTree(input);
+        if (result.getLeft().isPresent()) { return Either.left(result.getLeft().get()); }
+        final ParseTree<Token> tree = result.getRight().get();
+        final Either<String,Ast> ast = toSyntaxTreeOrError(tree);
+        if (ast.getLeft().isPresent()) { return Either.left(ast.getLeft().get()); }
+        final GreenNode cst = builder.build(tree, input, text, t -> t.getSrc().getPosition(),
+                t -> t.type == Token.Type.COMMENT);
+        return Either.right(Pair.of(ast.getRight().get(), cst));
+    }
+
+    private Either<String,ParseTree<Token>> parseTree(final List<Token> input) {
         // the scanner provides tokens for comments and eof. these are not part of the grammar
         final List<Token> in = input.stream()
                 .filter(t -> t.type != Token.Type.COMMENT)
@@ -169,9 +197,10 @@ public class TinyLL1Parser {
             // errors occurred during parsing
             return Either.left(errorReport(result.getLeft().get()));
         }
+        return Either.right(result.getRight().get());
+    }
 
-        final ParseTree<Token> tree = result.getRight().get();
-
+    private Either<String,Ast> toSyntaxTreeOrError(final ParseTree<Token> tree) {
         try {
             return Either.right(toSyntaxTree(tree));
         } catch (final TinyParseException e) {
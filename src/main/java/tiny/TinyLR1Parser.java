@@ -12,6 +12,7 @@ import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
 import static java.util.stream.Collectors.toList;
 
+/** LR(1) parser for TINY. keeps no state between calls to parse, so one instance can be shared between threads */
 public class TinyLR1Parser {
     // nonterminals
     private final Symbol program = new Symbol.NonTerminal("program");
@@ -115,13 +116,20 @@ public class TinyLR1Parser {
         }
     };
 
+    private final Grammar grammar;
     private final LR1Parser<Token> parser;
 
-    public TinyLR1Parser() {
-        final Grammar g = new Grammar(program, ps);
-        parser = new LR1Parser<>(g, toSymbol);
+    public TinyLR1Parser() { this(ParserTables.Construction.EAGER); }
+
+    /** @param construction whether the parse tables are built up front or as the parser reaches each state */
+    public TinyLR1Parser(final ParserTables.Construction construction) {
+        grammar = new Grammar(program, ps);
+        parser = new LR1Parser<>(grammar, toSymbol, construction);
     }
 
+    /** @return the grammar this parser was generated from */
+    public Grammar getGrammar() { return grammar; }
+
     /** @return if an error occurs, a String describing the problem. otherwise, an abstract syntax tree
      *  for the given input */
     public Either<String,Ast> parse(final List<Token> input) {
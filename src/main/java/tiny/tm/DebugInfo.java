@@ -0,0 +1,84 @@
+package tiny.tm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * comments and source positions for the addresses of a TM program, kept apart from the program so that they take
+ * no room in it and no time to run. the code generators put them in Nops, and the peephole optimizer moves them here
+ * when it removes the Nops
+ */
+public class DebugInfo {
+
+    public static final class Entry {
+        private final int address;
+        private final int position;
+        private final String comment;
+
+        private Entry(final int address, final int position, final String comment) {
+            this.address = address;
+            this.position = position;
+            this.comment = comment;
+        }
+
+        public int getAddress() { return address; }
+
+        /** @return the offset in the source text, or -1 if it isn't known */
+        public int getPosition() { return position; }
+
+        public String getComment() { return comment; }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    /** @return the comments of the instructions themselves, for code that has no Nops */
+    public static DebugInfo of(final List<Instruction> instrs) {
+        final DebugInfo info = new DebugInfo();
+        for (int i = 0; i < instrs.size(); i++) {
+            final Instruction instr = instrs.get(i);
+            final int position = instr instanceof Instruction.Nop ? ((Instruction.Nop) instr).getPosition() : -1;
+            info.add(i, position, instr.getComment());
+        }
+        return info;
+    }
+
+    /** note a comment about the instruction at the address. empty comments without a position are left out */
+    public void add(final int address, final int position, final String comment) {
+        if (position < 0 && comment.isEmpty()) { return; }
+        entries.add(new Entry(address, position, comment));
+    }
+
+    /** add the entries of code that starts at the given address */
+    public void addAll(final DebugInfo info, final int address) {
+        info.entries.forEach(e -> entries.add(new Entry(e.address + address, e.position, e.comment)));
+    }
+
+    /** @return the entries in the order they were added, which for code from the optimizer is the address order */
+    public List<Entry> getEntries() { return unmodifiableList(entries); }
+
+    /** @return the contents of a .tm.map file: a line for each entry, with the address, the line of the source text
+     *  it comes from or - if it isn't known, and the comment */
+    public String toMap(final String source) {
+        // the offset in the source at which each line starts
+        final List<Integer> lineStarts = new ArrayList<>();
+        lineStarts.add(0);
+        for (int i = 0; i < source.length(); i++) {
+            if (source.charAt(i) == '\n') { lineStarts.add(i + 1); }
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final Entry e : entries) {
+            sb.append(e.address).append('\t');
+            if (e.position < 0) {
+                sb.append('-');
+            } else {
+                final int line = Collections.binarySearch(lineStarts, e.position);
+                sb.append(line >= 0 ? line + 1 : -line - 1);
+            }
+            sb.append('\t').append(e.comment).append('\n');
+        }
+        return sb.toString();
+    }
+}
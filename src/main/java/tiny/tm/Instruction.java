@@ -28,6 +28,35 @@ public abstract class Instruction {
         this.comment = comment;
     }
 
+    /** @return the mnemonic of the instruction, such as "LDA" */
+    public String getName() { return name; }
+
+    /** the arguments, in the order they are written: r,s,t for register instructions and r,d,s for the others */
+    public int getArg0() { return arg0; }
+    public int getArg1() { return arg1; }
+    public int getArg2() { return arg2; }
+
+    public String getComment() { return comment; }
+
+    /** @return the same instruction with its second argument, the d of r,d(s), replaced. used to fix up the offsets of
+     *  jumps relative to the PC when code moves */
+    public Instruction withArg1(final int d) {
+        switch (name) {
+            case "LD": return new Ld(arg0, d, arg2, comment);
+            case "LDA": return new Lda(arg0, d, arg2, comment);
+            case "LDC": return new Ldc(arg0, d, comment);
+            case "ST": return new St(arg0, d, arg2, comment);
+            case "JLT": return new Jlt(arg0, d, arg2, comment);
+            case "JLE": return new Jle(arg0, d, arg2, comment);
+            case "JGE": return new Jge(arg0, d, arg2, comment);
+            case "JGT": return new Jgt(arg0, d, arg2, comment);
+            case "JEQ": return new Jeq(arg0, d, arg2, comment);
+            case "JNE": return new Jne(arg0, d, arg2, comment);
+            case "JMP": return new Jmp(d, arg2, comment);
+            default: throw new IllegalStateException("no offset to replace in " + this);
+        }
+    }
+
     @Override
     public String toString() {
         return String.format("%s (%d) (%d) (%d) \"%s\"", name, arg0, arg1, arg2, comment);
@@ -155,7 +184,15 @@ public abstract class Instruction {
         public Instruction create(Map<String,Integer> functions) { return create.apply(functions); }
     }
 
+    /** does nothing. only carries a comment, and where in the source the code after it comes from */
     public static class Nop extends Instruction {
-        public Nop(final String comment) { super(0,0,0,"NOP",comment); }
+        private final int position;
+        public Nop(final String comment) { this(comment, -1); }
+        public Nop(final String comment, final int position) {
+            super(0,0,0,"NOP",comment);
+            this.position = position;
+        }
+        /** @return the offset in the source text, or -1 if it isn't known */
+        public int getPosition() { return position; }
     }
 }
\ No newline at end of file
@@ -0,0 +1,656 @@
+package tiny.tm;
+
+import data.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * a peephole optimizer for TM code, shared by the code generators that emit it. it looks at a few instructions at a
+ * time and replaces patterns with shorter code that does the same, until none of its rules apply anywhere.
+ *
+ * jumps relative to the PC, and loads of return addresses relative to the PC, are resolved to the instruction they
+ * refer to before the rules run, and their offsets are worked out again afterwards, so rules can remove
+ * instructions without breaking them. a rule may only remove the first instruction of the pattern it matches if
+ * other code can jump into it: references to it move to whatever replaces it, or to the next instruction.
+ *
+ * the comments of the Nops it removes, and the source positions they carry, go into a DebugInfo for the address of
+ * the instruction that followed them.
+ *
+ * the code given to the optimizer is a unit that no other code jumps into relative to the PC, like a function, and
+ * may jump to just past its end. code that reads or writes data relative to the PC is left as it is
+ */
+public class Peephole {
+    private static final int PC = 7;
+
+    /** one instruction of the code being optimized, and the one it refers to relative to the PC, if any */
+    public static final class Node {
+        private final Instruction instr;
+        private Node target;
+        // the Nops removed right before it
+        private final List<Instruction.Nop> notes = new ArrayList<>();
+
+        private Node(final Instruction instr) { this.instr = instr; }
+
+        public Instruction getInstruction() { return instr; }
+
+        /** @return the instruction this one jumps to or loads the address of, or null */
+        public Node getTarget() { return target; }
+    }
+
+    /** the code a rule works on */
+    public static final class Code {
+        private final List<Node> nodes;
+        private final Node end = new Node(new Instruction.Nop("end"));
+        // the nodes that refer to each node, and those whose address is taken by storing the PC. the machine stores
+        // the address of the instruction after the ST, so that one is where control comes back to
+        private final Map<Node,List<Node>> referrers = new IdentityHashMap<>();
+        private final Map<Node,Boolean> addressTaken = new IdentityHashMap<>();
+
+        private Code(final List<Instruction> instrs, final int[] targets) {
+            nodes = new ArrayList<>();
+            instrs.forEach(instr -> nodes.add(new Node(instr)));
+            for (int i = 0; i < nodes.size(); i++) {
+                final Node n = nodes.get(i);
+                if (targets[i] >= 0) {
+                    n.target = getNode(targets[i]);
+                    referrers.computeIfAbsent(n.target, k -> new ArrayList<>()).add(n);
+                }
+                if (n.instr.getName().equals("ST") && n.instr.getArg0() == PC) {
+                    addressTaken.put(getNode(i + 1), true);
+                }
+            }
+        }
+
+        private DebugInfo getDebugInfo() {
+            final DebugInfo info = new DebugInfo();
+            for (int i = 0; i <= nodes.size(); i++) {
+                final Node n = getNode(i);
+                for (final Instruction.Nop nop : n.notes) { info.add(i, nop.getPosition(), nop.getComment()); }
+                if (n != end) { info.add(i, -1, n.instr.getComment()); }
+            }
+            return info;
+        }
+
+        private List<Instruction> getInstructions() {
+            final Map<Node,Integer> index = new IdentityHashMap<>();
+            for (int i = 0; i < nodes.size(); i++) { index.put(nodes.get(i), i); }
+            index.put(end, nodes.size());
+            final List<Instruction> result = new ArrayList<>();
+            for (int i = 0; i < nodes.size(); i++) {
+                final Node n = nodes.get(i);
+                result.add(n.target == null ? n.instr : n.instr.withArg1(index.get(n.target) - i));
+            }
+            return result;
+        }
+
+        public int size() { return nodes.size(); }
+
+        public Instruction get(final int i) { return nodes.get(i).instr; }
+
+        public Node getNode(final int i) { return i == nodes.size() ? end : nodes.get(i); }
+
+        /** @return true if control can reach the instruction at i other than from the one before it */
+        public boolean isTarget(final int i) {
+            final Node n = getNode(i);
+            return referrers.containsKey(n) || addressTaken.containsKey(n);
+        }
+
+        /** @return true if none of the instructions from i+1 to i+n-1 can be reached but from the one before */
+        public boolean isStraight(final int i, final int n) {
+            if (i + n > nodes.size()) { return false; }
+            for (int k = i + 1; k < i + n; k++) {
+                if (isTarget(k)) { return false; }
+            }
+            return true;
+        }
+
+        /** replace the n instructions at i, which must not refer to anything, with the given ones. control that
+         *  reached the first of them reaches the first of the replacements, or the instruction after them */
+        public void replace(final int i, final int n, final Instruction... with) {
+            final List<Node> removed = new ArrayList<>(nodes.subList(i, i + n));
+            final List<Node> added = new ArrayList<>();
+            for (final Instruction instr : with) { added.add(new Node(instr)); }
+            nodes.subList(i, i + n).clear();
+            nodes.addAll(i, added);
+            final Node successor = added.isEmpty() ? getNode(i) : added.get(0);
+            final List<Instruction.Nop> notes = new ArrayList<>();
+            for (final Node r : removed) {
+                notes.addAll(r.notes);
+                if (r.instr instanceof Instruction.Nop) { notes.add((Instruction.Nop) r.instr); }
+                if (r.target != null) { throw new IllegalStateException("cannot replace " + r.instr); }
+                // control comes back to what now follows the ST
+                if (addressTaken.remove(r) != null) { addressTaken.put(successor, true); }
+                final List<Node> refs = referrers.remove(r);
+                if (refs == null) { continue; }
+                refs.forEach(ref -> ref.target = successor);
+                referrers.computeIfAbsent(successor, k -> new ArrayList<>()).addAll(refs);
+            }
+            successor.notes.addAll(0, notes);
+        }
+
+        /* make n refer to target instead */
+        private void retarget(final Node n, final Node target) {
+            final List<Node> refs = referrers.get(n.target);
+            refs.remove(n);
+            if (refs.isEmpty()) { referrers.remove(n.target); }
+            n.target = target;
+            referrers.computeIfAbsent(target, k -> new ArrayList<>()).add(n);
+        }
+
+        /* @return a new node for instr, which refers to target */
+        private Node node(final Instruction instr, final Node target) {
+            final Node n = new Node(instr);
+            n.target = target;
+            referrers.computeIfAbsent(target, k -> new ArrayList<>()).add(n);
+            return n;
+        }
+
+        /* @return a node for instr that takes the place of n: what referred to n refers to it, and it refers to target */
+        private Node rewrite(final Node n, final Instruction instr, final Node target) {
+            final Node m = node(instr, target);
+            drop(asList(n));
+            m.notes.addAll(n.notes);
+            final List<Node> refs = referrers.remove(n);
+            if (refs != null) {
+                refs.forEach(ref -> ref.target = m);
+                referrers.computeIfAbsent(m, k -> new ArrayList<>()).addAll(refs);
+            }
+            return m;
+        }
+
+        /* forget what the nodes, which are no longer in the code, refer to. nothing else may refer to them */
+        private void drop(final List<Node> dropped) {
+            for (final Node n : dropped) {
+                if (n.target == null) { continue; }
+                final List<Node> refs = referrers.get(n.target);
+                refs.remove(n);
+                if (refs.isEmpty()) { referrers.remove(n.target); }
+            }
+        }
+
+        /** remove the instruction at i, which may refer to another */
+        public void remove(final int i) {
+            final Node n = nodes.get(i);
+            if (n.target != null) {
+                final List<Node> refs = referrers.get(n.target);
+                refs.remove(n);
+                if (refs.isEmpty()) { referrers.remove(n.target); }
+                n.target = null;
+            }
+            replace(i, 1);
+        }
+    }
+
+    /** a pattern, and how to rewrite the code where it matches */
+    public interface Rule {
+        /** rewrite the code at position i if the pattern matches there
+         *  @return true if the code changed */
+        boolean apply(Code code, int i);
+    }
+
+    /** Nops only carry comments */
+    public static final Rule NOPS = (code, i) -> {
+        if (!code.get(i).getName().equals("NOP")) { return false; }
+        code.remove(i);
+        return true;
+    };
+
+    /** a jump to the next instruction, taken or not, goes on to the next instruction */
+    public static final Rule JUMP_TO_NEXT = (code, i) -> {
+        final Node n = code.getNode(i);
+        if (n.target != code.getNode(i + 1) || !isJump(n.instr)) { return false; }
+        code.remove(i);
+        return true;
+    };
+
+    /** Lda X,0(X) leaves X as it is */
+    public static final Rule SELF_LDA = (code, i) -> {
+        final Instruction instr = code.get(i);
+        if (!instr.getName().equals("LDA") || instr.getArg1() != 0 || instr.getArg0() != instr.getArg2() ||
+                instr.getArg0() == PC) {
+            return false;
+        }
+        code.remove(i);
+        return true;
+    };
+
+    /** Lda X,a(X) then Lda X,b(X) is Lda X,a+b(X), and adding a register to X and then subtracting it does nothing */
+    public static final Rule ADJUSTMENTS = (code, i) -> {
+        if (!code.isStraight(i, 2)) { return false; }
+        final Instruction first = code.get(i);
+        final Instruction second = code.get(i + 1);
+        final int x = first.getArg0();
+        if (x == PC || second.getArg0() != x) { return false; }
+        if (isAdjustment(first, x) && isAdjustment(second, x)) {
+            code.replace(i, 2, new Instruction.Lda(x, first.getArg1() + second.getArg1(), x, first.getComment()));
+            return true;
+        }
+        final boolean addSub = first.getName().equals("ADD") && second.getName().equals("SUB");
+        final boolean subAdd = first.getName().equals("SUB") && second.getName().equals("ADD");
+        if ((addSub || subAdd) && first.getArg1() == x && second.getArg1() == x &&
+                first.getArg2() == second.getArg2() && first.getArg2() != x) {
+            code.replace(i, 2);
+            return true;
+        }
+        return false;
+    };
+
+    /** a load right after a store to the same address gets the value from the register that was stored */
+    public static final Rule STORE_LOAD = (code, i) -> {
+        if (!code.isStraight(i, 2)) { return false; }
+        final Instruction st = code.get(i);
+        final Instruction ld = code.get(i + 1);
+        if (!st.getName().equals("ST") || !ld.getName().equals("LD") || st.getArg1() != ld.getArg1() ||
+                st.getArg2() != ld.getArg2() || ld.getArg0() == PC) {
+            return false;
+        }
+        if (ld.getArg0() == st.getArg0()) {
+            code.replace(i + 1, 1);
+        } else {
+            code.replace(i + 1, 1, new Instruction.Lda(ld.getArg0(), 0, st.getArg0(), ld.getComment()));
+        }
+        return true;
+    };
+
+    /** storing a register right back to the address it was loaded from changes nothing */
+    public static final Rule LOAD_STORE = (code, i) -> {
+        if (!code.isStraight(i, 2)) { return false; }
+        final Instruction ld = code.get(i);
+        final Instruction st = code.get(i + 1);
+        if (!ld.getName().equals("LD") || !st.getName().equals("ST") || st.getArg0() != ld.getArg0() ||
+                st.getArg1() != ld.getArg1() || st.getArg2() != ld.getArg2() || ld.getArg0() == ld.getArg2()) {
+            return false;
+        }
+        code.replace(i + 1, 1);
+        return true;
+    };
+
+    /**
+     * a push right before a pop: storing at the stack pointer, moving it up and back down again and loading what
+     * was stored. nothing reads the stack above the stack pointer, so that is just a move
+     */
+    public static Rule pushPop(final int sp) {
+        return (code, i) -> {
+            if (!code.isStraight(i, 4)) { return false; }
+            final Instruction st = code.get(i);
+            final Instruction up = code.get(i + 1);
+            final Instruction down = code.get(i + 2);
+            final Instruction ld = code.get(i + 3);
+            if (!st.getName().equals("ST") || st.getArg1() != 0 || st.getArg2() != sp || st.getArg0() == PC ||
+                    !ld.getName().equals("LD") || ld.getArg1() != 0 || ld.getArg2() != sp || ld.getArg0() == PC ||
+                    !cancel(up, down, sp)) {
+                return false;
+            }
+            if (ld.getArg0() == st.getArg0()) {
+                code.replace(i, 4);
+            } else {
+                code.replace(i, 4, new Instruction.Lda(ld.getArg0(), 0, st.getArg0(), ld.getComment()));
+            }
+            return true;
+        };
+    }
+
+    /** @return the rules for code whose stack pointer is the register sp */
+    public static List<Rule> rules(final int sp) {
+        return unmodifiableList(asList(NOPS, JUMP_TO_NEXT, SELF_LDA, pushPop(sp), ADJUSTMENTS, STORE_LOAD, LOAD_STORE));
+    }
+
+    private final List<Rule> rules;
+
+    public Peephole(final List<Rule> rules) { this.rules = rules; }
+
+    /** a peephole optimizer with the standard rules, for code whose stack pointer is the register sp */
+    public Peephole(final int sp) { this(rules(sp)); }
+
+    /** @return the code, with the rules applied until none of them changes it */
+    public List<Instruction> optimize(final List<Instruction> instrs) { return optimizeWithDebugInfo(instrs).getLeft(); }
+
+    /** @return the optimized code, and the comments of its instructions and of the Nops that were removed */
+    public Pair<List<Instruction>,DebugInfo> optimizeWithDebugInfo(final List<Instruction> instrs) {
+        // resolve the references relative to the PC
+        final int[] targets = new int[instrs.size()];
+        Arrays.fill(targets, -1);
+        for (int i = 0; i < instrs.size(); i++) {
+            final Instruction instr = instrs.get(i);
+            if (instr.getArg2() != PC || isRegisterOnly(instr)) { continue; }
+            targets[i] = i + instr.getArg1();
+            if (!isJump(instr) && !isAddress(instr) || targets[i] < 0 || targets[i] > instrs.size()) {
+                return Pair.of(instrs, DebugInfo.of(instrs));
+            }
+        }
+        final Code code = new Code(instrs, targets);
+        applyRules(code);
+        // laying the code out again would undo what it did the first time, so it is only done once
+        if (new Layout(code).run()) { applyRules(code); }
+        return Pair.of(code.getInstructions(), code.getDebugInfo());
+    }
+
+    private void applyRules(final Code code) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < code.size(); i++) {
+                for (final Rule rule : rules) {
+                    if (i < code.size() && rule.apply(code, i)) { changed = true; }
+                }
+            }
+        }
+    }
+
+    /**
+     * lays out the basic blocks of the code again, once the rules are done with it. jumps to unconditional jumps go
+     * straight to where those go, blocks that are nothing but an unconditional jump or that nothing reaches are
+     * dropped, and the rest are put in chains so that each block is followed by the successor it most likely goes
+     * to, which it then gets to without a jump.
+     *
+     * what is likely is guessed from the shape of the code. a jump backwards closes a loop, and a block in n loops
+     * runs about 10^n times as often as one in none. a conditional jump is taken if it goes back to the top of a
+     * loop, and not if it leaves a loop or goes forward otherwise. so a loop tested at the top, which jumps out at
+     * the top and back to the top at the bottom, gets its test moved to the bottom, turned around to jump back, and
+     * takes one jump each time around instead of two.
+     *
+     * absolute jumps may only go to the start of the code, which stays where it is, or outside it. code that stores
+     * the PC is left as it is
+     */
+    private static final class Layout {
+        private final Code code;
+        private final List<Block> blocks = new ArrayList<>();
+        private final Map<Node,Block> blockOf = new IdentityHashMap<>();
+        // stands for just past the end of the code
+        private final Block end = new Block(Integer.MAX_VALUE);
+
+        /* a basic block, the blocks it goes to, and the chain it is in */
+        private static final class Block {
+            final int index;
+            final List<Node> nodes = new ArrayList<>();
+            // where a jump relative to the PC at the end goes, and where control falls through to
+            Block jump;
+            Block fall;
+            boolean conditional;
+            int depth;
+            List<Block> chain;
+
+            Block(final int index) { this.index = index; }
+
+            Node last() { return nodes.get(nodes.size() - 1); }
+        }
+
+        /* an edge that could be laid out to fall through */
+        private static final class Edge {
+            final Block from;
+            final Block to;
+            final long weight;
+
+            Edge(final Block from, final Block to, final long weight) {
+                this.from = from;
+                this.to = to;
+                this.weight = weight;
+            }
+
+            boolean isAdjacent() { return to.index == from.index + 1; }
+        }
+
+        Layout(final Code code) { this.code = code; }
+
+        /** @return true if the code changed */
+        boolean run() {
+            if (!code.addressTaken.isEmpty() || code.nodes.isEmpty()) { return false; }
+            final List<Node> before = new ArrayList<>(code.nodes);
+            thread();
+            split();
+            final List<Block> reached = reachable();
+            final List<Node> dropped = new ArrayList<>();
+            blocks.stream().filter(b -> !reached.contains(b)).forEach(b -> dropped.addAll(b.nodes));
+            code.drop(dropped);
+            dropped.forEach(code.referrers::remove);
+            final List<Block> order = order(reached);
+            code.nodes.clear();
+            for (int k = 0; k < order.size(); k++) {
+                emit(order.get(k), k + 1 < order.size() ? order.get(k + 1) : end);
+            }
+            if (code.nodes.size() != before.size()) { return true; }
+            for (int i = 0; i < before.size(); i++) {
+                if (code.nodes.get(i) != before.get(i)) { return true; }
+            }
+            return false;
+        }
+
+        /* make jumps to unconditional jumps go where those go */
+        private void thread() {
+            for (final Node n : code.nodes) {
+                if (n.target == null || !isJump(n.instr)) { continue; }
+                final Map<Node,Boolean> seen = new IdentityHashMap<>();
+                Node target = n.target;
+                while (target != code.end && isUnconditional(target.instr) && seen.put(target, true) == null) {
+                    target = target.target;
+                }
+                if (target != n.target) { code.retarget(n, target); }
+            }
+        }
+
+        /* split the code into blocks and link them */
+        private void split() {
+            Block current = null;
+            for (int i = 0; i < code.nodes.size(); i++) {
+                final Node n = code.nodes.get(i);
+                if (current == null || code.isTarget(i)) {
+                    current = new Block(blocks.size());
+                    blocks.add(current);
+                }
+                current.nodes.add(n);
+                blockOf.put(n, current);
+                if (endsBlock(n.instr)) { current = null; }
+            }
+            for (final Block b : blocks) {
+                final Instruction last = b.last().instr;
+                final Block next = b.index + 1 < blocks.size() ? blocks.get(b.index + 1) : end;
+                if (isJump(last)) {
+                    b.jump = blockAt(b.last().target);
+                    b.conditional = !isUnconditional(last);
+                    if (b.conditional) { b.fall = next; }
+                } else if (!isExit(last)) {
+                    b.fall = next;
+                }
+            }
+            // falling into a block that only jumps elsewhere is falling into where it jumps
+            for (final Block b : blocks) {
+                final Map<Block,Boolean> seen = new IdentityHashMap<>();
+                while (b.fall != null && b.fall != end && b.fall.nodes.size() == 1 && b.fall.jump != null &&
+                        !b.fall.conditional && seen.put(b.fall, true) == null) {
+                    b.fall = b.fall.jump;
+                }
+            }
+        }
+
+        private Block blockAt(final Node n) { return n == code.end ? end : blockOf.get(n); }
+
+        /* @return the blocks that can be reached from the start, or whose address is loaded, in their order */
+        private List<Block> reachable() {
+            final Map<Block,Boolean> reached = new IdentityHashMap<>();
+            final List<Block> work = new ArrayList<>();
+            work.add(blocks.get(0));
+            for (final Node n : code.nodes) {
+                if (n.target != null && isAddress(n.instr) && n.target != code.end) { work.add(blockAt(n.target)); }
+            }
+            while (!work.isEmpty()) {
+                final Block b = work.remove(work.size() - 1);
+                if (b == end || reached.put(b, true) != null) { continue; }
+                if (b.jump != null) { work.add(b.jump); }
+                if (b.fall != null) { work.add(b.fall); }
+            }
+            return blocks.stream().filter(reached::containsKey).collect(toList());
+        }
+
+        /* @return the blocks in the order they go in: the chains, the one with the start first and the one that falls
+         * off the end last, and the others in the order their first blocks were in */
+        private List<Block> order(final List<Block> reached) {
+            // a jump backwards from u to h closes a loop around the blocks from h to u
+            for (final Block u : reached) {
+                for (final Block h : asList(u.jump, u.fall)) {
+                    if (h == null || h == end || h.index > u.index) { continue; }
+                    reached.stream().filter(b -> b.index >= h.index && b.index <= u.index).forEach(b -> b.depth++);
+                }
+            }
+            final List<Edge> edges = new ArrayList<>();
+            for (final Block b : reached) {
+                b.chain = new ArrayList<>(asList(b));
+                final long frequency = (long) Math.pow(10, Math.min(b.depth, 9));
+                if (!b.conditional) {
+                    final Block next = b.jump != null ? b.jump : b.fall;
+                    if (next != null && next != end) { edges.add(new Edge(b, next, frequency)); }
+                    continue;
+                }
+                final Block taken = likely(b);
+                final Block other = taken == b.jump ? b.fall : b.jump;
+                if (taken != end) { edges.add(new Edge(b, taken, frequency)); }
+                if (other != end) { edges.add(new Edge(b, other, Math.max(1, frequency / 10))); }
+            }
+            // the heaviest edges first. a block with one successor needs a jump to get to it if it doesn't fall into
+            // it, but a conditional jump is there either way, so of two that weigh the same that one goes first
+            edges.sort(Comparator.<Edge>comparingLong(e -> -e.weight)
+                    .thenComparing(e -> e.from.conditional)
+                    .thenComparing(e -> !e.isAdjacent())
+                    .thenComparingInt(e -> e.from.index)
+                    .thenComparingInt(e -> e.to.index));
+            final Block start = reached.get(0);
+            for (final Edge e : edges) {
+                final List<Block> from = e.from.chain;
+                final List<Block> to = e.to.chain;
+                if (e.to == start || from == to || from.get(from.size() - 1) != e.from || to.get(0) != e.to) {
+                    continue;
+                }
+                from.addAll(to);
+                to.forEach(b -> b.chain = from);
+            }
+            final List<List<Block>> chains = new ArrayList<>();
+            reached.stream().filter(b -> b.chain.get(0) == b).forEach(b -> chains.add(b.chain));
+            for (int k = 1; k < chains.size(); k++) {
+                final List<Block> chain = chains.get(k);
+                if (chain.get(chain.size() - 1).fall == end) {
+                    chains.remove(k);
+                    chains.add(chain);
+                    break;
+                }
+            }
+            final List<Block> order = new ArrayList<>();
+            chains.forEach(order::addAll);
+            return order;
+        }
+
+        /* @return the successor of a block ending in a conditional jump that it most likely goes to */
+        private Block likely(final Block b) {
+            if (b.jump != end && b.jump.index <= b.index) { return b.jump; }
+            if (b.fall != end && b.fall.index <= b.index) { return b.fall; }
+            if (depth(b.jump) < b.depth) { return b.fall; }
+            if (depth(b.fall) < b.depth) { return b.jump; }
+            return b.fall;
+        }
+
+        private int depth(final Block b) { return b == end ? 0 : b.depth; }
+
+        /* add the block to the code, and whatever it takes to get from it to where it falls through to if that isn't
+         * the next block */
+        private void emit(final Block b, final Block next) {
+            code.nodes.addAll(b.nodes);
+            if (b.fall == null || b.fall == next) { return; }
+            final Node to = b.fall == end ? code.end : b.fall.nodes.get(0);
+            if (b.conditional && b.jump == next) {
+                final Node last = b.last();
+                final String comment = last.instr.getComment().isEmpty() ? "" : "reversed: " + last.instr.getComment();
+                code.nodes.set(code.nodes.size() - 1, code.rewrite(last, reverse(last.instr, comment), to));
+            } else {
+                code.nodes.add(code.node(new Instruction.Jmp(0, PC, "jump to the block this one falls into"), to));
+            }
+        }
+    }
+
+    private static boolean isJump(final Instruction instr) {
+        switch (instr.getName()) {
+            case "JLT": case "JLE": case "JGE": case "JGT": case "JEQ": case "JNE": case "JMP":
+                return instr.getArg2() == PC;
+            case "LDA":
+                return instr.getArg0() == PC && instr.getArg2() == PC;
+            default:
+                return false;
+        }
+    }
+
+    /* a jump relative to the PC that is always taken */
+    private static boolean isUnconditional(final Instruction instr) {
+        return isJump(instr) && (instr.getName().equals("JMP") || instr.getName().equals("LDA"));
+    }
+
+    /* an instruction after which control may go somewhere other than the next one */
+    private static boolean endsBlock(final Instruction instr) {
+        return instr.getName().startsWith("J") || isExit(instr);
+    }
+
+    /* an instruction after which control goes somewhere other than the next one, and not to a known instruction */
+    private static boolean isExit(final Instruction instr) {
+        switch (instr.getName()) {
+            case "HALT":
+                return true;
+            case "JMP":
+                return instr.getArg2() != PC;
+            case "ST": case "OUT":
+            case "JLT": case "JLE": case "JGE": case "JGT": case "JEQ": case "JNE":
+                return false;
+            default:
+                return instr.getArg0() == PC && !isJump(instr);
+        }
+    }
+
+    /* @return the conditional jump that is taken when instr isn't, with the comment */
+    private static Instruction reverse(final Instruction instr, final String comment) {
+        final int r = instr.getArg0();
+        final int d = instr.getArg1();
+        final int s = instr.getArg2();
+        switch (instr.getName()) {
+            case "JLT": return new Instruction.Jge(r, d, s, comment);
+            case "JLE": return new Instruction.Jgt(r, d, s, comment);
+            case "JGE": return new Instruction.Jlt(r, d, s, comment);
+            case "JGT": return new Instruction.Jle(r, d, s, comment);
+            case "JEQ": return new Instruction.Jne(r, d, s, comment);
+            case "JNE": return new Instruction.Jeq(r, d, s, comment);
+            default: throw new IllegalStateException("not a conditional jump: " + instr);
+        }
+    }
+
+    /* Lda r,d(PC) for a register other than the PC: the address of an instruction, to come back to later */
+    private static boolean isAddress(final Instruction instr) {
+        return instr.getName().equals("LDA") && instr.getArg0() != PC && instr.getArg2() == PC;
+    }
+
+    /* an instruction whose arguments are all registers, like Add, or that has none, like Halt */
+    private static boolean isRegisterOnly(final Instruction instr) {
+        switch (instr.getName()) {
+            case "LD": case "LDA": case "ST":
+            case "JLT": case "JLE": case "JGE": case "JGT": case "JEQ": case "JNE": case "JMP":
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /* Lda X,d(X) */
+    private static boolean isAdjustment(final Instruction instr, final int x) {
+        return instr.getName().equals("LDA") && instr.getArg0() == x && instr.getArg2() == x;
+    }
+
+    /* up and then down leave the register x as it was */
+    private static boolean cancel(final Instruction up, final Instruction down, final int x) {
+        if (isAdjustment(up, x) && isAdjustment(down, x)) { return up.getArg1() + down.getArg1() == 0; }
+        return up.getName().equals("ADD") && down.getName().equals("SUB") && up.getArg0() == x &&
+                down.getArg0() == x && up.getArg1() == x && down.getArg1() == x && up.getArg2() == down.getArg2() &&
+                up.getArg2() != x;
+    }
+}
@@ -36,6 +36,10 @@ public class CharacterSource implements Source<Character> {
             : Pair.of(Optional.empty(), this);
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public int getPosition() { return cursor; }
+
     /** this toString is designed to provide a line number, the line of text, and a ^ showing the cursor in that
      *  line for use in reporting errors. example output:<br>
      *  <br>
@@ -18,4 +18,8 @@ public interface Source<A> {
      * object representing the remaining unread portion of this source.
      */
     Pair<Optional<A>, Source<A>> getNext();
+
+    /** @return the number of items that had been read from the original source when this source was produced, or
+     * -1 if the implementation doesn't keep track */
+    default int getPosition() { return -1; }
 }
\ No newline at end of file
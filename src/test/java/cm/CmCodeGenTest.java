@@ -3,16 +3,20 @@ package cm;
 import data.Either;
 import data.Pair;
 import org.junit.Test;
+import tiny.tm.DebugInfo;
 import tiny.tm.Instruction;
+import tiny.tm.Machine;
 import token.CharacterSource;
 import token.Error;
 import token.Source;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 
+import static java.util.Arrays.asList;
 import static java.util.stream.Collectors.toList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -45,6 +49,213 @@ public class CmCodeGenTest {
         //System.out.println(instrs);
     }
 
+    @Test
+    public void stackAdjustmentsNeedNoConstantRegister() {
+        final List<Instruction> instrs = codeGen.emit(ast(getTestProgram("sort.cm")));
+        assertEquals(asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), new Machine(instrs).run(5, 3, 9, 1, 7, 2, 8, 0, 6, 4));
+        // the only constant loaded into a register other than AX is the zero register's, in the preamble
+        assertEquals(1, instrs.stream().filter(i -> i.getName().equals("LDC") && i.getArg0() == 3).count());
+        assertTrue(instrs.stream().noneMatch(i -> i.getName().equals("ADD") && i.getArg0() == 6));
+    }
+
+    @Test
+    public void globalScalars() {
+        final String program =
+                "int g; int h[2]; void set(int x) { g = x; } " +
+                "void main(void) { set(3); h[1] = g + 1; output(g); output(h[1]); }";
+        assertEquals(asList(3, 4), new Machine(codeGen.emit(ast(program))).run());
+    }
+
+    @Test
+    public void constantsAreFolded() {
+        final String program =
+                "void main(void) { int y; y = input(); output(2 * 3 + y * 1); if (2 < 1) { output(0); } }";
+        final List<Instruction> instrs = codeGen.emit(ast(program));
+        assertTrue(instrs.stream().noneMatch(i -> i.getName().equals("MUL")));
+        // the if statement can never run, so it is removed
+        assertEquals(1, instrs.stream().filter(i -> i.getName().equals("OUT")).count());
+        assertEquals(asList(10), new Machine(instrs).run(4));
+    }
+
+    @Test
+    public void selfRecursiveTailCallsReuseTheFrame() {
+        final String program =
+                "int sumto(int n, int acc) { if (n == 0) return acc; return sumto(n - 1, acc + n); }" +
+                "void main(void) { output(sumto(3000, 0)); }";
+        // each call used to need a frame, and 3000 of them don't fit in memory
+        assertEquals(asList(4501500), new Machine(codeGen.emit(ast(program))).run());
+    }
+
+    @Test
+    public void tailCallsWithLocalArraysStayCalls() {
+        final String program =
+                "int f(int n, int acc) { int b[1]; b[0] = acc + n; if (n == 0) return b[0]; return f(n - 1, b[0]); }" +
+                "void main(void) { output(f(3, 0)); }";
+        final List<Instruction> instrs = codeGen.emit(ast(program));
+        assertTrue(instrs.stream().noneMatch(i -> i.getComment().startsWith("replace parameter")));
+        assertEquals(asList(6), new Machine(instrs).run());
+    }
+
+    @Test
+    public void conditionsBranchOnTheComparison() {
+        final String program =
+                "void main(void) { int i; int n; n = input(); i = 0;" +
+                "  while (i < n) { if (i == 2) output(i); else if ((i >= 3)) output(0 - i); i = i + 1; }" +
+                "  if (n) output(n); }";
+        final List<Instruction> instrs = codeGen.emit(ast(program));
+        // no comparison is turned into a 0 or 1
+        assertTrue(instrs.stream().noneMatch(i -> i.getComment().equals("set result to true")));
+        assertEquals(asList(2, -3, -4, 5), new Machine(instrs).run(5));
+        assertEquals(asList(), new Machine(instrs).run(0));
+    }
+
+    @Test
+    public void commentsAndSourceLinesAreKeptOutOfTheCode() {
+        final String program =
+                "void main(void) {\n" +
+                "  int i;\n" +
+                "  i = input();\n" +
+                "  while (i > 0) { output(i); i = i - 1; }\n" +
+                "}\n";
+        final Pair<List<Instruction>,DebugInfo> emitted = codeGen.emitWithDebugInfo(ast(program));
+        final List<Instruction> instrs = emitted.getLeft();
+        assertTrue(instrs.stream().noneMatch(i -> i instanceof Instruction.Nop));
+        assertEquals(asList(2, 1), new Machine(instrs).run(2));
+        final String map = emitted.getRight().toMap(program);
+        assertTrue(map, map.contains("\t1\tfunction main\n"));
+        assertTrue(map, map.contains("\t3\tassignment to "));
+        assertTrue(map, map.contains("\t4\twhile\n"));
+        // the comments of the instructions themselves are there too. the loop is tested at the bottom, so the jump
+        // out of it has become a jump back
+        assertTrue(map, map.contains("\t-\treversed: if cond is false, jump over statement body / loop jump\n"));
+        // and the addresses are in order
+        final List<DebugInfo.Entry> entries = emitted.getRight().getEntries();
+        for (int i = 1; i < entries.size(); i++) {
+            assertTrue(entries.get(i - 1).getAddress() <= entries.get(i).getAddress());
+        }
+    }
+
+    @Test
+    public void jumpsOutOfDeeplyNestedCodeArePatched() {
+        // a loop around 60 nested ifs, the first of which lets the rest run unless i is 0
+        final StringBuilder program = new StringBuilder(
+                "void main(void) { int i; int n; n = input(); while (n > 0) { i = input(); n = n - 1;");
+        for (int k = 0; k < 60; k++) { program.append(" if (i > ").append(k).append(") { i = i + 1000;"); }
+        for (int k = 0; k < 60; k++) { program.append(" }"); }
+        program.append(" output(i); } }");
+        final List<Instruction> instrs = codeGen.emit(ast(program.toString()));
+        assertEquals(asList(0, 60003, 60250), new Machine(instrs).run(3, 0, 3, 250));
+    }
+
+    @Test
+    public void localsOfBlocksThatEndShareTheFrame() {
+        final String program =
+                "int depth(int n) {" +
+                "  if (n == 0) return 0;" +
+                "  if (n > 100) { int a[10]; a[9] = n; return a[9]; }" +
+                "  else { int b[10]; b[0] = depth(n - 1) + 1; return b[0]; } }" +
+                "void main(void) { output(depth(input())); }";
+        // each frame takes 10 words for the arrays, not 20, so 60 of them still fit in memory
+        assertEquals(asList(60), new Machine(codeGen.emit(ast(program))).run(60));
+    }
+
+    @Test
+    public void unreachableFunctionsAndUnreadVariablesAreRemoved() {
+        final String program =
+                "int unused[100]; int count;" +
+                "int helper(int x) { return x * 2; }" +
+                "int unusedHelper(int x) { return helper(x) + 1; }" +
+                "void log(int x) { }" +
+                "int next(void) { count = count + 1; return input(); }" +
+                "void main(void) { int a; int b; int c[10]; int d;" +
+                "  a = next(); b = a + 1; d = 3; log(d);" +
+                "  output(helper(a)); }";
+        final Ast ast = ast(program);
+        final List<Instruction> instrs = codeGen.emit(ast);
+        assertEquals(asList(14), new Machine(instrs).run(7));
+        final Pruning.Report report = ast.getAttribute(Pruning.Report.class).get();
+        assertEquals(1, report.getUnreachableFunctions());
+        assertEquals(1, report.getEmptyFunctions());
+        // count is only written. next is still called for the input it reads
+        assertEquals(2, report.getGlobals());
+        assertEquals(101, report.getGlobalWords());
+        assertEquals(3, report.getLocals());
+        assertEquals(12, report.getLocalWords());
+        assertEquals(3, report.getAssignments());
+        assertTrue(instrs.stream().anyMatch(i -> i.getName().equals("IN")));
+        assertTrue(instrs.stream().noneMatch(i -> i.getComment().contains("unusedHelper")));
+        // main stays even when nothing is left of it
+        assertEquals(asList(), new Machine(codeGen.emit(ast("void main(void) { int x; x = 1; 42; }"))).run());
+    }
+
+    @Test
+    public void indexesOutsideTheirArrayStopTheProgram() {
+        final String program =
+                "int g[4];" +
+                "void put(int x[], int i, int v) { x[i] = v; }" +
+                "void main(void) { int a[3]; int i; i = input(); a[i] = 5; g[i] = a[i]; put(g, i - 1, 7);" +
+                "  output(g[i]); output(g[i - 1]); }";
+        final List<Instruction> instrs = new CmCodeGen(true).emit(ast(program));
+        assertEquals(asList(5, 7), new Machine(instrs).run(2));
+        // the handler prints BOUNDS_ERROR and the index
+        assertEquals(asList(CmCodeGen.BOUNDS_ERROR, 3), new Machine(instrs).run(3));
+        assertEquals(asList(CmCodeGen.BOUNDS_ERROR, -1), new Machine(instrs).run(-1));
+        // only the lower bound of an array parameter is known
+        assertEquals(asList(CmCodeGen.BOUNDS_ERROR, -1), new Machine(instrs).run(0));
+    }
+
+    @Test
+    public void boundsErrorsCanBeToldApartFromOutput() {
+        // the program prints the index and then halts too, when it is 3
+        final String program =
+                "void main(void) { int a[3]; int i; i = input(); output(i);" +
+                "  if (i == 3) { output(i); return; } a[i] = 1; output(a[i]); }";
+        final List<Instruction> instrs = new CmCodeGen(true).emit(ast(program));
+        assertEquals(asList(3, 3), new Machine(instrs).run(3));
+        assertEquals(asList(4, CmCodeGen.BOUNDS_ERROR, 4), new Machine(instrs).run(4));
+        assertEquals(asList(2, 1), new Machine(instrs).run(2));
+    }
+
+    @Test
+    public void indexesKnownToBeInsideTheirArrayAreNotChecked() {
+        final String program =
+                "int g[10];" +
+                "void main(void) { int a[10]; int i; i = 0;" +
+                "  while (i < 10) { a[i] = i * i; i = i + 1; }" +
+                "  while (i > 0) { i = i - 1; g[9 - i] = a[i]; }" +
+                "  if (i >= 0) { if (i < 10) { output(g[i]); } }" +
+                "  output(g[i + 1]); }";
+        final Ast ast = ast(program);
+        final List<Instruction> instrs = new CmCodeGen(true).emit(ast);
+        assertEquals(asList(81, 64), new Machine(instrs).run());
+        final BoundsChecks.Report report = ast.getAttribute(BoundsChecks.Report.class).get();
+        assertEquals(5, report.getAccesses());
+        assertEquals(0, report.getLower());
+        assertEquals(0, report.getUpper());
+        assertEquals(10, report.getRemoved());
+        assertEquals(codeGen.emit(ast(program)).size(), instrs.size() - 4);
+    }
+
+    @Test
+    public void functionsEmittedInParallelAreLaidOutTheSameEveryTime() {
+        // identifiers are letters only, so the functions are fa, fb, ..., fan
+        final List<String> names = new ArrayList<>();
+        for (char c = 'a'; c <= 'z'; c++) { names.add("f" + c); }
+        for (char c = 'a'; c <= 'n'; c++) { names.add("fa" + c); }
+        final StringBuilder program = new StringBuilder("int fa(int x) { return x; }");
+        for (int i = 1; i < names.size(); i++) {
+            program.append("int ").append(names.get(i)).append("(int x) { int a[3]; a[1] = x + ").append(i)
+                    .append("; return ").append(names.get(i - 1)).append("(a[1]); }");
+        }
+        program.append("void main(void) { output(fan(input())); }");
+        final List<String> first = codeGen.emit(ast(program.toString())).stream().map(Object::toString).collect(toList());
+        for (int run = 0; run < 10; run++) {
+            final List<Instruction> again = codeGen.emit(ast(program.toString()));
+            assertEquals(first, again.stream().map(Object::toString).collect(toList()));
+            assertEquals(asList(781), new Machine(again).run(1));
+        }
+    }
+
     private Ast ast(final String program) {
         final Either<Error<Character>, Pair<List<Token>, Source<Character>>> tokens = scanner
                 .tokenize(new CharacterSource(program));
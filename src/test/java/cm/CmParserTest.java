@@ -3,15 +3,20 @@ package cm;
 import data.Either;
 import data.Pair;
 import org.junit.Test;
+import parser.GreenNode;
+import parser.GreenTreeBuilder;
 import token.CharacterSource;
 import token.Error;
 import token.Source;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.List;
 
 import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class CmParserTest {
@@ -43,4 +48,45 @@ public class CmParserTest {
         assertTrue(result.getRight().isPresent());
         //System.out.println(result.getRight().get());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void concreteSyntaxTree() {
+        final String program = "/* gcd */\nint gcd(int u, int v) {  \n" +
+                "    if (v == 0) return u; /* done */\n" +
+                "    else return gcd(v, u - u / v * v);\n}\n\n" +
+                "void main(void) { int x; int y; x = input(); y = input(); output(gcd(x, y)); }\n";
+        final List<Token> tokens = new CmScanner().tokenize(new CharacterSource(program))
+                .getRight().get().getLeft();
+        final GreenTreeBuilder builder = new GreenTreeBuilder();
+        final CmParser parser = new CmParser();
+        final Either<String,Pair<Ast,GreenNode>> result = parser.parseConcrete(tokens, program, builder);
+        assertTrue(result.getRight().isPresent());
+        final GreenNode cst = result.getRight().get().getRight();
+        assertEquals(program, cst.getText());
+        assertEquals(program.length(), cst.getWidth());
+
+        // the comment after "return u;" is trailing trivia of the semicolon
+        final List<GreenNode.Token> leaves = new ArrayList<>();
+        leaves(cst, leaves);
+        final GreenNode.Token semi = leaves.stream()
+                .filter(t -> t.getTrailingTrivia().stream().anyMatch(x -> x.getText().equals("/* done */")))
+                .findFirst().get();
+        assertEquals(";", semi.getTokenText());
+        assertEquals("/* gcd */", leaves.get(0).getLeadingTrivia().get(0).getText());
+
+        // identical tokens are shared, also across trees
+        final List<GreenNode.Token> parens = leaves.stream().filter(t -> t.getText().equals("(")).collect(toList());
+        assertTrue(parens.size() > 1);
+        parens.forEach(t -> assertSame(parens.get(0), t));
+        final GreenNode again = parser.parseConcrete(tokens, program, builder).getRight().get().getRight();
+        assertSame(cst, again);
+    }
+
+    private static void leaves(final GreenNode node, final List<GreenNode.Token> leaves) {
+        if (node instanceof GreenNode.Token) {
+            leaves.add((GreenNode.Token) node);
+        } else {
+            ((GreenNode.Node) node).getChildren().forEach(child -> leaves(child, leaves));
+        }
+    }
+}
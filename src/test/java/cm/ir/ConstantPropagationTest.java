@@ -0,0 +1,62 @@
+package cm.ir;
+
+import cm.Ast;
+import org.junit.Test;
+
+import static cm.ir.LoweringTest.ast;
+import static cm.ir.LoweringTest.optimize;
+import static cm.ir.LoweringTest.run;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConstantPropagationTest {
+
+    @Test
+    public void branchesOnConstantsBecomeJumps() {
+        final String program =
+                "int f(int x) { int y; y = 2 * 3; if (y > 5) { return x * 1 + y; } output(99); return 0; }" +
+                "void main(void) { output(f(input())); }";
+        final Program optimized = optimize(program, "ssa", "constant-propagation");
+        final Function f = optimized.getFunction("f");
+        assertFalse(f.getCode().stream().anyMatch(i -> i instanceof Ir.Branch));
+        // the block that writes 99 can't be reached, so it is gone
+        assertFalse(f.getCode().stream().anyMatch(i -> i instanceof Ir.Out));
+        assertEquals(asList(10), run(PassManager.forLevel(1).run(optimized), 4));
+    }
+
+    @Test
+    public void constantsArePropagatedAroundLoops() {
+        final String program =
+                "int f(int n) { int i; int s; i = 0; s = 1; while (i < n) { s = s * 1; i = i + 1; } return s; }" +
+                "void main(void) { output(f(5)); }";
+        final Function f = PassManager.forLevel(1).run(new Lowering().lower(ast(program))).getFunction("f");
+        // s is 1 on every path, so nothing is left of it in the loop
+        assertFalse(f.getCode().stream()
+                .anyMatch(i -> i instanceof Ir.BinOp && ((Ir.BinOp) i).getOp() == Ast.Operator.TIMES));
+        final Ir ret = f.getCode().stream().filter(i -> i instanceof Ir.Return).findFirst().get();
+        assertTrue(f.getCode().stream().anyMatch(i -> i instanceof Ir.Const && ((Ir.Const) i).getValue() == 1 &&
+                i.def() == ((Ir.Return) ret).getSrc()));
+        assertEquals(asList(1), run(PassManager.forLevel(1).run(new Lowering().lower(ast(program)))));
+    }
+
+    @Test
+    public void algebraicIdentities() {
+        final String program =
+                "int f(int x) { return (x + 0) * 2 - (x - 0) / 1 + x - x; }" +
+                "void main(void) { output(f(input())); }";
+        final Function f = optimize(program, "ssa", "constant-propagation", "copy-propagation", "dead-code")
+                .getFunction("f");
+        assertFalse(f.getCode().stream().anyMatch(i -> i instanceof Ir.BinOp &&
+                ((Ir.BinOp) i).getOp() != Ast.Operator.PLUS && ((Ir.BinOp) i).getOp() != Ast.Operator.MINUS));
+        assertEquals(asList(21), run(PassManager.forLevel(1).run(new Lowering().lower(ast(program))), 21));
+    }
+
+    @Test
+    public void divisionByZeroIsLeftAlone() {
+        final Function f = optimize("int f(void) { return 1 / 0; } void main(void) { }", "ssa", "constant-propagation")
+                .getFunction("f");
+        assertTrue(f.getCode().stream().anyMatch(i -> i instanceof Ir.BinOp));
+    }
+}
@@ -0,0 +1,61 @@
+package cm.ir;
+
+import cm.Ast;
+import org.junit.Test;
+
+import static cm.ir.LoweringTest.count;
+import static cm.ir.LoweringTest.optimize;
+import static cm.ir.LoweringTest.run;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+public class GvnTest {
+
+    private static final String[] PASSES = {"ssa", "copy-propagation", "gvn", "copy-propagation", "dead-code",
+            "out-of-ssa"};
+
+    @Test
+    public void repeatedArithmeticIsComputedOnce() {
+        final Program program = optimize(
+                "void main(void) { int a; int b; a = input(); b = input();" +
+                "  output(a * b + 1); if (a < b) { output(b * a + 2); } }", PASSES);
+        final Function main = program.getFunction("main");
+        assertEquals(1, main.getCode().stream()
+                .filter(i -> i instanceof Ir.BinOp && ((Ir.BinOp) i).getOp() == Ast.Operator.TIMES).count());
+        assertEquals(asList(13, 14), run(program, 3, 4));
+        assertEquals(asList(13), run(program, 4, 3));
+    }
+
+    @Test
+    public void loadsAreReusedAcrossStoresToOtherArrays() {
+        final Program program = optimize(
+                "void main(void) { int a[4]; int b[4]; int i; i = input(); a[i] = input();" +
+                "  b[i] = 7; output(a[i]); output(a[i] + b[i]); }", PASSES);
+        // the stored values are forwarded to all the loads
+        assertEquals(0, count(program.getFunction("main"), Ir.Load.class));
+        assertEquals(asList(5, 12), run(program, 2, 5));
+    }
+
+    @Test
+    public void loadsThroughArrayParametersAreNotReusedAcrossStoresThatMayAliasThem() {
+        final String source =
+                "int g[4];" +
+                "int f(int x[], int y[]) { int v; v = x[0]; y[0] = 9; g[1] = 3; return v + x[0] + x[1]; }" +
+                "void main(void) { int a[2]; a[0] = 1; a[1] = 2; output(f(a, a)); output(f(g, a)); }";
+        final Program program = optimize(source, PASSES);
+        assertEquals(3, count(program.getFunction("f"), Ir.Load.class));
+        assertEquals(asList(12, 3), run(program));
+    }
+
+    @Test
+    public void callsClobberTheArraysTheyCanReach() {
+        final Program program = optimize(
+                "int g[2];" +
+                "void set(int x[]) { x[0] = 5; g[0] = 6; }" +
+                "void main(void) { int a[2]; int b[2]; a[0] = 1; b[0] = 2; g[0] = 3; set(a);" +
+                "  output(a[0]); output(b[0]); output(g[0]); }", PASSES);
+        // b doesn't escape, so its store is forwarded past the call
+        assertEquals(2, count(program.getFunction("main"), Ir.Load.class));
+        assertEquals(asList(5, 2, 6), run(program));
+    }
+}
@@ -0,0 +1,110 @@
+package cm.ir;
+
+import org.junit.Test;
+import tiny.tm.Machine;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static cm.ir.LoweringTest.ast;
+import static cm.ir.LoweringTest.cleanUp;
+import static cm.ir.LoweringTest.cleanUpThen;
+import static cm.ir.LoweringTest.getTestProgram;
+import static cm.ir.LoweringTest.run;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InlinerTest {
+
+    private static boolean calls(final Function f, final String name) {
+        return f.getCode().stream().anyMatch(i -> i instanceof Ir.Call && ((Ir.Call) i).getName().equals(name));
+    }
+
+    @Test
+    public void callGraph() {
+        final Program program = new Lowering().lower(ast(
+                "int fact(int n) { if (n == 0) { return 1; } return n * fact(n - 1); }" +
+                "int sq(int n) { return n * n; }" +
+                "void main(void) { output(sq(3) + fact(3)); }"));
+        // C- can't declare a function before defining it, so functions that call each other are made by hand
+        final Function even = new Function("even", true, new int[] {0}, 0,
+                asList(new Ir.Call(1, "odd", new int[] {0}), new Ir.Return(1)), 2);
+        final Function odd = new Function("odd", true, new int[] {0}, 0,
+                asList(new Ir.Call(1, "even", new int[] {0}), new Ir.Return(1)), 2);
+        final List<Function> functions = new ArrayList<>(program.getFunctions());
+        functions.add(0, even);
+        functions.add(1, odd);
+        final CallGraph graph = new CallGraph(program.withFunctions(functions));
+        assertTrue(graph.isRecursive("even"));
+        assertTrue(graph.isRecursive("odd"));
+        assertTrue(graph.isRecursive("fact"));
+        assertFalse(graph.isRecursive("sq"));
+        assertFalse(graph.isRecursive("main"));
+        assertEquals(new HashSet<>(asList("fact", "sq")), graph.getCallees("main"));
+        final List<String> bottomUp = graph.getBottomUp();
+        assertEquals("main", bottomUp.get(bottomUp.size() - 1));
+    }
+
+    @Test
+    public void smallFunctionsAreInlined() {
+        final String program =
+                "int sq(int x) { return x * x; } int sum(int a, int b) { return sq(a) + sq(b); }" +
+                "void main(void) { output(sum(input(), 4)); }";
+        final Program inlined = cleanUpThen("inline", program);
+        assertFalse(calls(inlined.getFunction("main"), "sum"));
+        assertFalse(calls(inlined.getFunction("main"), "sq"));
+        assertEquals(asList(25), run(inlined, 3));
+    }
+
+    @Test
+    public void recursiveFunctionsAreNotInlined() {
+        final String program =
+                "int fact(int n) { if (n == 0) { return 1; } return n * fact(n - 1); }" +
+                "void main(void) { output(fact(5)); }";
+        final Program inlined = cleanUpThen("inline", program);
+        assertTrue(calls(inlined.getFunction("main"), "fact"));
+        assertTrue(calls(inlined.getFunction("fact"), "fact"));
+        assertEquals(asList(120), run(inlined));
+    }
+
+    @Test
+    public void largerFunctionsAreOnlyInlinedInLoops() {
+        final String program = getTestProgram("/cm/sort.cm").replace("sort(x,0,10);",
+                "sort(x,0,10); output(minloc(x, 0, 1));");
+        final Program optimized = cleanUp(program);
+        final int size = Inliner.size(optimized.getFunction("minloc"));
+        assertTrue(size > Inliner.SMALL && size <= Inliner.HOT);
+        final Program inlined = PassManager.of(asList("inline")).run(optimized);
+        assertFalse(calls(inlined.getFunction("sort"), "minloc"));
+        assertTrue(calls(inlined.getFunction("main"), "minloc"));
+    }
+
+    @Test
+    public void arraysStayPassedByReference() {
+        final String program =
+                "void fill(int a[], int n) { int i; int b[2]; i = 0; b[1] = n; while (i < n) { a[i] = b[1]; i = i + 1; } }" +
+                "void main(void) { int x[3]; int y[2]; int k;" +
+                "  y[1] = 7; k = 0; while (k < 1) { fill(x, 3); k = k + 1; } output(x[0] + x[2]); output(y[1]); }";
+        final Program inlined = cleanUpThen("inline", program);
+        final Function main = inlined.getFunction("main");
+        assertFalse(calls(main, "fill"));
+        // fill's array goes after main's own
+        assertEquals(7, main.getFrameSize());
+        assertEquals(asList(6, 7), run(inlined));
+        assertEquals(asList(6, 7), run(PassManager.forLevel(2).run(new Lowering().lower(ast(program)))));
+    }
+
+    @Test
+    public void sortRunsInFewerInstructions() {
+        final String sort = getTestProgram("/cm/sort.cm");
+        final Machine o1 = new Machine(new TmEmitter().emit(PassManager.forLevel(1).run(new Lowering().lower(ast(sort)))));
+        final Machine o2 = new Machine(new TmEmitter().emit(PassManager.forLevel(2).run(new Lowering().lower(ast(sort)))));
+        final int[] input = {5, 3, 9, 1, 7, 2, 8, 0, 6, 4};
+        assertEquals(asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), o2.run(input));
+        o1.run(input);
+        assertTrue(o2.getSteps() + " vs " + o1.getSteps(), o2.getSteps() < o1.getSteps());
+    }
+}
@@ -0,0 +1,89 @@
+package cm.ir;
+
+import cm.Ast;
+import org.junit.Test;
+
+import static cm.ir.LoweringTest.ast;
+import static cm.ir.LoweringTest.count;
+import static cm.ir.LoweringTest.optimize;
+import static cm.ir.LoweringTest.run;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoopOptimizationTest {
+
+    private static final String SUM =
+            "void main(void) { int i; int s; int n; n = input(); i = 0; s = 0;" +
+            "  while (i < n) { s = s + i * 4; i = i + 1; }" +
+            "  output(s); }";
+
+    private static boolean isMultiplication(final Ir instr) {
+        return instr instanceof Ir.BinOp && ((Ir.BinOp) instr).getOp() == Ast.Operator.TIMES;
+    }
+
+    private static boolean multiplies(final Function f) {
+        return f.getCode().stream().anyMatch(LoopOptimizationTest::isMultiplication);
+    }
+
+    private static boolean multipliesInLoop(final Function f) {
+        final Loops loops = new Loops(new Dominators(Cfg.of(f)));
+        return loops.getCfg().getBlocks().stream()
+                .anyMatch(b -> loops.getDepth(b) > 0 && b.getCode().stream().anyMatch(
+                        LoopOptimizationTest::isMultiplication));
+    }
+
+    @Test
+    public void rotatedLoopsTestAtTheBottom() {
+        final Program program = optimize(SUM, "loop-rotation");
+        final Function main = program.getFunction("main");
+        // the guard, and the test at the end of the body
+        assertEquals(2, count(main, Ir.Branch.class));
+        final Cfg cfg = Cfg.of(main);
+        final Loops loops = new Loops(new Dominators(cfg));
+        assertEquals(1, loops.getLoops().size());
+        final Loops.Loop loop = loops.getLoops().get(0);
+        assertTrue(loop.getPreheader() != null);
+        assertTrue(loop.getLatch().getTerminator() instanceof Ir.Branch);
+        assertEquals(asList(0), run(program, 0));
+        assertEquals(asList(40), run(program, 5));
+    }
+
+    @Test
+    public void invariantsAreComputedBeforeTheLoop() {
+        final Program program = optimize(
+                "void main(void) { int i; int s; int n; int k; n = input(); k = input(); i = 0; s = 0;" +
+                "  while (i < n) { s = s + k * 5; i = i + 1; }" +
+                "  output(s); }",
+                "loop-rotation", "ssa", "licm", "out-of-ssa");
+        assertFalse(multipliesInLoop(program.getFunction("main")));
+        assertTrue(multiplies(program.getFunction("main")));
+        assertEquals(asList(0), run(program, 0, 7));
+        assertEquals(asList(105), run(program, 3, 7));
+    }
+
+    @Test
+    public void multiplicationsByTheInductionVariableBecomeAdditions() {
+        final String[] passes = {"loop-rotation", "ssa", "constant-propagation", "copy-propagation",
+                "strength-reduction", "copy-propagation", "dead-code", "out-of-ssa"};
+        final Program program = optimize(SUM, passes);
+        assertTrue(multipliesInLoop(optimize(SUM, "loop-rotation").getFunction("main")));
+        assertFalse(multipliesInLoop(program.getFunction("main")));
+        assertEquals(asList(0), run(program, 0));
+        assertEquals(asList(180), run(program, 10));
+        // counting down
+        final Program down = optimize(
+                "void main(void) { int i; int s; i = input(); s = 0;" +
+                "  while (i > 0) { s = s + i * 3; i = i - 2; }" +
+                "  output(s); }", passes);
+        assertEquals(asList(27), run(down, 5));
+    }
+
+    @Test
+    public void sortStillSorts() {
+        final Program program = PassManager.forLevel(2).run(
+                new Lowering().lower(ast(LoweringTest.getTestProgram("/cm/sort.cm"))));
+        assertEquals(asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), run(program, 5, 3, 9, 1, 7, 2, 8, 0, 6, 4));
+    }
+}
@@ -0,0 +1,113 @@
+package cm.ir;
+
+import cm.Ast;
+import cm.CmAnalyzer;
+import cm.CmParser;
+import cm.CmScanner;
+import org.junit.Test;
+import tiny.tm.Instruction;
+import tiny.tm.Machine;
+import token.CharacterSource;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoweringTest {
+
+    static String getTestProgram(final String filename) {
+        final BufferedReader reader =
+                new BufferedReader(new InputStreamReader(LoweringTest.class.getResourceAsStream(filename)));
+        return String.join("\n", reader.lines().collect(toList()));
+    }
+
+    static Ast ast(final String program) {
+        final Ast ast = new CmParser().parse(new CmScanner().tokenize(new CharacterSource(program))
+                .getRight().get().getLeft()).getRight().get();
+        new CmAnalyzer().typeCheck(ast);
+        return ast;
+    }
+
+    static List<Integer> run(final String program, final int... input) {
+        final List<Instruction> instrs = new TmEmitter().emit(new Lowering().lower(ast(program)));
+        assertFalse(instrs.stream().anyMatch(i -> i instanceof Instruction.Tmp));
+        return new Machine(instrs).run(input);
+    }
+
+    /** the passes that tidy up the lowered code, which is much larger than what the later passes see at -O2 */
+    static final String[] CLEANUP =
+            {"ssa", "constant-propagation", "copy-propagation", "dead-code", "out-of-ssa"};
+
+    static Program optimize(final String program, final String... passes) {
+        return PassManager.of(asList(passes)).run(new Lowering().lower(ast(program)));
+    }
+
+    static List<Integer> run(final Program program, final int... input) {
+        return new Machine(new TmEmitter().emit(program)).run(input);
+    }
+
+    static Program cleanUp(final String program) { return optimize(program, CLEANUP); }
+
+    static Program cleanUpThen(final String pass, final String program) {
+        return PassManager.of(asList(pass)).run(cleanUp(program));
+    }
+
+    static long count(final Function f, final Class<? extends Ir> kind) {
+        return f.getCode().stream().filter(kind::isInstance).count();
+    }
+
+    @Test
+    public void gcd() {
+        assertEquals(asList(12), run(getTestProgram("/cm/gcd.cm"), 36, 24));
+    }
+
+    @Test
+    public void sort() {
+        assertEquals(asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9),
+                run(getTestProgram("/cm/sort.cm"), 5, 3, 9, 1, 7, 2, 8, 0, 6, 4));
+    }
+
+    @Test
+    public void scalarsLiveInRegisters() {
+        final Program program = new Lowering().lower(ast(
+                "int g; int f(int a[], int n) { int i; i = n; while (i > 0) { i = i - 1; g = a[i]; } return i; }" +
+                "void main(void) { }"));
+        final Function f = program.getFunction("f");
+        assertEquals(2, f.getParams().length);
+        assertEquals(0, f.getFrameSize());
+        // the loop condition becomes a single branch
+        assertEquals(1, f.getCode().stream().filter(i -> i instanceof Ir.Branch).count());
+        assertTrue(f.getCode().stream().anyMatch(i -> i instanceof Ir.StoreGlobal));
+        assertTrue(f.getCode().stream().anyMatch(i -> i instanceof Ir.Load));
+    }
+
+    @Test
+    public void assignmentIsAnExpression() {
+        assertEquals(asList(4, 9, 9), run(
+                "int g; void main(void) { int x; int a[2]; a[0] = a[1] = 2; output(a[0] + a[1]);" +
+                "  g = x = 9; output(g); output(x); }"));
+    }
+
+    @Test
+    public void localArraysArePassedByReference() {
+        assertEquals(asList(30, 12), run(
+                "int sum(int v[], int n) { int s; s = 0; while (n > 0) { n = n - 1; s = s + v[n]; } return s; }" +
+                "void fill(int v[], int n) { while (n > 0) { n = n - 1; v[n] = n * 3; } }" +
+                "void main(void) { int a[5]; fill(a, 5); output(sum(a, 5)); output(a[4]); }"));
+    }
+
+    @Test
+    public void arraysOfBlocksThatEndShareTheFrame() {
+        final Program program = new Lowering().lower(ast(
+                "void main(void) { int n; n = input();" +
+                "  if (n > 0) { int a[10]; a[9] = n; output(a[9]); } else { int b[20]; b[19] = n; output(b[19]); }" +
+                "  { int c[5]; c[0] = 1; { int d[3]; d[2] = c[0] + 1; output(d[2]); } } }"));
+        assertEquals(20, program.getFunction("main").getFrameSize());
+    }
+}
@@ -0,0 +1,102 @@
+package cm.ir;
+
+import cm.CmCodeGen;
+import org.junit.Test;
+import tiny.tm.Machine;
+
+import java.util.BitSet;
+import java.util.List;
+
+import static cm.ir.LoweringTest.ast;
+import static cm.ir.LoweringTest.getTestProgram;
+import static cm.ir.LoweringTest.run;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RegisterAllocatorTest {
+
+    private static final String PRESSURE =
+            "int f(int a, int b, int c, int d, int e, int g, int h) { return a - b + c * d - e + g * h; }" +
+            "void main(void) {" +
+            "  int a; int b; int c; int d; int e; int g; int h; int k; int v[3];" +
+            "  a = 1; b = 2; c = 3; d = 4; e = 5; g = 6; h = 7; k = 0;" +
+            "  while (k < 3) {" +
+            "    v[k] = f(a, b, c, d, e, g, h) + f(h, g, e, d, c, b, a);" +
+            "    a = a + b; b = b + c; c = c + d; d = d + e; e = e + g; g = g + h; h = h + a;" +
+            "    k = k + 1;" +
+            "  }" +
+            "  output(a); output(b); output(c); output(d); output(e); output(g); output(h);" +
+            "  output(v[0]); output(v[1]); output(v[2]);" +
+            "}";
+
+    @Test
+    public void liveness() {
+        final Function f = new Lowering().lower(ast(
+                "int f(int n) { int i; int s; i = 0; s = 0; while (i < n) { s = s + i; i = i + 1; } return s; }" +
+                "void main(void) { }")).getFunction("f");
+        final Cfg cfg = Cfg.of(f);
+        final Liveness liveness = new Liveness(cfg);
+        // only the parameter is live on entry, and nothing is live after the return
+        final BitSet entry = new BitSet();
+        entry.set(f.getParams()[0]);
+        assertEquals(entry, liveness.getLiveIn(cfg.getEntry()));
+        for (final Cfg.Block b : cfg.getBlocks()) {
+            if (b.getTerminator() instanceof Ir.Return) { assertTrue(liveness.getLiveOut(b).isEmpty()); }
+        }
+    }
+
+    @Test
+    public void gcdKeepsItsValuesInRegisters() {
+        final Program program = PassManager.forLevel(1).run(new Lowering().lower(ast(getTestProgram("/cm/gcd.cm"))));
+        for (final Function f : program.getFunctions()) {
+            final RegisterAllocator.Allocation allocation = RegisterAllocator.allocate(f);
+            assertFalse(f.getName(), allocation.getFunction().getCode().stream().anyMatch(i -> i instanceof Ir.Spill));
+        }
+    }
+
+    @Test
+    public void sortRunsInFewerInstructions() {
+        final Program program = PassManager.forLevel(1).run(new Lowering().lower(ast(getTestProgram("/cm/sort.cm"))));
+        final Machine optimized = new Machine(new TmEmitter().emit(program));
+        final Machine naive = new Machine(new CmCodeGen().emit(ast(getTestProgram("/cm/sort.cm"))));
+        final int[] input = {5, 3, 9, 1, 7, 2, 8, 0, 6, 4};
+        assertEquals(naive.run(input), optimized.run(input));
+        // CmCodeGen's output goes through the peephole optimizer, which gets rid of much of its stack traffic
+        assertTrue(optimized.getSteps() + " vs " + naive.getSteps(), optimized.getSteps() * 4 < naive.getSteps() * 3);
+    }
+
+    @Test
+    public void valuesAreSpilledUnderPressure() {
+        final Program program = new Lowering().lower(ast(PRESSURE));
+        final RegisterAllocator.Allocation allocation = RegisterAllocator.allocate(program.getFunction("main"));
+        final Function main = allocation.getFunction();
+        boolean spilled = false;
+        for (int r = 0; r < main.getRegisterCount(); r++) {
+            if (allocation.getRegister(r) == Ir.NONE && allocation.getSlot(r) != Ir.NONE) { spilled = true; }
+            assertTrue(allocation.getRegister(r) < RegisterAllocator.REGISTERS);
+        }
+        assertTrue(spilled);
+        assertTrue(main.getCode().stream().anyMatch(i -> i instanceof Ir.Spill));
+
+        final List<Integer> expected = asList(20, 28, 36, 44, 47, 41, 38, 68, 284, 1261);
+        assertEquals(expected, run(PRESSURE));
+        assertEquals(expected, new Machine(new TmEmitter().emit(PassManager.forLevel(2).run(program))).run());
+    }
+
+    @Test
+    public void registersLiveAcrossCallsAreSaved() {
+        final Function f = new Lowering().lower(ast(
+                "int id(int x) { return x; } int f(int n) { int m; m = n * 2; return id(n) + m; }" +
+                "void main(void) { output(f(4)); }")).getFunction("f");
+        final RegisterAllocator.Allocation allocation = RegisterAllocator.allocate(f);
+        final List<Ir> code = allocation.getFunction().getCode();
+        for (int i = 0; i < code.size(); i++) {
+            if (code.get(i) instanceof Ir.Call) { assertEquals(1, allocation.getSaved(i).cardinality()); }
+        }
+        assertEquals(asList(12), run(
+                "int id(int x) { return x; } int f(int n) { int m; m = n * 2; return id(n) + m; }" +
+                "void main(void) { output(f(4)); }"));
+    }
+}
@@ -0,0 +1,90 @@
+package cm.ir;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static cm.ir.LoweringTest.cleanUp;
+import static cm.ir.LoweringTest.cleanUpThen;
+import static cm.ir.LoweringTest.getTestProgram;
+import static cm.ir.LoweringTest.run;
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpecializationTest {
+
+    private static Set<String> names(final Program program) {
+        return program.getFunctions().stream().map(Function::getName).collect(toSet());
+    }
+
+    @Test
+    public void sortCallsCopiesThatKnowItsBounds() {
+        final Program program = cleanUpThen("ipcp", getTestProgram("/cm/sort.cm"));
+        // the global array is x, at address 0
+        assertEquals(new HashSet<>(asList("main", "sort(&0,0,10)", "minloc(&0,_,10)")), names(program));
+        assertEquals(0, program.getFunction("sort(&0,0,10)").getParams().length);
+        assertEquals(1, program.getFunction("minloc(&0,_,10)").getParams().length);
+        assertEquals(asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), run(program, 3, 1, 4, 0, 5, 9, 2, 6, 8, 7));
+    }
+
+    @Test
+    public void callsWithDifferentConstantsGetDifferentCopies() {
+        final Program program = cleanUpThen("ipcp",
+                "int scale(int x, int k) { return x * k; }" +
+                "void main(void) { int a; a = input(); output(scale(a, 2)); output(scale(a, 3));" +
+                "  output(scale(a, 2)); }");
+        assertEquals(new HashSet<>(asList("main", "scale(_,2)", "scale(_,3)")), names(program));
+        assertEquals(asList(10, 15, 10), run(program, 5));
+    }
+
+    @Test
+    public void recursiveCallsPassingTheConstantOnStayInTheCopy() {
+        final Program program = cleanUpThen("ipcp",
+                "int sum(int n, int step) { if (n <= 0) { return 0; } return n + sum(n - step, step); }" +
+                "void main(void) { output(sum(input(), 2)); }");
+        assertEquals(new HashSet<>(asList("main", "sum(_,2)")), names(program));
+        assertEquals(asList(30), run(program, 10));
+    }
+
+    @Test
+    public void functionsThatIgnoreTheConstantAreNotCopied() {
+        final Program program = cleanUpThen("ipcp",
+                "int first(int x, int k) { return x; }" +
+                "void main(void) { output(first(input(), 4)); }");
+        assertEquals(new HashSet<>(asList("main", "first")), names(program));
+        assertEquals(asList(7), run(program, 7));
+    }
+
+    /* a function as large as the rest of the program put together */
+    private static String large() {
+        final StringBuilder large = new StringBuilder("int large(int x, int k) { int y; y = x;");
+        for (int i = 0; i < 20; i++) { large.append(" y = y * k + ").append(i).append(";"); }
+        return large.append(" return y; }").toString();
+    }
+
+    @Test
+    public void aCopyThatReplacesItsOriginalCostsNothing() {
+        final Program program = cleanUpThen("ipcp", large() + "void main(void) { output(large(input(), 1)); }");
+        assertEquals(new HashSet<>(asList("main", "large(_,1)")), names(program));
+        assertEquals(asList(196), run(program, 6));
+    }
+
+    @Test
+    public void copiesMayOnlyMakeTheProgramSoMuchLarger() {
+        final String source = large() +
+                "int scale(int x, int k) { return x * k; }" +
+                "void main(void) { output(large(input(), 1)); output(large(input(), 2));" +
+                "  output(scale(input(), 2)); output(scale(input(), 3)); }";
+        final Program original = cleanUp(source);
+        final Program program = cleanUpThen("ipcp", source);
+        // a copy of large would leave the original in use by the other call, and almost double the program
+        assertEquals(new HashSet<>(asList("main", "large", "scale(_,2)", "scale(_,3)")), names(program));
+        final int size = Specialization.size(original);
+        assertTrue(Specialization.size(program) <=
+                size + Math.max(size * Specialization.GROWTH / 100, Specialization.MIN_GROWTH));
+        assertEquals(asList(191, 2097131, 10, 15), run(program, 1, 1, 5, 5));
+    }
+}
@@ -0,0 +1,86 @@
+package cm.ir;
+
+import org.junit.Test;
+import tiny.tm.Machine;
+
+import java.util.BitSet;
+import java.util.List;
+
+import static cm.ir.LoweringTest.ast;
+import static cm.ir.LoweringTest.getTestProgram;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SsaTest {
+
+    private static Function function(final String program, final String name) {
+        return new Lowering().lower(ast(program)).getFunction(name);
+    }
+
+    private static List<Integer> run(final String program, final int level, final int... input) {
+        final Program optimized = PassManager.forLevel(level).run(new Lowering().lower(ast(program)));
+        return new Machine(new TmEmitter().emit(optimized)).run(input);
+    }
+
+    @Test
+    public void dominators() {
+        final Function f = function("int f(int x) { int y; if (x < 0) y = 1; else y = 2; return y; }", "f");
+        final Cfg cfg = Cfg.of(f);
+        final Dominators dom = new Dominators(cfg);
+        final Cfg.Block entry = cfg.getEntry();
+        final Cfg.Block join = cfg.getBlocks().get(cfg.getBlocks().size() - 1);
+        assertEquals(2, join.getPreds().size());
+        assertSame(entry, dom.getIdom(join));
+        for (final Cfg.Block b : cfg.getBlocks()) { assertTrue(dom.dominates(entry, b)); }
+        // each arm's dominance ends at the join
+        for (final Cfg.Block arm : join.getPreds()) {
+            assertFalse(dom.dominates(arm, join));
+            assertTrue(dom.getFrontier(arm).get(join.getIndex()));
+        }
+    }
+
+    @Test
+    public void everyRegisterIsAssignedOnce() {
+        final Function f = function(getTestProgram("/cm/sort.cm"), "minloc");
+        final Function ssa = Ssa.construct(f, new Dominators(Cfg.of(f)));
+        assertTrue(ssa.isSsa());
+        final BitSet assigned = new BitSet();
+        for (final int p : ssa.getParams()) { assigned.set(p); }
+        for (final Ir instr : ssa.getCode()) {
+            if (instr.def() == Ir.NONE) { continue; }
+            assertFalse("assigned twice: " + instr, assigned.get(instr.def()));
+            assigned.set(instr.def());
+        }
+        // i, x and k change in the loop, so the loop header needs a phi for each. x and k also need one after the if
+        assertEquals(5, ssa.getCode().stream().filter(i -> i instanceof Ir.Phi).count());
+        assertFalse(Ssa.destruct(ssa).getCode().stream().anyMatch(i -> i instanceof Ir.Phi));
+    }
+
+    @Test
+    public void optimizedProgramsBehaveTheSame() {
+        final String sort = getTestProgram("/cm/sort.cm");
+        final int[] input = {5, 3, 9, 1, 7, 2, 8, 0, 6, 4};
+        assertEquals(run(sort, 0, input), run(sort, 1, input));
+        assertEquals(asList(12), run(getTestProgram("/cm/gcd.cm"), 2, 36, 24));
+    }
+
+    @Test
+    public void swappedVariables() {
+        // after copy propagation the loop's phis swap two values, so leaving SSA form needs a temporary
+        final String program = "void main(void) { int a; int b; int t; int i;" +
+                "  a = 1; b = 2; i = 0; while (i < 3) { t = a; a = b; b = t; i = i + 1; } output(a); output(b); }";
+        assertEquals(asList(2, 1), run(program, 1));
+    }
+
+    @Test
+    public void passesCanBeChosenByName() {
+        final PassManager pm = PassManager.of(asList("ssa", "dead-code"));
+        final Program program = pm.run(new Lowering().lower(ast(getTestProgram("/cm/gcd.cm"))));
+        assertTrue(program.getFunction("gcd").isSsa());
+        assertEquals(2, pm.getTimer().getNanos().size());
+        assertEquals(asList(6), new Machine(new TmEmitter().emit(program)).run(42, 30));
+    }
+}
@@ -0,0 +1,50 @@
+package cm.ir;
+
+import org.junit.Test;
+import tiny.tm.Machine;
+
+import static cm.ir.LoweringTest.ast;
+import static cm.ir.LoweringTest.getTestProgram;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TailCallsTest {
+
+    private static boolean callsItself(final Function f) {
+        return f.getCode().stream().anyMatch(i -> i instanceof Ir.Call && ((Ir.Call) i).getName().equals(f.getName()));
+    }
+
+    @Test
+    public void gcdBecomesALoop() {
+        final Program program = PassManager.of(asList("tail-calls")).run(
+                new Lowering().lower(ast(getTestProgram("/cm/gcd.cm"))));
+        assertFalse(callsItself(program.getFunction("gcd")));
+        assertEquals(asList(12), new Machine(new TmEmitter().emit(program)).run(36, 24));
+    }
+
+    @Test
+    public void deepTailRecursionRunsInConstantStack() {
+        final String program =
+                "int sumto(int n, int acc) { if (n == 0) return acc; return sumto(n - 1, acc + n); }" +
+                "void swap(int a, int b, int n) { if (n > 0) { output(a); swap(b, a, n - 1); } }" +
+                "void main(void) { output(sumto(3000, 0)); swap(1, 2, 3); }";
+        final Program optimized = PassManager.forLevel(1).run(new Lowering().lower(ast(program)));
+        assertFalse(callsItself(optimized.getFunction("sumto")));
+        assertFalse(callsItself(optimized.getFunction("swap")));
+        assertEquals(asList(4501500, 1, 2, 1), new Machine(new TmEmitter().emit(optimized)).run());
+    }
+
+    @Test
+    public void callsThatAreNotInTailPositionStay() {
+        final Program program = PassManager.forLevel(1).run(new Lowering().lower(ast(
+                "int fact(int n) { if (n == 0) return 1; return n * fact(n - 1); }" +
+                "int f(int n) { int a[2]; if (n == 0) return 0; a[0] = n; return f(n - 1); }" +
+                "void main(void) { output(fact(5)); output(f(3)); }")));
+        assertTrue(callsItself(program.getFunction("fact")));
+        // f has an array in its frame
+        assertTrue(callsItself(program.getFunction("f")));
+        assertEquals(asList(120, 0), new Machine(new TmEmitter().emit(program)).run());
+    }
+}
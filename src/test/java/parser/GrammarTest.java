@@ -0,0 +1,73 @@
+package parser;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+public class GrammarTest {
+
+    /* grammar:
+         S -> A b
+         A -> a | epsilon
+     */
+    @Test
+    public void idsAreDense() {
+        final Symbol S = new Symbol.NonTerminal("S");
+        final Symbol A = new Symbol.NonTerminal("A");
+        final Symbol a = new Symbol.Terminal("a");
+        final Symbol b = new Symbol.Terminal("b");
+        final Grammar g = new Grammar(S, asList(
+                new Production(S, asList(A, b)),
+                new Production(A, singletonList(a)),
+                new Production(A, singletonList(Symbol.epsilon))));
+
+        assertEquals(0, g.id(Symbol.$));
+        assertEquals(1, g.id(Symbol.epsilon));
+        assertEquals(2, g.id(Symbol.goal));
+        assertEquals(7, g.symbolCount());
+        final Set<Integer> ids = new HashSet<>();
+        for (final Symbol s : asList(S, A, a, b)) {
+            assertTrue(g.contains(s));
+            assertSame(s, g.symbol(g.id(s)));
+            ids.add(g.id(s));
+        }
+        assertEquals(new HashSet<>(asList(3, 4, 5, 6)), ids);
+        assertFalse(g.contains(new Symbol.Terminal("c")));
+        assertEquals(-1, g.id(new Symbol.Terminal("c")));
+
+        final FirstAndFollow ff = new FirstAndFollow(g);
+        assertTrue(ff.nullable(A));
+        assertFalse(ff.nullable(S));
+        assertEquals(new HashSet<>(asList(a, b)), ff.first(S));
+    }
+
+    @Test
+    public void symbolsCanBeSharedByGrammars() {
+        final Symbol S = new Symbol.NonTerminal("S");
+        final Symbol T = new Symbol.NonTerminal("T");
+        final Symbol a = new Symbol.Terminal("a");
+        final Symbol b = new Symbol.Terminal("b");
+        final Grammar g1 = new Grammar(S, singletonList(new Production(S, singletonList(a))));
+        final Grammar g2 = new Grammar(T, singletonList(new Production(T, singletonList(b))));
+        // each grammar numbers its own symbols, so which grammars came before doesn't matter
+        final Grammar g3 = new Grammar(S, asList(new Production(S, singletonList(T)), new Production(T, asList(T, a)),
+                new Production(T, singletonList(b))));
+        assertEquals(g1.id(S), g2.id(T));
+        assertTrue(g3.id(S) != g3.id(T));
+        assertEquals(-1, g1.id(T));
+        assertTrue(g1.contains(a));
+        assertTrue(g3.contains(a));
+        assertTrue(new FirstAndFollow(g3).first(S).containsAll(asList(b)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void differentSymbolsWithTheSameName() {
+        final Symbol S = new Symbol.NonTerminal("S");
+        new Grammar(S, singletonList(new Production(S, asList(new Symbol.Terminal("a"), new Symbol.Terminal("a")))));
+    }
+}
@@ -7,13 +7,16 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
-import static parser.LR1Parser.*;
+import static parser.ParserTables.*;
 import static parser.Symbol.NonTerminal;
 import static parser.Symbol.Terminal;
 
@@ -129,91 +132,91 @@ public class LR1ParserTest {
         @Test
         public void closure1() {
             final LR1Parser<String> parser = new LR1Parser<>(g1, toSymbol1);
-            final Set<LR1Item> closure = parser.closure(new HashSet<>(singletonList(g1Initial)));
+            final Set<LR1Item> closure = parser.getTables().closure(new HashSet<>(singletonList(g1Initial)));
             assertEquals(g1CC0, closure);
         }
 
         @Test
         public void goTo1() {
             final LR1Parser<String> parser = new LR1Parser<>(g1, toSymbol1);
-            final Set<LR1Item> actual = parser.goTo(g1CC0, list);
+            final Set<LR1Item> actual = parser.getTables().goTo(g1CC0, list);
             assertEquals(g1CC1, actual);
         }
 
         @Test
         public void goTo2() {
             final LR1Parser<String> parser = new LR1Parser<>(g1, toSymbol1);
-            final Set<LR1Item> actual = parser.goTo(g1CC0, pair);
+            final Set<LR1Item> actual = parser.getTables().goTo(g1CC0, pair);
             assertEquals(g1CC2, actual);
         }
 
         @Test
         public void goTo3() {
             final LR1Parser<String> parser = new LR1Parser<>(g1, toSymbol1);
-            final Set<LR1Item> actual = parser.goTo(g1CC0, left);
+            final Set<LR1Item> actual = parser.getTables().goTo(g1CC0, left);
             assertEquals(g1CC3, actual);
         }
 
         @Test
         public void goTo4() {
             final LR1Parser<String> parser = new LR1Parser<>(g1, toSymbol1);
-            final Set<LR1Item> actual = parser.goTo(g1CC1, pair);
+            final Set<LR1Item> actual = parser.getTables().goTo(g1CC1, pair);
             assertEquals(g1CC4, actual);
         }
 
         @Test
         public void goTo5() {
             final LR1Parser<String> parser = new LR1Parser<>(g1, toSymbol1);
-            final Set<LR1Item> actual = parser.goTo(g1CC3, pair);
+            final Set<LR1Item> actual = parser.getTables().goTo(g1CC3, pair);
             assertEquals(g1CC5, actual);
         }
 
         @Test
         public void goTo6() {
             final LR1Parser<String> parser = new LR1Parser<>(g1, toSymbol1);
-            final Set<LR1Item> actual = parser.goTo(g1CC3, left);
+            final Set<LR1Item> actual = parser.getTables().goTo(g1CC3, left);
             assertEquals(g1CC6, actual);
         }
 
         @Test
         public void goTo7() {
             final LR1Parser<String> parser = new LR1Parser<>(g1, toSymbol1);
-            final Set<LR1Item> actual = parser.goTo(g1CC3, right);
+            final Set<LR1Item> actual = parser.getTables().goTo(g1CC3, right);
             assertEquals(g1CC7, actual);
         }
 
         @Test
         public void goTo8() {
             final LR1Parser<String> parser = new LR1Parser<>(g1, toSymbol1);
-            final Set<LR1Item> actual = parser.goTo(g1CC5, right);
+            final Set<LR1Item> actual = parser.getTables().goTo(g1CC5, right);
             assertEquals(g1CC8, actual);
         }
 
         @Test
         public void goTo9() {
             final LR1Parser<String> parser = new LR1Parser<>(g1, toSymbol1);
-            final Set<LR1Item> actual = parser.goTo(g1CC6, pair);
+            final Set<LR1Item> actual = parser.getTables().goTo(g1CC6, pair);
             assertEquals(g1CC9, actual);
         }
 
         @Test
         public void goTo10() {
             final LR1Parser<String> parser = new LR1Parser<>(g1, toSymbol1);
-            final Set<LR1Item> actual = parser.goTo(g1CC6, right);
+            final Set<LR1Item> actual = parser.getTables().goTo(g1CC6, right);
             assertEquals(g1CC10, actual);
         }
 
         @Test
         public void goTo11() {
             final LR1Parser<String> parser = new LR1Parser<>(g1, toSymbol1);
-            final Set<LR1Item> actual = parser.goTo(g1CC9, right);
+            final Set<LR1Item> actual = parser.getTables().goTo(g1CC9, right);
             assertEquals(g1CC11, actual);
         }
 
         @Test
         public void canonicalCollection1() {
             final LR1Parser<String> parser = new LR1Parser<>(g1, toSymbol1);
-            final CanonicalCollection cc = parser.canonicalCollection();
+            final CanonicalCollection cc = parser.getTables().canonicalCollection();
 
             final Collection<Set<LR1Item>> expectedCC = new HashSet<>(
                     asList(g1CC0, g1CC1, g1CC2, g1CC3, g1CC4, g1CC5, g1CC6, g1CC7, g1CC8, g1CC9, g1CC10, g1CC11)
@@ -228,7 +231,7 @@ public class LR1ParserTest {
         public void tables1() {
             final LR1Parser<String> parser = new LR1Parser<>(g1, toSymbol1);
 
-            final ParseTables tables = parser.buildParseTables();
+            final ParseTables tables = parser.getTables().buildParseTables();
 
             //actionTable.forEach((k,v) -> System.out.println(k + ": " + v));
             //System.out.println();
@@ -246,6 +249,62 @@ public class LR1ParserTest {
             //System.out.println(tree);
             // TODO
         }
+
+        @Test
+        public void lazyConstruction() {
+            final LR1Parser<String> eager = new LR1Parser<>(g1, toSymbol1);
+            final LR1Parser<String> lazy = new LR1Parser<>(g1, toSymbol1, Construction.LAZY);
+            // nothing beyond the initial state is built until the parser needs it
+            assertEquals(1, lazy.getTables().getStateCount());
+
+            final List<String> input = asList("(", "(", ")", ")", "eof");
+            assertEquals(eager.parse(input).getRight().get().toString(),
+                    lazy.parse(input).getRight().get().toString());
+            assertTrue(lazy.getTables().getStateCount() <= eager.getTables().getStateCount());
+            assertTrue(lazy.getTables().getActionCount() < eager.getTables().getActionCount());
+
+            assertTrue(lazy.parse(asList("(", ")", ")", "eof")).getLeft().isPresent());
+        }
+
+        @Test
+        public void sharedTables() {
+            final ParserTables tables = new ParserTables(g1);
+            final LR1Parser<String> parser1 = new LR1Parser<>(tables, toSymbol1);
+            final LR1Parser<String> parser2 = new LR1Parser<>(tables, toSymbol1);
+            final List<String> input = asList("(", "(", ")", ")", "eof");
+            final String expected = parser1.parse(input).getRight().get().toString();
+            assertEquals(expected, parser2.parse(input).getRight().get().toString());
+
+            // a session can be reused, including after a failed parse
+            final ParserSession<String> session = parser1.newSession();
+            assertEquals(expected, session.parse(input).getRight().get().toString());
+            assertEquals(singletonList(")"), session.parse(asList("(", ")", ")", "eof")).getLeft().get());
+            assertEquals(expected, session.parse(input).getRight().get().toString());
+        }
+
+        @Test
+        public void lazyConstructionIsThreadSafe() throws Exception {
+            final LR1Parser<String> eager = new LR1Parser<>(g1, toSymbol1);
+            final LR1Parser<String> lazy = new LR1Parser<>(g1, toSymbol1, Construction.LAZY);
+            final List<List<String>> inputs = asList(
+                    asList("(", ")", "eof"),
+                    asList("(", "(", ")", ")", "eof"),
+                    asList("(", ")", "(", "(", "(", ")", ")", ")", "eof"));
+            final ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                final List<Future<String>> results = new ArrayList<>();
+                for (int i = 0; i < 30; i++) {
+                    final List<String> input = inputs.get(i % inputs.size());
+                    results.add(executor.submit(() -> lazy.parse(input).getRight().get().toString()));
+                }
+                for (int i = 0; i < results.size(); i++) {
+                    assertEquals(eager.parse(inputs.get(i % inputs.size())).getRight().get().toString(),
+                            results.get(i).get());
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
     }
 
     @RunWith(JUnit4.class)
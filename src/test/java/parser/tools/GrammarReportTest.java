@@ -0,0 +1,80 @@
+package parser.tools;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import parser.*;
+
+import java.util.HashSet;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static parser.Symbol.NonTerminal;
+import static parser.Symbol.Terminal;
+
+@RunWith(JUnit4.class)
+public class GrammarReportTest {
+    final Symbol s = new NonTerminal("s");
+    final Symbol a = new NonTerminal("a");
+    final Symbol b = new NonTerminal("b");
+    final Symbol c = new NonTerminal("c");
+    final Symbol x = new Terminal("x");
+    final Symbol y = new Terminal("y");
+
+    @Test
+    public void symbolProblems() {
+        // s -> a x | x ; a -> epsilon | a y ; b -> y ; c -> c x
+        final Grammar g = new Grammar(s, asList(
+                new Production(s, asList(a, x)),
+                new Production(s, singletonList(x)),
+                new Production(a, singletonList(Symbol.epsilon)),
+                new Production(a, asList(a, y)),
+                new Production(b, singletonList(y)),
+                new Production(c, asList(c, x))));
+        final GrammarReport report = new GrammarReport(g);
+        assertEquals(new HashSet<>(singletonList(a)), report.nullable());
+        assertEquals(new HashSet<>(asList(b, c)), report.unreachable());
+        assertEquals(new HashSet<>(singletonList(c)), report.unproductive());
+    }
+
+    @Test
+    public void danglingElse() {
+        // s -> i s | i s e s | x
+        final Symbol i = new Terminal("i");
+        final Symbol e = new Terminal("e");
+        final Grammar g = new Grammar(s, asList(
+                new Production(s, asList(i, s)),
+                new Production(s, asList(i, s, e, s)),
+                new Production(s, singletonList(x))));
+        final GrammarReport report = new GrammarReport(g);
+        final List<ParserTables.Conflict> conflicts = ParserTables.forAnalysis(g).getConflicts();
+        assertTrue(!conflicts.isEmpty());
+        conflicts.forEach(conflict -> {
+            assertEquals(ParserTables.Conflict.Kind.SHIFT_REDUCE, conflict.getKind());
+            assertEquals(e, conflict.getSymbol());
+            assertEquals(asList(i, i, x, e), report.example(conflict));
+        });
+        assertTrue(report.toString().contains("conflicts: " + conflicts.size()));
+    }
+
+    @Test
+    public void partsOfAPhaseAreReportedUnderIt() {
+        // s -> a x ; a -> y | epsilon
+        final Grammar g = new Grammar(s, asList(
+                new Production(s, asList(a, x)),
+                new Production(a, singletonList(y)),
+                new Production(a, singletonList(Symbol.epsilon))));
+        final String report = new GrammarReport(g).toString();
+        final int canonical = report.indexOf("\n    canonical collection ");
+        assertTrue(report, canonical >= 0);
+        assertTrue(report, report.indexOf("\n      closure ") > canonical);
+        assertTrue(report, report.indexOf("\n      goto ") > canonical);
+        // tables that aren't asked for a report don't time anything
+        assertTrue(new ParserTables(g).getTimer().getNanos().isEmpty());
+        assertTrue(new ParserTables(g, ParserTables.Construction.LAZY, new PhaseTimer()).getTimer().getNanos()
+                .containsKey("canonical collection"));
+    }
+}
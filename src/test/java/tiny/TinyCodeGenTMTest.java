@@ -0,0 +1,54 @@
+package tiny;
+
+import org.junit.Test;
+import tiny.tm.Instruction;
+import tiny.tm.Machine;
+import token.CharacterSource;
+
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TinyCodeGenTMTest {
+
+    private static List<Instruction> compile(final String program) {
+        final Ast ast = new TinyLL1Parser().parse(new TinyScanner().tokenize(new CharacterSource(program))
+                .getRight().get().getLeft()).getRight().get();
+        assertFalse(new TinyAnalyzer().typeCheck(ast).isPresent());
+        return new TinyCodeGenTM().emit(ast);
+    }
+
+    private static List<Integer> run(final String program, final int... input) {
+        return new Machine(compile(program)).run(input);
+    }
+
+    @Test
+    public void fact() {
+        final String program = TinyScannerTest.getTestProgram("fact.tny");
+        assertEquals(asList(120), run(program, 5));
+        assertEquals(asList(1), run(program, 1));
+        assertEquals(asList(), run(program, 0));
+    }
+
+    @Test
+    public void sum() {
+        final String program = TinyScannerTest.getTestProgram("001.tny");
+        assertEquals(asList(10), run(program, 4));
+        assertEquals(asList(0), run(program, 0));
+    }
+
+    @Test
+    public void ifElseAndRepeat() {
+        final String program =
+                "read x;" +
+                "if x < 3 then write 1 else write 2 end;" +
+                "if x = 5 then write 5 end;" +
+                "repeat x := x - 1 until x = 0;" +
+                "write x";
+        assertEquals(asList(2, 5, 0), run(program, 5));
+        assertEquals(asList(1, 0), run(program, 2));
+        assertEquals(asList(2, 0), run(program, 4));
+    }
+}
@@ -1,12 +1,17 @@
 package tiny;
 
 import data.Either;
+import data.Pair;
 import org.junit.Test;
+import parser.GreenNode;
 import parser.ParseTree;
 import token.CharacterSource;
 
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 public class TinyLL1ParserTest {
 
     @Test
@@ -25,4 +30,14 @@ public class TinyLL1ParserTest {
 
         // TODO
     }
-}
\ No newline at end of file
+
+    @Test
+    public void concreteSyntaxTree() {
+        final String program = TinyScannerTest.getTestProgram("gcd.tny");
+        final List<Token> tokens = new TinyScanner().tokenize(new CharacterSource(program))
+                .getRight().get().getLeft();
+        final Either<String,Pair<Ast,GreenNode>> result = new TinyLL1Parser().parseConcrete(tokens, program);
+        assertTrue(result.getRight().isPresent());
+        assertEquals(program, result.getRight().get().getRight().getText());
+    }
+}
@@ -0,0 +1,63 @@
+package tiny.tm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** a small TM simulator for testing code generators. the PC register holds the address of the executing
+ *  instruction, so jumps relative to the PC are counted from the jump itself */
+public class Machine {
+    private final List<Instruction> program;
+    private final int memorySize;
+    private long steps;
+
+    public Machine(final List<Instruction> program, final int memorySize) {
+        this.program = program;
+        this.memorySize = memorySize;
+    }
+
+    public Machine(final List<Instruction> program) { this(program, 1024); }
+
+    /** @return the number of instructions executed by the last run */
+    public long getSteps() { return steps; }
+
+    /** run the program until it halts
+     *  @return the values it wrote to the output */
+    public List<Integer> run(final int... input) {
+        final int[] reg = new int[8];
+        final int[] mem = new int[memorySize];
+        final List<Integer> output = new ArrayList<>();
+        int in = 0;
+        steps = 0;
+        while (true) {
+            final int pc = reg[7];
+            if (pc < 0 || pc >= program.size()) { throw new IllegalStateException("pc out of range: " + pc); }
+            if (++steps > 10_000_000) { throw new IllegalStateException("too many steps"); }
+            final Instruction instr = program.get(pc);
+            final int r = instr.getArg0();
+            final int a = instr.getArg1() + reg[instr.getArg2()];
+            reg[7] = pc + 1;
+            switch (instr.getName()) {
+                case "HALT": return output;
+                case "IN": reg[r] = input[in++]; break;
+                case "OUT": output.add(reg[r]); break;
+                case "ADD": reg[r] = reg[instr.getArg1()] + reg[instr.getArg2()]; break;
+                case "SUB": reg[r] = reg[instr.getArg1()] - reg[instr.getArg2()]; break;
+                case "MUL": reg[r] = reg[instr.getArg1()] * reg[instr.getArg2()]; break;
+                case "DIV": reg[r] = reg[instr.getArg1()] / reg[instr.getArg2()]; break;
+                case "LD": reg[r] = mem[a]; break;
+                case "LDA": reg[r] = a; break;
+                case "LDC": reg[r] = instr.getArg1(); break;
+                case "ST": mem[a] = reg[r]; break;
+                case "JLT": if (reg[r] < 0) { reg[7] = a; } break;
+                case "JLE": if (reg[r] <= 0) { reg[7] = a; } break;
+                case "JGE": if (reg[r] >= 0) { reg[7] = a; } break;
+                case "JGT": if (reg[r] > 0) { reg[7] = a; } break;
+                case "JEQ": if (reg[r] == 0) { reg[7] = a; } break;
+                case "JNE": if (reg[r] != 0) { reg[7] = a; } break;
+                case "JMP": reg[7] = a; break;
+                case "NOP": break;
+                default: throw new IllegalStateException("cannot execute " + instr);
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package tiny.tm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PeepholeTest {
+    private static final int SP = 6;
+    private static final int PC = 7;
+
+    private final Peephole peephole = new Peephole(SP);
+
+    private static List<String> names(final List<Instruction> instrs) {
+        final List<String> result = new ArrayList<>();
+        instrs.forEach(i -> result.add(i.getName()));
+        return result;
+    }
+
+    @Test
+    public void jumpsAreFixedUpWhenCodeBeforeTheirTargetGoes() {
+        final List<Instruction> code = asList(
+                new Instruction.In(0),
+                new Instruction.Jeq(0, 4, PC),            // to the second Out
+                new Instruction.Nop("then"),
+                new Instruction.Out(0),
+                new Instruction.Jmp(3, PC),               // to the Halt
+                new Instruction.Nop("else"),
+                new Instruction.Out(0),
+                new Instruction.Halt());
+        final List<Instruction> optimized = peephole.optimize(code);
+        assertEquals(asList("IN", "JEQ", "OUT", "JMP", "OUT", "HALT"), names(optimized));
+        assertEquals(3, optimized.get(1).getArg1());
+        assertEquals(2, optimized.get(3).getArg1());
+        assertEquals(asList(0), new Machine(code).run(0));
+        assertEquals(asList(0), new Machine(optimized).run(0));
+        assertEquals(asList(5), new Machine(optimized).run(5));
+    }
+
+    @Test
+    public void jumpsToTheNextInstructionGo() {
+        final List<Instruction> code = asList(
+                new Instruction.In(0),
+                new Instruction.Jmp(2, PC),
+                new Instruction.Nop("nothing to jump over"),
+                new Instruction.Out(0),
+                new Instruction.Halt());
+        assertEquals(asList("IN", "OUT", "HALT"), names(peephole.optimize(code)));
+    }
+
+    @Test
+    public void pushesRightBeforePopsAreMoves() {
+        final List<Instruction> code = asList(
+                new Instruction.Ldc(SP, 100),
+                new Instruction.In(0),
+                new Instruction.St(0, 0, SP),
+                new Instruction.Lda(SP, 1, SP),
+                new Instruction.Lda(SP, -1, SP),
+                new Instruction.Ld(1, 0, SP),
+                new Instruction.Lda(2, 0, 2),
+                new Instruction.Out(1),
+                new Instruction.Halt());
+        final List<Instruction> optimized = peephole.optimize(code);
+        assertEquals(asList("LDC", "IN", "LDA", "OUT", "HALT"), names(optimized));
+        assertEquals(asList(7), new Machine(optimized).run(7));
+    }
+
+    @Test
+    public void loadsAfterStoresToTheSameAddressUseTheRegister() {
+        final List<Instruction> code = asList(
+                new Instruction.In(0),
+                new Instruction.St(0, 5, 3),
+                new Instruction.Ld(1, 5, 3),
+                new Instruction.Ld(2, 5, 3),
+                new Instruction.St(2, 5, 3),
+                new Instruction.Out(1),
+                new Instruction.Out(2),
+                new Instruction.Halt());
+        final List<Instruction> optimized = peephole.optimize(code);
+        assertEquals(asList("IN", "ST", "LDA", "LD", "OUT", "OUT", "HALT"), names(optimized));
+        assertEquals(asList(4, 4), new Machine(optimized).run(4));
+    }
+
+    @Test
+    public void jumpTargetsAreNotPartOfAPattern() {
+        // the load is a jump target, so the value stored just before it may not be the one it loads
+        final List<Instruction> code = asList(
+                new Instruction.Ldc(1, 9),
+                new Instruction.St(1, 5, 3),
+                new Instruction.In(0),
+                new Instruction.Jeq(0, 2, PC),
+                new Instruction.St(0, 5, 3),
+                new Instruction.Ld(2, 5, 3),
+                new Instruction.Out(2),
+                new Instruction.Halt());
+        final List<Instruction> optimized = peephole.optimize(code);
+        assertEquals(names(code), names(optimized));
+        assertEquals(asList(9), new Machine(optimized).run(0));
+        assertEquals(asList(3), new Machine(optimized).run(3));
+    }
+
+    @Test
+    public void returnAddressesAreFixedUp() {
+        final List<Instruction> code = asList(
+                new Instruction.Ldc(SP, 100),
+                new Instruction.Lda(1, 4, PC),           // come back to the Out
+                new Instruction.St(1, 0, SP),
+                new Instruction.Lda(SP, 1, SP),
+                new Instruction.Jmp(4, PC),              // call
+                new Instruction.Out(0),
+                new Instruction.Halt(),
+                new Instruction.Nop("the function"),
+                new Instruction.Nop("returns 3"),
+                new Instruction.Ldc(0, 3),
+                new Instruction.Lda(SP, -1, SP),
+                new Instruction.Ld(PC, 0, SP));
+        final List<Instruction> optimized = peephole.optimize(code);
+        assertTrue(optimized.size() < code.size());
+        assertEquals(asList(3), new Machine(code).run());
+        assertEquals(asList(3), new Machine(optimized).run());
+    }
+
+    @Test
+    public void storingThePcMakesTheNextInstructionATarget() {
+        // the store saves the address of the load, which runs again with another value at the address
+        final List<Instruction> code = asList(
+                new Instruction.St(PC, 0, 2),
+                new Instruction.Ld(0, 0, 2),
+                new Instruction.Out(0),
+                new Instruction.Jne(1, 6, PC),           // to the Halt the second time
+                new Instruction.Ldc(1, 1),
+                new Instruction.Ld(4, 0, 2),
+                new Instruction.Ldc(0, 42),
+                new Instruction.St(0, 0, 2),
+                new Instruction.Lda(PC, 0, 4),           // back to the load
+                new Instruction.Halt());
+        final List<Instruction> optimized = peephole.optimize(code);
+        assertEquals(names(code), names(optimized));
+        assertEquals(asList(1, 42), new Machine(code).run());
+        assertEquals(asList(1, 42), new Machine(optimized).run());
+    }
+
+    @Test
+    public void loopsTestedAtTheTopAreTestedAtTheBottom() {
+        final List<Instruction> code = asList(
+                new Instruction.In(0),
+                new Instruction.Jle(0, 4, PC),            // out of the loop
+                new Instruction.Out(0),
+                new Instruction.Lda(0, -1, 0),
+                new Instruction.Jmp(-3, PC),              // back to the test
+                new Instruction.Halt());
+        final List<Instruction> optimized = peephole.optimize(code);
+        // a jump into the loop, and one jump each time around
+        assertEquals(asList("IN", "JMP", "OUT", "LDA", "JGT", "HALT"), names(optimized));
+        assertEquals(asList(3, 2, 1), new Machine(optimized).run(3));
+        assertEquals(asList(), new Machine(optimized).run(0));
+    }
+
+    @Test
+    public void jumpsToJumpsAndBlocksNothingReachesGo() {
+        final List<Instruction> code = asList(
+                new Instruction.In(0),
+                new Instruction.Jeq(0, 3, PC),            // to the else part
+                new Instruction.Out(0),
+                new Instruction.Jmp(3, PC),               // to the jump to the Halt
+                new Instruction.Ldc(0, 7),
+                new Instruction.Out(0),
+                new Instruction.Jmp(2, PC),               // to the Halt
+                new Instruction.Out(0),                   // nothing gets here
+                new Instruction.Halt());
+        final List<Instruction> optimized = peephole.optimize(code);
+        // the then part falls into the Halt, and the else part jumps straight to it
+        assertEquals(asList("IN", "JEQ", "OUT", "HALT", "LDC", "OUT", "JMP"), names(optimized));
+        assertEquals(asList(5), new Machine(optimized).run(5));
+        assertEquals(asList(7), new Machine(optimized).run(0));
+    }
+}